@@ -0,0 +1,54 @@
+package ru.miacomsoft.olamaeventsourcespringboot.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.miacomsoft.olamaeventsourcespringboot.service.OllamaEndpointPool;
+import ru.miacomsoft.olamaeventsourcespringboot.service.OllamaTransport;
+import ru.miacomsoft.olamaeventsourcespringboot.service.RequestHedger;
+
+@Configuration
+public class OllamaConfig {
+
+    @Bean(destroyMethod = "close")
+    public OllamaEndpointPool ollamaEndpointPool(
+            @Value("${rag.ollama.endpoints:}") String endpoints,
+            @Value("${rag.ollama.server.host:192.168.15.6}") String host,
+            @Value("${rag.ollama.server.port:11434}") int port,
+            @Value("${rag.ollama.transport.max-connections:16}") int maxConnections,
+            @Value("${rag.ollama.transport.max-streams:8}") int maxStreams,
+            @Value("${rag.ollama.transport.connect-timeout-ms:5000}") long connectTimeoutMs,
+            @Value("${rag.ollama.transport.request-timeout-ms:300000}") long requestTimeoutMs,
+            @Value("${rag.ollama.transport.keep-alive-seconds:300}") long keepAliveSeconds,
+            @Value("${rag.ollama.transport.http2:false}") boolean http2,
+            @Value("${rag.ollama.transport.gzip:true}") boolean gzip,
+            @Value("${rag.ollama.transport.unhealthy-after:3}") int unhealthyAfter,
+            @Value("${rag.ollama.transport.retry-after-ms:10000}") long retryAfterMs,
+            @Value("${rag.ollama.health.interval-ms:10000}") long healthIntervalMs,
+            @Value("${rag.ollama.health.timeout-ms:2000}") long healthTimeoutMs,
+            @Value("${rag.ollama.health.eject-after:2}") int ejectAfter,
+            @Value("${rag.ollama.health.readmit-after:2}") int readmitAfter,
+            @Value("${rag.ollama.health.slow-start-ms:30000}") long slowStartMs) {
+        // без списка серверов используется один сервер rag.ollama.server.*
+        String spec = endpoints.isBlank() ? "http://" + host + ":" + port : endpoints;
+        OllamaTransport.configureConnectionPool(maxConnections + maxStreams, keepAliveSeconds);
+        OllamaEndpointPool pool = new OllamaEndpointPool(spec,
+                url -> new OllamaTransport(url, maxConnections, maxStreams, connectTimeoutMs, requestTimeoutMs,
+                        http2, gzip, unhealthyAfter, retryAfterMs),
+                healthIntervalMs, healthTimeoutMs, ejectAfter, readmitAfter, slowStartMs);
+        pool.start();
+        return pool;
+    }
+
+    @Bean
+    public RequestHedger requestHedger(
+            OllamaEndpointPool ollamaEndpointPool,
+            @Value("${rag.ollama.hedge.enabled:false}") boolean enabled,
+            @Value("${rag.ollama.hedge.percentile:95}") double percentile,
+            @Value("${rag.ollama.hedge.min-delay-ms:20}") long minDelayMs,
+            @Value("${rag.ollama.hedge.max-delay-ms:2000}") long maxDelayMs,
+            @Value("${rag.ollama.hedge.budget-percent:5}") double budgetPercent,
+            @Value("${rag.ollama.hedge.burst:10}") int burst) {
+        return new RequestHedger(ollamaEndpointPool, enabled, percentile, minDelayMs, maxDelayMs, budgetPercent, burst);
+    }
+}
@@ -24,6 +24,8 @@ public class ModelsController {
         response.put("models", models);
         response.put("count", models.length());
         response.put("host", ollamaService.getOllamaHost());
+        response.put("transport", ollamaService.getTransportStatistics());
+        response.put("pipeline", ollamaService.getPipelineStatistics());
         return response.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package ru.miacomsoft.olamaeventsourcespringboot.controller;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.miacomsoft.olamaeventsourcespringboot.service.DocumentService;
+import ru.miacomsoft.olamaeventsourcespringboot.service.SearchFilter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Поиск по базе знаний: семантический с фильтром по метаданным и лексический по полнотекстовому индексу.
+ * Тело запроса: {"query": "...", "topK": 5, "threshold": 0.5,
+ *                "filter": {"clientId": "...", "source": "...", "createdFrom": "2024-01-01", "createdTo": "2024-02-01"}}
+ */
+@RestController
+@RequestMapping("/api/search")
+public class SearchController {
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Value("${rag.similarity.threshold:0.9}")
+    private double defaultThreshold;
+
+    @PostMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> search(@RequestBody String body) {
+        try {
+            JSONObject request = new JSONObject(body);
+            String query = request.optString("query", "");
+            if (query.isBlank()) {
+                return ResponseEntity.badRequest().body(
+                        new JSONObject().put("error", "Не указан текст запроса query").toString());
+            }
+            int topK = request.optInt("topK", 5);
+            double threshold = request.optDouble("threshold", defaultThreshold);
+            SearchFilter filter = SearchFilter.fromJson(request.optJSONObject("filter"));
+
+            List<Object[]> documents = documentService.searchSimilar(query, topK, threshold, filter);
+            return ResponseEntity.ok(toResponse(documents, "similarity"));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /**
+     * Пакетный поиск: {"queries": ["...", "..."], "topK": 5, "threshold": 0.5}.
+     * Ответ - NDJSON, по строке на запрос: {"index": 0, "query": "...", "results": [...]}
+     */
+    @PostMapping(value = "/batch", produces = "application/x-ndjson")
+    public ResponseEntity<?> searchBatch(@RequestBody String body) {
+        try {
+            JSONObject request = new JSONObject(body);
+            JSONArray queriesJson = request.optJSONArray("queries");
+            if (queriesJson == null || queriesJson.isEmpty()) {
+                return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON).body(
+                        new JSONObject().put("error", "Не указан массив запросов queries").toString());
+            }
+            List<String> queries = new ArrayList<>(queriesJson.length());
+            for (int i = 0; i < queriesJson.length(); i++) {
+                queries.add(queriesJson.getString(i));
+            }
+            int topK = request.optInt("topK", 5);
+            double threshold = request.optDouble("threshold", defaultThreshold);
+
+            List<List<Object[]>> results = documentService.searchSimilarBatch(queries, topK, threshold);
+
+            StreamingResponseBody stream = out -> {
+                for (int i = 0; i < results.size(); i++) {
+                    JSONObject line = new JSONObject();
+                    line.put("index", i);
+                    line.put("query", queries.get(i));
+                    line.put("results", toResults(results.get(i), "similarity"));
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            };
+            return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(stream);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /**
+     * Лексический поиск по полнотекстовому индексу: GET /api/search/lexical?q=EMP_DEPT_V&topK=10
+     */
+    @GetMapping(value = "/lexical", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> searchLexical(@RequestParam("q") String query,
+                                           @RequestParam(defaultValue = "10") int topK) {
+        try {
+            return ResponseEntity.ok(toResponse(documentService.searchLexical(query, topK), "rank"));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    /**
+     * Ошибка запроса клиента (неверный JSON, фильтр, дата) - 400, сбой поиска (база, Ollama) - 500
+     */
+    private static ResponseEntity<String> error(Exception e) {
+        String body = new JSONObject().put("error", String.valueOf(e.getMessage())).toString();
+        if (e instanceof JSONException || e instanceof DateTimeException || e instanceof IllegalArgumentException) {
+            return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON).body(body);
+        }
+        System.err.println("Ошибка поиска: " + e.getMessage());
+        return ResponseEntity.internalServerError().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    private static String toResponse(List<Object[]> documents, String scoreName) {
+        JSONArray results = toResults(documents, scoreName);
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("results", results);
+        response.put("count", results.length());
+        return response.toString();
+    }
+
+    private static JSONArray toResults(List<Object[]> documents, String scoreName) {
+        JSONArray results = new JSONArray();
+        for (Object[] doc : documents) {
+            JSONObject item = new JSONObject();
+            item.put("id", doc[0]);
+            item.put("content", doc[1]);
+            item.put("metadata", doc[2] != null ? new JSONObject(doc[2].toString()) : new JSONObject());
+            item.put(scoreName, ((Number) doc[3]).doubleValue());
+            if (doc.length > 4) {
+                item.put("chunk", doc[4]); // номер фрагмента документа
+            }
+            results.put(item);
+        }
+        return results;
+    }
+}
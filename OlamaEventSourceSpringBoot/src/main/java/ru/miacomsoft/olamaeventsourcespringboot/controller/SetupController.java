@@ -3,15 +3,18 @@ package ru.miacomsoft.olamaeventsourcespringboot.controller;
 import org.json.JSONObject;
 import org.springframework.web.bind.annotation.*;
 import ru.miacomsoft.olamaeventsourcespringboot.service.OllamaService;
+import ru.miacomsoft.olamaeventsourcespringboot.service.ReembeddingService;
 
 @RestController
 @RequestMapping("/api/setup")
 public class SetupController {
 
     private final OllamaService ollamaService;
+    private final ReembeddingService reembeddingService;
 
-    public SetupController(OllamaService ollamaService) {
+    public SetupController(OllamaService ollamaService, ReembeddingService reembeddingService) {
         this.ollamaService = ollamaService;
+        this.reembeddingService = reembeddingService;
     }
 
     @PostMapping("/save")
@@ -24,9 +27,11 @@ public class SetupController {
                 // Здесь можно обновить модель, если нужно
                 ollamaService.setModelName(settings.getString("chatModel"));
             }
+            // Векторы существующих документов посчитаны старой моделью: модель меняется после фонового
+            // переиндексирования, до тех пор поиск работает по старой
+            JSONObject reembedding = null;
             if (settings.has("embeddingModel")) {
-                // Здесь можно обновить модель, если нужно
-                ollamaService.setEmbeddingName(settings.getString("embeddingModel"));
+                reembedding = reembeddingService.switchModel(settings.getString("embeddingModel"));
             }
 
 
@@ -43,6 +48,9 @@ public class SetupController {
             response.put("success", true);
             response.put("message", "Настройки успешно сохранены");
             response.put("savedSettings", settings);
+            if (reembedding != null) {
+                response.put("reembedding", reembedding);
+            }
 
             return response.toString();
 
@@ -79,4 +87,36 @@ public class SetupController {
             return errorResponse.toString();
         }
     }
-}
\ No newline at end of file
+
+    @PostMapping("/reembed")
+    public String startReembedding(@RequestBody String requestBody) {
+        try {
+            String model = new JSONObject(requestBody).getString("embeddingModel");
+            JSONObject response = new JSONObject();
+            response.put("success", true);
+            response.put("reembedding", reembeddingService.start(model));
+            return response.toString();
+        } catch (Exception e) {
+            JSONObject errorResponse = new JSONObject();
+            errorResponse.put("success", false);
+            errorResponse.put("error", "Ошибка запуска переиндексирования: " + e.getMessage());
+            return errorResponse.toString();
+        }
+    }
+
+    @GetMapping("/reembed/status")
+    public String reembeddingStatus() {
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("reembedding", reembeddingService.getStatus());
+        return response.toString();
+    }
+
+    @PostMapping("/reembed/cancel")
+    public String cancelReembedding() {
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("reembedding", reembeddingService.cancel());
+        return response.toString();
+    }
+}
@@ -5,6 +5,8 @@ import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.JdbcTypeCode;
 import org.hibernate.type.SqlTypes;
 import org.json.JSONArray;
+import ru.miacomsoft.olamaeventsourcespringboot.service.EmbeddingCodec;
+import ru.miacomsoft.olamaeventsourcespringboot.service.VectorMath;
 
 import java.time.LocalDateTime;
 
@@ -26,6 +28,23 @@ public class Embedding {
     @Column(name = "embedding_norm")
     private Double embeddingNorm;
 
+    // L2-нормализованный эмбеддинг, по нему считается сходство функцией dot_product
+    @JdbcTypeCode(SqlTypes.ARRAY)
+    @Column(name = "embedding_unit", columnDefinition = "REAL[]")
+    private float[] embeddingUnit;
+
+    // Квантованный эмбеддинг (int8 или float16, см. EmbeddingCodec), заполняется при включенном rag.vector.codec
+    @Column(name = "embedding_q", columnDefinition = "BYTEA")
+    private byte[] embeddingQ;
+
+    // Номер списка IVF индекса (ближайший центроид k-means), см. IvfIndexService
+    @Column(name = "ivf_list")
+    private Integer ivfList;
+
+    // Модель, которой посчитан вектор (пространство имен эмбеддингов)
+    @Column(name = "model")
+    private String model;
+
     @CreationTimestamp
     @Column(name = "created_at")
     private LocalDateTime createdAt;
@@ -37,6 +56,7 @@ public class Embedding {
         this.document = document;
         this.embedding = embedding.toString();
         this.embeddingNorm = embeddingNorm;
+        this.embeddingUnit = VectorMath.normalize(VectorMath.toFloatArray(embedding));
     }
 
     // Геттеры и сеттеры остаются без изменений
@@ -47,15 +67,38 @@ public class Embedding {
     public void setDocument(Document document) { this.document = document; }
 
     public String getEmbedding() { return embedding; }
-    public void setEmbedding(String embedding) { this.embedding = embedding; }
+    public void setEmbedding(String embedding) {
+        this.embedding = embedding;
+        setEmbeddingUnit(VectorMath.normalize(VectorMath.parseEmbedding(embedding)));
+    }
     public void setEmbedding(JSONArray embedding) {
         this.embedding = embedding.toString();
+        setEmbeddingUnit(VectorMath.normalize(VectorMath.toFloatArray(embedding)));
     }
 
     public JSONArray getEmbeddingAsJson() {
         return new JSONArray(embedding);
     }
 
+    public float[] getEmbeddingUnit() { return embeddingUnit; }
+    // квантованный код пересчитывается вместе с вектором в том же формате, иначе поиск по embedding_q
+    // продолжит находить старый вектор
+    public void setEmbeddingUnit(float[] embeddingUnit) {
+        this.embeddingUnit = embeddingUnit;
+        if (embeddingQ != null && embeddingUnit != null) {
+            this.embeddingQ = EmbeddingCodec.encode(embeddingUnit, EmbeddingCodec.codecOf(embeddingQ));
+        }
+    }
+
+    public byte[] getEmbeddingQ() { return embeddingQ; }
+    public void setEmbeddingQ(byte[] embeddingQ) { this.embeddingQ = embeddingQ; }
+
+    public Integer getIvfList() { return ivfList; }
+    public void setIvfList(Integer ivfList) { this.ivfList = ivfList; }
+
+    public String getModel() { return model; }
+    public void setModel(String model) { this.model = model; }
+
     public Double getEmbeddingNorm() { return embeddingNorm; }
     public void setEmbeddingNorm(Double embeddingNorm) { this.embeddingNorm = embeddingNorm; }
 
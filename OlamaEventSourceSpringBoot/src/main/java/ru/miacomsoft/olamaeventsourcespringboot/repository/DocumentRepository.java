@@ -15,4 +15,18 @@ public interface DocumentRepository extends JpaRepository<Document, Long> {
 
     @Query(value = "SELECT * FROM documents WHERE content LIKE %:query%", nativeQuery = true)
     List<Document> searchByContent(@Param("query") String query);
+
+    /**
+     * Лексический поиск с ранжированием ts_rank_cd (плотность покрытия термами запроса, нормировка на длину).
+     * Строки в формате поиска по сходству: Object[]{id, content, metadata, rank}
+     */
+    @Query(value = """
+    SELECT d.id, d.content, d.metadata,
+           CAST(ts_rank_cd(d.content_tsv, q.query, 1) AS DOUBLE PRECISION) AS rank
+    FROM documents d, to_tsquery('simple', :tsQuery) q(query)
+    WHERE d.content_tsv @@ q.query
+    ORDER BY rank DESC
+    LIMIT :topK
+""", nativeQuery = true)
+    List<Object[]> searchLexical(@Param("tsQuery") String tsQuery, @Param("topK") int topK);
 }
\ No newline at end of file
@@ -22,16 +22,144 @@ public interface EmbeddingRepository extends JpaRepository<Embedding, Long> {
             "ORDER BY embedding_norm DESC LIMIT :limit", nativeQuery = true)
     List<Embedding> findTopByNorm(@Param("limit") int limit);
 
+    /**
+     * Поиск по нормализованным векторам embedding_unit. Параметр - нормализованный запрос в виде литерала REAL[].
+     * OFFSET 0 не дает развернуть подзапрос, поэтому сходство считается один раз на строку, а не в WHERE и ORDER BY.
+     */
     @Query(value = """
-    SELECT d.id, d.content, d.metadata, 
-           cosine_similarity(e.embedding, CAST(:queryEmbeddingStr AS jsonb)) as similarity
-    FROM embeddings e
-    JOIN documents d ON e.document_id = d.id
-    WHERE cosine_similarity(e.embedding, CAST(:queryEmbeddingStr AS jsonb)) >= :threshold
-    ORDER BY similarity DESC
+    SELECT s.id, s.content, s.metadata, s.similarity
+    FROM (
+        SELECT d.id, d.content, d.metadata,
+               dot_product(e.embedding_unit, CAST(:queryUnitStr AS real[])) as similarity
+        FROM embeddings e
+        JOIN documents d ON e.document_id = d.id
+        OFFSET 0
+    ) s
+    WHERE s.similarity >= :threshold
+    ORDER BY s.similarity DESC
     LIMIT :topK
 """, nativeQuery = true)
     List<Object[]> findSimilarDocuments(
+            @Param("queryUnitStr") String queryUnitStr,
+            @Param("topK") int topK,
+            @Param("threshold") double threshold);
+
+    /**
+     * Поиск по квантованным векторам embedding_q (режим rag.vector.codec=int8|float16).
+     * Читает только компактный код из основной страницы таблицы, JSONB и REAL[] остаются в TOAST.
+     */
+    @Query(value = """
+    SELECT s.id, s.content, s.metadata, s.similarity
+    FROM (
+        SELECT d.id, d.content, d.metadata,
+               quantized_dot(e.embedding_q, CAST(:queryUnitStr AS real[])) as similarity
+        FROM embeddings e
+        JOIN documents d ON e.document_id = d.id
+        OFFSET 0
+    ) s
+    WHERE s.similarity >= :threshold
+    ORDER BY s.similarity DESC
+    LIMIT :topK
+""", nativeQuery = true)
+    List<Object[]> findSimilarDocumentsQuantized(
+            @Param("queryUnitStr") String queryUnitStr,
+            @Param("topK") int topK,
+            @Param("threshold") double threshold);
+
+    /**
+     * Поиск IVF: сканируются только строки из nprobe ближайших списков и строки, которым список еще не назначен.
+     * Сходство берется по квантованному коду, если он есть, иначе по embedding_unit.
+     */
+    @Query(value = """
+    SELECT s.id, s.content, s.metadata, s.similarity
+    FROM (
+        SELECT d.id, d.content, d.metadata,
+               COALESCE(quantized_dot(e.embedding_q, CAST(:queryUnitStr AS real[])),
+                        dot_product(e.embedding_unit, CAST(:queryUnitStr AS real[]))) as similarity
+        FROM embeddings e
+        JOIN documents d ON e.document_id = d.id
+        WHERE e.ivf_list IN (:lists) OR e.ivf_list IS NULL
+        OFFSET 0
+    ) s
+    WHERE s.similarity >= :threshold
+    ORDER BY s.similarity DESC
+    LIMIT :topK
+""", nativeQuery = true)
+    List<Object[]> findSimilarDocumentsInLists(
+            @Param("queryUnitStr") String queryUnitStr,
+            @Param("lists") List<Integer> lists,
+            @Param("topK") int topK,
+            @Param("threshold") double threshold);
+
+    /**
+     * Второй этап бинарно квантованного поиска: точное сходство только для отобранных кандидатов
+     */
+    @Query(value = """
+    SELECT s.id, s.content, s.metadata, s.similarity
+    FROM (
+        SELECT d.id, d.content, d.metadata,
+               dot_product(e.embedding_unit, CAST(:queryUnitStr AS real[])) as similarity
+        FROM embeddings e
+        JOIN documents d ON e.document_id = d.id
+        WHERE e.document_id IN (:candidateIds)
+        OFFSET 0
+    ) s
+    WHERE s.similarity >= :threshold
+    ORDER BY s.similarity DESC
+    LIMIT :topK
+""", nativeQuery = true)
+    List<Object[]> rescoreCandidates(
+            @Param("queryUnitStr") String queryUnitStr,
+            @Param("candidateIds") List<Long> candidateIds,
+            @Param("topK") int topK,
+            @Param("threshold") double threshold);
+
+    /**
+     * Поиск с фильтром по метаданным: условие проверяется до расчета сходства,
+     * поэтому сходство считается только для документов, прошедших фильтр (metadata @> по GIN индексу)
+     */
+    @Query(value = """
+    SELECT s.id, s.content, s.metadata, s.similarity
+    FROM (
+        SELECT d.id, d.content, d.metadata,
+               COALESCE(quantized_dot(e.embedding_q, CAST(:queryUnitStr AS real[])),
+                        dot_product(e.embedding_unit, CAST(:queryUnitStr AS real[]))) as similarity
+        FROM embeddings e
+        JOIN documents d ON e.document_id = d.id
+        WHERE d.metadata @> CAST(:metadataJson AS jsonb)
+          AND (CAST(:createdFrom AS timestamp) IS NULL OR d.created_at >= CAST(:createdFrom AS timestamp))
+          AND (CAST(:createdTo AS timestamp) IS NULL OR d.created_at < CAST(:createdTo AS timestamp))
+        OFFSET 0
+    ) s
+    WHERE s.similarity >= :threshold
+    ORDER BY s.similarity DESC
+    LIMIT :topK
+""", nativeQuery = true)
+    List<Object[]> findSimilarDocumentsFiltered(
+            @Param("queryUnitStr") String queryUnitStr,
+            @Param("metadataJson") String metadataJson,
+            @Param("createdFrom") String createdFrom,
+            @Param("createdTo") String createdTo,
+            @Param("topK") int topK,
+            @Param("threshold") double threshold);
+
+    /**
+     * Поиск через индексируемый оператор pgvector (режим rag.vector.storage=pgvector).
+     * Сначала берутся topK ближайших по индексу, затем отсекаются строки ниже порога.
+     */
+    @Query(value = """
+    SELECT d.id, d.content, d.metadata, s.similarity
+    FROM (
+        SELECT e.document_id, 1 - (e.embedding_vec <=> CAST(:queryEmbeddingStr AS vector)) as similarity
+        FROM embeddings e
+        ORDER BY e.embedding_vec <=> CAST(:queryEmbeddingStr AS vector)
+        LIMIT :topK
+    ) s
+    JOIN documents d ON s.document_id = d.id
+    WHERE s.similarity >= :threshold
+    ORDER BY s.similarity DESC
+""", nativeQuery = true)
+    List<Object[]> findSimilarDocumentsPgvector(
             @Param("queryEmbeddingStr") String queryEmbeddingStr,
             @Param("topK") int topK,
             @Param("threshold") double threshold);
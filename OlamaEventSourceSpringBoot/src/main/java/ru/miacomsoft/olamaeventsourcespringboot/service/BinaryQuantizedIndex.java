@@ -0,0 +1,145 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * Бинарно квантованный индекс: для каждого вектора хранится только знак каждой координаты (1 бит на измерение),
+ * коды упакованы в один массив long[]. Поиск - перебор с расстоянием Хэмминга через Long.bitCount,
+ * что в 32 раза меньше данных, чем float32. Сходство в результатах - оценка, поэтому индекс используется
+ * как первый этап: отобранные кандидаты пересчитываются по полным векторам (см. VectorIndexService).
+ */
+public class BinaryQuantizedIndex implements VectorIndex {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Integer> rowByDocumentId = new HashMap<>();
+
+    private long[] codes = new long[0];
+    private long[] documentIds = new long[0];
+    private int rows = 0;
+    private int dimension = -1;
+    private int words = 0;
+
+    @Override
+    public void add(long documentId, float[] vector) {
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = vector.length;
+                words = (dimension + 63) >>> 6;
+            } else if (dimension != vector.length) {
+                throw new IllegalArgumentException("Размерность вектора " + vector.length
+                        + " не совпадает с размерностью индекса " + dimension);
+            }
+            Integer row = rowByDocumentId.get(documentId);
+            if (row == null) {
+                ensureCapacity(rows + 1);
+                row = rows++;
+                rowByDocumentId.put(documentId, row);
+                documentIds[row] = documentId;
+            }
+            encode(vector, codes, row * words);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(long documentId) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowByDocumentId.remove(documentId);
+            if (row == null) {
+                return false;
+            }
+            int last = --rows;
+            if (row != last) {
+                System.arraycopy(codes, last * words, codes, row * words, words);
+                documentIds[row] = documentIds[last];
+                rowByDocumentId.put(documentIds[row], row);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Возвращает topK кандидатов с наименьшим расстоянием Хэмминга.
+     * Сходство оценивается как cos(pi * hamming / dimension) и годится только для отбора кандидатов.
+     */
+    @Override
+    public List<VectorSearchHit> search(float[] query, int topK, double threshold, LongPredicate filter) {
+        lock.readLock().lock();
+        try {
+            if (rows == 0 || topK <= 0) {
+                return Collections.emptyList();
+            }
+            if (query.length != dimension) {
+                throw new IllegalArgumentException("Размерность запроса " + query.length
+                        + " не совпадает с размерностью индекса " + dimension);
+            }
+            long[] queryCode = new long[words];
+            encode(query, queryCode, 0);
+
+            // в куче храним -hamming, чтобы в вершине был худший (самый далекий) кандидат
+            TopKHeap heap = new TopKHeap(topK);
+            for (int row = 0, offset = 0; row < rows; row++, offset += words) {
+                if (filter != null && !filter.test(documentIds[row])) {
+                    continue;
+                }
+                int hamming = 0;
+                for (int w = 0; w < words; w++) {
+                    hamming += Long.bitCount(codes[offset + w] ^ queryCode[w]);
+                }
+                float score = -hamming;
+                if (score > heap.minScore()) {
+                    heap.offer(documentIds[row], score);
+                }
+            }
+
+            List<VectorSearchHit> hits = new ArrayList<>();
+            for (VectorSearchHit hit : heap.toSortedHits()) {
+                double similarity = Math.cos(Math.PI * -hit.getSimilarity() / dimension);
+                if (similarity >= threshold) {
+                    hits.add(new VectorSearchHit(hit.getDocumentId(), similarity));
+                }
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void encode(float[] vector, long[] target, int offset) {
+        Arrays.fill(target, offset, offset + words, 0L);
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > 0) {
+                target[offset + (i >>> 6)] |= 1L << (i & 63);
+            }
+        }
+    }
+
+    private void ensureCapacity(int requiredRows) {
+        if (documentIds.length >= requiredRows) {
+            return;
+        }
+        int capacity = Math.max(1024, documentIds.length * 2);
+        while (capacity < requiredRows) {
+            capacity *= 2;
+        }
+        codes = Arrays.copyOf(codes, capacity * words);
+        documentIds = Arrays.copyOf(documentIds, capacity);
+    }
+}
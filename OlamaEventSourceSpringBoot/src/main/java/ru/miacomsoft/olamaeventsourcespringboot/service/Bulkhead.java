@@ -0,0 +1,68 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение числа одновременных вызовов одного этапа обработки. Вызов ждет свободного места не дольше
+ * maxWaitMs (и не дольше срока запроса), затем получает отказ Full: медленный этап не забирает все потоки.
+ */
+public final class Bulkhead {
+
+    public static final class Full extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Full(String name) {
+            super("Превышено число одновременных запросов: " + name);
+        }
+    }
+
+    private final String name;
+    private final int maxConcurrent;
+    private final long maxWaitMs;
+    private final Semaphore permits;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public Bulkhead(String name, int maxConcurrent, long maxWaitMs) {
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.permits = new Semaphore(this.maxConcurrent, true);
+    }
+
+    /**
+     * Занимает место; освобождать через release в finally
+     */
+    public void acquire() {
+        long wait = Math.min(maxWaitMs, RequestDeadline.remainingMs());
+        try {
+            if (!permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                throw new Full(name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Full(name);
+        }
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("in_use", maxConcurrent - permits.availablePermits());
+        stats.put("max_concurrent", maxConcurrent);
+        stats.put("waiting", permits.getQueueLength());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+}
@@ -0,0 +1,233 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.util.*;
+
+/**
+ * Фрагменты больших документов: при добавлении документ длиннее rag.chunking.min-document-tokens режется
+ * DocumentChunker, на каждый фрагмент считается эмбеддинг и пишется строка в chunks.
+ * Поиск по фрагментам возвращает строки {id документа, текст фрагмента, метаданные, сходство, номер фрагмента}.
+ * Векторы фрагментов попадают в индекс фрагментов VectorIndexService; без индекса, как и для документов,
+ * поиск идет в базе данных.
+ */
+@Service
+public class ChunkService {
+
+    @Value("${rag.chunking.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rag.chunking.size-tokens:256}")
+    private int sizeTokens;
+
+    @Value("${rag.chunking.overlap-tokens:32}")
+    private int overlapTokens;
+
+    @Value("${rag.chunking.min-document-tokens:512}")
+    private int minDocumentTokens;
+
+    @Value("${rag.chunking.backfill-batch:20}")
+    private int backfillBatch;
+
+    @Value("${rag.chunking.backfill-pause-ms:200}")
+    private long backfillPauseMs;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EmbeddingService embeddingService;
+
+    @Autowired
+    private VectorIndexService vectorIndexService;
+
+    private volatile Thread backfill;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private DocumentChunker chunker() {
+        return new DocumentChunker(sizeTokens, overlapTokens, minDocumentTokens);
+    }
+
+    /**
+     * Режет документ и сохраняет фрагменты в текущей транзакции. Возвращает число фрагментов (0 - документ не режется)
+     */
+    public int onDocumentAdded(long documentId, String content) {
+        DocumentChunker chunker = chunker();
+        if (!enabled || !chunker.shouldChunk(ContextAssembler.estimateTokens(content))) {
+            return 0;
+        }
+        List<DocumentChunker.Chunk> chunks = chunker.split(content);
+        List<String> texts = new ArrayList<>(chunks.size());
+        for (DocumentChunker.Chunk chunk : chunks) {
+            texts.add(chunk.getContent());
+        }
+        List<List<Double>> embeddings = embeddingService.getEmbeddingsBatch(texts);
+        List<Object[]> batch = new ArrayList<>(chunks.size());
+        List<float[]> units = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            DocumentChunker.Chunk chunk = chunks.get(i);
+            float[] unit = VectorMath.normalize(VectorMath.toFloatArray(embeddings.get(i)));
+            units.add(unit);
+            batch.add(new Object[]{documentId, chunk.getIndex(), chunk.getContent(), chunk.getStartOffset(),
+                    chunk.getTokenCount(), VectorMath.toArrayLiteral(unit)});
+        }
+        jdbcTemplate.batchUpdate("""
+                INSERT INTO chunks (document_id, chunk_index, content, start_offset, token_count, embedding_unit)
+                VALUES (?, ?, ?, ?, ?, ?::real[])
+                ON CONFLICT (document_id, chunk_index) DO NOTHING
+                """, batch);
+        if (vectorIndexService.isChunkIndexReady()) {
+            // ID строк в порядке номеров фрагментов, как и векторы
+            long[] ids = jdbcTemplate.queryForList(
+                    "SELECT id FROM chunks WHERE document_id = ? ORDER BY chunk_index", Long.class, documentId)
+                    .stream().mapToLong(Long::longValue).toArray();
+            if (ids.length == units.size()) {
+                vectorIndexService.onChunksAdded(documentId, ids, units);
+            }
+        }
+        return chunks.size();
+    }
+
+    /**
+     * Ближайшие фрагменты к запросу: через индекс фрагментов, если он построен, иначе просмотр таблицы chunks
+     */
+    public List<Object[]> search(List<Double> queryEmbedding, int topK, double threshold) {
+        if (vectorIndexService.isChunkIndexReady()) {
+            return toChunkRows(vectorIndexService.findSimilarChunks(queryEmbedding, topK, threshold));
+        }
+        String query = VectorMath.toUnitArrayLiteral(queryEmbedding);
+        return jdbcTemplate.query("""
+                SELECT s.document_id, s.content, s.metadata, s.similarity, s.chunk_index
+                FROM (
+                    SELECT c.document_id, c.content, d.metadata::text AS metadata, c.chunk_index,
+                           dot_product(c.embedding_unit, CAST(? AS real[])) AS similarity
+                    FROM chunks c
+                    JOIN documents d ON c.document_id = d.id
+                    OFFSET 0
+                ) s
+                WHERE s.similarity >= ?
+                ORDER BY s.similarity DESC
+                LIMIT ?
+                """, (rs, rowNum) -> new Object[]{rs.getLong(1), rs.getString(2), rs.getString(3),
+                rs.getDouble(4), rs.getInt(5)}, query, threshold, topK);
+    }
+
+    private List<Object[]> toChunkRows(List<VectorSearchHit> hits) {
+        if (hits.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Long[] ids = new Long[hits.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = hits.get(i).getDocumentId();
+        }
+        Map<Long, Object[]> rows = new HashMap<>();
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    SELECT c.id, c.document_id, c.content, d.metadata::text, c.chunk_index
+                    FROM chunks c
+                    JOIN documents d ON c.document_id = d.id
+                    WHERE c.id = ANY(?)
+                    """);
+            ps.setArray(1, con.createArrayOf("bigint", ids));
+            return ps;
+        }, rs -> {
+            rows.put(rs.getLong(1), new Object[]{rs.getLong(2), rs.getString(3), rs.getString(4), null, rs.getInt(5)});
+        });
+        // попадание индекса фрагментов: getDocumentId - ключ индекса, здесь chunks.id
+        List<Object[]> results = new ArrayList<>(hits.size());
+        for (VectorSearchHit hit : hits) {
+            Object[] row = rows.get(hit.getDocumentId());
+            if (row == null) {
+                continue; // фрагмент удален вместе с документом, а индекс еще не обновлен
+            }
+            row[3] = hit.getSimilarity();
+            results.add(row);
+        }
+        return results;
+    }
+
+    /**
+     * Какие из документов разбиты на фрагменты: их целый вектор в выдачу не попадает
+     */
+    public Set<Long> chunkedDocuments(Collection<Long> documentIds) {
+        Set<Long> chunked = new HashSet<>();
+        if (documentIds.isEmpty()) {
+            return chunked;
+        }
+        Long[] ids = documentIds.toArray(new Long[0]);
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "SELECT DISTINCT document_id FROM chunks WHERE document_id = ANY(?)");
+            ps.setArray(1, con.createArrayOf("bigint", ids));
+            return ps;
+        }, rs -> {
+            chunked.add(rs.getLong(1));
+        });
+        return chunked;
+    }
+
+    /**
+     * Разбиение уже загруженных больших документов в фоновом потоке, по одному документу за транзакцию,
+     * с паузой backfill-pause-ms между пакетами: старт приложения и запросы чата его не ждут
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillOnStartup() {
+        if (!enabled) {
+            return;
+        }
+        Thread backfill = new Thread(() -> {
+            long lastId = 0;
+            long chunkedDocuments = 0;
+            try {
+                while (true) {
+                    List<Map<String, Object>> batch = jdbcTemplate.queryForList("""
+                            SELECT d.id, d.content FROM documents d
+                            WHERE d.token_count >= ? AND d.id > ?
+                              AND NOT EXISTS (SELECT 1 FROM chunks c WHERE c.document_id = d.id)
+                            ORDER BY d.id LIMIT ?
+                            """, minDocumentTokens, lastId, backfillBatch);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    for (Map<String, Object> row : batch) {
+                        lastId = ((Number) row.get("id")).longValue();
+                        try {
+                            onDocumentAdded(lastId, (String) row.get("content"));
+                            chunkedDocuments++;
+                        } catch (Exception e) {
+                            System.err.println("Ошибка разбиения документа " + lastId + " на фрагменты: " + e.getMessage());
+                        }
+                    }
+                    System.out.println("Разбиение на фрагменты: обработано " + chunkedDocuments + " документов");
+                    Thread.sleep(backfillPauseMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("Ошибка фонового разбиения документов на фрагменты: " + e.getMessage());
+            }
+        }, "chunk-backfill");
+        backfill.setDaemon(true);
+        backfill.setPriority(Thread.MIN_PRIORITY);
+        this.backfill = backfill;
+        backfill.start();
+    }
+
+    @PreDestroy
+    public void close() {
+        Thread thread = backfill;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
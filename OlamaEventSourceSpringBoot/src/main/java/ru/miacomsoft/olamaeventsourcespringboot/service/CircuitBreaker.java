@@ -0,0 +1,162 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Размыкатель для обращений к одному виду вызовов модели. По последним windowSize исходам (не меньше minCalls):
+ * если доля ошибок достигла failureRatePercent, цепь размыкается и запросы сразу получают отказ.
+ * Через openMs пропускается пробный запрос (HALF_OPEN): успех замыкает цепь, ошибка снова размыкает.
+ * Если пробный запрос не сообщил исход за openMs, пропускается следующий.
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public static final class Open extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Open(CircuitBreaker breaker) {
+            super("Сервер модели недоступен (" + breaker.getName() + "), повторите через "
+                    + (breaker.retryAfterMs() / 1000 + 1) + " с");
+        }
+    }
+
+    private final String name;
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRate;
+    private final long openMs;
+
+    private final boolean[] outcomes;
+    private int count;
+    private int next;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private long trialAt;
+    private String lastError;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+
+    public CircuitBreaker(String name, int windowSize, int minCalls, double failureRatePercent, long openMs) {
+        this.name = name;
+        this.windowSize = Math.max(1, windowSize);
+        this.minCalls = Math.max(1, Math.min(minCalls, this.windowSize));
+        this.failureRate = failureRatePercent / 100.0;
+        this.openMs = openMs;
+        this.outcomes = new boolean[this.windowSize];
+    }
+
+    /**
+     * Можно ли выполнять запрос сейчас
+     */
+    public synchronized boolean allow() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt >= openMs) {
+                    state = State.HALF_OPEN;
+                    trialAt = now;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                if (now - trialAt >= openMs) {
+                    trialAt = now;
+                    return true;
+                }
+                break;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Цепь разомкнута и время пробного запроса еще не наступило; место пробного запроса не занимает
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED && retryAfterMs() > 0;
+    }
+
+    public synchronized void recordSuccess() {
+        if (state == State.HALF_OPEN) {
+            System.out.println("Цепь " + name + " замкнута: пробный запрос успешен");
+            state = State.CLOSED;
+            reset();
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void recordFailure(String error) {
+        lastError = error;
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(true);
+            if (count >= minCalls && failures >= failureRate * count) {
+                open();
+            }
+        }
+    }
+
+    private void record(boolean failure) {
+        if (count == windowSize && outcomes[next]) {
+            failures--;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % windowSize;
+        count = Math.min(count + 1, windowSize);
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        opened.incrementAndGet();
+        reset();
+        System.err.println("Цепь " + name + " разомкнута на " + openMs + " мс: " + lastError);
+    }
+
+    private void reset() {
+        count = 0;
+        next = 0;
+        failures = 0;
+    }
+
+    /**
+     * Через сколько мс будет пропущен пробный запрос (0 - цепь замкнута)
+     */
+    public synchronized long retryAfterMs() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        long since = state == State.OPEN ? openedAt : trialAt;
+        return Math.max(0, openMs - (System.currentTimeMillis() - since));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("state", state.name());
+        stats.put("window_calls", count);
+        stats.put("window_failures", failures);
+        stats.put("opened", opened.get());
+        stats.put("rejected", rejected.get());
+        stats.put("retry_after_ms", retryAfterMs());
+        stats.put("last_error", lastError != null ? lastError : JSONObject.NULL);
+        return stats;
+    }
+}
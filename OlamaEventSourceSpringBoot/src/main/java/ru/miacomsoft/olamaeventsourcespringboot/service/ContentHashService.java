@@ -0,0 +1,93 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Проверка точных дубликатов по content_sha256. Фильтр Блума прогревается хешами всех документов при старте:
+ * для нового содержимого он почти всегда отвечает "нет", и запрос к базе не нужен.
+ * Окончательная защита - уникальный индекс и INSERT ... ON CONFLICT DO NOTHING.
+ */
+@Service
+public class ContentHashService {
+
+    @Value("${rag.dedup.bloom.expected-documents:100000}")
+    private long expectedDocuments;
+
+    @Value("${rag.dedup.bloom.fpp:0.01}")
+    private double falsePositiveRate;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private volatile BloomFilter filter;
+    private volatile boolean ready = false;
+
+    private final AtomicLong filterNegatives = new AtomicLong();
+    private final AtomicLong databaseLookups = new AtomicLong();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        Thread loader = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                Long count = jdbcTemplate.queryForObject("SELECT count(*) FROM documents", Long.class);
+                long documents = count != null ? count : 0;
+                filter = new BloomFilter(Math.max(expectedDocuments, documents * 2), falsePositiveRate);
+                jdbcTemplate.query("SELECT content_sha256 FROM documents WHERE content_sha256 IS NOT NULL", rs -> {
+                    filter.put(rs.getBytes(1));
+                });
+                ready = true;
+                System.out.println("Фильтр Блума content_sha256 загружен: " + documents + " документов, "
+                        + filter.getBitCount() / 8 / 1024 + " КБ, " + filter.getHashCount() + " хеш-функций за "
+                        + (System.currentTimeMillis() - start) + " мс");
+            } catch (Exception e) {
+                System.err.println("Ошибка загрузки фильтра Блума, дубликаты проверяются по индексу: " + e.getMessage());
+            }
+        }, "bloom-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Есть ли документ с таким хешем содержимого. Пока фильтр не загружен - всегда запрос по индексу
+     */
+    public boolean exists(byte[] contentHash) {
+        if (ready && !filter.mightContain(contentHash)) {
+            filterNegatives.incrementAndGet();
+            return false;
+        }
+        databaseLookups.incrementAndGet();
+        Boolean exists = jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM documents WHERE content_sha256 = ?)", Boolean.class, contentHash);
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Добавляет хеш в фильтр сразу, до фиксации: при откате останется только лишняя проверка в базе
+     */
+    public void onDocumentAdded(byte[] contentHash) {
+        BloomFilter current = filter;
+        if (current != null) {
+            current.put(contentHash);
+        }
+    }
+
+    public long getFilterNegatives() {
+        return filterNegatives.get();
+    }
+
+    public long getDatabaseLookups() {
+        return databaseLookups.get();
+    }
+}
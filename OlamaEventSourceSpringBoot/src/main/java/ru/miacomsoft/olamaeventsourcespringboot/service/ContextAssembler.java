@@ -0,0 +1,282 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Сборка контекста промпта в пределах бюджета токенов. Документы берутся в порядке оценки: помещающийся документ
+ * добавляется целиком, слишком большой - фрагментами с наибольшим числом слов запроса. Строки, уже попавшие
+ * в контекст из другого документа, пропускаются; из метаданных остаются только содержательные поля.
+ * Время обработки промпта моделью ограничено бюджетом, а не размером самого большого документа.
+ */
+public final class ContextAssembler {
+
+    // служебные поля метаданных, которые модели ничего не дают
+    private static final Set<String> IGNORED_METADATA = Set.of("clientId", "timestamp", "created_at", "updated_at");
+    private static final Pattern TERM = Pattern.compile("[\\p{L}\\p{N}_$#]{3,}");
+    // короткие строки вроде END; или / повторяются законно, их не считаем перекрытием
+    private static final int MIN_DEDUP_LINE = 16;
+    private static final int MIN_PASSAGE_BUDGET = 32;
+    private static final String SEPARATOR = "---\n\n";
+
+    private final int maxTokens;
+    private final int passageTokens;
+
+    public ContextAssembler(int maxTokens, int passageTokens) {
+        this.maxTokens = Math.max(1, maxTokens);
+        this.passageTokens = Math.max(MIN_PASSAGE_BUDGET, passageTokens);
+    }
+
+    /**
+     * Бюджет из настроек rag.context.max-tokens / rag.context.passage-tokens
+     */
+    public static ContextAssembler fromProperties(Properties props) {
+        return new ContextAssembler(
+                Integer.parseInt(props.getProperty("rag.context.max-tokens", "2048").trim()),
+                Integer.parseInt(props.getProperty("rag.context.passage-tokens", "128").trim()));
+    }
+
+    /**
+     * Оценка числа токенов без токенизатора модели: слово латиницей или цифрами - примерно токен на 4 символа,
+     * кириллица дробится сильнее - токен на 3 символа, каждый знак пунктуации - отдельный токен
+     */
+    public static int estimateTokens(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int tokens = 0;
+        int run = 0;
+        boolean ascii = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                run++;
+                ascii &= c < 0x80;
+            } else {
+                tokens += runTokens(run, ascii);
+                run = 0;
+                ascii = true;
+                if (!Character.isWhitespace(c)) {
+                    tokens++;
+                }
+            }
+        }
+        return tokens + runTokens(run, ascii);
+    }
+
+    private static int runTokens(int run, boolean ascii) {
+        if (run == 0) {
+            return 0;
+        }
+        return ascii ? (run + 3) / 4 : (run + 2) / 3;
+    }
+
+    /**
+     * @param documents   строки {id, content, metadata, score[, номер фрагмента]} в порядке убывания оценки
+     * @param tokenCounts сохраненные при загрузке documents.token_count (может не содержать документ)
+     * @return текст контекста или null, если ни один документ не поместился
+     */
+    public String assemble(String header, List<Object[]> documents, Map<Long, Integer> tokenCounts,
+                           String query, String scoreLabel) {
+        StringBuilder context = new StringBuilder(header);
+        int remaining = maxTokens - estimateTokens(header);
+        Set<String> seenLines = new HashSet<>();
+        Set<String> queryTerms = terms(query);
+        String previousMetadata = null;
+        int included = 0;
+
+        for (Object[] doc : documents) {
+            Long documentId = ((Number) doc[0]).longValue();
+            String content = doc[1] != null ? doc[1].toString() : "";
+            String[] lines = content.split("\n", -1);
+            List<String> fresh = new ArrayList<>(lines.length);
+            boolean hasContent = false;
+            for (String line : lines) {
+                String key = line.trim();
+                if (key.length() >= MIN_DEDUP_LINE && seenLines.contains(key)) {
+                    continue;
+                }
+                fresh.add(line);
+                hasContent |= !key.isEmpty();
+            }
+            if (!hasContent) {
+                continue; // документ целиком повторяет уже добавленный текст
+            }
+
+            String metadata = compactMetadata(doc[2]);
+            String metadataLine = metadata != null && !metadata.equals(previousMetadata)
+                    ? "Метаданные: " + metadata + "\n" : "";
+            String fragment = doc.length > 4 ? ", фрагмент " + doc[4] : "";
+            String documentHeader = String.format("Документ ID: %d%s (%s: %.3f)\nСодержимое: ",
+                    documentId, fragment, scoreLabel, ((Number) doc[3]).doubleValue());
+            int overhead = estimateTokens(documentHeader) + estimateTokens(metadataLine) + estimateTokens(SEPARATOR);
+
+            String body = String.join("\n", fresh);
+            Integer stored = tokenCounts != null ? tokenCounts.get(documentId) : null;
+            int bodyTokens = stored != null && doc.length == 4 && fresh.size() == lines.length
+                    ? stored : estimateTokens(body);
+            if (overhead + bodyTokens > remaining) {
+                if (remaining - overhead < MIN_PASSAGE_BUDGET) {
+                    continue; // следующий документ может быть короче
+                }
+                body = selectPassages(fresh, queryTerms, remaining - overhead);
+                if (body.isEmpty()) {
+                    continue;
+                }
+                bodyTokens = estimateTokens(body);
+            }
+
+            context.append(documentHeader).append(body).append("\n").append(metadataLine).append(SEPARATOR);
+            remaining -= overhead + bodyTokens;
+            for (String line : body.split("\n")) {
+                String key = line.trim();
+                if (key.length() >= MIN_DEDUP_LINE) {
+                    seenLines.add(key);
+                }
+            }
+            if (metadata != null) {
+                previousMetadata = metadata;
+            }
+            included++;
+        }
+        return included == 0 ? null : context.toString();
+    }
+
+    /**
+     * Фрагменты большого документа с наибольшим числом слов запроса, в исходном порядке, в пределах budget
+     */
+    private String selectPassages(List<String> lines, Set<String> queryTerms, int budget) {
+        List<String> passages = splitPassages(lines);
+        Integer[] order = new Integer[passages.size()];
+        int[] scores = new int[passages.size()];
+        for (int i = 0; i < passages.size(); i++) {
+            order[i] = i;
+            Matcher matcher = TERM.matcher(passages.get(i).toLowerCase());
+            while (matcher.find()) {
+                if (queryTerms.contains(matcher.group())) {
+                    scores[i]++;
+                }
+            }
+        }
+        Arrays.sort(order, (a, b) -> scores[a] != scores[b] ? Integer.compare(scores[b], scores[a]) : Integer.compare(a, b));
+
+        boolean[] selected = new boolean[passages.size()];
+        List<Integer> chosen = new ArrayList<>();
+        int used = 0;
+        for (int index : order) {
+            int tokens = estimateTokens(passages.get(index)) + 1;
+            if (used + tokens <= budget) {
+                selected[index] = true;
+                chosen.add(index);
+                used += tokens;
+            }
+        }
+        // отметки "..." о пропусках тоже занимают бюджет: при переборе снимаются наименее полезные фрагменты
+        String body = joinPassages(passages, selected);
+        while (!chosen.isEmpty() && estimateTokens(body) > budget) {
+            selected[chosen.remove(chosen.size() - 1)] = false;
+            body = joinPassages(passages, selected);
+        }
+        return chosen.isEmpty() ? "" : body;
+    }
+
+    private static String joinPassages(List<String> passages, boolean[] selected) {
+        StringBuilder body = new StringBuilder();
+        int last = -1;
+        for (int i = 0; i < passages.size(); i++) {
+            if (!selected[i]) {
+                continue;
+            }
+            if (i != last + 1) {
+                body.append("...\n"); // пропущенные фрагменты
+            }
+            body.append(passages.get(i)).append("\n");
+            last = i;
+        }
+        if (last < passages.size() - 1) {
+            body.append("...");
+        }
+        return body.toString().stripTrailing();
+    }
+
+    /**
+     * Фрагменты примерно по passageTokens из целых строк; слишком длинная строка режется по символам
+     */
+    private List<String> splitPassages(List<String> lines) {
+        List<String> passages = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int currentTokens = 0;
+        for (String line : lines) {
+            int tokens = estimateTokens(line);
+            if (tokens > passageTokens) {
+                if (current.length() > 0) {
+                    passages.add(current.toString());
+                    current.setLength(0);
+                    currentTokens = 0;
+                }
+                int step = Math.max(1, (int) ((long) line.length() * passageTokens / tokens));
+                for (int start = 0; start < line.length(); start += step) {
+                    passages.add(line.substring(start, Math.min(line.length(), start + step)));
+                }
+                continue;
+            }
+            if (currentTokens + tokens > passageTokens && current.length() > 0) {
+                passages.add(current.toString());
+                current.setLength(0);
+                currentTokens = 0;
+            }
+            if (current.length() > 0) {
+                current.append("\n");
+            }
+            current.append(line);
+            currentTokens += tokens + 1;
+        }
+        if (current.length() > 0) {
+            passages.add(current.toString());
+        }
+        return passages;
+    }
+
+    private static String compactMetadata(Object metadata) {
+        if (metadata == null || metadata.toString().isBlank()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(metadata.toString());
+            List<String> keys = new ArrayList<>(json.keySet());
+            Collections.sort(keys);
+            StringBuilder compact = new StringBuilder();
+            for (String key : keys) {
+                if (IGNORED_METADATA.contains(key)) {
+                    continue;
+                }
+                Object value = json.get(key);
+                if (value == JSONObject.NULL || value.toString().isBlank()) {
+                    continue;
+                }
+                if (compact.length() > 0) {
+                    compact.append(", ");
+                }
+                compact.append(key).append("=").append(value);
+            }
+            return compact.length() == 0 ? null : compact.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Set<String> terms(String query) {
+        Set<String> terms = new HashSet<>();
+        if (query == null) {
+            return terms;
+        }
+        Matcher matcher = TERM.matcher(query.toLowerCase());
+        while (matcher.find()) {
+            terms.add(matcher.group());
+        }
+        return terms;
+    }
+}
@@ -31,6 +31,24 @@ public class DatabaseInitializer {
         ensureTablesExist(props, dbParams);
         ensureFunctionsExist(props, dbParams); // Добавляем создание функций
         ensureIndexesExist(props, dbParams);
+        try (Connection conn = DriverManager.getConnection(getWorkDatabaseUrl(props), dbParams)) {
+            SchemaMigrations.ensureUnitVectorStorage(conn, props);
+            SchemaMigrations.ensureQuantizedStorage(conn, props);
+            SchemaMigrations.ensureIvfStorage(conn, props);
+            SchemaMigrations.ensureEmbeddingUpdatedAt(conn);
+            SchemaMigrations.ensureLexicalSearch(conn);
+            SchemaMigrations.ensureContentHash(conn, props);
+            SchemaMigrations.ensureEmbeddingCache(conn);
+            SchemaMigrations.ensureTokenCounts(conn);
+            SchemaMigrations.ensureChunkStorage(conn);
+            SchemaMigrations.ensureMinHashStorage(conn);
+            SchemaMigrations.ensureEmbeddingNamespaces(conn);
+            if (SchemaMigrations.isPgvectorStorage(props)) {
+                SchemaMigrations.ensurePgvectorStorage(conn, props);
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка при подключении для настройки хранения векторов: " + e.getMessage());
+        }
         callback.call();
     }
 
@@ -168,11 +186,11 @@ public class DatabaseInitializer {
                         norm1 := norm1 + val1 * val1;
                         norm2 := norm2 + val2 * val2;
                     END LOOP;
-                
+
                     IF norm1 = 0 OR norm2 = 0 THEN
                         RETURN 0;
                     END IF;
-                
+
                     RETURN dot_product / (SQRT(norm1) * SQRT(norm2));
                 END;
                 $$ LANGUAGE plpgsql;
@@ -196,7 +214,7 @@ public class DatabaseInitializer {
                 ) AS $$
                 BEGIN
                     RETURN QUERY
-                    SELECT 
+                    SELECT
                         d.id,
                         d.content,
                         e.embedding,
@@ -266,4 +284,11 @@ public class DatabaseInitializer {
             System.err.println("Ошибка при создании индексов: " + e.getMessage());
         }
     }
+
+    private static String getWorkDatabaseUrl(Properties props) {
+        String workDatabase = props.getProperty("spring.datasource.url");
+        String dbName = workDatabase.substring(workDatabase.lastIndexOf("/") + 1);
+        return "jdbc:postgresql://" + props.getProperty("spring.datasource.host") + ":"
+                + props.getProperty("spring.datasource.port") + "/" + dbName;
+    }
 }
\ No newline at end of file
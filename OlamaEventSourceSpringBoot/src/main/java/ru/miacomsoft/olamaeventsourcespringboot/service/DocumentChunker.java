@@ -0,0 +1,170 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Разбиение большого документа на перекрывающиеся фрагменты для отдельных эмбеддингов.
+ * Границы фрагмента выбираются с учетом кода: лучше всего - перед началом объекта (CREATE, PROCEDURE, FUNCTION ...),
+ * затем - после конца SQL оператора (строка заканчивается на ';' или состоит из '/') или на пустой строке,
+ * в крайнем случае - на любой строке. Соседние фрагменты перекрываются на overlapTokens, кроме границы объекта.
+ */
+public final class DocumentChunker {
+
+    private static final Pattern OBJECT_START = Pattern.compile(
+            "^\\s*(CREATE\\b|PROCEDURE\\b|FUNCTION\\b|PACKAGE\\b|TRIGGER\\b|TYPE\\b|VIEW\\b|--\\s*=+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final int BREAK_LINE = 1;
+    private static final int BREAK_STATEMENT = 2;
+    private static final int BREAK_OBJECT = 3;
+
+    public static final class Chunk {
+        private final int index;
+        private final String content;
+        private final int startOffset;
+        private final int tokenCount;
+
+        Chunk(int index, String content, int startOffset, int tokenCount) {
+            this.index = index;
+            this.content = content;
+            this.startOffset = startOffset;
+            this.tokenCount = tokenCount;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public int getStartOffset() {
+            return startOffset;
+        }
+
+        public int getTokenCount() {
+            return tokenCount;
+        }
+    }
+
+    private final int sizeTokens;
+    private final int overlapTokens;
+    private final int minDocumentTokens;
+
+    public DocumentChunker(int sizeTokens, int overlapTokens, int minDocumentTokens) {
+        this.sizeTokens = Math.max(16, sizeTokens);
+        this.overlapTokens = Math.max(0, Math.min(overlapTokens, this.sizeTokens / 2));
+        this.minDocumentTokens = Math.max(this.sizeTokens, minDocumentTokens);
+    }
+
+    /**
+     * Параметры из настроек rag.chunking.size-tokens / overlap-tokens / min-document-tokens
+     */
+    public static DocumentChunker fromProperties(Properties props) {
+        return new DocumentChunker(
+                Integer.parseInt(props.getProperty("rag.chunking.size-tokens", "256").trim()),
+                Integer.parseInt(props.getProperty("rag.chunking.overlap-tokens", "32").trim()),
+                Integer.parseInt(props.getProperty("rag.chunking.min-document-tokens", "512").trim()));
+    }
+
+    /**
+     * Небольшие документы остаются одним вектором
+     */
+    public boolean shouldChunk(int tokenCount) {
+        return tokenCount >= minDocumentTokens;
+    }
+
+    public List<Chunk> split(String content) {
+        List<String> lines = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        splitLines(content, lines, offsets);
+        int n = lines.size();
+        int[] tokens = new int[n];
+        int[] strength = new int[n + 1]; // сила границы перед строкой i
+        for (int i = 0; i < n; i++) {
+            tokens[i] = ContextAssembler.estimateTokens(lines.get(i)) + 1;
+            String line = lines.get(i);
+            if (OBJECT_START.matcher(line).find()) {
+                strength[i] = BREAK_OBJECT;
+            } else if (i > 0 && isStatementEnd(lines.get(i - 1)) || line.isBlank()) {
+                strength[i] = BREAK_STATEMENT;
+            } else {
+                strength[i] = BREAK_LINE;
+            }
+        }
+        strength[n] = BREAK_OBJECT;
+
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < n) {
+            int used = 0;
+            int end = start;
+            int bestCut = -1;
+            int bestStrength = 0;
+            while (end < n && (end == start || used + tokens[end] <= sizeTokens)) {
+                used += tokens[end];
+                end++;
+                // граница ищется во второй половине фрагмента, чтобы фрагменты не были слишком мелкими
+                if (end < n && used >= sizeTokens / 2 && strength[end] >= bestStrength) {
+                    bestCut = end;
+                    bestStrength = strength[end];
+                }
+            }
+            int cut = end == n || bestCut < 0 ? end : bestCut;
+            StringBuilder text = new StringBuilder();
+            int chunkTokens = 0;
+            for (int i = start; i < cut; i++) {
+                if (i > start) {
+                    text.append('\n');
+                }
+                text.append(lines.get(i));
+                chunkTokens += tokens[i];
+            }
+            if (!text.toString().isBlank()) {
+                chunks.add(new Chunk(chunks.size(), text.toString(), offsets.get(start), chunkTokens));
+            }
+            if (cut >= n) {
+                break;
+            }
+            int next = cut;
+            if (strength[cut] < BREAK_OBJECT) {
+                int overlap = 0;
+                while (next - 1 > start && overlap + tokens[next - 1] <= overlapTokens) {
+                    next--;
+                    overlap += tokens[next];
+                }
+            }
+            start = next;
+        }
+        return chunks;
+    }
+
+    private static boolean isStatementEnd(String line) {
+        String trimmed = line.trim();
+        return trimmed.endsWith(";") || trimmed.equals("/");
+    }
+
+    /**
+     * Строки с их смещениями в тексте; строка длиннее фрагмента (минифицированный код) режется на части
+     */
+    private void splitLines(String content, List<String> lines, List<Integer> offsets) {
+        int offset = 0;
+        for (String line : content.split("\n", -1)) {
+            int lineTokens = ContextAssembler.estimateTokens(line);
+            if (lineTokens <= sizeTokens) {
+                lines.add(line);
+                offsets.add(offset);
+            } else {
+                int step = Math.max(1, (int) ((long) line.length() * sizeTokens / lineTokens / 2));
+                for (int start = 0; start < line.length(); start += step) {
+                    lines.add(line.substring(start, Math.min(line.length(), start + step)));
+                    offsets.add(offset + start);
+                }
+            }
+            offset += line.length() + 1;
+        }
+    }
+}
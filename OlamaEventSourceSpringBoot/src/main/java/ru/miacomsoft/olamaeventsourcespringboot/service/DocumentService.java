@@ -1,9 +1,15 @@
 package ru.miacomsoft.olamaeventsourcespringboot.service;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import ru.miacomsoft.olamaeventsourcespringboot.model.Document;
@@ -11,9 +17,16 @@ import ru.miacomsoft.olamaeventsourcespringboot.model.Embedding;
 import ru.miacomsoft.olamaeventsourcespringboot.repository.DocumentRepository;
 import ru.miacomsoft.olamaeventsourcespringboot.repository.EmbeddingRepository;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Service
 public class DocumentService {
@@ -26,6 +39,64 @@ public class DocumentService {
     @Autowired
     private EmbeddingService embeddingService;
 
+    @Autowired
+    private VectorIndexService vectorIndexService;
+
+    @Autowired
+    private IvfIndexService ivfIndexService;
+
+    @Autowired
+    private MinHashService minHashService;
+
+    @Autowired
+    private ContentHashService contentHashService;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Value("${rag.vector.storage:jsonb}")
+    private String vectorStorage;
+
+    @Value("${rag.vector.codec:none}")
+    private String vectorCodec;
+
+    @Value("${rag.vector.filter.exact-max-ids:2000}")
+    private int filterExactMaxIds;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${rag.search.batch.fetch-size:1000}")
+    private int batchFetchSize;
+
+    // vector - только поиск по сходству эмбеддингов, hybrid - лексический и векторный поиск, слияние RRF
+    @Value("${rag.retrieval.mode:vector}")
+    private String retrievalMode;
+
+    @Value("${rag.retrieval.hybrid.candidates:20}")
+    private int hybridCandidates;
+
+    @Value("${rag.retrieval.hybrid.rrf-k:60}")
+    private int rrfK;
+
+    @Value("${rag.retrieval.hybrid.threads:4}")
+    private int hybridThreads;
+
+    // потоки лексической части гибридного поиска: общий ForkJoinPool не занимается блокирующими запросами к базе
+    private ThreadPoolExecutor lexicalExecutor;
+
+    // бюджет контекста промпта в токенах и размер фрагмента при обрезке большого документа
+    @Value("${rag.context.max-tokens:2048}")
+    private int contextMaxTokens;
+
+    @Value("${rag.context.passage-tokens:128}")
+    private int contextPassageTokens;
+
+    private static final Pattern LEXICAL_TERM = Pattern.compile("[\\p{L}\\p{N}_$#]+");
+
     private final OllamaService ollamaService;
 
     @Autowired
@@ -33,25 +104,68 @@ public class DocumentService {
         this.ollamaService = ollamaService;
     }
 
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        // очередь заполнена - лексический запрос выполняется в потоке вызывающего
+        lexicalExecutor = new ThreadPoolExecutor(hybridThreads, hybridThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(64), r -> {
+            Thread thread = new Thread(r, "hybrid-lexical-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        lexicalExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void close() {
+        lexicalExecutor.shutdownNow();
+    }
+
+    /**
+     * Добавление документа; precomputedEmbedding - заранее посчитанный эмбеддинг модели embeddingModel
+     * (embedDocuments), при null эмбеддинг запрашивается здесь. Вызывается только снаружи бина,
+     * чтобы транзакция шла через прокси Spring
+     */
     @Transactional
-    public int addDocument(String content, JSONObject metadata) {
+    public int addDocument(String content, JSONObject metadata, List<Double> precomputedEmbedding, String embeddingModel) {
         try {
-            List<Object[]> similarDocs = searchSimilar(content, 1, 0.9);
+            byte[] contentHash = BloomFilter.sha256(content);
+            if (contentHashService.exists(contentHash)) {
+                System.out.println("Точный дубликат документа уже существует. Пропускаем добавление.");
+                return -1;
+            }
+
+            // модель запоминается до расчета вектора: если она сменится, вектор будет пересчитан после вставки
+            String model = precomputedEmbedding != null && embeddingModel != null
+                    ? embeddingModel : embeddingService.getEmbeddingName();
+            List<Double> embedding = precomputedEmbedding != null ? precomputedEmbedding : embeddingService.getEmbeddings(content);
+            int[] signature = minHashService.signature(content);
+            List<Object[]> similarDocs = findDuplicates(embedding, signature);
             if (!similarDocs.isEmpty()) {
                 double maxSimilarity = (Double) similarDocs.get(0)[3];
                 System.out.printf("Документ уже существует (схожесть: %.3f). Пропускаем добавление.%n", maxSimilarity);
                 return -1;
             }
 
-            Document document = new Document(content, metadata);
-            Document savedDocument = documentRepository.save(document);
+            Document savedDocument = insertDocument(content, metadata, contentHash);
+            if (savedDocument == null) {
+                System.out.println("Точный дубликат документа добавлен параллельно. Пропускаем добавление.");
+                return -1;
+            }
+            minHashService.onDocumentAdded(savedDocument.getId(), signature);
+            if (!model.equals(embeddingService.getEmbeddingName())) {
+                model = embeddingService.getEmbeddingName();
+                embedding = reembedForActiveModel(content);
+            }
 
-            List<Double> embedding = embeddingService.getEmbeddings(content);
             double embeddingNorm = calculateEmbeddingNorm(embedding);
             JSONArray embeddingJson = new JSONArray(embedding);
 
-            Embedding embeddingObj = new Embedding(savedDocument, embeddingJson, embeddingNorm);
+            Embedding embeddingObj = newEmbedding(savedDocument, embeddingJson, embeddingNorm, model);
             embeddingRepository.save(embeddingObj);
+            vectorIndexService.onDocumentAdded(savedDocument.getId(), embedding);
+            chunkService.onDocumentAdded(savedDocument.getId(), content);
 
             System.out.println("Документ добавлен с ID: " + savedDocument.getId());
             return savedDocument.getId().intValue();
@@ -62,6 +176,52 @@ public class DocumentService {
         }
     }
 
+    /**
+     * Вставка документа ждет блокировку documents, которую держит переключение модели эмбеддингов
+     * (ReembeddingService), а активная модель меняется до фиксации переключения. Если модель сменилась, пока
+     * считался вектор, после вставки он пересчитывается новой моделью - иначе вектор старой модели остался бы
+     * среди векторов новой
+     */
+    private List<Double> reembedForActiveModel(String content) {
+        System.out.println("Модель эмбеддингов сменилась во время добавления документа, вектор пересчитывается");
+        return embeddingService.getEmbeddings(content);
+    }
+
+    /**
+     * Вставка документа с хешем содержимого. Точный дубликат отсекается уникальным индексом content_sha256
+     * (ON CONFLICT DO NOTHING) без предварительного чтения; в этом случае возвращается null
+     */
+    private Document insertDocument(String content, JSONObject metadata, byte[] contentHash) {
+        List<Long> ids = jdbcTemplate.queryForList(
+                "INSERT INTO documents (content, metadata, content_sha256, token_count) VALUES (?, ?::jsonb, ?, ?) " +
+                        "ON CONFLICT DO NOTHING RETURNING id",
+                Long.class, content, metadata != null ? metadata.toString() : null, contentHash,
+                ContextAssembler.estimateTokens(content));
+        contentHashService.onDocumentAdded(contentHash);
+        if (ids.isEmpty()) {
+            return null;
+        }
+        return documentRepository.findById(ids.get(0))
+                .orElseThrow(() -> new IllegalStateException("Документ не найден после вставки: " + ids.get(0)));
+    }
+
+    /**
+     * Дубликат с сходством не ниже 0.9. При готовых LSH корзинах сходство считается только для документов
+     * из общих корзин, иначе - обычный поиск по всем эмбеддингам: без индекса в памяти это SQL скан,
+     * отсечение блоков ExactVectorIndex действует только при rag.vector.index.enabled=true и type=exact
+     */
+    private List<Object[]> findDuplicates(List<Double> embedding, int[] signature) {
+        if (signature != null && minHashService.isReady()) {
+            Set<Long> candidates = minHashService.candidates(signature);
+            if (candidates.isEmpty()) {
+                return new ArrayList<>();
+            }
+            return embeddingRepository.rescoreCandidates(VectorMath.toUnitArrayLiteral(embedding),
+                    new ArrayList<>(candidates), 1, 0.9);
+        }
+        return searchSimilarByEmbedding(embedding, 1, 0.9);
+    }
+
     // Новый метод с clientId
     @Transactional
     public Document createDocument(String content, JSONObject metadata, String clientId) {
@@ -72,22 +232,39 @@ public class DocumentService {
             }
             metadata.put("clientId", clientId);
 
-            List<Object[]> similarDocs = searchSimilar(content, 1, 0.9);
+            byte[] contentHash = BloomFilter.sha256(content);
+            if (contentHashService.exists(contentHash)) {
+                System.out.println("Точный дубликат документа уже существует. Пропускаем добавление.");
+                throw new RuntimeException("Документ с таким содержимым уже существует");
+            }
+
+            String model = embeddingService.getEmbeddingName();
+            List<Double> embedding = embeddingService.getEmbeddings(content);
+            int[] signature = minHashService.signature(content);
+            List<Object[]> similarDocs = findDuplicates(embedding, signature);
             if (!similarDocs.isEmpty()) {
                 double maxSimilarity = (Double) similarDocs.get(0)[3];
                 System.out.printf("Документ уже существует (схожесть: %.3f). Пропускаем добавление.%n", maxSimilarity);
                 throw new RuntimeException("Документ уже существует (схожесть: " + maxSimilarity + ")");
             }
 
-            Document document = new Document(content, metadata);
-            Document savedDocument = documentRepository.save(document);
+            Document savedDocument = insertDocument(content, metadata, contentHash);
+            if (savedDocument == null) {
+                throw new RuntimeException("Документ с таким содержимым уже существует");
+            }
+            minHashService.onDocumentAdded(savedDocument.getId(), signature);
+            if (!model.equals(embeddingService.getEmbeddingName())) {
+                model = embeddingService.getEmbeddingName();
+                embedding = reembedForActiveModel(content);
+            }
 
-            List<Double> embedding = embeddingService.getEmbeddings(content);
             double embeddingNorm = calculateEmbeddingNorm(embedding);
             JSONArray embeddingJson = new JSONArray(embedding);
 
-            Embedding embeddingObj = new Embedding(savedDocument, embeddingJson, embeddingNorm);
+            Embedding embeddingObj = newEmbedding(savedDocument, embeddingJson, embeddingNorm, model);
             embeddingRepository.save(embeddingObj);
+            vectorIndexService.onDocumentAdded(savedDocument.getId(), embedding);
+            chunkService.onDocumentAdded(savedDocument.getId(), content);
 
             System.out.println("Документ добавлен с ID: " + savedDocument.getId() + " для клиента: " + clientId);
             return savedDocument;
@@ -98,14 +275,67 @@ public class DocumentService {
         }
     }
 
+    /**
+     * Поиск с точностью до фрагмента: фрагменты больших документов из chunks и целые векторы документов,
+     * которые не разбивались. Строка фрагмента содержит пятым элементом его номер.
+     * При выключенном разбиении - обычный поиск по документам
+     */
+    public List<Object[]> searchSimilarChunks(String query, int topK, double threshold) {
+        return searchSimilarChunks(embeddingService.getEmbeddings(query), topK, threshold);
+    }
+
+    public List<Object[]> searchSimilarChunks(List<Double> queryEmbedding, int topK, double threshold) {
+        if (!chunkService.isEnabled()) {
+            return searchSimilarByEmbedding(queryEmbedding, topK, threshold);
+        }
+        List<Object[]> chunkHits = chunkService.search(queryEmbedding, topK, threshold);
+        // с запасом: часть документов может оказаться разбитой на фрагменты
+        List<Object[]> documentHits = searchSimilarByEmbedding(queryEmbedding, topK * 2, threshold);
+        List<Long> documentIds = new ArrayList<>(documentHits.size());
+        for (Object[] hit : documentHits) {
+            documentIds.add(((Number) hit[0]).longValue());
+        }
+        Set<Long> chunked = chunkService.chunkedDocuments(documentIds);
+
+        List<Object[]> merged = new ArrayList<>(chunkHits);
+        for (Object[] hit : documentHits) {
+            if (!chunked.contains(((Number) hit[0]).longValue())) {
+                merged.add(hit);
+            }
+        }
+        merged.sort((a, b) -> Double.compare(((Number) b[3]).doubleValue(), ((Number) a[3]).doubleValue()));
+        return merged.size() > topK ? new ArrayList<>(merged.subList(0, topK)) : merged;
+    }
+
     public List<Object[]> searchSimilar(String query, int topK, double threshold) {
+        return searchSimilarByEmbedding(embeddingService.getEmbeddings(query), topK, threshold);
+    }
+
+    public List<Object[]> searchSimilarByEmbedding(List<Double> queryEmbedding, int topK, double threshold) {
         try {
-            List<Double> queryEmbedding = embeddingService.getEmbeddings(query);
             JSONArray queryEmbeddingJson = new JSONArray(queryEmbedding);
             String queryEmbeddingStr = queryEmbeddingJson.toString();
 
+            // Если HNSW индекс построен, ищем в памяти вместо полного сканирования таблицы
+            if (vectorIndexService.isReady()) {
+                return vectorIndexService.findSimilarDocuments(queryEmbedding, topK, threshold);
+            }
+
+            if (ivfIndexService.isReady()) {
+                return ivfIndexService.findSimilarDocuments(queryEmbedding, topK, threshold);
+            }
+
+            if ("pgvector".equalsIgnoreCase(vectorStorage)) {
+                return embeddingRepository.findSimilarDocumentsPgvector(queryEmbeddingStr, topK, threshold);
+            }
+
+            if (EmbeddingCodec.isEnabled(vectorCodec)) {
+                return embeddingRepository.findSimilarDocumentsQuantized(
+                        VectorMath.toUnitArrayLiteral(queryEmbedding), topK, threshold);
+            }
+
             List<Object[]> results = embeddingRepository.findSimilarDocuments(
-                    queryEmbeddingStr, topK, threshold);
+                    VectorMath.toUnitArrayLiteral(queryEmbedding), topK, threshold);
 
             return results;
         } catch (Exception e) {
@@ -114,40 +344,365 @@ public class DocumentService {
         }
     }
 
-    public String getContextForQuery(String query, int topK, double threshold) {
+    /**
+     * Поиск для многих запросов сразу: все запросы получают эмбеддинги одним вызовом /api/embed,
+     * затем таблица embeddings читается один раз потоком и каждая строка сравнивается со всеми запросами.
+     * Если построен индекс (в памяти, IVF или pgvector), запросы идут в индекс по очереди - полного скана там нет.
+     * Результат - списки в формате searchSimilar в порядке запросов.
+     */
+    @Transactional(readOnly = true)
+    public List<List<Object[]>> searchSimilarBatch(List<String> queries, int topK, double threshold) {
+        List<List<Double>> queryEmbeddings = embeddingService.getEmbeddingsBatch(queries);
+        List<List<Object[]>> results = new ArrayList<>(queries.size());
+        if (vectorIndexService.isReady() || ivfIndexService.isReady() || "pgvector".equalsIgnoreCase(vectorStorage)) {
+            for (List<Double> queryEmbedding : queryEmbeddings) {
+                results.add(searchSimilarByEmbedding(queryEmbedding, topK, threshold));
+            }
+            return results;
+        }
+        if (queryEmbeddings.isEmpty()) {
+            return results;
+        }
+
+        int dimension = queryEmbeddings.get(0).size();
+        // нормализованные запросы подряд в одном массиве, как строки матрицы ExactVectorIndex
+        float[] queryMatrix = new float[queryEmbeddings.size() * dimension];
+        for (int q = 0; q < queryEmbeddings.size(); q++) {
+            float[] query = VectorMath.normalize(VectorMath.toFloatArray(queryEmbeddings.get(q)));
+            System.arraycopy(query, 0, queryMatrix, q * dimension, dimension);
+        }
+        TopKHeap[] heaps = new TopKHeap[queryEmbeddings.size()];
+        for (int q = 0; q < heaps.length; q++) {
+            heaps[q] = new TopKHeap(topK);
+        }
+        VectorKernel kernel = VectorKernel.INSTANCE;
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("SELECT document_id, " + VectorIndexService.VECTOR_COLUMNS + " FROM embeddings");
+            ps.setFetchSize(batchFetchSize);
+            return ps;
+        }, rs -> {
+            float[] vector = VectorMath.normalize(VectorIndexService.readVector(rs));
+            if (vector.length != dimension) {
+                return;
+            }
+            long documentId = rs.getLong(1);
+            for (int q = 0; q < heaps.length; q++) {
+                float similarity = kernel.dot(queryMatrix, q * dimension, vector, dimension);
+                if (similarity >= threshold && similarity > heaps[q].minScore()) {
+                    heaps[q].offer(documentId, similarity);
+                }
+            }
+        });
+        for (TopKHeap heap : heaps) {
+            results.add(vectorIndexService.toDocumentRows(heap.toSortedHits()));
+        }
+        return results;
+    }
+
+    /**
+     * Поиск с фильтром по метаданным. Без индекса в памяти фильтр и сходство считаются одним SQL запросом.
+     * С индексом условие один раз вычисляется в базе в битовое множество ID документов, дальше: мало
+     * документов - точное сходство только по ним, иначе скан индекса пропускает документы вне множества.
+     */
+    public List<Object[]> searchSimilar(String query, int topK, double threshold, SearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return searchSimilarChunks(query, topK, threshold);
+        }
         try {
-            List<Object[]> similarDocs = searchSimilar(query, topK, threshold);
+            List<Double> queryEmbedding = embeddingService.getEmbeddings(query);
+            String queryUnitStr = VectorMath.toUnitArrayLiteral(queryEmbedding);
+            if (!vectorIndexService.isReady()) {
+                // без индекса фильтр проверяется один раз, в том же SQL запросе, что и сходство
+                return embeddingRepository.findSimilarDocumentsFiltered(queryUnitStr, filter.toMetadataJson(),
+                        toTimestamp(filter.getCreatedFrom()), toTimestamp(filter.getCreatedTo()), topK, threshold);
+            }
 
-            if (similarDocs.isEmpty()) {
-                return null; // Контекст не найден
+            Roaring64Bitmap allowed = resolveFilter(filter);
+            if (allowed.isEmpty()) {
+                return new ArrayList<>();
             }
+            if (allowed.getLongCardinality() <= filterExactMaxIds) {
+                List<Long> ids = new ArrayList<>((int) allowed.getLongCardinality());
+                LongIterator iterator = allowed.getLongIterator();
+                while (iterator.hasNext()) {
+                    ids.add(iterator.next());
+                }
+                return embeddingRepository.rescoreCandidates(queryUnitStr, ids, topK, threshold);
+            }
+            return vectorIndexService.findSimilarDocuments(queryEmbedding, topK, threshold, allowed::contains);
+        } catch (Exception e) {
+            System.err.println("Ошибка поиска с фильтром: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * ID документов, подходящих под фильтр. Условие metadata @> использует GIN индекс idx_documents_metadata
+     */
+    public Roaring64Bitmap resolveFilter(SearchFilter filter) {
+        Roaring64Bitmap ids = new Roaring64Bitmap();
+        jdbcTemplate.query("""
+                SELECT id FROM documents
+                WHERE metadata @> ?::jsonb
+                  AND (?::timestamp IS NULL OR created_at >= ?::timestamp)
+                  AND (?::timestamp IS NULL OR created_at < ?::timestamp)
+                """, rs -> {
+            ids.addLong(rs.getLong(1));
+        }, filter.toMetadataJson(),
+                toTimestamp(filter.getCreatedFrom()), toTimestamp(filter.getCreatedFrom()),
+                toTimestamp(filter.getCreatedTo()), toTimestamp(filter.getCreatedTo()));
+        return ids;
+    }
+
+    private static String toTimestamp(LocalDateTime value) {
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Лексический поиск по content_tsv: документ подходит, если содержит хотя бы одно слово запроса,
+     * выше ранжируются документы с большим числом близко стоящих слов запроса
+     */
+    public List<Object[]> searchLexical(String query, int topK) {
+        String tsQuery = toTsQuery(query);
+        if (tsQuery.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return documentRepository.searchLexical(tsQuery, topK);
+    }
 
-            StringBuilder contextBuilder = new StringBuilder();
-            contextBuilder.append("Контекст из базы знаний:\n\n");
+    /**
+     * Гибридный поиск: лексический (в отдельном потоке) и векторный запросы выполняются параллельно,
+     * списки ранжируются методом reciprocal rank fusion: score = sum(1 / (k + rank)).
+     * Порог threshold действует и на лексические попадания: их сходство пересчитывается по эмбеддингам,
+     * в результате similarity - косинусное сходство, порядок - по оценке RRF.
+     */
+    public List<Object[]> searchHybrid(String query, int topK, double threshold) {
+        List<Double> queryEmbedding;
+        try {
+            queryEmbedding = embeddingService.getEmbeddings(query);
+        } catch (Exception e) {
+            System.err.println("Ошибка эмбеддинга запроса, используется только лексический поиск: " + e.getMessage());
+            queryEmbedding = null;
+        }
+        return searchHybrid(query, queryEmbedding, topK, threshold);
+    }
 
-            for (Object[] doc : similarDocs) {
-                Long docId = (Long) doc[0];
-                String content = (String) doc[1];
-                String metadata = (String) doc[2];
-                Double similarity = (Double) doc[3];
+    /**
+     * Гибридный поиск по готовому эмбеддингу запроса; queryEmbedding == null - только лексический поиск,
+     * similarity - ранг ts_rank_cd (сходство посчитать не по чему)
+     */
+    public List<Object[]> searchHybrid(String query, List<Double> queryEmbedding, int topK, double threshold) {
+        int candidates = Math.max(topK, hybridCandidates);
+        CompletableFuture<List<Object[]>> lexical = CompletableFuture.supplyAsync(
+                () -> searchLexical(query, candidates), lexicalExecutor);
+        List<Object[]> vector;
+        try {
+            vector = queryEmbedding != null
+                    ? searchSimilarChunks(queryEmbedding, candidates, threshold)
+                    : new ArrayList<>();
+        } catch (Exception e) {
+            System.err.println("Ошибка векторного поиска, используется только лексический: " + e.getMessage());
+            vector = new ArrayList<>();
+        }
+        List<Object[]> lexicalResults;
+        try {
+            lexicalResults = lexical.join();
+        } catch (Exception e) {
+            System.err.println("Ошибка лексического поиска, используется только векторный: " + e.getMessage());
+            lexicalResults = new ArrayList<>();
+        }
+        if (queryEmbedding == null) {
+            return lexicalResults.size() > topK ? new ArrayList<>(lexicalResults.subList(0, topK)) : lexicalResults;
+        }
+        return reciprocalRankFusion(List.of(vector, withSimilarity(queryEmbedding, lexicalResults, threshold)), rrfK, topK);
+    }
 
-                contextBuilder.append(String.format("Документ ID: %d (схожесть: %.3f)\n", docId, similarity));
-                contextBuilder.append("Содержимое: ").append(content).append("\n");
+    /**
+     * Лексические попадания в прежнем порядке, но со сходством с запросом вместо ранга ts_rank_cd;
+     * документы ниже порога отбрасываются
+     */
+    private List<Object[]> withSimilarity(List<Double> queryEmbedding, List<Object[]> lexicalResults, double threshold) {
+        if (lexicalResults.isEmpty()) {
+            return lexicalResults;
+        }
+        List<Long> ids = new ArrayList<>(lexicalResults.size());
+        for (Object[] row : lexicalResults) {
+            ids.add(((Number) row[0]).longValue());
+        }
+        Map<Long, Object[]> rescored = new HashMap<>();
+        for (Object[] row : embeddingRepository.rescoreCandidates(VectorMath.toUnitArrayLiteral(queryEmbedding),
+                ids, ids.size(), threshold)) {
+            rescored.put(((Number) row[0]).longValue(), row);
+        }
+        List<Object[]> results = new ArrayList<>(rescored.size());
+        for (Long id : ids) {
+            Object[] row = rescored.get(id);
+            if (row != null) {
+                results.add(row);
+            }
+        }
+        return results;
+    }
 
-                if (metadata != null && !metadata.trim().isEmpty()) {
-                    contextBuilder.append("Метаданные: ").append(metadata).append("\n");
+    /**
+     * Слияние списков по оценке RRF. Строка берется из первого списка, где встретилась, similarity в ней
+     * не меняется - оценка RRF задает только порядок
+     */
+    static List<Object[]> reciprocalRankFusion(List<List<Object[]>> rankings, int k, int topK) {
+        // ключ - документ или фрагмент документа: разные фрагменты одного документа не складываются
+        Map<String, Object[]> rows = new LinkedHashMap<>();
+        Map<String, Double> scores = new HashMap<>();
+        for (List<Object[]> ranking : rankings) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                Object[] row = ranking.get(rank);
+                Long id = ((Number) row[0]).longValue();
+                String key = row.length > 4 ? id + ":" + row[4] : id.toString();
+                if (!rows.containsKey(key)) {
+                    // номер фрагмента (пятый элемент) сохраняется
+                    Object[] fusedRow = Arrays.copyOf(row, Math.max(4, row.length));
+                    fusedRow[0] = id;
+                    rows.put(key, fusedRow);
                 }
+                scores.merge(key, 1.0 / (k + rank + 1), Double::sum);
+            }
+        }
+        List<String> keys = new ArrayList<>(rows.keySet());
+        keys.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        List<Object[]> results = new ArrayList<>(Math.min(topK, keys.size()));
+        for (String key : keys.subList(0, Math.min(topK, keys.size()))) {
+            results.add(rows.get(key));
+        }
+        return results;
+    }
 
-                contextBuilder.append("---\n\n");
+    /**
+     * Запрос пользователя -> выражение to_tsquery: слова (вместе с _ $ # в именах объектов БД) через ИЛИ.
+     * Все символы, кроме букв, цифр и дефиса, отбрасываются, поэтому синтаксис tsquery не ломается.
+     */
+    static String toTsQuery(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        Matcher matcher = LEXICAL_TERM.matcher(query != null ? query : "");
+        while (matcher.find() && terms.size() < 32) {
+            String term = matcher.group().toLowerCase().replaceAll("[_$#]", "-").replaceAll("^-+|-+$", "");
+            if (!term.isEmpty()) {
+                terms.add(term);
             }
+        }
+        return String.join(" | ", terms);
+    }
 
-            return contextBuilder.toString();
+    public String getContextForQuery(String query, int topK, double threshold) {
+        return formatContext(query, getContextDocuments(query, topK, threshold));
+    }
+
+    /**
+     * Документы контекста для вопроса (гибридный или векторный поиск по rag.retrieval.mode), пустой список при ошибке
+     */
+    public List<Object[]> getContextDocuments(String query, int topK, double threshold) {
+        List<Double> queryEmbedding;
+        try {
+            queryEmbedding = embeddingService.getEmbeddings(query);
+        } catch (Exception e) {
+            System.err.println("Ошибка эмбеддинга запроса: " + e.getMessage());
+            queryEmbedding = null;
+        }
+        return getContextDocuments(query, queryEmbedding, topK, threshold);
+    }
+
+    /**
+     * Документы контекста по готовому эмбеддингу вопроса; queryEmbedding == null (эмбеддинг недоступен) -
+     * в гибридном режиме только лексический поиск, иначе пустой список. По истечении срока запроса -
+     * RequestDeadline.Exceeded, остальные ошибки - пустой список
+     */
+    public List<Object[]> getContextDocuments(String query, List<Double> queryEmbedding, int topK, double threshold) {
+        RequestDeadline.check("поиск");
+        try {
+            if ("hybrid".equalsIgnoreCase(retrievalMode)) {
+                return searchHybrid(query, queryEmbedding, topK, threshold);
+            }
+            return queryEmbedding != null
+                    ? searchSimilarChunks(queryEmbedding, topK, threshold)
+                    : new ArrayList<>();
+        } catch (Exception e) {
+            // истекший срок запроса прерывает обработку, остальные ошибки - ответ без контекста
+            RequestDeadline.check("поиск");
+            System.err.println("Ошибка получения контекста: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    public String formatContext(String query, List<Object[]> similarDocs) {
+        return assembleContext("Контекст из базы знаний:\n\n", query, similarDocs,
+                "схожесть");
+    }
+
+    /**
+     * Контекст в пределах rag.context.max-tokens: документы по убыванию оценки, большие - фрагментами,
+     * число токенов документа берется из documents.token_count
+     */
+    public String assembleContext(String header, String query, List<Object[]> similarDocs, String scoreLabel) {
+        try {
+            if (similarDocs.isEmpty()) {
+                return null; // Контекст не найден
+            }
+            ContextAssembler assembler = new ContextAssembler(contextMaxTokens, contextPassageTokens);
+            return assembler.assemble(header, similarDocs, loadTokenCounts(similarDocs), query, scoreLabel);
         } catch (Exception e) {
             System.err.println("Ошибка получения контекста: " + e.getMessage());
             return null;
         }
     }
 
+    private Map<Long, Integer> loadTokenCounts(List<Object[]> documents) {
+        // у фрагмента (строка с номером фрагмента) свой размер, число токенов документа к нему не относится
+        Long[] ids = documents.stream().filter(doc -> doc.length == 4)
+                .map(doc -> ((Number) doc[0]).longValue()).toArray(Long[]::new);
+        Map<Long, Integer> tokenCounts = new HashMap<>();
+        if (ids.length == 0) {
+            return tokenCounts;
+        }
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "SELECT id, token_count FROM documents WHERE id = ANY(?) AND token_count IS NOT NULL");
+            ps.setArray(1, con.createArrayOf("bigint", ids));
+            return ps;
+        }, rs -> {
+            tokenCounts.put(rs.getLong(1), rs.getInt(2));
+        });
+        return tokenCounts;
+    }
+
+    /**
+     * Эмбеддинги пакета загружаемых документов пакетными запросами к Ollama. Точные дубликаты не отправляются
+     * (в их позиции null), при ошибке пакета - все null, и addDocument запросит эмбеддинг сам.
+     * model - модель, которой считаются векторы; ее же нужно передать в addDocument
+     */
+    public List<List<Double>> embedDocuments(String model, List<String> contents) {
+        List<List<Double>> result = new ArrayList<>(Collections.nCopies(contents.size(), null));
+        List<Integer> positions = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < contents.size(); i++) {
+            if (!contentHashService.exists(BloomFilter.sha256(contents.get(i)))) {
+                positions.add(i);
+                texts.add(contents.get(i));
+            }
+        }
+        try {
+            List<List<Double>> embeddings = embeddingService.getEmbeddingsBatch(model, texts);
+            for (int i = 0; i < positions.size(); i++) {
+                result.set(positions.get(i), embeddings.get(i));
+            }
+        } catch (Exception e) {
+            System.err.println("Ошибка пакетного получения эмбеддингов документов: " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Норма вектора в том виде, в каком его вернула модель. /api/embed отдает нормализованные векторы, поэтому
+     * у новых строк embedding_norm около 1; ненормализованные нормы остаются у строк, посчитанных старым
+     * /api/embeddings. Поиск идет по embedding_unit, норма используется только в статистике
+     */
     private double calculateEmbeddingNorm(List<Double> embedding) {
         return Math.sqrt(embedding.stream()
                 .mapToDouble(d -> d * d)
@@ -171,8 +726,30 @@ public class DocumentService {
             throw new RuntimeException("Embedding already exists for document id: " + documentId);
         }
 
-        Embedding embeddingObj = new Embedding(documentOpt.get(), embedding, norm);
-        return embeddingRepository.save(embeddingObj);
+        Embedding embeddingObj = newEmbedding(documentOpt.get(), embedding, norm, embeddingService.getEmbeddingName());
+        Embedding saved = embeddingRepository.save(embeddingObj);
+        responseCache.onDocumentChanged(documentId);
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < embedding.length(); i++) {
+            values.add(embedding.getDouble(i));
+        }
+        vectorIndexService.onDocumentAdded(documentId, values);
+        return saved;
+    }
+
+    /**
+     * Эмбеддинг для сохранения: JSONB, нормализованный REAL[], квантованный код (если включен rag.vector.codec)
+     * и список IVF
+     */
+    private Embedding newEmbedding(Document document, JSONArray embedding, Double norm, String model) {
+        Embedding embeddingObj = new Embedding(document, embedding, norm);
+        embeddingObj.setModel(model);
+        if (EmbeddingCodec.isEnabled(vectorCodec)) {
+            embeddingObj.setEmbeddingQ(EmbeddingCodec.encode(embeddingObj.getEmbeddingUnit(), vectorCodec));
+        }
+        // список IVF назначается сразу, без поиска центроида в триггере
+        embeddingObj.setIvfList(ivfIndexService.assign(embeddingObj.getEmbeddingUnit()));
+        return embeddingObj;
     }
 
     public List<Document> getAllDocuments() {
@@ -192,11 +769,20 @@ public class DocumentService {
         stats.put("total_documents", documentRepository.countDocuments());
         stats.put("total_embeddings", embeddingRepository.countEmbeddings());
         stats.put("average_embedding_norm", embeddingRepository.averageEmbeddingNorm());
+        stats.put("exact_dedup_filter_negatives", contentHashService.getFilterNegatives());
+        stats.put("exact_dedup_database_lookups", contentHashService.getDatabaseLookups());
+        stats.put("embedding_cache", embeddingService.getCacheStatistics());
+        stats.put("embedding_coalescer", embeddingService.getCoalescerStatistics());
+        stats.put("embedding_hedging", embeddingService.getHedgeStatistics());
+        stats.put("response_cache", responseCache.getStatistics());
         return stats;
     }
 
     @Transactional
     public void deleteDocument(Long id) {
         documentRepository.deleteById(id);
+        vectorIndexService.onDocumentDeleted(id);
+        minHashService.onDocumentDeleted(id);
+        responseCache.onDocumentChanged(id);
     }
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Пакетные запросы к /api/embed, общие для EmbeddingService и консольного клиента (EmbeddingsText):
+ * разбиение текстов на пакеты и разбор ответа.
+ * /api/embed возвращает L2-нормализованные векторы, поэтому embedding_norm новых строк близок к 1.
+ */
+public final class EmbedBatches {
+
+    private EmbedBatches() {
+    }
+
+    /**
+     * Тексты отправляются пакетами не больше maxTexts штук и maxBytes байт UTF-8 (текст больше лимита
+     * уходит отдельным запросом), результаты складываются в исходном порядке
+     */
+    public static List<List<Double>> request(List<String> texts, int maxTexts, long maxBytes,
+                                             Function<List<String>, List<List<Double>>> send) {
+        List<List<Double>> result = new ArrayList<>(texts.size());
+        int from = 0;
+        while (from < texts.size()) {
+            int to = from;
+            long bytes = 0;
+            while (to < texts.size() && to - from < Math.max(1, maxTexts)) {
+                int size = texts.get(to).getBytes(StandardCharsets.UTF_8).length;
+                if (to > from && bytes + size > maxBytes) {
+                    break;
+                }
+                bytes += size;
+                to++;
+            }
+            result.addAll(send.apply(texts.subList(from, to)));
+            from = to;
+        }
+        return result;
+    }
+
+    /**
+     * Тело запроса /api/embed для пакета текстов
+     */
+    public static String body(String model, List<String> texts) {
+        return new JSONObject()
+                .put("model", model)
+                .put("input", new JSONArray(texts))
+                .toString();
+    }
+
+    /**
+     * Векторы из ответа /api/embed; число векторов должно совпадать с числом текстов
+     */
+    public static List<List<Double>> parse(String response, int expected) {
+        JSONArray embeddingsArray = new JSONObject(response).getJSONArray("embeddings");
+        if (embeddingsArray.length() != expected) {
+            throw new IllegalStateException("Получено " + embeddingsArray.length() + " эмбеддингов для " + expected + " текстов");
+        }
+        List<List<Double>> result = new ArrayList<>(embeddingsArray.length());
+        for (int i = 0; i < embeddingsArray.length(); i++) {
+            JSONArray embeddingArray = embeddingsArray.getJSONArray(i);
+            List<Double> embedding = new ArrayList<>(embeddingArray.length());
+            for (int j = 0; j < embeddingArray.length(); j++) {
+                embedding.add(embeddingArray.getDouble(j));
+            }
+            result.add(embedding);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,213 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Двухуровневый кэш эмбеддингов по ключу (модель, SHA-256 нормализованного текста).
+ * Первый уровень - LRU в памяти с float[] значениями, второй - UNLOGGED таблица embedding_cache,
+ * общая для всех узлов приложения. Запросы к таблице выполняются вне текущей транзакции:
+ * ошибка кэша не должна откатывать добавление документа.
+ */
+@Service
+public class EmbeddingCache {
+
+    @Value("${rag.embedding.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rag.embedding.cache.max-entries:10000}")
+    private int maxEntries;
+
+    // false - только кэш в памяти, без таблицы embedding_cache
+    @Value("${rag.embedding.cache.shared:true}")
+    private boolean shared;
+
+    @Value("${rag.embedding.cache.ttl-hours:168}")
+    private int ttlHours;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final Map<String, float[]> memory = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Нормализация перед хешированием: пробельные символы схлопываются, края обрезаются
+     */
+    static byte[] textHash(String text) {
+        return BloomFilter.sha256(text.replaceAll("\\s+", " ").trim());
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public float[] get(String model, String text) {
+        List<float[]> found = getAll(model, Collections.singletonList(text));
+        return found.get(0);
+    }
+
+    /**
+     * Эмбеддинги из кэша в порядке текстов, null для отсутствующих. Промахи памяти ищутся в таблице одним запросом
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<float[]> getAll(String model, List<String> texts) {
+        List<float[]> result = new ArrayList<>(Collections.nCopies(texts.size(), (float[]) null));
+        if (!enabled) {
+            return result;
+        }
+        Map<String, List<Integer>> missing = new LinkedHashMap<>();
+        Map<String, byte[]> hashes = new HashMap<>();
+        synchronized (memory) {
+            for (int i = 0; i < texts.size(); i++) {
+                byte[] hash = textHash(texts.get(i));
+                String key = key(model, hash);
+                float[] vector = memory.get(key);
+                if (vector != null) {
+                    memoryHits.incrementAndGet();
+                    result.set(i, vector);
+                } else {
+                    missing.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                    hashes.put(key, hash);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        if (shared) {
+            try {
+                byte[][] lookup = missing.keySet().stream().map(hashes::get).toArray(byte[][]::new);
+                Map<String, float[]> loaded = new HashMap<>();
+                jdbcTemplate.query(con -> {
+                    PreparedStatement ps = con.prepareStatement(
+                            "SELECT text_sha256, embedding FROM embedding_cache WHERE model = ? AND text_sha256 = ANY(?)");
+                    ps.setString(1, model);
+                    ps.setArray(2, con.createArrayOf("bytea", lookup));
+                    return ps;
+                }, rs -> {
+                    loaded.put(key(model, rs.getBytes(1)), toFloats(rs.getArray(2)));
+                });
+                synchronized (memory) {
+                    memory.putAll(loaded);
+                }
+                for (Map.Entry<String, float[]> entry : loaded.entrySet()) {
+                    List<Integer> positions = missing.remove(entry.getKey());
+                    for (int position : positions) {
+                        sharedHits.incrementAndGet();
+                        result.set(position, entry.getValue());
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Ошибка чтения кэша эмбеддингов: " + e.getMessage());
+            }
+        }
+        for (List<Integer> positions : missing.values()) {
+            misses.addAndGet(positions.size());
+        }
+        return result;
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void put(String model, String text, float[] embedding) {
+        putAll(model, Collections.singletonList(text), Collections.singletonList(embedding));
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void putAll(String model, List<String> texts, List<float[]> embeddings) {
+        if (!enabled || texts.isEmpty()) {
+            return;
+        }
+        List<byte[]> hashes = new ArrayList<>(texts.size());
+        synchronized (memory) {
+            for (int i = 0; i < texts.size(); i++) {
+                byte[] hash = textHash(texts.get(i));
+                hashes.add(hash);
+                memory.put(key(model, hash), embeddings.get(i));
+            }
+        }
+        if (!shared) {
+            return;
+        }
+        try {
+            List<Object[]> batch = new ArrayList<>(texts.size());
+            for (int i = 0; i < texts.size(); i++) {
+                batch.add(new Object[]{model, hashes.get(i), VectorMath.toArrayLiteral(embeddings.get(i))});
+            }
+            jdbcTemplate.batchUpdate("INSERT INTO embedding_cache (model, text_sha256, embedding) VALUES (?, ?, ?::real[]) " +
+                    "ON CONFLICT DO NOTHING", batch);
+        } catch (Exception e) {
+            System.err.println("Ошибка записи в кэш эмбеддингов: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Удаление устаревших строк общей таблицы (rag.embedding.cache.ttl-hours)
+     */
+    @Scheduled(initialDelayString = "${rag.embedding.cache.cleanup-interval-ms:3600000}",
+            fixedDelayString = "${rag.embedding.cache.cleanup-interval-ms:3600000}")
+    public void cleanup() {
+        if (!enabled || !shared) {
+            return;
+        }
+        try {
+            jdbcTemplate.update("DELETE FROM embedding_cache WHERE created_at < now() - make_interval(hours => ?)", ttlHours);
+        } catch (Exception e) {
+            System.err.println("Ошибка очистки кэша эмбеддингов: " + e.getMessage());
+        }
+    }
+
+    public JSONObject getStatistics() {
+        long hits = memoryHits.get() + sharedHits.get();
+        long total = hits + misses.get();
+        JSONObject stats = new JSONObject();
+        stats.put("memory_hits", memoryHits.get());
+        stats.put("shared_hits", sharedHits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("hit_ratio", total == 0 ? 0.0 : (double) hits / total);
+        synchronized (memory) {
+            stats.put("memory_entries", memory.size());
+        }
+        return stats;
+    }
+
+    private static String key(String model, byte[] hash) {
+        return model + ":" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static float[] toFloats(Array array) throws SQLException {
+        Object[] values = (Object[]) array.getArray();
+        float[] vector = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            vector[i] = ((Number) values[i]).floatValue();
+        }
+        return vector;
+    }
+}
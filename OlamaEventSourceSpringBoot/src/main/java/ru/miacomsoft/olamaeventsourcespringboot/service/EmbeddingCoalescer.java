@@ -0,0 +1,172 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Объединение одновременных запросов эмбеддингов. Запросы одной модели копятся не дольше maxWaitMillis
+ * или до maxBatch текстов и уходят одним пакетным вызовом, каждый вызывающий получает свой вектор.
+ * Одинаковый текст, который уже ждет отправки или считается, повторно не отправляется (single-flight).
+ * Пакеты отправляются параллельно (не больше maxConcurrentBatches), пока предыдущий пакет еще выполняется,
+ * копится следующий. Каждый ожидающий получает результат или ошибку, даже если пакетный вызов вернул
+ * не то число векторов или упал.
+ */
+public final class EmbeddingCoalescer {
+
+    public interface BatchFunction {
+        List<List<Double>> embed(String model, List<String> texts);
+    }
+
+    private final BatchFunction batchFunction;
+    private final long maxWaitMillis;
+    private final int maxBatch;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService sender;
+
+    // ожидающие отправки тексты по моделям и все незавершенные запросы (model + '\0' + text)
+    private final Map<String, List<String>> pendingByModel = new HashMap<>();
+    private final Map<String, CompletableFuture<List<Double>>> inFlight = new HashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong sharedRequests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedTexts = new AtomicLong();
+
+    public EmbeddingCoalescer(BatchFunction batchFunction, long maxWaitMillis, int maxBatch, int maxConcurrentBatches) {
+        this.batchFunction = batchFunction;
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "embedding-coalescer-timer"));
+        int threads = Math.max(1, maxConcurrentBatches);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> daemon(r, "embedding-coalescer"));
+        pool.allowCoreThreadTimeOut(true);
+        this.sender = pool;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public CompletableFuture<List<Double>> submit(String model, String text) {
+        requests.incrementAndGet();
+        String key = model + '\0' + text;
+        List<String> full = null;
+        CompletableFuture<List<Double>> future;
+        synchronized (this) {
+            CompletableFuture<List<Double>> existing = inFlight.get(key);
+            if (existing != null) {
+                sharedRequests.incrementAndGet();
+                return existing;
+            }
+            future = new CompletableFuture<>();
+            inFlight.put(key, future);
+            List<String> pending = pendingByModel.computeIfAbsent(model, m -> new ArrayList<>());
+            pending.add(text);
+            if (pending.size() >= maxBatch) {
+                full = pendingByModel.remove(model);
+            } else if (pending.size() == 1) {
+                // первый текст пакета запускает таймер: дальше пакет уйдет по времени, если не наберется раньше
+                timer.schedule(() -> flush(model, pending), maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            dispatch(model, full);
+        }
+        return future;
+    }
+
+    /**
+     * Отправка по таймеру, если этот же список еще не ушел по заполнению
+     */
+    private void flush(String model, List<String> pending) {
+        synchronized (this) {
+            if (pendingByModel.get(model) != pending) {
+                return;
+            }
+            pendingByModel.remove(model);
+        }
+        dispatch(model, pending);
+    }
+
+    private void dispatch(String model, List<String> texts) {
+        try {
+            sender.execute(() -> send(model, texts));
+        } catch (RejectedExecutionException e) {
+            // объединитель закрыт: ожидающие получают ошибку, а не висят в inFlight
+            complete(model, texts, null, e);
+        }
+    }
+
+    private void send(String model, List<String> texts) {
+        batches.incrementAndGet();
+        batchedTexts.addAndGet(texts.size());
+        List<List<Double>> embeddings = null;
+        Throwable error = null;
+        try {
+            embeddings = batchFunction.embed(model, texts);
+            if (embeddings == null || embeddings.size() != texts.size()) {
+                error = new IllegalStateException("Получено " + (embeddings == null ? 0 : embeddings.size())
+                        + " эмбеддингов на " + texts.size() + " текстов");
+            }
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            complete(model, texts, embeddings, error);
+        }
+    }
+
+    /**
+     * Снимает запросы пакета из inFlight и завершает каждый; ошибка одного завершения не мешает остальным
+     */
+    private void complete(String model, List<String> texts, List<List<Double>> embeddings, Throwable error) {
+        List<CompletableFuture<List<Double>>> futures = new ArrayList<>(texts.size());
+        synchronized (this) {
+            for (String text : texts) {
+                futures.add(inFlight.remove(model + '\0' + text));
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            CompletableFuture<List<Double>> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            try {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(embeddings.get(i));
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getSharedRequests() {
+        return sharedRequests.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getBatchedTexts() {
+        return batchedTexts.get();
+    }
+
+    public void close() {
+        timer.shutdownNow();
+        sender.shutdownNow();
+    }
+}
@@ -0,0 +1,173 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Компактный бинарный формат эмбеддинга для колонки embedding_q BYTEA.
+ * Первый байт - формат:
+ * 1 - int8: масштаб и смещение float32, затем по байту (0..255) на измерение, значение = offset + scale * b;
+ * 2 - float16: по два байта на измерение.
+ * Все числа little-endian. В SQL этот же формат читает функция quantized_dot.
+ */
+public final class EmbeddingCodec {
+
+    public static final byte FORMAT_INT8 = 1;
+    public static final byte FORMAT_FLOAT16 = 2;
+
+    private static final int INT8_HEADER = 9;
+    private static final int FLOAT16_HEADER = 1;
+
+    private EmbeddingCodec() {
+    }
+
+    /**
+     * Кодек из настройки rag.vector.codec: int8, float16 или none
+     */
+    public static boolean isEnabled(String codec) {
+        return codec != null && ("int8".equalsIgnoreCase(codec.trim()) || "float16".equalsIgnoreCase(codec.trim()));
+    }
+
+    public static byte[] encode(float[] vector, String codec) {
+        if ("float16".equalsIgnoreCase(codec.trim())) {
+            return encodeFloat16(vector);
+        }
+        return encodeInt8(vector);
+    }
+
+    /**
+     * Кодек, которым закодирован code (int8 или float16) - для пересчета кода в том же формате
+     */
+    public static String codecOf(byte[] code) {
+        return code.length > 0 && code[0] == FORMAT_FLOAT16 ? "float16" : "int8";
+    }
+
+    public static byte[] encodeInt8(float[] vector) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float v : vector) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (vector.length == 0) {
+            min = max = 0;
+        }
+        float scale = max > min ? (max - min) / 255f : 0f;
+        ByteBuffer buffer = ByteBuffer.allocate(INT8_HEADER + vector.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(FORMAT_INT8).putFloat(scale).putFloat(min);
+        for (float v : vector) {
+            int q = scale == 0 ? 0 : Math.round((v - min) / scale);
+            buffer.put((byte) Math.max(0, Math.min(255, q)));
+        }
+        return buffer.array();
+    }
+
+    public static byte[] encodeFloat16(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(FLOAT16_HEADER + vector.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(FORMAT_FLOAT16);
+        for (float v : vector) {
+            buffer.putShort(toHalf(v));
+        }
+        return buffer.array();
+    }
+
+    public static float[] decode(byte[] code) {
+        ByteBuffer buffer = ByteBuffer.wrap(code).order(ByteOrder.LITTLE_ENDIAN);
+        byte format = buffer.get();
+        if (format == FORMAT_INT8) {
+            float scale = buffer.getFloat();
+            float offset = buffer.getFloat();
+            float[] vector = new float[code.length - INT8_HEADER];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = offset + scale * (buffer.get() & 0xFF);
+            }
+            return vector;
+        }
+        if (format == FORMAT_FLOAT16) {
+            float[] vector = new float[(code.length - FLOAT16_HEADER) / 2];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = fromHalf(buffer.getShort());
+            }
+            return vector;
+        }
+        throw new IllegalArgumentException("Неизвестный формат эмбеддинга: " + format);
+    }
+
+    /**
+     * Скалярное произведение закодированного вектора и запроса без распаковки в float[].
+     * Для int8: scale * sum(q * b) + offset * sum(q).
+     */
+    public static double dot(byte[] code, float[] query) {
+        ByteBuffer buffer = ByteBuffer.wrap(code).order(ByteOrder.LITTLE_ENDIAN);
+        byte format = buffer.get();
+        if (format == FORMAT_INT8) {
+            float scale = buffer.getFloat();
+            float offset = buffer.getFloat();
+            int length = Math.min(query.length, code.length - INT8_HEADER);
+            double weighted = 0;
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                weighted += query[i] * (code[INT8_HEADER + i] & 0xFF);
+                sum += query[i];
+            }
+            return scale * weighted + offset * sum;
+        }
+        if (format == FORMAT_FLOAT16) {
+            int length = Math.min(query.length, (code.length - FLOAT16_HEADER) / 2);
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                sum += query[i] * fromHalf(buffer.getShort());
+            }
+            return sum;
+        }
+        throw new IllegalArgumentException("Неизвестный формат эмбеддинга: " + format);
+    }
+
+    /**
+     * float32 -> float16 с округлением к ближайшему (Float.floatToFloat16 появился только в Java 20)
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7FFFFFFF;
+        if (abs >= 0x7F800000) {
+            return (short) (sign | (abs > 0x7F800000 ? 0x7E00 : 0x7C00)); // NaN / бесконечность
+        }
+        if (abs >= 0x477FF000) {
+            return (short) (sign | 0x7C00); // переполнение
+        }
+        if (abs >= 0x38800000) {
+            int rounded = abs + 0x0FFF + ((abs >>> 13) & 1);
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+        }
+        if (abs < 0x33000000) {
+            return (short) sign; // меньше половины минимального субнормального числа
+        }
+        // субнормальные числа float16
+        int exponent = abs >>> 23;
+        int mantissa = (abs & 0x7FFFFF) | 0x800000;
+        int shift = 126 - exponent;
+        int half = mantissa >>> shift;
+        int remainder = mantissa & ((1 << shift) - 1);
+        int midpoint = 1 << (shift - 1);
+        if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    static float fromHalf(short half) {
+        int h = half & 0xFFFF;
+        int sign = (h & 0x8000) << 16;
+        int exponent = (h >>> 10) & 0x1F;
+        int mantissa = h & 0x3FF;
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 31) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
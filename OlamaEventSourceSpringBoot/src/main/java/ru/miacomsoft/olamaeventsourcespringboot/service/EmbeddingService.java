@@ -1,62 +1,189 @@
 package ru.miacomsoft.olamaeventsourcespringboot.service;
 
-import org.json.JSONArray;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 @Service
 public class EmbeddingService {
 
-    private static final String OLLAMA_HOST = "http://192.168.15.6:11434";
     private static String EMBEDDING_NAME = "all-minilm:22m";
-    private final HttpClient client;
 
-    public EmbeddingService() {
-        this.client = HttpClient.newHttpClient();
+    @Autowired
+    private EmbeddingCache embeddingCache;
+
+    @Autowired
+    private OllamaEndpointPool endpointPool;
+
+    @Autowired
+    private RequestHedger hedger;
+
+    @Value("${rag.embedding.batch.max-texts:64}")
+    private int batchMaxTexts;
+
+    @Value("${rag.embedding.batch.max-bytes:1048576}")
+    private long batchMaxBytes;
+
+    @Value("${rag.embedding.coalesce.enabled:true}")
+    private boolean coalesceEnabled;
+
+    @Value("${rag.embedding.coalesce.max-wait-ms:5}")
+    private long coalesceMaxWaitMs;
+
+    @Value("${rag.embedding.coalesce.max-batch:32}")
+    private int coalesceMaxBatch;
+
+    @Value("${rag.embedding.coalesce.max-concurrent-batches:4}")
+    private int coalesceMaxConcurrentBatches;
+
+    private EmbeddingCoalescer coalescer;
+
+    @PostConstruct
+    public void init() {
+        if (coalesceEnabled) {
+            coalescer = new EmbeddingCoalescer((model, texts) -> requestEmbeddingsBatch(model, texts, true),
+                    coalesceMaxWaitMs, coalesceMaxBatch, coalesceMaxConcurrentBatches);
+        }
     }
 
+    @PreDestroy
+    public void close() {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+    }
+
+    /**
+     * Эмбеддинг текста: сначала кэш (память, затем таблица embedding_cache), при промахе - запрос к Ollama.
+     * Без ограничений конвейера: эмбеддинг вопроса защищается в OllamaService (PipelineGuard.embed),
+     * загрузка документов - нет
+     */
     public List<Double> getEmbeddings(String text) {
+        String model = EMBEDDING_NAME;
+        float[] cached = embeddingCache.get(model, text);
+        if (cached != null) {
+            return toList(cached);
+        }
+        List<Double> embedding = requestEmbedding(model, text);
+        embeddingCache.put(model, text, VectorMath.toFloatArray(embedding));
+        return embedding;
+    }
+
+    /**
+     * Одиночный запрос идет через EmbeddingCoalescer: одновременные запросы из разных сессий
+     * уходят в Ollama одним пакетом, одинаковые тексты считаются один раз. Эти короткие запросы
+     * дублируются на второй сервер, если первый задерживает ответ (RequestHedger)
+     */
+    private List<Double> requestEmbedding(String model, String text) {
+        if (coalescer == null) {
+            return requestEmbeddingsBatch(model, List.of(text), true).get(0);
+        }
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(OLLAMA_HOST + "/api/embeddings"))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(
-                            new JSONObject()
-                                    .put("model", EMBEDDING_NAME)
-                                    .put("prompt", text)
-                                    .toString()))
-                    .build();
-
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-            if (response.statusCode() == 200) {
-                JSONObject jsonResponse = new JSONObject(response.body());
-                JSONArray embeddingArray = jsonResponse.getJSONArray("embedding");
-                List<Double> embeddings = new ArrayList<>();
-                for (int i = 0; i < embeddingArray.length(); i++) {
-                    embeddings.add(embeddingArray.getDouble(i));
-                }
-                return embeddings;
-            } else {
-                throw new RuntimeException("HTTP Error: " + response.statusCode());
+            // ожидание пакета не дольше срока запроса
+            return RequestDeadline.await(coalescer.submit(model, text), "эмбеддинг");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Эмбеддинги нескольких текстов пакетными запросами к /api/embed (массив input), порядок результатов совпадает с порядком текстов
+     */
+    public List<List<Double>> getEmbeddingsBatch(List<String> texts) {
+        return getEmbeddingsBatch(EMBEDDING_NAME, texts);
+    }
+
+    /**
+     * То же для явно заданной модели - используется фоновым переиндексированием до переключения активной модели
+     */
+    public List<List<Double>> getEmbeddingsBatch(String model, List<String> texts) {
+        if (texts.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<float[]> cached = embeddingCache.getAll(model, texts);
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            if (cached.get(i) == null) {
+                missing.add(texts.get(i));
             }
+        }
+        List<List<Double>> requested = missing.isEmpty() ? new ArrayList<>() : requestEmbeddingsBatch(model, missing, false);
+        if (!requested.isEmpty()) {
+            List<float[]> vectors = new ArrayList<>(requested.size());
+            for (List<Double> embedding : requested) {
+                vectors.add(VectorMath.toFloatArray(embedding));
+            }
+            embeddingCache.putAll(model, missing, vectors);
+        }
+        List<List<Double>> result = new ArrayList<>(texts.size());
+        int next = 0;
+        for (float[] vector : cached) {
+            result.add(vector != null ? toList(vector) : requested.get(next++));
+        }
+        return result;
+    }
+
+    private List<List<Double>> requestEmbeddingsBatch(String model, List<String> texts, boolean hedge) {
+        return EmbedBatches.request(texts, batchMaxTexts, batchMaxBytes, batch -> sendEmbedRequest(model, batch, hedge));
+    }
+
+    private List<List<Double>> sendEmbedRequest(String model, List<String> texts, boolean hedge) {
+        try {
+            String body = EmbedBatches.body(model, texts);
+            String response = hedge ? hedger.post(model, "/api/embed", body) : endpointPool.post(model, "/api/embed", body);
+            return EmbedBatches.parse(response, texts.size());
         } catch (Exception e) {
-            System.err.println("Ошибка получения эмбеддингов: " + e.getMessage());
+            System.err.println("Ошибка получения эмбеддингов пакетом: " + e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Модель запросов и новых документов. Кэш эмбеддингов не сбрасывается: ключ содержит модель,
+     * векторы старой модели нужны другим узлам и при возврате к ней, устаревшие строки удаляет cleanup по TTL
+     */
     public void setEmbeddingName(String modelName) {
         EMBEDDING_NAME = modelName;
     }
 
+    public JSONObject getCacheStatistics() {
+        return embeddingCache.getStatistics();
+    }
+
+    public JSONObject getCoalescerStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", coalescer != null);
+        if (coalescer != null) {
+            stats.put("requests", coalescer.getRequests());
+            stats.put("shared_requests", coalescer.getSharedRequests());
+            stats.put("batches", coalescer.getBatches());
+            stats.put("batched_texts", coalescer.getBatchedTexts());
+        }
+        return stats;
+    }
+
+    public JSONObject getHedgeStatistics() {
+        return hedger.getStatistics();
+    }
+
+    private static List<Double> toList(float[] vector) {
+        List<Double> embedding = new ArrayList<>(vector.length);
+        for (float value : vector) {
+            embedding.add((double) value);
+        }
+        return embedding;
+    }
+
     public String getEmbeddingName() {
         return EMBEDDING_NAME;
     }
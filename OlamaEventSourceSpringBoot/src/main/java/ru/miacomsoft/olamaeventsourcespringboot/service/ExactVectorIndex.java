@@ -0,0 +1,462 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Точный поиск полным перебором. Все нормализованные векторы лежат в одной непрерывной матрице float[]
+ * (строка на документ), сканирование делится между потоками ForkJoinPool, каждая задача ведет свою
+ * ограниченную кучу topK, затем кучи сливаются. Скалярное произведение считается через VectorKernel (SIMD).
+ * <p>
+ * Отсечение по оценкам сверху (результат остается точным):
+ * - блок из BLOCK_ROWS строк хранит центроид c и радиус r = max|x - c|, для единичного запроса q·x <= q·c + r.
+ *   Блоки обходятся по убыванию оценки, обход останавливается, когда оценка блока ниже порога
+ *   и худшего результата в заполненной куче;
+ * - внутри блока сначала считается скалярное произведение по первой половине координат, остаток
+ *   оценивается неравенством Коши-Буняковского |q_tail| * |x_tail|.
+ * Блоки отсекают хорошо, если похожие векторы лежат рядом: reorganize() переставляет строки по кластерам k-means.
+ * Отсечение работает только в этом индексе (rag.vector.index.enabled=true, type=exact); без индекса в памяти
+ * проверка дубликатов и поиск считают сходство в SQL по всем строкам.
+ */
+public class ExactVectorIndex implements VectorIndex {
+
+    private static final int MIN_ROWS_PER_TASK = 2048;
+    static final int BLOCK_ROWS = 256;
+    // запас на погрешность float, чтобы оценка гарантированно не была меньше точного значения
+    private static final float BOUND_EPSILON = 1e-4f;
+
+    private final ForkJoinPool pool;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Integer> rowByDocumentId = new HashMap<>();
+    private final VectorKernel kernel = VectorKernel.INSTANCE;
+
+    private float[] matrix = new float[0];
+    private long[] documentIds = new long[0];
+    private float[] tailNorms = new float[0];
+    private int rows = 0;
+    private int dimension = -1;
+    private int split = 0;
+
+    // сводки блоков, пересчитываются лениво для блоков из dirtyBlocks
+    private final Object summaryLock = new Object();
+    private final BitSet dirtyBlocks = new BitSet();
+    private float[] blockCentroids = new float[0];
+    private float[] blockRadius = new float[0];
+
+    private long modifications = 0;
+    private int organizedRows = 0;
+    // строки просмотренных блоков (после отсечения блоков), для проверки доли отсечения
+    private final LongAdder visitedRows = new LongAdder();
+
+    public ExactVectorIndex() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ExactVectorIndex(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void add(long documentId, float[] vector) {
+        float[] normalized = VectorMath.normalize(vector);
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = normalized.length;
+                split = dimension / 2;
+            } else if (dimension != normalized.length) {
+                throw new IllegalArgumentException("Размерность вектора " + normalized.length
+                        + " не совпадает с размерностью индекса " + dimension);
+            }
+            Integer row = rowByDocumentId.get(documentId);
+            if (row == null) {
+                ensureCapacity(rows + 1);
+                row = rows++;
+                rowByDocumentId.put(documentId, row);
+                documentIds[row] = documentId;
+            }
+            System.arraycopy(normalized, 0, matrix, row * dimension, dimension);
+            tailNorms[row] = tailNorm(normalized, 0);
+            markDirty(row);
+            modifications++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Удаление переносит последнюю строку на место удаленной, чтобы матрица оставалась непрерывной
+     */
+    @Override
+    public boolean remove(long documentId) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowByDocumentId.remove(documentId);
+            if (row == null) {
+                return false;
+            }
+            int last = --rows;
+            if (row != last) {
+                System.arraycopy(matrix, last * dimension, matrix, row * dimension, dimension);
+                documentIds[row] = documentIds[last];
+                tailNorms[row] = tailNorms[last];
+                rowByDocumentId.put(documentIds[row], row);
+                markDirty(row);
+            }
+            markDirty(last);
+            modifications++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<VectorSearchHit> search(float[] query, int topK, double threshold, LongPredicate filter) {
+        float[] normalized = VectorMath.normalize(query);
+        lock.readLock().lock();
+        try {
+            if (rows == 0 || topK <= 0) {
+                return Collections.emptyList();
+            }
+            if (normalized.length != dimension) {
+                throw new IllegalArgumentException("Размерность запроса " + normalized.length
+                        + " не совпадает с размерностью индекса " + dimension);
+            }
+            refreshSummaries();
+
+            // оценки сверху для блоков, блоки сканируются от самых перспективных
+            int blocks = blockCount();
+            float[] bounds = new float[blocks];
+            Integer[] order = new Integer[blocks];
+            for (int block = 0; block < blocks; block++) {
+                bounds[block] = kernel.dot(blockCentroids, block * dimension, normalized, dimension)
+                        + blockRadius[block] + BOUND_EPSILON;
+                order[block] = block;
+            }
+            Arrays.sort(order, (a, b) -> Float.compare(bounds[b], bounds[a]));
+            int[] blockOrder = new int[blocks];
+            float[] orderedBounds = new float[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockOrder[i] = order[i];
+                orderedBounds[i] = bounds[order[i]];
+            }
+
+            float[] queryTail = Arrays.copyOfRange(normalized, split, dimension);
+            float queryTailNorm = tailNorm(normalized, 0);
+            SharedCutoff cutoff = new SharedCutoff((float) threshold);
+            int blocksPerTask = Math.max(1, Math.max(MIN_ROWS_PER_TASK, rows / (pool.getParallelism() * 4 + 1)) / BLOCK_ROWS);
+            // Пока держим блокировку чтения, запись в матрицу невозможна, поэтому задачи пула читают ее без блокировок
+            ScanTask task = new ScanTask(normalized, queryTail, queryTailNorm, blockOrder, orderedBounds,
+                    0, blocks, topK, cutoff, blocksPerTask, filter);
+            TopKHeap heap = rows <= MIN_ROWS_PER_TASK ? task.compute() : pool.invoke(task);
+            return heap.toSortedHits();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Переставляет строки так, чтобы векторы одного кластера k-means шли подряд: блоки становятся компактными
+     * и отсекаются по оценке центроид + радиус. Кластеры обучаются на выборке, назначение строк считается
+     * под блокировкой чтения (поиск не останавливается), перестановка применяется, только если индекс
+     * за это время не менялся.
+     */
+    public void reorganize(int sampleSize, int iterations) {
+        List<float[]> sample = new ArrayList<>();
+        long version;
+        int count;
+        lock.readLock().lock();
+        try {
+            if (rows < BLOCK_ROWS * 4) {
+                return;
+            }
+            count = rows;
+            version = modifications;
+            Random random = new Random(count);
+            int step = Math.max(1, count / Math.max(1, sampleSize));
+            for (int row = random.nextInt(step); row < count && sample.size() < sampleSize; row += step) {
+                sample.add(Arrays.copyOfRange(matrix, row * dimension, (row + 1) * dimension));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int clusters = (int) Math.min(256, Math.max(2, Math.round(Math.sqrt(count / (double) BLOCK_ROWS) * 4)));
+        float[][] centroids = KMeans.train(sample, Math.min(clusters, sample.size()), iterations);
+
+        int[] assignment = new int[count];
+        lock.readLock().lock();
+        try {
+            if (modifications != version) {
+                return;
+            }
+            int dim = dimension;
+            float[] data = matrix;
+            IntStream.range(0, count).parallel().forEach(row -> {
+                int best = 0;
+                float bestSimilarity = Float.NEGATIVE_INFINITY;
+                for (int c = 0; c < centroids.length; c++) {
+                    float similarity = kernel.dot(data, row * dim, centroids[c], dim);
+                    if (similarity > bestSimilarity) {
+                        bestSimilarity = similarity;
+                        best = c;
+                    }
+                }
+                assignment[row] = best;
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (modifications != version) {
+                return; // индекс изменился, перестановка будет при следующем вызове
+            }
+            // сортировка подсчетом по номеру кластера
+            int[] offsets = new int[centroids.length + 1];
+            for (int row = 0; row < count; row++) {
+                offsets[assignment[row] + 1]++;
+            }
+            for (int c = 0; c < centroids.length; c++) {
+                offsets[c + 1] += offsets[c];
+            }
+            float[] newMatrix = new float[matrix.length];
+            long[] newIds = new long[documentIds.length];
+            float[] newTails = new float[tailNorms.length];
+            for (int row = 0; row < count; row++) {
+                int target = offsets[assignment[row]]++;
+                System.arraycopy(matrix, row * dimension, newMatrix, target * dimension, dimension);
+                newIds[target] = documentIds[row];
+                newTails[target] = tailNorms[row];
+                rowByDocumentId.put(newIds[target], target);
+            }
+            matrix = newMatrix;
+            documentIds = newIds;
+            tailNorms = newTails;
+            dirtyBlocks.set(0, blockCount());
+            organizedRows = count;
+            modifications++;
+            System.out.println("Точный векторный индекс упорядочен по " + centroids.length + " кластерам, строк: " + count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Число строк с момента последнего упорядочивания, в долях от упорядоченных
+     */
+    public double getUnorganizedRatio() {
+        lock.readLock().lock();
+        try {
+            return organizedRows == 0 ? (rows > 0 ? 1.0 : 0.0) : Math.abs(rows - organizedRows) / (double) organizedRows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Всего строк в блоках, которые поиск не отсек по оценке блока, с момента создания индекса
+     */
+    long getVisitedRows() {
+        return visitedRows.sum();
+    }
+
+    private int blockCount() {
+        return (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+    }
+
+    private void markDirty(int row) {
+        dirtyBlocks.set(row / BLOCK_ROWS);
+    }
+
+    /**
+     * Пересчет центроида и радиуса измененных блоков. Вызывается под блокировкой чтения:
+     * матрица не меняется, а параллельные поиски сериализуются на summaryLock
+     */
+    private void refreshSummaries() {
+        synchronized (summaryLock) {
+            int blocks = blockCount();
+            if (blockRadius.length < blocks) {
+                int capacity = Math.max(blocks, blockRadius.length * 2);
+                blockCentroids = Arrays.copyOf(blockCentroids, capacity * dimension);
+                blockRadius = Arrays.copyOf(blockRadius, capacity);
+            }
+            for (int block = dirtyBlocks.nextSetBit(0); block >= 0 && block < blocks; block = dirtyBlocks.nextSetBit(block + 1)) {
+                int from = block * BLOCK_ROWS;
+                int to = Math.min(rows, from + BLOCK_ROWS);
+                int offset = block * dimension;
+                Arrays.fill(blockCentroids, offset, offset + dimension, 0f);
+                for (int row = from; row < to; row++) {
+                    for (int d = 0; d < dimension; d++) {
+                        blockCentroids[offset + d] += matrix[row * dimension + d];
+                    }
+                }
+                for (int d = 0; d < dimension; d++) {
+                    blockCentroids[offset + d] /= (to - from);
+                }
+                double radius = 0;
+                for (int row = from; row < to; row++) {
+                    double distance = 0;
+                    for (int d = 0; d < dimension; d++) {
+                        double diff = matrix[row * dimension + d] - blockCentroids[offset + d];
+                        distance += diff * diff;
+                    }
+                    radius = Math.max(radius, distance);
+                }
+                blockRadius[block] = (float) Math.sqrt(radius);
+            }
+            dirtyBlocks.clear();
+        }
+    }
+
+    private float tailNorm(float[] vector, int offset) {
+        double sum = 0;
+        for (int d = split; d < dimension; d++) {
+            float v = vector[offset + d];
+            sum += v * v;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    /**
+     * Рост удвоением в long: матрица - один массив float, поэтому строк не больше,
+     * чем помещается в (Integer.MAX_VALUE - 8) / dimension элементов
+     */
+    private void ensureCapacity(int requiredRows) {
+        if (documentIds.length >= requiredRows) {
+            return;
+        }
+        long maxRows = (Integer.MAX_VALUE - 8L) / dimension;
+        if (requiredRows > maxRows) {
+            throw new IllegalStateException("Индекс в памяти не вмещает больше " + maxRows
+                    + " векторов размерности " + dimension);
+        }
+        long capacity = Math.max(1024L, documentIds.length * 2L);
+        while (capacity < requiredRows) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, maxRows);
+        matrix = Arrays.copyOf(matrix, (int) (capacity * dimension));
+        documentIds = Arrays.copyOf(documentIds, (int) capacity);
+        tailNorms = Arrays.copyOf(tailNorms, (int) capacity);
+    }
+
+    /**
+     * Нижняя граница результата, общая для всех задач поиска: порог или худший результат
+     * в любой заполненной куче (в итоговом topK не может быть результатов хуже)
+     */
+    private static final class SharedCutoff {
+        private volatile float value;
+
+        SharedCutoff(float threshold) {
+            this.value = threshold;
+        }
+
+        float get() {
+            return value;
+        }
+
+        synchronized void raise(float candidate) {
+            if (candidate > value) {
+                value = candidate;
+            }
+        }
+    }
+
+    private class ScanTask extends RecursiveTask<TopKHeap> {
+        private static final long serialVersionUID = 1L;
+
+        private final float[] query;
+        private final float[] queryTail;
+        private final float queryTailNorm;
+        private final int[] blockOrder;
+        private final float[] bounds;
+        private final int from;
+        private final int to;
+        private final int topK;
+        private final SharedCutoff cutoff;
+        private final int blocksPerTask;
+        private final LongPredicate filter;
+
+        ScanTask(float[] query, float[] queryTail, float queryTailNorm, int[] blockOrder, float[] bounds,
+                 int from, int to, int topK, SharedCutoff cutoff, int blocksPerTask, LongPredicate filter) {
+            this.query = query;
+            this.queryTail = queryTail;
+            this.queryTailNorm = queryTailNorm;
+            this.blockOrder = blockOrder;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+            this.cutoff = cutoff;
+            this.blocksPerTask = blocksPerTask;
+            this.filter = filter;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from > blocksPerTask) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(query, queryTail, queryTailNorm, blockOrder, bounds,
+                        from, middle, topK, cutoff, blocksPerTask, filter);
+                ScanTask right = new ScanTask(query, queryTail, queryTailNorm, blockOrder, bounds,
+                        middle, to, topK, cutoff, blocksPerTask, filter);
+                // текущий поток берет более перспективную половину, чтобы раньше поднять общую границу
+                right.fork();
+                TopKHeap result = left.compute();
+                result.merge(right.join());
+                return result;
+            }
+            TopKHeap heap = new TopKHeap(topK);
+            int dim = dimension;
+            int head = split;
+            int tail = dim - split;
+            for (int position = from; position < to; position++) {
+                float bound = Math.max(cutoff.get(), heap.minScore());
+                if (bounds[position] < bound) {
+                    break; // блоки отсортированы по оценке, остальные тоже не пройдут
+                }
+                int block = blockOrder[position];
+                int end = Math.min(rows, (block + 1) * BLOCK_ROWS);
+                visitedRows.add(end - block * BLOCK_ROWS);
+                for (int row = block * BLOCK_ROWS; row < end; row++) {
+                    if (filter != null && !filter.test(documentIds[row])) {
+                        continue;
+                    }
+                    float partial = kernel.dot(matrix, row * dim, query, head);
+                    if (partial + queryTailNorm * tailNorms[row] + BOUND_EPSILON < bound) {
+                        continue;
+                    }
+                    float similarity = partial + kernel.dot(matrix, row * dim + head, queryTail, tail);
+                    if (similarity >= bound && similarity > heap.minScore()) {
+                        heap.offer(documentIds[row], similarity);
+                        if (heap.isFull()) {
+                            bound = Math.max(bound, heap.minScore());
+                        }
+                    }
+                }
+                if (heap.isFull()) {
+                    cutoff.raise(heap.minScore());
+                }
+            }
+            return heap;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * Приближенный поиск ближайших соседей (HNSW) по косинусному сходству.
+ * Векторы нормализуются при добавлении, поэтому сходство считается как скалярное произведение.
+ * Удаление помечает узел, узел продолжает участвовать в обходе графа, но не попадает в выдачу.
+ * Помеченные узлы убирает compact(): граф строится заново из живых векторов без остановки поиска.
+ */
+public class HnswIndex implements VectorIndex {
+
+    private static class Node {
+        final long documentId;
+        final float[] vector;
+        final int level;
+        final int[][] links;
+        final int[] linkCounts;
+        volatile boolean deleted;
+
+        Node(long documentId, float[] vector, int level, int m) {
+            this.documentId = documentId;
+            this.vector = vector;
+            this.level = level;
+            this.links = new int[level + 1][];
+            this.linkCounts = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                // на нулевом уровне разрешаем вдвое больше связей
+                links[l] = new int[(l == 0 ? m * 2 : m) + 1];
+            }
+        }
+    }
+
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<Long, Integer> nodeByDocumentId = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int dimension = -1;
+    private int deletedCount = 0;
+    // документы, измененные во время compact(); доступ под блокировкой записи
+    private Set<Long> compactionJournal;
+    private final Object compactionLock = new Object();
+
+    public HnswIndex(int m, int efConstruction, int efSearch) {
+        this.m = Math.max(2, m);
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.efSearch = Math.max(1, efSearch);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+    }
+
+    @Override
+    public void add(long documentId, float[] vector) {
+        float[] normalized = VectorMath.normalize(vector);
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = normalized.length;
+            } else if (dimension != normalized.length) {
+                throw new IllegalArgumentException("Размерность вектора " + normalized.length
+                        + " не совпадает с размерностью индекса " + dimension);
+            }
+            Integer previous = nodeByDocumentId.remove(documentId);
+            if (previous != null) {
+                nodes.get(previous).deleted = true;
+                deletedCount++;
+            }
+            if (compactionJournal != null) {
+                compactionJournal.add(documentId);
+            }
+
+            int level = randomLevel();
+            int nodeId = nodes.size();
+            Node node = new Node(documentId, normalized, level, m);
+            nodes.add(node);
+            nodeByDocumentId.put(documentId, nodeId);
+
+            if (entryPoint < 0) {
+                entryPoint = nodeId;
+                maxLevel = level;
+                return;
+            }
+
+            int current = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                current = greedyClosest(normalized, current, l);
+            }
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                PriorityQueue<Candidate> found = searchLayer(normalized, current, efConstruction, l);
+                List<Candidate> neighbours = selectNeighbours(found, m);
+                for (Candidate neighbour : neighbours) {
+                    connect(nodeId, neighbour.node, l);
+                    connect(neighbour.node, nodeId, l);
+                }
+                current = best(found).node;
+            }
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = nodeId;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(long documentId) {
+        lock.writeLock().lock();
+        try {
+            Integer nodeId = nodeByDocumentId.remove(documentId);
+            if (nodeId == null) {
+                return false;
+            }
+            nodes.get(nodeId).deleted = true;
+            deletedCount++;
+            if (compactionJournal != null) {
+                compactionJournal.add(documentId);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<VectorSearchHit> search(float[] query, int topK, double threshold) {
+        return search(query, topK, threshold, efSearch);
+    }
+
+    /**
+     * Фильтр применяется к найденным кандидатам. Если после фильтрации осталось меньше topK,
+     * поиск повторяется с вчетверо большим ef, пока ef не покроет весь граф.
+     */
+    @Override
+    public List<VectorSearchHit> search(float[] query, int topK, double threshold, LongPredicate filter) {
+        if (filter == null) {
+            return search(query, topK, threshold, efSearch);
+        }
+        int ef = Math.max(efSearch, topK);
+        while (true) {
+            List<VectorSearchHit> hits = search(query, topK, threshold, ef, filter);
+            if (hits.size() >= topK || ef >= size()) {
+                return hits;
+            }
+            ef = (int) Math.min((long) ef * 4, Integer.MAX_VALUE);
+        }
+    }
+
+    public List<VectorSearchHit> search(float[] query, int topK, double threshold, int efSearch) {
+        return search(query, topK, threshold, efSearch, null);
+    }
+
+    private List<VectorSearchHit> search(float[] query, int topK, double threshold, int efSearch, LongPredicate filter) {
+        float[] normalized = VectorMath.normalize(query);
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || topK <= 0) {
+                return Collections.emptyList();
+            }
+            if (normalized.length != dimension) {
+                throw new IllegalArgumentException("Размерность запроса " + normalized.length
+                        + " не совпадает с размерностью индекса " + dimension);
+            }
+            int current = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                current = greedyClosest(normalized, current, l);
+            }
+            PriorityQueue<Candidate> found = searchLayer(normalized, current, Math.max(efSearch, topK), 0);
+
+            List<Candidate> sorted = new ArrayList<>(found);
+            sorted.sort((a, b) -> Double.compare(b.similarity, a.similarity));
+            List<VectorSearchHit> hits = new ArrayList<>(topK);
+            for (Candidate candidate : sorted) {
+                Node node = nodes.get(candidate.node);
+                if (node.deleted || candidate.similarity < threshold
+                        || (filter != null && !filter.test(node.documentId))) {
+                    continue;
+                }
+                hits.add(new VectorSearchHit(node.documentId, candidate.similarity));
+                if (hits.size() >= topK) {
+                    break;
+                }
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeByDocumentId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Доля помеченных удаленными узлов среди всех узлов графа
+     */
+    public double getDeletedRatio() {
+        lock.readLock().lock();
+        try {
+            return nodes.isEmpty() ? 0 : (double) deletedCount / nodes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Удаляет помеченные узлы: живые векторы вставляются в новый граф вне блокировки (поиск идет по старому),
+     * изменения, сделанные за это время, переносятся в новый граф, затем графы подменяются под блокировкой записи.
+     * Возвращает число убранных узлов
+     */
+    public int compact() {
+        synchronized (compactionLock) {
+            long[] ids;
+            float[][] vectors;
+            lock.writeLock().lock();
+            try {
+                if (deletedCount == 0) {
+                    return 0;
+                }
+                ids = new long[nodeByDocumentId.size()];
+                vectors = new float[ids.length][];
+                int i = 0;
+                for (Node node : nodes) {
+                    if (!node.deleted) {
+                        ids[i] = node.documentId;
+                        vectors[i++] = node.vector;
+                    }
+                }
+                compactionJournal = new HashSet<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            HnswIndex rebuilt = new HnswIndex(m, efConstruction, efSearch);
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    rebuilt.add(ids[i], vectors[i]);
+                }
+            } catch (RuntimeException e) {
+                lock.writeLock().lock();
+                compactionJournal = null;
+                lock.writeLock().unlock();
+                throw e;
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (Long documentId : compactionJournal) {
+                    Integer nodeId = nodeByDocumentId.get(documentId);
+                    if (nodeId != null) {
+                        rebuilt.add(documentId, nodes.get(nodeId).vector);
+                    } else {
+                        rebuilt.remove(documentId);
+                    }
+                }
+                compactionJournal = null;
+                int removed = nodes.size() - rebuilt.nodes.size();
+                nodes.clear();
+                nodes.addAll(rebuilt.nodes);
+                nodeByDocumentId.clear();
+                nodeByDocumentId.putAll(rebuilt.nodeByDocumentId);
+                entryPoint = rebuilt.entryPoint;
+                maxLevel = rebuilt.maxLevel;
+                deletedCount = rebuilt.deletedCount;
+                return removed;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static class Candidate {
+        final int node;
+        final double similarity;
+
+        Candidate(int node, double similarity) {
+            this.node = node;
+            this.similarity = similarity;
+        }
+    }
+
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        double currentSimilarity = VectorMath.dot(query, nodes.get(current).vector);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Node node = nodes.get(current);
+            if (node.level < level) {
+                break;
+            }
+            int[] links = node.links[level];
+            for (int i = 0; i < node.linkCounts[level]; i++) {
+                double similarity = VectorMath.dot(query, nodes.get(links[i]).vector);
+                if (similarity > currentSimilarity) {
+                    currentSimilarity = similarity;
+                    current = links[i];
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Поиск на одном уровне графа. Возвращает min-кучу из ef лучших кандидатов (в голове - худший)
+     */
+    private PriorityQueue<Candidate> searchLayer(float[] query, int start, int ef, int level) {
+        BitSet visited = new BitSet(nodes.size());
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>((a, b) -> Double.compare(b.similarity, a.similarity));
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(c -> c.similarity));
+
+        Candidate first = new Candidate(start, VectorMath.dot(query, nodes.get(start).vector));
+        visited.set(start);
+        candidates.add(first);
+        results.add(first);
+
+        while (!candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            if (results.size() >= ef && candidate.similarity < results.peek().similarity) {
+                break;
+            }
+            Node node = nodes.get(candidate.node);
+            if (node.level < level) {
+                continue;
+            }
+            int[] links = node.links[level];
+            for (int i = 0; i < node.linkCounts[level]; i++) {
+                int neighbour = links[i];
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                double similarity = VectorMath.dot(query, nodes.get(neighbour).vector);
+                if (results.size() < ef || similarity > results.peek().similarity) {
+                    Candidate next = new Candidate(neighbour, similarity);
+                    candidates.add(next);
+                    results.add(next);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Эвристика выбора соседей: кандидат берется, только если он ближе к новому узлу, чем к уже выбранным соседям
+     */
+    private List<Candidate> selectNeighbours(PriorityQueue<Candidate> found, int count) {
+        List<Candidate> sorted = new ArrayList<>(found);
+        sorted.sort((a, b) -> Double.compare(b.similarity, a.similarity));
+        List<Candidate> selected = new ArrayList<>(count);
+        List<Candidate> skipped = new ArrayList<>();
+        for (Candidate candidate : sorted) {
+            if (selected.size() >= count) {
+                break;
+            }
+            float[] vector = nodes.get(candidate.node).vector;
+            boolean diverse = true;
+            for (Candidate chosen : selected) {
+                if (VectorMath.dot(vector, nodes.get(chosen.node).vector) > candidate.similarity) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        // добиваем список отброшенными кандидатами, чтобы граф не получился слишком разреженным
+        for (int i = 0; i < skipped.size() && selected.size() < count; i++) {
+            selected.add(skipped.get(i));
+        }
+        return selected;
+    }
+
+    private void connect(int from, int to, int level) {
+        Node node = nodes.get(from);
+        int[] links = node.links[level];
+        int maxLinks = links.length - 1;
+        for (int i = 0; i < node.linkCounts[level]; i++) {
+            if (links[i] == to) {
+                return;
+            }
+        }
+        links[node.linkCounts[level]++] = to;
+        if (node.linkCounts[level] <= maxLinks) {
+            return;
+        }
+        // переполнение: оставляем maxLinks лучших связей по эвристике
+        PriorityQueue<Candidate> all = new PriorityQueue<>(Comparator.comparingDouble(c -> c.similarity));
+        for (int i = 0; i < node.linkCounts[level]; i++) {
+            all.add(new Candidate(links[i], VectorMath.dot(node.vector, nodes.get(links[i]).vector)));
+        }
+        List<Candidate> kept = selectNeighbours(all, maxLinks);
+        node.linkCounts[level] = kept.size();
+        for (int i = 0; i < kept.size(); i++) {
+            links[i] = kept.get(i).node;
+        }
+    }
+
+    private static Candidate best(PriorityQueue<Candidate> found) {
+        Candidate best = null;
+        for (Candidate candidate : found) {
+            if (best == null || candidate.similarity > best.similarity) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private int randomLevel() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        return (int) Math.floor(-Math.log(Math.max(r, Double.MIN_VALUE)) * levelMultiplier);
+    }
+}
@@ -0,0 +1,289 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.miacomsoft.olamaeventsourcespringboot.repository.EmbeddingRepository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * IVF индекс (inverted file): k-means делит эмбеддинги на списки, при поиске сканируются только nprobe списков,
+ * центроиды которых ближе всего к запросу. Центроиды хранятся в ivf_centroids, номер списка - в embeddings.ivf_list,
+ * поэтому новый документ просто попадает в список ближайшего центроида. Периодическая проверка
+ * перестраивает кластеры, если списки стали несбалансированными или данных стало намного больше.
+ */
+@Service
+public class IvfIndexService {
+
+    @Value("${rag.vector.ivf.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rag.vector.ivf.lists:0}")
+    private int configuredLists;
+
+    @Value("${rag.vector.ivf.nprobe:8}")
+    private int nprobe;
+
+    @Value("${rag.vector.ivf.min-rows:1000}")
+    private int minRows;
+
+    @Value("${rag.vector.ivf.sample-size:20000}")
+    private int sampleSize;
+
+    @Value("${rag.vector.ivf.iterations:10}")
+    private int iterations;
+
+    @Value("${rag.vector.ivf.max-imbalance:3.0}")
+    private double maxImbalance;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EmbeddingRepository embeddingRepository;
+
+    private volatile float[][] centroids;
+    private volatile boolean ready = false;
+    private final AtomicBoolean training = new AtomicBoolean(false);
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        if (!enabled) {
+            return;
+        }
+        Thread loader = new Thread(() -> {
+            try {
+                float[][] stored = loadCentroids();
+                if (stored.length > 0) {
+                    centroids = stored;
+                    ready = true;
+                    System.out.println("IVF индекс загружен: " + stored.length + " списков");
+                } else {
+                    checkAndRebuild();
+                }
+            } catch (Exception e) {
+                System.err.println("Ошибка загрузки IVF индекса: " + e.getMessage());
+            }
+        }, "ivf-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * Список для нового эмбеддинга (ближайший центроид) или null, если индекс еще не построен
+     */
+    public Integer assign(float[] unitVector) {
+        float[][] current = centroids;
+        if (!enabled || current == null || current.length == 0 || current[0].length != unitVector.length) {
+            return null;
+        }
+        return KMeans.nearest(current, unitVector);
+    }
+
+    /**
+     * Поиск в nprobe ближайших списках. Формат строк как у EmbeddingRepository.findSimilarDocuments
+     */
+    public List<Object[]> findSimilarDocuments(List<Double> queryEmbedding, int topK, double threshold) {
+        float[] query = VectorMath.normalize(VectorMath.toFloatArray(queryEmbedding));
+        float[][] current = centroids;
+        List<Integer> lists = closestLists(current, query, Math.max(1, nprobe));
+        return embeddingRepository.findSimilarDocumentsInLists(VectorMath.toArrayLiteral(query), lists, topK, threshold);
+    }
+
+    /**
+     * Проверка баланса списков: перестроение, если самый большой список больше среднего в max-imbalance раз
+     * или число строк выросло так, что рекомендуемое число списков вдвое больше текущего
+     */
+    @Scheduled(initialDelayString = "${rag.vector.ivf.check-interval-ms:3600000}",
+            fixedDelayString = "${rag.vector.ivf.check-interval-ms:3600000}")
+    public void checkAndRebuild() {
+        if (!enabled || training.get()) {
+            return;
+        }
+        Long rows = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM embeddings WHERE embedding_unit IS NOT NULL", Long.class);
+        if (rows == null || rows < minRows) {
+            return;
+        }
+        float[][] current = centroids;
+        if (current == null || current.length == 0) {
+            rebuild();
+            return;
+        }
+        Double imbalance = jdbcTemplate.queryForObject("""
+                SELECT MAX(cnt)::DOUBLE PRECISION / NULLIF(AVG(cnt), 0)
+                FROM (SELECT COUNT(*) AS cnt FROM embeddings WHERE ivf_list IS NOT NULL GROUP BY ivf_list) t
+                """, Double.class);
+        int wantedLists = listCount(rows);
+        if ((imbalance != null && imbalance > maxImbalance) || wantedLists >= current.length * 2) {
+            System.out.println("IVF индекс перестраивается: дисбаланс " + imbalance + ", списков "
+                    + current.length + " -> " + wantedLists);
+            rebuild();
+        }
+    }
+
+    /**
+     * Обучает k-means на выборке, сохраняет центроиды и переназначает списки всем строкам в одной транзакции:
+     * при сбое остаются прежние центроиды и списки. Пока идет переназначение, поиск идет мимо IVF (isReady = false).
+     */
+    public void rebuild() {
+        if (!training.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            Long rows = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM embeddings WHERE embedding_unit IS NOT NULL", Long.class);
+            if (rows == null || rows == 0) {
+                return;
+            }
+            List<float[]> sample = new ArrayList<>();
+            jdbcTemplate.query("SELECT id, " + VectorIndexService.VECTOR_COLUMNS
+                    + " FROM embeddings WHERE embedding_unit IS NOT NULL ORDER BY random() LIMIT ?", rs -> {
+                sample.add(VectorMath.normalize(VectorIndexService.readVector(rs)));
+            }, sampleSize);
+            int k = Math.min(listCount(rows), sample.size());
+            float[][] trained = KMeans.train(sample, k, iterations);
+
+            ready = false;
+            try {
+                replaceCentroids(trained);
+                centroids = trained;
+            } finally {
+                ready = centroids != null && centroids.length > 0;
+            }
+            System.out.println("IVF индекс построен: " + trained.length + " списков по " + rows + " строкам за "
+                    + (System.currentTimeMillis() - start) + " мс");
+        } catch (Exception e) {
+            System.err.println("Ошибка построения IVF индекса: " + e.getMessage());
+        } finally {
+            training.set(false);
+        }
+    }
+
+    /**
+     * После смены модели эмбеддингов старые центроиды (ivf_centroids очищается при переключении) не подходят:
+     * поиск идет мимо IVF, пока k-means не обучится на новых векторах
+     */
+    /**
+     * Поиск идет мимо IVF до onModelSwitched: вызывается перед фиксацией смены модели эмбеддингов
+     */
+    public void suspend() {
+        ready = false;
+    }
+
+    public void onModelSwitched() {
+        if (!enabled) {
+            return;
+        }
+        ready = false;
+        centroids = null;
+        Thread trainer = new Thread(this::rebuild, "ivf-index-retrain");
+        trainer.setDaemon(true);
+        trainer.start();
+    }
+
+    private int listCount(long rows) {
+        if (configuredLists > 0) {
+            return configuredLists;
+        }
+        return (int) Math.max(1, Math.round(Math.sqrt(rows)));
+    }
+
+    private float[][] loadCentroids() {
+        List<float[]> list = jdbcTemplate.query("SELECT centroid FROM ivf_centroids ORDER BY list_id", (rs, rowNum) -> {
+            Object[] values = (Object[]) rs.getArray(1).getArray();
+            float[] centroid = new float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                centroid[i] = ((Number) values[i]).floatValue();
+            }
+            return centroid;
+        });
+        return list.toArray(new float[0][]);
+    }
+
+    /**
+     * Замена центроидов (DELETE + INSERT) и переназначение списков всем строкам одной транзакцией:
+     * другие сеансы видят либо старые центроиды со старыми списками, либо новые с новыми
+     */
+    private void replaceCentroids(float[][] trained) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) conn -> {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement delete = conn.prepareStatement("DELETE FROM ivf_centroids")) {
+                    delete.executeUpdate();
+                }
+                try (PreparedStatement insert = conn.prepareStatement(
+                        "INSERT INTO ivf_centroids (list_id, centroid) VALUES (?, ?::real[])")) {
+                    for (int i = 0; i < trained.length; i++) {
+                        insert.setInt(1, i);
+                        insert.setString(2, VectorMath.toArrayLiteral(trained[i]));
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+                reassignAll(conn, trained);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    private static void reassignAll(Connection conn, float[][] trained) throws SQLException {
+        // курсор PostgreSQL работает только внутри транзакции и при заданном fetchSize
+        try (PreparedStatement select = conn.prepareStatement("SELECT id, " + VectorIndexService.VECTOR_COLUMNS
+                + " FROM embeddings WHERE embedding_unit IS NOT NULL");
+             PreparedStatement update = conn.prepareStatement("UPDATE embeddings SET ivf_list = ? WHERE id = ?")) {
+            select.setFetchSize(1000);
+            int pending = 0;
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    float[] vector = VectorMath.normalize(VectorIndexService.readVector(rs));
+                    if (vector.length != trained[0].length) {
+                        continue;
+                    }
+                    update.setInt(1, KMeans.nearest(trained, vector));
+                    update.setLong(2, rs.getLong(1));
+                    update.addBatch();
+                    if (++pending >= 1000) {
+                        update.executeBatch();
+                        pending = 0;
+                    }
+                }
+            }
+            if (pending > 0) {
+                update.executeBatch();
+            }
+        }
+    }
+
+    static List<Integer> closestLists(float[][] centroids, float[] query, int count) {
+        Integer[] order = new Integer[centroids.length];
+        double[] similarity = new double[centroids.length];
+        for (int c = 0; c < centroids.length; c++) {
+            order[c] = c;
+            similarity[c] = VectorMath.dot(centroids[c], query);
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(similarity[b], similarity[a]));
+        return new ArrayList<>(Arrays.asList(order).subList(0, Math.min(count, order.length)));
+    }
+}
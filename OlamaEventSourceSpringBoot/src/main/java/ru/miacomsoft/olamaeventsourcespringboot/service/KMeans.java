@@ -0,0 +1,85 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Кластеризация нормализованных векторов для IVF индекса и упорядочивания строк точного индекса
+ */
+final class KMeans {
+
+    private KMeans() {
+    }
+
+    /**
+     * Сферический k-means: инициализация k-means++, затем итерации Ллойда с нормализацией центроидов
+     */
+    static float[][] train(List<float[]> sample, int k, int iterations) {
+        int n = sample.size();
+        int dimension = sample.get(0).length;
+        Random random = ThreadLocalRandom.current();
+        float[][] result = new float[k][];
+
+        result[0] = sample.get(random.nextInt(n)).clone();
+        double[] distances = new double[n];
+        Arrays.fill(distances, Double.MAX_VALUE);
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                double d = Math.max(0, 1 - VectorMath.dot(sample.get(i), result[c - 1]));
+                distances[i] = Math.min(distances[i], d * d);
+                total += distances[i];
+            }
+            double target = random.nextDouble() * total;
+            int chosen = n - 1;
+            for (int i = 0; i < n; i++) {
+                target -= distances[i];
+                if (target <= 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+            result[c] = sample.get(chosen).clone();
+        }
+
+        int[] assignment = new int[n];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            float[][] current = result;
+            IntStream.range(0, n).parallel().forEach(i -> assignment[i] = nearest(current, sample.get(i)));
+
+            float[][] sums = new float[k][dimension];
+            int[] counts = new int[k];
+            for (int i = 0; i < n; i++) {
+                float[] vector = sample.get(i);
+                float[] sum = sums[assignment[i]];
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] += vector[d];
+                }
+                counts[assignment[i]]++;
+            }
+            float[][] next = new float[k][];
+            for (int c = 0; c < k; c++) {
+                // пустой список получает случайную точку выборки
+                next[c] = counts[c] > 0 ? VectorMath.normalize(sums[c]) : sample.get(random.nextInt(n)).clone();
+            }
+            result = next;
+        }
+        return result;
+    }
+
+    static int nearest(float[][] centroids, float[] vector) {
+        int best = 0;
+        double bestSimilarity = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            double similarity = VectorMath.dot(centroids[c], vector);
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                best = c;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,417 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * Векторное хранилище на диске: набор сегментов с нормализованными векторами float32, отображенных в память.
+ * Векторы живут вне кучи JVM и не перечитываются из базы данных при перезапуске.
+ * Новые строки дописываются в последний сегмент, удаление отмечается в журнале сегмента,
+ * сегменты с большой долей удаленных строк сливаются в новый сегмент методом merge.
+ * add и remove сбрасывают запись на диск до возврата; пакетная загрузка (addDeferred) - одним flush.
+ * Файл sync.state хранит время последней сверки с базой данных (setSyncedAt).
+ */
+public class MappedVectorStore implements VectorIndex {
+
+    private static final int MIN_ROWS_PER_TASK = 2048;
+    private static final String SYNC_STATE = "sync.state";
+
+    private final Path directory;
+    private final int segmentCapacity;
+    private final ForkJoinPool pool;
+    private final VectorKernel kernel = VectorKernel.INSTANCE;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, VectorSegment> segments = new TreeMap<>();
+    // ID документа -> (номер сегмента << 32) | номер строки
+    private final Map<Long, Long> locations = new HashMap<>();
+    private int dimension = -1;
+
+    public MappedVectorStore(Path directory, int segmentCapacity, ForkJoinPool pool) throws IOException {
+        this.directory = directory;
+        this.segmentCapacity = Math.max(1024, segmentCapacity);
+        this.pool = pool;
+        Files.createDirectories(directory);
+        openSegments();
+    }
+
+    private void openSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*" + VectorSegment.EXTENSION)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(Comparator.naturalOrder());
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            int number = Integer.parseInt(name.substring("segment-".length(), name.length() - VectorSegment.EXTENSION.length()));
+            VectorSegment segment = VectorSegment.open(file, number);
+            if (dimension < 0) {
+                dimension = segment.getDimension();
+            } else if (dimension != segment.getDimension()) {
+                throw new IOException("Размерность сегмента " + file + " не совпадает с размерностью хранилища " + dimension);
+            }
+            segments.put(number, segment);
+            for (int row = 0; row < segment.getCount(); row++) {
+                if (segment.isDeleted(row)) {
+                    continue;
+                }
+                // сегменты читаются по возрастанию номера, поэтому более поздняя строка документа заменяет раннюю
+                Long previous = locations.put(segment.documentId(row), location(number, row));
+                if (previous != null) {
+                    segmentOf(previous).delete(rowOf(previous), true);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void add(long documentId, float[] vector) {
+        add(documentId, vector, true);
+    }
+
+    /**
+     * Добавление без сброса на диск после каждой строки, для загрузки из базы; после пакета вызывается flush
+     */
+    public void addDeferred(long documentId, float[] vector) {
+        add(documentId, vector, false);
+    }
+
+    private void add(long documentId, float[] vector, boolean durable) {
+        float[] normalized = VectorMath.normalize(vector);
+        lock.writeLock().lock();
+        try {
+            if (dimension < 0) {
+                dimension = normalized.length;
+            } else if (dimension != normalized.length) {
+                throw new IllegalArgumentException("Размерность вектора " + normalized.length
+                        + " не совпадает с размерностью хранилища " + dimension);
+            }
+            Long previous = locations.remove(documentId);
+            if (previous != null) {
+                segmentOf(previous).delete(rowOf(previous), durable);
+            }
+            VectorSegment segment = activeSegment();
+            int row = segment.append(documentId, normalized, durable);
+            locations.put(documentId, location(segment.getNumber(), row));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(long documentId) {
+        lock.writeLock().lock();
+        try {
+            Long previous = locations.remove(documentId);
+            if (previous == null) {
+                return false;
+            }
+            segmentOf(previous).delete(rowOf(previous), true);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<VectorSearchHit> search(float[] query, int topK, double threshold, LongPredicate filter) {
+        float[] normalized = VectorMath.normalize(query);
+        lock.readLock().lock();
+        try {
+            if (locations.isEmpty() || topK <= 0) {
+                return Collections.emptyList();
+            }
+            if (normalized.length != dimension) {
+                throw new IllegalArgumentException("Размерность запроса " + normalized.length
+                        + " не совпадает с размерностью хранилища " + dimension);
+            }
+            int rows = 0;
+            for (VectorSegment segment : segments.values()) {
+                rows += segment.getCount();
+            }
+            int rowsPerTask = Math.max(MIN_ROWS_PER_TASK, rows / (pool.getParallelism() * 4 + 1));
+            List<ScanTask> tasks = new ArrayList<>();
+            for (VectorSegment segment : segments.values()) {
+                tasks.add(new ScanTask(segment, normalized, 0, segment.getCount(), topK, (float) threshold, rowsPerTask, filter));
+            }
+            TopKHeap heap = new TopKHeap(topK);
+            if (rows <= MIN_ROWS_PER_TASK) {
+                for (ScanTask task : tasks) {
+                    heap.merge(task.compute());
+                }
+            } else {
+                for (ScanTask task : tasks) {
+                    pool.execute(task);
+                }
+                for (ScanTask task : tasks) {
+                    heap.merge(task.join());
+                }
+            }
+            return heap.toSortedHits();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return locations.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Копия множества ID документов в хранилище, используется для сверки с таблицей embeddings
+     */
+    public Set<Long> documentIds() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(locations.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Сброс на диск всех сегментов и журналов удаления (после addDeferred)
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            for (VectorSegment segment : segments.values()) {
+                segment.force();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Время (мс, часы базы данных) последней завершенной сверки с таблицей embeddings или -1, если сверки не было
+     */
+    public long getSyncedAt() {
+        Path file = directory.resolve(SYNC_STATE);
+        try {
+            return Files.exists(file) ? Long.parseLong(Files.readString(file, StandardCharsets.UTF_8).trim()) : -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Отметка завершенной сверки; пишется через временный файл, чтобы оборванная запись не оставила мусор
+     */
+    public void setSyncedAt(long millis) {
+        Path file = directory.resolve(SYNC_STATE);
+        Path temp = directory.resolve(SYNC_STATE + ".tmp");
+        try {
+            Files.writeString(temp, String.valueOf(millis), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Сливает заполненные сегменты, где доля удаленных строк не меньше deletedRatio, в один новый сегмент.
+     * Строки незаполненного последнего сегмента переносятся туда же, а новый сегмент получает свободное место
+     * и становится последним: иначе прежний последний сегмент больше не дописывался бы и не сливался.
+     * Возвращает число слитых сегментов.
+     */
+    public int merge(double deletedRatio) {
+        lock.writeLock().lock();
+        try {
+            List<VectorSegment> candidates = new ArrayList<>();
+            VectorSegment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (active != null && active.isFull()) {
+                active = null;
+            }
+            int live = active != null ? active.getLiveCount() : 0;
+            int maxRows = maxSegmentRows();
+            for (VectorSegment segment : segments.values()) {
+                if (segment.isFull() && segment.getDeletedRatio() >= deletedRatio
+                        && live + segment.getLiveCount() <= maxRows) {
+                    candidates.add(segment);
+                    live += segment.getLiveCount();
+                }
+            }
+            if (candidates.isEmpty()) {
+                return 0;
+            }
+            if (active != null) {
+                candidates.add(active);
+            }
+            VectorSegment merged = null;
+            if (live > 0) {
+                merged = VectorSegment.create(directory, segments.lastKey() + 1, dimension,
+                        Math.min(maxRows, Math.max(live, segmentCapacity)));
+                for (VectorSegment segment : candidates) {
+                    for (int row = 0; row < segment.getCount(); row++) {
+                        if (segment.isDeleted(row)) {
+                            continue;
+                        }
+                        int newRow = merged.appendRaw(segment, row);
+                        locations.put(segment.documentId(row), location(merged.getNumber(), newRow));
+                    }
+                }
+                merged.force();
+                segments.put(merged.getNumber(), merged);
+            }
+            for (VectorSegment segment : candidates) {
+                segments.remove(segment.getNumber());
+                try {
+                    segment.closeAndDelete();
+                } catch (IOException e) {
+                    System.err.println("Не удалось удалить сегмент " + segment.getNumber() + ": " + e.getMessage());
+                }
+            }
+            System.out.println("Слияние сегментов векторного хранилища: " + candidates.size() + " -> "
+                    + (merged != null ? 1 : 0) + ", строк: " + live);
+            return candidates.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Удаляет все сегменты, например при смене размерности эмбеддингов
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (VectorSegment segment : segments.values()) {
+                segment.closeAndDelete();
+            }
+            segments.clear();
+            locations.clear();
+            dimension = -1;
+            Files.deleteIfExists(directory.resolve(SYNC_STATE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (VectorSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            locations.clear();
+        } catch (IOException e) {
+            System.err.println("Ошибка закрытия векторного хранилища: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private VectorSegment activeSegment() throws IOException {
+        if (!segments.isEmpty()) {
+            VectorSegment last = segments.lastEntry().getValue();
+            if (!last.isFull()) {
+                return last;
+            }
+        }
+        VectorSegment segment = VectorSegment.create(directory, segments.isEmpty() ? 1 : segments.lastKey() + 1,
+                dimension, Math.min(segmentCapacity, maxSegmentRows()));
+        segments.put(segment.getNumber(), segment);
+        return segment;
+    }
+
+    /**
+     * Смещения строк внутри сегмента - int, поэтому файл сегмента не должен превышать 2 ГБ
+     */
+    private int maxSegmentRows() {
+        return (Integer.MAX_VALUE - 64) / (8 + dimension * 4);
+    }
+
+    private VectorSegment segmentOf(long location) {
+        return segments.get((int) (location >>> 32));
+    }
+
+    private static int rowOf(long location) {
+        return (int) location;
+    }
+
+    private static long location(int segment, int row) {
+        return ((long) segment << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    private class ScanTask extends RecursiveTask<TopKHeap> {
+        private static final long serialVersionUID = 1L;
+
+        private final VectorSegment segment;
+        private final float[] query;
+        private final int from;
+        private final int to;
+        private final int topK;
+        private final float threshold;
+        private final int rowsPerTask;
+        private final LongPredicate filter;
+
+        ScanTask(VectorSegment segment, float[] query, int from, int to, int topK, float threshold, int rowsPerTask,
+                 LongPredicate filter) {
+            this.segment = segment;
+            this.query = query;
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+            this.threshold = threshold;
+            this.rowsPerTask = rowsPerTask;
+            this.filter = filter;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from > rowsPerTask) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(segment, query, from, middle, topK, threshold, rowsPerTask, filter);
+                ScanTask right = new ScanTask(segment, query, middle, to, topK, threshold, rowsPerTask, filter);
+                left.fork();
+                TopKHeap result = right.compute();
+                result.merge(left.join());
+                return result;
+            }
+            TopKHeap heap = new TopKHeap(topK);
+            for (int row = from; row < to; row++) {
+                if (segment.isDeleted(row) || (filter != null && !filter.test(segment.documentId(row)))) {
+                    continue;
+                }
+                float similarity = segment.dot(kernel, row, query);
+                if (similarity >= threshold && similarity > heap.minScore()) {
+                    heap.offer(segment.documentId(row), similarity);
+                }
+            }
+            return heap;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * MinHash сигнатура текста и ключи LSH корзин для поиска почти-дубликатов.
+ * Текст (в нижнем регистре, пробелы схлопнуты) разбивается на символьные шинглы длины shingleSize,
+ * для каждой из bands * rows хеш-функций берется минимум по шинглам. Вероятность совпадения одной позиции
+ * сигнатуры равна коэффициенту Жаккара множеств шинглов. Сигнатура режется на bands полос по rows значений,
+ * ключ корзины - хеш полосы: документы с Жаккаром выше ~(1/bands)^(1/rows) почти наверняка делят хотя бы одну корзину.
+ */
+public final class MinHashLsh {
+
+    private final int bands;
+    private final int rows;
+    private final int shingleSize;
+    private final long[] seeds;
+
+    public MinHashLsh(int bands, int rows, int shingleSize) {
+        this.bands = Math.max(1, bands);
+        this.rows = Math.max(1, rows);
+        this.shingleSize = Math.max(1, shingleSize);
+        this.seeds = new long[this.bands * this.rows];
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < seeds.length; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            seeds[i] = seed;
+        }
+    }
+
+    /**
+     * Параметры из настроек rag.dedup.minhash.bands / rows / shingle-size
+     */
+    public static MinHashLsh fromProperties(Properties props) {
+        return new MinHashLsh(
+                Integer.parseInt(props.getProperty("rag.dedup.minhash.bands", "32").trim()),
+                Integer.parseInt(props.getProperty("rag.dedup.minhash.rows", "4").trim()),
+                Integer.parseInt(props.getProperty("rag.dedup.minhash.shingle-size", "5").trim()));
+    }
+
+    public int[] signature(String text) {
+        String normalized = text == null ? "" : text.toLowerCase().replaceAll("\\s+", " ").trim();
+        int[] signature = new int[seeds.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int shingles = Math.max(1, normalized.length() - shingleSize + 1);
+        for (int start = 0; start < shingles; start++) {
+            long shingle = hash(normalized, start, Math.min(normalized.length(), start + shingleSize));
+            for (int i = 0; i < seeds.length; i++) {
+                // младшие 31 бит, чтобы минимум сравнивался как неотрицательное число
+                int value = (int) (mix(shingle ^ seeds[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Ключи корзин: по одному на полосу, номер полосы входит в хеш, чтобы полосы не пересекались
+     */
+    public long[] bandKeys(int[] signature) {
+        long[] keys = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long key = mix(band + 1L);
+            for (int row = 0; row < rows; row++) {
+                key = mix(key ^ signature[band * rows + row]);
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * Оценка коэффициента Жаккара по доле совпавших позиций сигнатур
+     */
+    public static double similarity(int[] a, int[] b) {
+        int length = Math.min(a.length, b.length);
+        if (length == 0) {
+            return 0;
+        }
+        int equal = 0;
+        for (int i = 0; i < length; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / length;
+    }
+
+    public static byte[] toBytes(int[] signature) {
+        ByteBuffer buffer = ByteBuffer.allocate(signature.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int value : signature) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    public static int[] fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int[] signature = new int[bytes.length / 4];
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = buffer.getInt();
+        }
+        return signature;
+    }
+
+    public int getLength() {
+        return seeds.length;
+    }
+
+    /**
+     * Параметры, от которых зависят сигнатура и ключи корзин (documents.minhash_params): при их смене
+     * сохраненные сигнатуры пересчитываются, даже если длина сигнатуры не изменилась
+     */
+    public String getParams() {
+        return "bands=" + bands + ",rows=" + rows + ",shingle=" + shingleSize;
+    }
+
+    private static long hash(String text, int from, int to) {
+        long h = 0xCBF29CE484222325L; // FNV-1a
+        for (int i = from; i < to; i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    // финализатор splitmix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
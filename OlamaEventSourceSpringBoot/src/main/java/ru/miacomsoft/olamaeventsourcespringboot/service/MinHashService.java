@@ -0,0 +1,187 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Поиск почти-дубликатов по MinHash/LSH (rag.dedup.mode=minhash). Сигнатура документа хранится в documents.minhash,
+ * корзины - в document_lsh_bands и в памяти. Проверка дубликата при вставке - bands поисков в хеш-таблице,
+ * векторное сходство считается только для документов из общих корзин.
+ * При старте в фоне пересчитываются сигнатуры документов без сигнатуры или с другими параметрами,
+ * до окончания загрузки корзин дубликаты проверяются по векторам.
+ */
+@Service
+public class MinHashService {
+
+    @Value("${rag.dedup.mode:vector}")
+    private String dedupMode;
+
+    @Value("${rag.dedup.minhash.bands:32}")
+    private int bands;
+
+    @Value("${rag.dedup.minhash.rows:4}")
+    private int rows;
+
+    @Value("${rag.dedup.minhash.shingle-size:5}")
+    private int shingleSize;
+
+    @Value("${rag.dedup.minhash.backfill-batch:500}")
+    private int backfillBatch;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private MinHashLsh lsh;
+    private volatile boolean ready = false;
+    // ключ корзины -> ID документов; ID документа -> его ключи корзин (для удаления)
+    private final Map<Long, long[]> documentsByBand = new HashMap<>();
+    private final Map<Long, long[]> bandsByDocument = new HashMap<>();
+
+    public boolean isEnabled() {
+        return "minhash".equalsIgnoreCase(dedupMode);
+    }
+
+    public boolean isReady() {
+        return isEnabled() && ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        if (!isEnabled()) {
+            return;
+        }
+        Integer columns = jdbcTemplate.queryForObject("""
+                SELECT count(*) FROM information_schema.columns
+                WHERE table_name = 'documents' AND column_name IN ('minhash', 'minhash_params')
+                """, Integer.class);
+        if (columns == null || columns < 2) {
+            System.err.println("Хранение MinHash не создано, дубликаты проверяются по векторам");
+            return;
+        }
+        MinHashLsh minHash = new MinHashLsh(bands, rows, shingleSize);
+        lsh = minHash;
+        Thread loader = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                jdbcTemplate.execute((ConnectionCallback<Void>) conn -> {
+                    SchemaMigrations.backfillMinHash(conn, minHash, backfillBatch);
+                    return null;
+                });
+                Map<Long, List<Long>> keysByDocument = new HashMap<>();
+                jdbcTemplate.query("SELECT document_id, band_key FROM document_lsh_bands", rs -> {
+                    keysByDocument.computeIfAbsent(rs.getLong(1), id -> new ArrayList<>()).add(rs.getLong(2));
+                });
+                synchronized (this) {
+                    for (Map.Entry<Long, List<Long>> entry : keysByDocument.entrySet()) {
+                        long[] keys = entry.getValue().stream().mapToLong(Long::longValue).toArray();
+                        addToBuckets(entry.getKey(), keys);
+                    }
+                }
+                ready = true;
+                System.out.println("LSH корзины загружены: " + keysByDocument.size() + " документов, "
+                        + documentsByBand.size() + " корзин за " + (System.currentTimeMillis() - start) + " мс");
+            } catch (Exception e) {
+                System.err.println("Ошибка загрузки LSH корзин, дубликаты проверяются по векторам: " + e.getMessage());
+            }
+        }, "minhash-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Сигнатура текста или null, если проверка по MinHash выключена
+     */
+    public int[] signature(String content) {
+        return isEnabled() && lsh != null ? lsh.signature(content) : null;
+    }
+
+    /**
+     * ID документов, у которых есть хотя бы одна общая корзина с сигнатурой
+     */
+    public synchronized Set<Long> candidates(int[] signature) {
+        Set<Long> candidates = new HashSet<>();
+        for (long key : lsh.bandKeys(signature)) {
+            long[] documents = documentsByBand.get(key);
+            if (documents != null) {
+                for (long documentId : documents) {
+                    candidates.add(documentId);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Сохраняет сигнатуру и корзины нового документа в текущей транзакции, в памяти - после фиксации
+     */
+    public void onDocumentAdded(long documentId, int[] signature) {
+        if (signature == null) {
+            return;
+        }
+        long[] keys = lsh.bandKeys(signature);
+        jdbcTemplate.update("UPDATE documents SET minhash = ?, minhash_params = ? WHERE id = ?",
+                MinHashLsh.toBytes(signature), lsh.getParams(), documentId);
+        List<Object[]> batch = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            batch.add(new Object[]{key, documentId});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO document_lsh_bands (band_key, document_id) VALUES (?, ?) ON CONFLICT DO NOTHING", batch);
+        VectorIndexService.afterCommit(() -> {
+            synchronized (this) {
+                addToBuckets(documentId, keys);
+            }
+        });
+    }
+
+    /**
+     * Строки document_lsh_bands удаляются каскадно вместе с документом, здесь - только память
+     */
+    public void onDocumentDeleted(long documentId) {
+        if (!isEnabled()) {
+            return;
+        }
+        VectorIndexService.afterCommit(() -> {
+            synchronized (this) {
+                long[] keys = bandsByDocument.remove(documentId);
+                if (keys == null) {
+                    return;
+                }
+                for (long key : keys) {
+                    long[] documents = documentsByBand.get(key);
+                    if (documents == null) {
+                        continue;
+                    }
+                    long[] rest = Arrays.stream(documents).filter(id -> id != documentId).toArray();
+                    if (rest.length == 0) {
+                        documentsByBand.remove(key);
+                    } else {
+                        documentsByBand.put(key, rest);
+                    }
+                }
+            }
+        });
+    }
+
+    private void addToBuckets(long documentId, long[] keys) {
+        if (bandsByDocument.putIfAbsent(documentId, keys) != null) {
+            return;
+        }
+        for (long key : keys) {
+            long[] documents = documentsByBand.get(key);
+            if (documents == null) {
+                documentsByBand.put(key, new long[]{documentId});
+            } else {
+                long[] extended = Arrays.copyOf(documents, documents.length + 1);
+                extended[documents.length] = documentId;
+                documentsByBand.put(key, extended);
+            }
+        }
+    }
+}
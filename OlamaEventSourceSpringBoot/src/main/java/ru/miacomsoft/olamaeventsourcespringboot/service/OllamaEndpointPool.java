@@ -0,0 +1,371 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Пул серверов Ollama (rag.ollama.endpoints=url[modelA|modelB],url2). Запрос к модели уходит на сервер
+ * с наименьшим числом незавершенных запросов к этой модели; если у серверов указаны модели, сначала выбираются
+ * серверы, на которых модель загружена, сервер без списка принимает любые модели.
+ * Каждые health.interval-ms серверы проверяются GET /api/tags: после eject-after неудачных проверок (или если
+ * транспорт сам считает сервер недоступным) сервер исключается, после readmit-after удачных - возвращается
+ * с плавным ростом доли запросов в течение slow-start-ms.
+ */
+public final class OllamaEndpointPool implements AutoCloseable {
+
+    public static final class Endpoint {
+        private final String url;
+        private final Set<String> models;
+        private final OllamaTransport transport;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Map<String, AtomicInteger> outstandingByModel = new ConcurrentHashMap<>();
+        private volatile boolean ejected = false;
+        private volatile long admittedAt = 0;
+        private int probeFailures = 0;
+        private int probeSuccesses = 0;
+
+        private Endpoint(String url, Set<String> models, OllamaTransport transport) {
+            this.url = url;
+            this.models = models;
+            this.transport = transport;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public OllamaTransport getTransport() {
+            return transport;
+        }
+
+        boolean isAdmitted() {
+            return !ejected && transport.isHealthy();
+        }
+
+        boolean serves(String model) {
+            return model != null && models.contains(model);
+        }
+
+        int outstandingFor(String model) {
+            AtomicInteger counter = model != null ? outstandingByModel.get(model) : null;
+            return counter != null ? counter.get() : outstanding.get();
+        }
+
+        /**
+         * Доля запросов после возвращения в пул: от 10% до 100% за slowStartMs
+         */
+        double weight(long slowStartMs) {
+            long since = System.currentTimeMillis() - admittedAt;
+            if (slowStartMs <= 0 || since >= slowStartMs) {
+                return 1.0;
+            }
+            return Math.max(0.1, (double) since / slowStartMs);
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final long healthIntervalMs;
+    private final long healthTimeoutMs;
+    private final int ejectAfter;
+    private final int readmitAfter;
+    private final long slowStartMs;
+    private final ExecutorService executor;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private ScheduledExecutorService healthChecker;
+
+    public OllamaEndpointPool(String endpointsSpec, Function<String, OllamaTransport> transportFactory,
+                              long healthIntervalMs, long healthTimeoutMs, int ejectAfter, int readmitAfter, long slowStartMs) {
+        List<Endpoint> parsed = new ArrayList<>();
+        for (String item : endpointsSpec.split(",")) {
+            String spec = item.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            Set<String> models = new HashSet<>();
+            int bracket = spec.indexOf('[');
+            String url = spec;
+            if (bracket >= 0 && spec.endsWith("]")) {
+                url = spec.substring(0, bracket).trim();
+                for (String model : spec.substring(bracket + 1, spec.length() - 1).split("\\|")) {
+                    if (!model.isBlank()) {
+                        models.add(model.trim());
+                    }
+                }
+            }
+            parsed.add(new Endpoint(url, models, transportFactory.apply(url)));
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("Не задано ни одного сервера Ollama: " + endpointsSpec);
+        }
+        this.endpoints = Collections.unmodifiableList(parsed);
+        this.healthIntervalMs = healthIntervalMs;
+        this.healthTimeoutMs = healthTimeoutMs;
+        this.ejectAfter = Math.max(1, ejectAfter);
+        this.readmitAfter = Math.max(1, readmitAfter);
+        this.slowStartMs = slowStartMs;
+        this.executor = OllamaTransport.newExecutor("ollama-pool");
+    }
+
+    /**
+     * Пул для консольного клиента: rag.ollama.endpoints или один сервер defaultUrl
+     */
+    public static OllamaEndpointPool fromProperties(Properties properties, String defaultUrl) {
+        String spec = properties.getProperty("rag.ollama.endpoints", "").trim();
+        OllamaTransport.configureConnectionPool(
+                Integer.parseInt(properties.getProperty("rag.ollama.transport.max-connections", "16").trim())
+                        + Integer.parseInt(properties.getProperty("rag.ollama.transport.max-streams", "8").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.transport.keep-alive-seconds", "300").trim()));
+        OllamaEndpointPool pool = new OllamaEndpointPool(spec.isEmpty() ? defaultUrl : spec,
+                url -> OllamaTransport.fromProperties(properties, url),
+                Long.parseLong(properties.getProperty("rag.ollama.health.interval-ms", "10000").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.health.timeout-ms", "2000").trim()),
+                Integer.parseInt(properties.getProperty("rag.ollama.health.eject-after", "2").trim()),
+                Integer.parseInt(properties.getProperty("rag.ollama.health.readmit-after", "2").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.health.slow-start-ms", "30000").trim()));
+        pool.start();
+        return pool;
+    }
+
+    public void start() {
+        if (healthIntervalMs <= 0 || healthChecker != null) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ollama-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, healthIntervalMs, healthIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            boolean ok;
+            try {
+                ok = endpoint.transport.probe("/api/tags", healthTimeoutMs);
+            } catch (Exception e) {
+                ok = false;
+            }
+            synchronized (endpoint) {
+                if (ok) {
+                    endpoint.probeFailures = 0;
+                    endpoint.probeSuccesses++;
+                    if (endpoint.ejected && endpoint.probeSuccesses >= readmitAfter) {
+                        endpoint.ejected = false;
+                        endpoint.admittedAt = System.currentTimeMillis();
+                        System.out.println("Сервер Ollama " + endpoint.url + " возвращен в пул");
+                    }
+                } else {
+                    endpoint.probeSuccesses = 0;
+                    endpoint.probeFailures++;
+                    if (!endpoint.ejected && (endpoint.probeFailures >= ejectAfter || !endpoint.transport.isHealthy())) {
+                        endpoint.ejected = true;
+                        System.err.println("Сервер Ollama " + endpoint.url + " исключен из пула: "
+                                + endpoint.probeFailures + " неудачных проверок");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Сервер для запроса к модели model (null - любой): среди допущенных серверов с этой моделью,
+     * затем без списка моделей, затем любых допущенных; если допущенных нет - среди всех
+     */
+    Endpoint choose(String model) {
+        return choose(model, null);
+    }
+
+    /**
+     * Второй сервер для дублирующего запроса: только допущенные, кроме exclude; null, если таких нет
+     */
+    Endpoint choose(String model, Endpoint exclude) {
+        List<Endpoint> admitted = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAdmitted() && endpoint != exclude) {
+                admitted.add(endpoint);
+            }
+        }
+        if (exclude != null && admitted.isEmpty()) {
+            return null;
+        }
+        List<Endpoint> candidates = filter(admitted, endpoint -> endpoint.serves(model));
+        if (candidates.isEmpty()) {
+            candidates = filter(admitted, endpoint -> endpoint.models.isEmpty());
+        }
+        if (candidates.isEmpty()) {
+            candidates = admitted.isEmpty() ? endpoints : admitted;
+        }
+        int offset = Math.floorMod(roundRobin.getAndIncrement(), candidates.size());
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            Endpoint endpoint = candidates.get((offset + i) % candidates.size());
+            double score = (endpoint.outstandingFor(model) + 1) / endpoint.weight(slowStartMs)
+                    + endpoint.outstanding.get() * 1e-3;
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static List<Endpoint> filter(List<Endpoint> endpoints, java.util.function.Predicate<Endpoint> predicate) {
+        List<Endpoint> result = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (predicate.test(endpoint)) {
+                result.add(endpoint);
+            }
+        }
+        return result;
+    }
+
+    public String get(String path) throws IOException {
+        return send(null, "GET", path, null);
+    }
+
+    public String post(String model, String path, String body) throws IOException {
+        return send(model, "POST", path, body);
+    }
+
+    public String send(String model, String method, String path, String body) throws IOException {
+        return send(choose(model), model, method, path, body);
+    }
+
+    String send(Endpoint endpoint, String model, String method, String path, String body) throws IOException {
+        Runnable release = acquire(endpoint, model);
+        try {
+            return endpoint.transport.send(method, path, body);
+        } finally {
+            release.run();
+        }
+    }
+
+    /**
+     * Поток ответа сервера, выбранного для модели; запрос считается незавершенным до закрытия потока
+     */
+    public InputStream open(String model, String method, String path, String body, long timeoutMs) throws IOException {
+        Endpoint endpoint = choose(model);
+        Runnable release = acquire(endpoint, model);
+        try {
+            return new ReleasingInputStream(endpoint.transport.open(method, path, body, timeoutMs), release);
+        } catch (IOException | RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Ответы всех допущенных серверов на GET path (например, объединенный список моделей)
+     */
+    public List<String> getFromAll(String path) {
+        List<String> responses = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isAdmitted() && endpoints.size() > 1) {
+                continue;
+            }
+            try {
+                responses.add(send(endpoint, null, "GET", path, null));
+            } catch (IOException e) {
+                System.err.println("Сервер Ollama " + endpoint.url + " не ответил на " + path + ": " + e.getMessage());
+            }
+        }
+        return responses;
+    }
+
+    private static Runnable acquire(Endpoint endpoint, String model) {
+        endpoint.outstanding.incrementAndGet();
+        AtomicInteger byModel = model != null
+                ? endpoint.outstandingByModel.computeIfAbsent(model, m -> new AtomicInteger()) : null;
+        if (byModel != null) {
+            byModel.incrementAndGet();
+        }
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                endpoint.outstanding.decrementAndGet();
+                if (byModel != null) {
+                    byModel.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private static final class ReleasingInputStream extends FilterInputStream {
+        private final Runnable release;
+
+        private ReleasingInputStream(InputStream in, Runnable release) {
+            super(in);
+            this.release = release;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Пул для асинхронной работы с ответами (потоковая генерация)
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public String getBaseUrl() {
+        StringJoiner urls = new StringJoiner(",");
+        for (Endpoint endpoint : endpoints) {
+            urls.add(endpoint.url);
+        }
+        return urls.toString();
+    }
+
+    public JSONObject getStatistics() {
+        JSONArray list = new JSONArray();
+        for (Endpoint endpoint : endpoints) {
+            JSONObject stats = endpoint.transport.getStatistics();
+            stats.put("models", new JSONArray(endpoint.models));
+            stats.put("ejected", endpoint.ejected);
+            stats.put("outstanding", endpoint.outstanding.get());
+            JSONObject byModel = new JSONObject();
+            endpoint.outstandingByModel.forEach((model, counter) -> byModel.put(model, counter.get()));
+            stats.put("outstanding_by_model", byModel);
+            stats.put("weight", endpoint.weight(slowStartMs));
+            list.put(stats);
+        }
+        return new JSONObject().put("endpoints", list);
+    }
+
+    @Override
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        executor.shutdownNow();
+        for (Endpoint endpoint : endpoints) {
+            endpoint.transport.close();
+        }
+    }
+}
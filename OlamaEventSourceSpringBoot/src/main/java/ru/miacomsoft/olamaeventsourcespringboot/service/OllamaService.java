@@ -2,59 +2,71 @@ package ru.miacomsoft.olamaeventsourcespringboot.service;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import ru.miacomsoft.olamaeventsourcespringboot.model.ChatHistory;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 @Service
 public class OllamaService {
     // Добавляем константу PROMPT_TEMPLATE в начале класса
     private static final String PROMPT_TEMPLATE = """
-        Используй следующий контекст для ответа на вопрос. Отвечай сначала на основе предоставленного контекста. 
+        Используй следующий контекст для ответа на вопрос. Отвечай сначала на основе предоставленного контекста.
         Если в контексте нет информации для ответа, продолжай поиск в модели и помечай ответ "Локальной база:".
-        
+
         Контекст:
         {context}
-        
+
         Вопрос: {query}
-        
+
         Ответ:""";
 
-    private static final String OLLAMA_HOST = "http://192.168.15.6:11434";
     private static String MODEL_NAME = "llama3.2-vision:latest";
     private static String EMBEDDING_NAME = "all-minilm:22m";
-    private Map<String, HttpClient> activeClients = new HashMap<>();
+    // clientId -> флаг отмены текущей генерации
+    private final Map<String, AtomicBoolean> activeClients = new ConcurrentHashMap<>();
 
     private String PROMPT_CHAR = "";
     private String PROMPT_GENERATE = "";
 
     private final ChatHistoryService chatHistoryService;
-    private HttpClient client;
 
     private final SseService sseService;
     private final DocumentService documentService;
     private final EmbeddingService embeddingService; // Добавляем EmbeddingService
 
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private OllamaEndpointPool endpointPool;
+
+    @Autowired
+    private PipelineGuard pipelineGuard;
+
     public OllamaService(SseService sseService, DocumentService documentService,
                          EmbeddingService embeddingService, ChatHistoryService chatHistoryService) {
 
         this.sseService = sseService;
         this.documentService = documentService;
         this.embeddingService = embeddingService;
-        this.client = HttpClient.newHttpClient();
         this.chatHistoryService = chatHistoryService;
     }
 
@@ -74,8 +86,15 @@ public class OllamaService {
         return result;
     }
 
-    // Модифицируем метод sendChatQuery
+    /**
+     * Запрос чата обрабатывается в пуле конвейера (PipelineGuard), поток Tomcat сразу освобождается,
+     * ответ и ошибки приходят клиенту SSE событиями
+     */
     public void sendChatQuery(String clientId, String requestBody) {
+        pipelineGuard.submit(clientId, () -> processChatQuery(clientId, requestBody));
+    }
+
+    private void processChatQuery(String clientId, String requestBody) {
         boolean isDocQuery = false;
         JSONObject userMessage;
 
@@ -89,9 +108,17 @@ public class OllamaService {
             userMessage = createQuery(clientId, requestBody);
         }
 
+        // bypassCache: true - не брать ответ из семантического кэша
+        boolean bypassCache = userMessage.optBoolean("bypassCache", false);
+        userMessage.remove("bypassCache");
+        float[] cacheQuestion = null;
+        List<Long> cacheDocumentIds = null;
+
         List<JSONObject> history = chatHistoryService.getChatHistoryAsList(clientId);
         JSONArray historyInput = userMessage.getJSONArray("messages");
         JSONObject lastQuery = historyInput.getJSONObject(historyInput.length() - 1);
+        // ответ зависит от клиента и истории разговора - они входят в ключ кэша ответов
+        String cacheScope = ResponseCache.scope(clientId, historyInput, historyInput.length() - 1);
 
         JSONObject metadata = new JSONObject();
         metadata.put("source", "chat_upload");
@@ -107,8 +134,15 @@ public class OllamaService {
         }
         if (userMessage.has("doc")) {
             isDocQuery= true;
+            List<String> docs = new ArrayList<>();
             for (Object docOne: userMessage.getJSONArray("doc")) {
-                int docId = documentService.addDocument((String) docOne, metadata);
+                docs.add((String) docOne);
+            }
+            // эмбеддинги всех документов - пакетными запросами к /api/embed, а не по запросу на документ
+            String embeddingModel = embeddingService.getEmbeddingName();
+            List<List<Double>> docEmbeddings = documentService.embedDocuments(embeddingModel, docs);
+            for (int i = 0; i < docs.size(); i++) {
+                int docId = documentService.addDocument(docs.get(i), metadata, docEmbeddings.get(i), embeddingModel);
                 JSONObject sseData = new JSONObject();
                 if (docId>0) {
                     sseData.put("content", "✓ Документ успешно добавлен с ID: " + docId+"\r\r");
@@ -132,7 +166,7 @@ public class OllamaService {
             String documentContent = content.substring(4).trim();
             if (documentContent.length()>0) {
                 try {
-                    int docId = documentService.addDocument(documentContent, metadata);
+                    int docId = documentService.addDocument(documentContent, metadata, null, null);
                     JSONObject responseMessage = new JSONObject();
                     responseMessage.put("role", "assistant");
                     responseMessage.put("content", "✓ Документ успешно добавлен с ID: " + docId);
@@ -165,7 +199,13 @@ public class OllamaService {
 
             if (content.length() > 0) {
                 // Получаем контекст из базы знаний
-                String context = documentService.getContextForQuery(content, 3, 0.6);
+                List<Double> queryEmbedding = embedQuery(content);
+                List<Object[]> contextDocs = searchContext(content, queryEmbedding);
+                String context = documentService.formatContext(content, contextDocs);
+                if (queryEmbedding != null && !bypassCache && responseCache.isEnabled()) {
+                    cacheQuestion = responseCache.questionVector(queryEmbedding);
+                    cacheDocumentIds = documentIds(contextDocs);
+                }
 
                 if (context != null && !context.trim().isEmpty()) {
                     // Используем контекст в промпте
@@ -189,11 +229,27 @@ public class OllamaService {
         userMessageToSave.put("metadata", metadata);
         chatHistoryService.saveMessage(clientId, userMessageToSave);
         if (!isDocQuery) {
+            String model = userMessage.optString("model", MODEL_NAME);
+            if (cacheQuestion != null) {
+                ResponseCache.Entry cached = responseCache.lookup(cacheQuestion, cacheDocumentIds, model, true, cacheScope);
+                if (cached != null) {
+                    replayCachedAnswer(clientId, cached.getAnswer(), model, true);
+                    return;
+                }
+            }
             StringBuilder fullResponse = new StringBuilder();
-            sendOllamaRequest(clientId, userMessage.toString(), fullResponse, true);
+            float[] question = cacheQuestion;
+            List<Long> documentIds = cacheDocumentIds;
+            sendOllamaRequest(clientId, model, userMessage.toString(), fullResponse, true, question == null ? null
+                    : answer -> responseCache.put(question, documentIds, model, true, cacheScope, answer));
         }
     }
+
     public void sendGenerateQuery(String clientId, String requestBody) {
+        pipelineGuard.submit(clientId, () -> processGenerateQuery(clientId, requestBody));
+    }
+
+    private void processGenerateQuery(String clientId, String requestBody) {
         boolean isDocQuery = false;
         JSONObject data;
         if (!requestBody.trim().startsWith("{") || !requestBody.trim().endsWith("}")) {
@@ -203,6 +259,12 @@ public class OllamaService {
             data = new JSONObject(requestBody);
         }
 
+        // bypassCache: true - не брать ответ из семантического кэша
+        boolean bypassCache = data.optBoolean("bypassCache", false);
+        data.remove("bypassCache");
+        float[] cacheQuestion = null;
+        List<Long> cacheDocumentIds = null;
+
         JSONObject metadata = new JSONObject();
         metadata.put("source", "chat_upload");
         metadata.put("timestamp", System.currentTimeMillis());
@@ -210,8 +272,15 @@ public class OllamaService {
 
         if (data.has("doc")) {
             isDocQuery = true;
+            List<String> docs = new ArrayList<>();
             for (Object docOne: data.getJSONArray("doc")) {
-                int docId = documentService.addDocument((String) docOne, metadata);
+                docs.add((String) docOne);
+            }
+            // эмбеддинги всех документов - пакетными запросами к /api/embed, а не по запросу на документ
+            String embeddingModel = embeddingService.getEmbeddingName();
+            List<List<Double>> docEmbeddings = documentService.embedDocuments(embeddingModel, docs);
+            for (int i = 0; i < docs.size(); i++) {
+                int docId = documentService.addDocument(docs.get(i), metadata, docEmbeddings.get(i), embeddingModel);
                 JSONObject sseData = new JSONObject();
                 if (docId>0) {
                     sseData.put("content", "✓ Документ успешно добавлен с ID: " + docId+"\r\r");
@@ -235,7 +304,7 @@ public class OllamaService {
             String documentContent = content.substring(4).trim();
             if (documentContent.length()>0) {
                 try {
-                    int docId = documentService.addDocument(documentContent, metadata);
+                    int docId = documentService.addDocument(documentContent, metadata, null, null);
                     JSONObject responseData = new JSONObject();
                     responseData.put("response", "✓ Документ успешно добавлен с ID: " + docId);
                     responseData.put("done", true);
@@ -277,7 +346,13 @@ public class OllamaService {
 
             if (content.length() > 0) {
                 // Получаем контекст из базы знаний
-                String context = documentService.getContextForQuery(content, 3, 0.6);
+                List<Double> queryEmbedding = embedQuery(content);
+                List<Object[]> contextDocs = searchContext(content, queryEmbedding);
+                String context = documentService.formatContext(content, contextDocs);
+                if (queryEmbedding != null && !bypassCache && responseCache.isEnabled()) {
+                    cacheQuestion = responseCache.questionVector(queryEmbedding);
+                    cacheDocumentIds = documentIds(contextDocs);
+                }
 
                 if (context != null && !context.trim().isEmpty()) {
                     // Используем контекст в промпте
@@ -301,61 +376,135 @@ public class OllamaService {
         requestJson.put("prompt", data.getString("prompt"));
         requestJson.put("stream", true);
         if (!isDocQuery) {
-            sendOllamaRequest(clientId, requestJson.toString(), fullResponse, false);
+            String model = MODEL_NAME;
+            String cacheScope = ResponseCache.scope(clientId, null, 0);
+            if (cacheQuestion != null) {
+                ResponseCache.Entry cached = responseCache.lookup(cacheQuestion, cacheDocumentIds, model, false, cacheScope);
+                if (cached != null) {
+                    replayCachedAnswer(clientId, cached.getAnswer(), model, false);
+                    return;
+                }
+            }
+            float[] question = cacheQuestion;
+            List<Long> documentIds = cacheDocumentIds;
+            sendOllamaRequest(clientId, model, requestJson.toString(), fullResponse, false, question == null ? null
+                    : answer -> responseCache.put(question, documentIds, model, false, cacheScope, answer));
         }
     }
 
     // Добавляем метод в класс OllamaService
     public List<Double> getEmbeddings(String text) {
-        try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(OLLAMA_HOST + "/api/embeddings"))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(
-                            new JSONObject()
-                                    .put("model", EMBEDDING_NAME)
-                                    .put("prompt", text)
-                                    .toString()))
-                    .build();
-
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-            if (response.statusCode() == 200) {
-                JSONObject jsonResponse = new JSONObject(response.body());
-                JSONArray embeddingArray = jsonResponse.getJSONArray("embedding");
-                List<Double> embeddings = new ArrayList<>();
-                for (int i = 0; i < embeddingArray.length(); i++) {
-                    embeddings.add(embeddingArray.getDouble(i));
-                }
-                return embeddings;
-            } else {
-                throw new RuntimeException("HTTP Error: " + response.statusCode());
-            }
-        } catch (Exception e) {
-            System.err.println("Ошибка получения эмбеддингов: " + e.getMessage());
-            throw new RuntimeException(e);
+        return embeddingService.getEmbeddings(text);
+    }
+
+    private static List<Long> documentIds(List<Object[]> documents) {
+        List<Long> ids = new ArrayList<>(documents.size());
+        for (Object[] doc : documents) {
+            ids.add(((Number) doc[0]).longValue());
         }
+        return ids;
     }
 
-    private void sendOllamaRequest(String clientId, String requestBody, StringBuilder fullResponse, boolean isChat) {
-        HttpClient client = HttpClient.newHttpClient();
-        activeClients.put(clientId, client);
+    /**
+     * Ответ из семантического кэша отправляется теми же событиями, что и потоковый ответ модели
+     */
+    private void replayCachedAnswer(String clientId, String answer, String model, boolean isChat) {
+        System.out.println("Ответ для клиента " + clientId + " взят из семантического кэша");
+        JSONObject startEvent = new JSONObject();
+        startEvent.put("type", "start");
+        sseService.sendEventToClient(clientId, "start", startEvent);
+
+        JSONObject sseData = new JSONObject();
+        sseData.put("content", answer);
+        sseData.put("clientId", clientId);
+        sseService.sendEventToClient(clientId, "message", sseData);
+
+        JSONObject completeEvent = new JSONObject();
+        completeEvent.put("final_content", answer);
+        completeEvent.put("clientId", clientId);
+        completeEvent.put("cached", true);
+        sseService.sendEventToClient(clientId, "complete", completeEvent);
+
+        if (isChat) {
+            JSONObject assistantMessage = new JSONObject();
+            assistantMessage.put("role", "assistant");
+            assistantMessage.put("content", answer);
+            assistantMessage.put("metadata", new JSONObject().put("model", model).put("cached", true));
+            chatHistoryService.saveMessage(clientId, assistantMessage);
+        }
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(OLLAMA_HOST + (isChat ? "/api/chat" : "/api/generate")))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
+    /**
+     * Эмбеддинг вопроса под защитой конвейера (bulkhead и размыкатель эмбеддингов). Если эмбеддинг
+     * недоступен (цепь разомкнута, перегрузка, ошибка Ollama) - null: ответ строится без векторного контекста.
+     * Истекший срок запроса прерывает обработку
+     */
+    private List<Double> embedQuery(String content) {
+        try {
+            return pipelineGuard.embed(() -> embeddingService.getEmbeddings(content));
+        } catch (RuntimeException e) {
+            if (PipelineGuard.isDeadline(e)) {
+                throw new RequestDeadline.Exceeded("эмбеддинг");
+            }
+            System.err.println("Эмбеддинг вопроса недоступен: " + e.getMessage());
+            return null;
+        }
+    }
 
-        client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenApply(HttpResponse::body)
-                .thenAccept(stream -> {
-                    JSONObject startEvent = new JSONObject();
-                    startEvent.put("type", "start");
-                    sseService.sendEventToClient(clientId, "start", startEvent);
+    /**
+     * Поиск контекста под bulkhead search; при перегрузке поиска ответ строится без контекста
+     */
+    private List<Object[]> searchContext(String content, List<Double> queryEmbedding) {
+        try {
+            return pipelineGuard.search(() -> documentService.getContextDocuments(content, queryEmbedding, 3, 0.6));
+        } catch (Bulkhead.Full e) {
+            System.err.println("Поиск контекста пропущен: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
-                    stream.forEach(line -> {
-                        if (!line.trim().isEmpty()) {
+    /**
+     * onComplete получает полный ответ, если генерация завершилась без ошибки и не была отменена.
+     * Генерация занимает место в bulkhead generation до конца потока ответа; по сроку запроса поток
+     * ответа закрывается и клиент получает событие error. Исход генерации учитывает размыкатель генерации,
+     * кроме отмены клиентом и истечения срока
+     */
+    private void sendOllamaRequest(String clientId, String model, String requestBody, StringBuilder fullResponse,
+                                   boolean isChat, Consumer<String> onComplete) {
+        Bulkhead bulkhead = pipelineGuard.getGenerationBulkhead();
+        bulkhead.acquire();
+        try {
+            pipelineGuard.allowGeneration();
+        } catch (CircuitBreaker.Open e) {
+            bulkhead.release();
+            throw e;
+        }
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        activeClients.put(clientId, cancelled);
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        AtomicReference<InputStream> stream = new AtomicReference<>();
+        ScheduledFuture<?> deadline = pipelineGuard.onDeadline(() -> {
+            timedOut.set(true);
+            closeQuietly(stream.get());
+        });
+
+        CompletableFuture.runAsync(RequestDeadline.wrap(() -> {
+                    // поток ответа закрывается и при отмене: запрос к Ollama прерывается, соединение освобождается
+                    try (InputStream in = endpointPool.open(model, "POST", isChat ? "/api/chat" : "/api/generate", requestBody, 0);
+                         BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                        stream.set(in);
+                        if (timedOut.get()) {
+                            throw new RequestDeadline.Exceeded("генерация");
+                        }
+                        JSONObject startEvent = new JSONObject();
+                        startEvent.put("type", "start");
+                        sseService.sendEventToClient(clientId, "start", startEvent);
+
+                        String line;
+                        while (!cancelled.get() && (line = reader.readLine()) != null) {
+                            if (line.trim().isEmpty()) {
+                                continue;
+                            }
                             try {
                                 JSONObject response = new JSONObject(line);
                                 String content = "";
@@ -381,10 +530,27 @@ public class OllamaService {
                                 System.err.println("Error parsing response: " + e.getMessage());
                             }
                         }
-                    });
+                    } catch (IOException e) {
+                        if (timedOut.get()) {
+                            throw new RequestDeadline.Exceeded("генерация");
+                        }
+                        throw new UncheckedIOException(e);
+                    }
+                }), endpointPool.getExecutor())
+                .whenComplete((result, e) -> {
+                    // единственное место учета исхода генерации
+                    if (!cancelled.get() && !timedOut.get()) {
+                        pipelineGuard.recordGeneration(e instanceof CompletionException && e.getCause() != null
+                                ? e.getCause() : e);
+                    }
                 })
                 .thenRun(() -> {
-                    activeClients.remove(clientId);
+                    boolean wasCancelled = !activeClients.remove(clientId, cancelled);
+                    if (!wasCancelled) {
+                        if (onComplete != null) {
+                            onComplete.accept(fullResponse.toString());
+                        }
+                    }
 
                     JSONObject completeEvent = new JSONObject();
                     completeEvent.put("final_content", fullResponse.toString());
@@ -402,16 +568,31 @@ public class OllamaService {
                     }
                 })
                 .exceptionally(e -> {
-                    activeClients.remove(clientId);
-                    System.err.println("Error: " + e.getMessage());
-                    JSONObject errorEvent = new JSONObject();
-                    errorEvent.put("error", e.getMessage());
-                    errorEvent.put("clientId", clientId);
-                    sseService.sendEventToClient(clientId, "error", errorEvent);
+                    activeClients.remove(clientId, cancelled);
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    System.err.println("Error: " + cause.getMessage());
+                    pipelineGuard.sendError(clientId, cause instanceof RequestDeadline.Exceeded ? "deadline" : "error",
+                            cause.getMessage());
                     return null;
+                })
+                .whenComplete((result, e) -> {
+                    bulkhead.release();
+                    if (deadline != null) {
+                        deadline.cancel(false);
+                    }
                 });
     }
 
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                System.err.println("Ошибка закрытия потока ответа: " + e.getMessage());
+            }
+        }
+    }
+
     public JSONArray getChatHistory(String clientId) {
         return chatHistoryService.getChatHistory(clientId);
     }
@@ -423,31 +604,26 @@ public class OllamaService {
     public JSONArray getAvailableModelsWithDetails() {
         JSONArray models = new JSONArray();
         try {
-            URI uri = new URI(String.format("%s/api/tags", OLLAMA_HOST));
-            URL url = uri.toURL();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(3000);
-
-            if (conn.getResponseCode() == 200) {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream(), "utf-8"))) {
-                    String response = br.lines().collect(Collectors.joining());
-                    JSONObject jsonResponse = new JSONObject(response);
-                    JSONArray modelsArray = jsonResponse.getJSONArray("models");
-
-                    for (int i = 0; i < modelsArray.length(); i++) {
-                        JSONObject model = modelsArray.getJSONObject(i);
-                        JSONObject modelInfo = new JSONObject();
-                        String modelName = model.getString("name");
-                        modelInfo.put("name", modelName);
-                        modelInfo.put("size", model.optLong("size", 0));
-                        modelInfo.put("modified", model.optString("modified_at", ""));
-                        modelInfo.put("supportsImages", isVisionModel(modelName));
-                        modelInfo.put("isEmbeddingModel", isEmbeddingModel(modelName));
-                        models.put(modelInfo);
-                    }
+            // модели со всех серверов пула, каждая один раз
+            Set<String> seen = new HashSet<>();
+            JSONArray modelsArray = new JSONArray();
+            for (String response : endpointPool.getFromAll("/api/tags")) {
+                new JSONObject(response).getJSONArray("models").forEach(modelsArray::put);
+            }
+
+            for (int i = 0; i < modelsArray.length(); i++) {
+                JSONObject model = modelsArray.getJSONObject(i);
+                JSONObject modelInfo = new JSONObject();
+                String modelName = model.getString("name");
+                if (!seen.add(modelName)) {
+                    continue;
                 }
+                modelInfo.put("name", modelName);
+                modelInfo.put("size", model.optLong("size", 0));
+                modelInfo.put("modified", model.optString("modified_at", ""));
+                modelInfo.put("supportsImages", isVisionModel(modelName));
+                modelInfo.put("isEmbeddingModel", isEmbeddingModel(modelName));
+                models.put(modelInfo);
             }
         } catch (Exception e) {
             System.err.println("Ошибка получения списка моделей: " + e.getMessage());
@@ -455,25 +631,9 @@ public class OllamaService {
         return models;
     }
 
-    private static JSONObject getModelInfo(String modelName) {
+    private JSONObject getModelInfo(String modelName) {
         try {
-            URI uri = new URI(String.format("%s/api/show", OLLAMA_HOST));
-            URL url = uri.toURL();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setConnectTimeout(3000);
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-
-            String jsonInputString = String.format("{\"name\": \"%s\"}", modelName);
-            conn.getOutputStream().write(jsonInputString.getBytes("utf-8"));
-
-            if (conn.getResponseCode() == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"))) {
-                    String response = br.lines().collect(Collectors.joining());
-                    return new JSONObject(response);
-                }
-            }
+            return new JSONObject(endpointPool.post(modelName, "/api/show", new JSONObject().put("name", modelName).toString()));
         } catch (Exception e) {
             System.err.println("Ошибка получения информации о модели " + modelName + ": " + e.getMessage());
         }
@@ -481,10 +641,10 @@ public class OllamaService {
     }
 
     public void cancelGeneration(String clientId) {
-        HttpClient client = activeClients.get(clientId);
-        if (client != null) {
+        AtomicBoolean cancelled = activeClients.remove(clientId);
+        if (cancelled != null) {
             try {
-                activeClients.remove(clientId);
+                cancelled.set(true);
                 JSONObject cancelEvent = new JSONObject();
                 cancelEvent.put("cancelled", true);
                 cancelEvent.put("clientId", clientId);
@@ -496,7 +656,7 @@ public class OllamaService {
         }
     }
 
-    public static boolean isVisionModel(String modelName) {
+    public boolean isVisionModel(String modelName) {
         JSONObject modelInfo = getModelInfo(modelName);
         if (modelInfo == null) {
             return false;
@@ -548,7 +708,15 @@ public class OllamaService {
     }
 
     public String getOllamaHost() {
-        return OLLAMA_HOST;
+        return endpointPool.getBaseUrl();
+    }
+
+    public JSONObject getTransportStatistics() {
+        return endpointPool.getStatistics();
+    }
+
+    public JSONObject getPipelineStatistics() {
+        return pipelineGuard.getStatistics();
     }
 
     public String getPROMPT_CHAR() {
@@ -575,6 +743,10 @@ public class OllamaService {
         return EMBEDDING_NAME;
     }
 
+    /**
+     * Только имя модели для настроек и статуса: модель эмбеддингов EmbeddingService переключает
+     * ReembeddingService после переиндексирования, а не сохранение настроек
+     */
     public void setEmbeddingName(String modelName) {
         EMBEDDING_NAME = modelName;
     }
@@ -583,7 +755,7 @@ public class OllamaService {
         MODEL_NAME = modelName;
     }
 
-    public static boolean isEmbeddingModel(String modelName) {
+    public boolean isEmbeddingModel(String modelName) {
         JSONObject modelInfo = getModelInfo(modelName);
         if (modelInfo == null) {
             return false;
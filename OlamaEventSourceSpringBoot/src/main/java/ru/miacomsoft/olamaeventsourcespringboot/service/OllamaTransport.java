@@ -0,0 +1,350 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Общий HTTP транспорт к Ollama для Spring сервисов и консольного клиента (oracle_bd).
+ * Один HttpClient с keep-alive соединениями вместо нового соединения на каждый вызов. Короткие запросы
+ * (send) ограничены max-connections, потоки ответа (open: генерация, загрузка модели) - отдельным бюджетом
+ * max-streams, поэтому долгие генерации не занимают места эмбеддингов. Запросы выполняются на виртуальных
+ * потоках (Java 21+, иначе кэшируемый пул). Ответы принимаются сжатыми gzip. Доступность сервера отслеживается
+ * пассивно по исходам запросов: после unhealthy-after ошибок подряд запросы сразу завершаются ошибкой,
+ * раз в retry-after-ms пропускается один пробный запрос.
+ */
+public final class OllamaTransport implements AutoCloseable {
+
+    private final String baseUrl;
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Semaphore streamPermits;
+    private final int maxConnections;
+    private final int maxStreams;
+    private final long requestTimeoutMs;
+    private final boolean gzip;
+    private final int unhealthyAfter;
+    private final long retryAfterMs;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastFailureAt;
+    private final AtomicLong lastTrialAt = new AtomicLong();
+    private volatile long lastSuccessAt;
+    private volatile String lastError;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public OllamaTransport(String baseUrl, int maxConnections, int maxStreams, long connectTimeoutMs, long requestTimeoutMs,
+                           boolean http2, boolean gzip, int unhealthyAfter, long retryAfterMs) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxStreams = Math.max(1, maxStreams);
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.gzip = gzip;
+        this.unhealthyAfter = Math.max(1, unhealthyAfter);
+        this.retryAfterMs = retryAfterMs;
+        this.permits = new Semaphore(this.maxConnections, true);
+        this.streamPermits = new Semaphore(this.maxStreams, true);
+        this.executor = newExecutor("ollama-transport");
+        this.client = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .build();
+    }
+
+    /**
+     * Настройки пула соединений JDK HttpClient (jdk.httpclient.*). Читаются один раз при создании первого
+     * HttpClient и действуют на весь процесс, поэтому задаются при старте приложения до создания транспортов;
+     * значения, заданные в командной строке (-D), не меняются
+     */
+    public static void configureConnectionPool(int poolSize, long keepAliveSeconds) {
+        if (System.getProperty("jdk.httpclient.connectionPoolSize") == null) {
+            System.setProperty("jdk.httpclient.connectionPoolSize", String.valueOf(Math.max(1, poolSize)));
+        }
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+            System.setProperty("jdk.httpclient.keepalive.timeout", String.valueOf(keepAliveSeconds));
+        }
+    }
+
+    /**
+     * Настройки rag.ollama.transport.* для консольного клиента
+     */
+    public static OllamaTransport fromProperties(Properties properties, String baseUrl) {
+        return new OllamaTransport(baseUrl,
+                Integer.parseInt(properties.getProperty("rag.ollama.transport.max-connections", "16").trim()),
+                Integer.parseInt(properties.getProperty("rag.ollama.transport.max-streams", "8").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.transport.connect-timeout-ms", "5000").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.transport.request-timeout-ms", "300000").trim()),
+                Boolean.parseBoolean(properties.getProperty("rag.ollama.transport.http2", "false").trim()),
+                Boolean.parseBoolean(properties.getProperty("rag.ollama.transport.gzip", "true").trim()),
+                Integer.parseInt(properties.getProperty("rag.ollama.transport.unhealthy-after", "3").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.transport.retry-after-ms", "10000").trim()));
+    }
+
+    /**
+     * Виртуальные потоки через рефлексию: проект собирается под Java 17, но на Java 21+ используется
+     * Executors.newVirtualThreadPerTaskExecutor
+     */
+    static ExecutorService newExecutor(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Пул для асинхронной работы с ответами (потоковая генерация)
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public String get(String path) throws IOException {
+        return send("GET", path, null);
+    }
+
+    public String post(String path, String body) throws IOException {
+        return send("POST", path, body);
+    }
+
+    /**
+     * Короткий запрос с чтением всего ответа: бюджет max-connections
+     */
+    public String send(String method, String path, String body) throws IOException {
+        try (InputStream in = request(method, path, body, 0, permits)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Тело ответа потоком (бюджет max-streams). Соединение занято, пока поток не закрыт: закрытие раньше конца
+     * ответа прерывает запрос (отмена генерации). timeoutMs - ожидание заголовков ответа, 0 - request-timeout-ms
+     */
+    public InputStream open(String method, String path, String body, long timeoutMs) throws IOException {
+        return request(method, path, body, timeoutMs, streamPermits);
+    }
+
+    private InputStream request(String method, String path, String body, long timeoutMs, Semaphore budget)
+            throws IOException {
+        if (!admit()) {
+            rejected.incrementAndGet();
+            throw new IOException("Ollama сервер недоступен по адресу " + baseUrl + ": " + consecutiveFailures.get()
+                    + " ошибок подряд, последняя: " + lastError);
+        }
+        // ожидание не дольше оставшегося срока запроса (RequestDeadline), если он установлен
+        long remaining = RequestDeadline.remainingMs();
+        if (remaining == 0) {
+            throw new RequestDeadline.Exceeded("ожидание Ollama");
+        }
+        long timeout = Math.min(timeoutMs > 0 ? timeoutMs : requestTimeoutMs, remaining);
+        boolean deadlineBound = remaining < (timeoutMs > 0 ? timeoutMs : requestTimeoutMs);
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .timeout(Duration.ofMillis(timeout))
+                .header("Accept", "application/json");
+        if (gzip) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+        if (body != null) {
+            builder.header("Content-Type", "application/json");
+            builder.method(method, HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        } else {
+            builder.method(method, HttpRequest.BodyPublishers.noBody());
+        }
+
+        try {
+            if (!budget.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                throw new IOException("Нет свободного соединения с Ollama за " + timeout + " мс");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ожидание соединения с Ollama прервано", e);
+        }
+        requests.incrementAndGet();
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            budget.release();
+            // срок истек по сроку запроса, а не по таймауту сервера - на доступность сервера не влияет
+            if (deadlineBound && e instanceof HttpTimeoutException) {
+                throw new RequestDeadline.Exceeded("ожидание Ollama");
+            }
+            recordFailure(e.getMessage());
+            throw e;
+        } catch (InterruptedException e) {
+            budget.release();
+            Thread.currentThread().interrupt();
+            throw new IOException("Запрос к Ollama прерван", e);
+        }
+
+        InputStream in = decode(response, new ReleasingInputStream(response.body(), budget));
+        int status = response.statusCode();
+        if (status < 200 || status >= 300) {
+            String error;
+            try (in) {
+                error = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            // 4xx - ошибка запроса (нет модели и т.п.), на доступность сервера не влияет
+            if (status >= 500) {
+                recordFailure("HTTP " + status);
+            } else {
+                recordSuccess();
+            }
+            throw new IOException("HTTP Error: " + status + " - " + error);
+        }
+        recordSuccess();
+        return in;
+    }
+
+    private static InputStream decode(HttpResponse<InputStream> response, InputStream body) throws IOException {
+        if (!"gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(""))) {
+            return body;
+        }
+        try {
+            return new GZIPInputStream(body);
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Освобождает разрешение пула при закрытии потока ответа (один раз)
+     */
+    private static final class ReleasingInputStream extends FilterInputStream {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final Semaphore budget;
+
+        private ReleasingInputStream(InputStream in, Semaphore budget) {
+            super(in);
+            this.budget = budget;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    budget.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Активная проверка доступности (GET path) мимо пула соединений и без отказа по пассивному состоянию.
+     * Успех сбрасывает счетчик ошибок подряд
+     */
+    public boolean probe(String path, long timeoutMs) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .timeout(Duration.ofMillis(timeoutMs))
+                .GET()
+                .build();
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() == 200) {
+                recordSuccess();
+                return true;
+            }
+            recordFailure("HTTP " + response.statusCode());
+        } catch (IOException e) {
+            recordFailure(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void recordSuccess() {
+        consecutiveFailures.set(0);
+        lastSuccessAt = System.currentTimeMillis();
+    }
+
+    private void recordFailure(String error) {
+        failures.incrementAndGet();
+        consecutiveFailures.incrementAndGet();
+        lastFailureAt = System.currentTimeMillis();
+        lastError = error;
+    }
+
+    /**
+     * Допуск запроса: при доступном сервере - всегда, иначе раз в retry-after-ms ровно один пробный запрос.
+     * Исход пробы сбрасывает счетчик ошибок или продлевает недоступность на retry-after-ms
+     */
+    private boolean admit() {
+        if (consecutiveFailures.get() < unhealthyAfter) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastFailureAt < retryAfterMs) {
+            return false;
+        }
+        long trialAt = lastTrialAt.get();
+        return now - trialAt >= retryAfterMs && lastTrialAt.compareAndSet(trialAt, now);
+    }
+
+    /**
+     * Сервер считается доступным, пока ошибок подряд меньше unhealthy-after или с последней ошибки
+     * прошло retry-after-ms (можно отправить пробный запрос)
+     */
+    public boolean isHealthy() {
+        return consecutiveFailures.get() < unhealthyAfter || System.currentTimeMillis() - lastFailureAt >= retryAfterMs;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("base_url", baseUrl);
+        stats.put("healthy", isHealthy());
+        stats.put("requests", requests.get());
+        stats.put("failures", failures.get());
+        stats.put("rejected", rejected.get());
+        stats.put("consecutive_failures", consecutiveFailures.get());
+        stats.put("in_use", maxConnections - permits.availablePermits());
+        stats.put("max_connections", maxConnections);
+        stats.put("streams_in_use", maxStreams - streamPermits.availablePermits());
+        stats.put("max_streams", maxStreams);
+        stats.put("last_success_at", lastSuccessAt);
+        stats.put("last_error", lastError != null ? lastError : JSONObject.NULL);
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
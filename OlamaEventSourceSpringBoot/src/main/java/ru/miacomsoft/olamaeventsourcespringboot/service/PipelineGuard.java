@@ -0,0 +1,258 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Защита RAG конвейера (чат и генерация) от перегрузки. Запрос выполняется в ограниченном пуле потоков,
+ * а не в потоке Tomcat, поэтому медленная Ollama не занимает потоки других эндпоинтов (история, документы).
+ * У запроса есть общий срок deadline-ms на эмбеддинг, поиск и генерацию. Число одновременных вызовов
+ * каждого этапа ограничено (Bulkhead). Размыкатели раздельные для эмбеддингов и генерации: успешный эмбеддинг
+ * не замыкает цепь, пока генерация недоступна. Истечение срока запроса отказом сервера не считается.
+ * Загрузка документов идет мимо конвейера и на размыкатели не влияет.
+ */
+@Service
+public class PipelineGuard {
+
+    @Autowired
+    private SseService sseService;
+
+    @Value("${rag.pipeline.deadline-ms:120000}")
+    private long deadlineMs;
+
+    @Value("${rag.pipeline.threads:16}")
+    private int threads;
+
+    @Value("${rag.pipeline.queue-capacity:64}")
+    private int queueCapacity;
+
+    @Value("${rag.pipeline.bulkhead.embedding:8}")
+    private int embeddingConcurrent;
+
+    @Value("${rag.pipeline.bulkhead.search:8}")
+    private int searchConcurrent;
+
+    @Value("${rag.pipeline.bulkhead.generation:4}")
+    private int generationConcurrent;
+
+    @Value("${rag.pipeline.bulkhead.max-wait-ms:5000}")
+    private long bulkheadMaxWaitMs;
+
+    @Value("${rag.pipeline.breaker.window:20}")
+    private int breakerWindow;
+
+    @Value("${rag.pipeline.breaker.min-calls:5}")
+    private int breakerMinCalls;
+
+    @Value("${rag.pipeline.breaker.failure-rate-percent:50}")
+    private double breakerFailureRate;
+
+    @Value("${rag.pipeline.breaker.open-ms:30000}")
+    private long breakerOpenMs;
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService timer;
+    private Bulkhead embedding;
+    private Bulkhead search;
+    private Bulkhead generation;
+    private CircuitBreaker embeddingBreaker;
+    private CircuitBreaker generationBreaker;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+            Thread thread = new Thread(r, "rag-pipeline-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rag-pipeline-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        embedding = new Bulkhead("embedding", embeddingConcurrent, bulkheadMaxWaitMs);
+        search = new Bulkhead("search", searchConcurrent, bulkheadMaxWaitMs);
+        generation = new Bulkhead("generation", generationConcurrent, bulkheadMaxWaitMs);
+        embeddingBreaker = new CircuitBreaker("embedding", breakerWindow, breakerMinCalls, breakerFailureRate, breakerOpenMs);
+        generationBreaker = new CircuitBreaker("generation", breakerWindow, breakerMinCalls, breakerFailureRate, breakerOpenMs);
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Запуск обработки запроса клиента в пуле конвейера со сроком deadline-ms от момента поступления.
+     * Отказ (цепь генерации разомкнута, очередь заполнена) и необработанные ошибки этапов приходят клиенту
+     * событием error. Пробный запрос разомкнутой цепи проверяется позже, в sendOllamaRequest, - здесь только
+     * быстрый отказ без занятия пробного места
+     */
+    public void submit(String clientId, Runnable task) {
+        if (generationBreaker.isOpen()) {
+            sendError(clientId, "circuit_open", "Сервер модели недоступен, повторите через "
+                    + (generationBreaker.retryAfterMs() / 1000 + 1) + " с");
+            return;
+        }
+        long deadlineAt = deadlineMs > 0 ? System.currentTimeMillis() + deadlineMs : 0;
+        try {
+            executor.execute(() -> {
+                RequestDeadline.set(deadlineAt);
+                try {
+                    RequestDeadline.check("очередь");
+                    task.run();
+                } catch (RequestDeadline.Exceeded e) {
+                    sendError(clientId, "deadline", e.getMessage());
+                } catch (Bulkhead.Full e) {
+                    sendError(clientId, "overloaded", e.getMessage());
+                } catch (CircuitBreaker.Open e) {
+                    sendError(clientId, "circuit_open", e.getMessage());
+                } catch (Exception e) {
+                    System.err.println("Ошибка обработки запроса клиента " + clientId + ": " + e.getMessage());
+                    sendError(clientId, "error", e.getMessage());
+                } finally {
+                    RequestDeadline.clear();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sendError(clientId, "overloaded", "Сервер перегружен, повторите запрос позже");
+        }
+    }
+
+    /**
+     * Эмбеддинг вопроса: место в bulkhead embedding и размыкатель эмбеддингов. Исход учитывается только здесь;
+     * при разомкнутой цепи - CircuitBreaker.Open, при перегрузке - Bulkhead.Full
+     */
+    public <T> T embed(Supplier<T> call) {
+        return guard(embedding, embeddingBreaker, call);
+    }
+
+    /**
+     * Поиск контекста в базе/индексе: только bulkhead search, сервер модели не участвует
+     */
+    public <T> T search(Supplier<T> call) {
+        return guard(search, null, call);
+    }
+
+    private static <T> T guard(Bulkhead bulkhead, CircuitBreaker breaker, Supplier<T> call) {
+        if (breaker != null && !breaker.allow()) {
+            throw new CircuitBreaker.Open(breaker);
+        }
+        bulkhead.acquire();
+        try {
+            T result = call.get();
+            if (breaker != null) {
+                breaker.recordSuccess();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            if (breaker != null && !isDeadline(e)) {
+                breaker.recordFailure(e.getMessage());
+            }
+            throw e;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Занять место пробного или обычного запроса генерации; при разомкнутой цепи - CircuitBreaker.Open
+     */
+    public void allowGeneration() {
+        if (!generationBreaker.allow()) {
+            throw new CircuitBreaker.Open(generationBreaker);
+        }
+    }
+
+    /**
+     * Исход генерации (error == null - успех). Истечение срока запроса не учитывается
+     */
+    public void recordGeneration(Throwable error) {
+        if (error == null) {
+            generationBreaker.recordSuccess();
+        } else if (!isDeadline(error)) {
+            generationBreaker.recordFailure(error.getMessage());
+        }
+    }
+
+    /**
+     * Ошибка вызвана истечением срока запроса (в том числе обернутым в другое исключение)
+     */
+    static boolean isDeadline(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof RequestDeadline.Exceeded) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void sendError(String clientId, String reason, String message) {
+        JSONObject errorEvent = new JSONObject();
+        errorEvent.put("error", message);
+        errorEvent.put("reason", reason);
+        errorEvent.put("clientId", clientId);
+        sseService.sendEventToClient(clientId, "error", errorEvent);
+    }
+
+    /**
+     * Действие при наступлении срока текущего запроса (прерывание потока ответа модели); без срока - null
+     */
+    public ScheduledFuture<?> onDeadline(Runnable action) {
+        long remaining = RequestDeadline.remainingMs();
+        if (remaining == Long.MAX_VALUE) {
+            return null;
+        }
+        return timer.schedule(action, remaining, TimeUnit.MILLISECONDS);
+    }
+
+    public Bulkhead getEmbeddingBulkhead() {
+        return embedding;
+    }
+
+    public Bulkhead getSearchBulkhead() {
+        return search;
+    }
+
+    public Bulkhead getGenerationBulkhead() {
+        return generation;
+    }
+
+    public CircuitBreaker getEmbeddingBreaker() {
+        return embeddingBreaker;
+    }
+
+    public CircuitBreaker getGenerationBreaker() {
+        return generationBreaker;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("deadline_ms", deadlineMs);
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("threads", threads);
+        JSONObject breakers = new JSONObject();
+        breakers.put(embeddingBreaker.getName(), embeddingBreaker.getStatistics());
+        breakers.put(generationBreaker.getName(), generationBreaker.getStatistics());
+        stats.put("breakers", breakers);
+        JSONObject bulkheads = new JSONObject();
+        bulkheads.put(embedding.getName(), embedding.getStatistics());
+        bulkheads.put(search.getName(), search.getStatistics());
+        bulkheads.put(generation.getName(), generation.getStatistics());
+        stats.put("bulkheads", bulkheads);
+        return stats;
+    }
+}
@@ -0,0 +1,420 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Смена модели эмбеддингов без остановки поиска. Документы читаются курсором, векторы новой модели
+ * пишутся пакетами в model_embeddings рядом со старыми, поиск все это время идет по активной модели.
+ * Когда все документы и фрагменты посчитаны, одна транзакция переносит векторы в embeddings/chunks
+ * и меняет активную модель в embedding_namespace, после чего перестраиваются индексы в памяти.
+ */
+@Service
+public class ReembeddingService {
+
+    public enum State { IDLE, RUNNING, SWITCHING, DONE, FAILED, CANCELLED }
+
+    @Value("${rag.reembed.batch-size:32}")
+    private int batchSize;
+
+    @Value("${rag.reembed.max-texts-per-second:20}")
+    private double maxTextsPerSecond;
+
+    @Value("${rag.reembed.max-passes:5}")
+    private int maxPasses;
+
+    @Value("${rag.vector.codec:none}")
+    private String vectorCodec;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EmbeddingService embeddingService;
+
+    @Autowired
+    private OllamaService ollamaService;
+
+    @Autowired
+    private VectorIndexService vectorIndexService;
+
+    @Autowired
+    private IvfIndexService ivfIndexService;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    private volatile State state = State.IDLE;
+    private volatile String targetModel;
+    private volatile String error;
+    private volatile boolean cancelRequested = false;
+    private volatile long total;
+    private volatile long processed;
+    private volatile long chunksProcessed;
+    private volatile long failed;
+    private volatile int pass;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private Thread worker;
+
+    /**
+     * Активная модель хранится в базе: после перезапуска поиск продолжает работать с той моделью,
+     * которой посчитаны векторы, а не с моделью по умолчанию
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void restoreActiveModel() {
+        try (Connection conn = dataSource.getConnection()) {
+            String active = SchemaMigrations.activateEmbeddingNamespace(conn, embeddingService.getEmbeddingName());
+            if (!active.equals(embeddingService.getEmbeddingName())) {
+                embeddingService.setEmbeddingName(active);
+            }
+            ollamaService.setEmbeddingName(active);
+            System.out.println("Активная модель эмбеддингов: " + active);
+        } catch (SQLException e) {
+            System.err.println("Ошибка чтения активной модели эмбеддингов: " + e.getMessage());
+        }
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING || state == State.SWITCHING;
+    }
+
+    /**
+     * Переход на модель model: без документов - сразу, иначе фоновым переиндексированием
+     */
+    public synchronized JSONObject switchModel(String model) {
+        if (model == null || model.isBlank() || model.equals(embeddingService.getEmbeddingName())) {
+            return getStatus();
+        }
+        Long documents = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM documents", Long.class);
+        if (documents == null || documents == 0) {
+            jdbcTemplate.update("UPDATE embedding_namespace SET active_model = ?, switched_at = CURRENT_TIMESTAMP WHERE id = 1", model);
+            embeddingService.setEmbeddingName(model);
+            ollamaService.setEmbeddingName(model);
+            return getStatus();
+        }
+        return start(model);
+    }
+
+    public synchronized JSONObject start(String model) {
+        if (isRunning()) {
+            throw new IllegalStateException("Переиндексирование на модель " + targetModel + " уже выполняется");
+        }
+        targetModel = model;
+        error = null;
+        cancelRequested = false;
+        processed = 0;
+        chunksProcessed = 0;
+        failed = 0;
+        pass = 0;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        state = State.RUNNING;
+        worker = new Thread(() -> run(model), "reembedding");
+        worker.setDaemon(true);
+        worker.start();
+        return getStatus();
+    }
+
+    public synchronized JSONObject cancel() {
+        if (isRunning()) {
+            cancelRequested = true;
+        }
+        return getStatus();
+    }
+
+    public JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("state", state.name());
+        status.put("activeModel", embeddingService.getEmbeddingName());
+        status.put("targetModel", targetModel != null ? targetModel : JSONObject.NULL);
+        status.put("total", total);
+        status.put("processed", processed);
+        status.put("chunksProcessed", chunksProcessed);
+        status.put("failed", failed);
+        status.put("pass", pass);
+        status.put("progress", total > 0 ? Math.min(1.0, (double) processed / total) : 0.0);
+        if (startedAt > 0) {
+            long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            status.put("elapsedMs", end - startedAt);
+        }
+        status.put("error", error != null ? error : JSONObject.NULL);
+        return status;
+    }
+
+    private void run(String model) {
+        System.out.println("Переиндексирование эмбеддингов на модель " + model + " начато");
+        try {
+            while (true) {
+                pass++;
+                stagePass(model);
+                if (cancelRequested) {
+                    state = State.CANCELLED;
+                    System.out.println("Переиндексирование на модель " + model + " отменено, посчитанные векторы сохранены");
+                    return;
+                }
+                state = State.SWITCHING;
+                if (trySwitch(model)) {
+                    break;
+                }
+                state = State.RUNNING;
+                if (pass >= maxPasses) {
+                    throw new IllegalStateException("Не все документы переиндексированы за " + pass + " проходов");
+                }
+            }
+            afterSwitch(model);
+            state = State.DONE;
+            System.out.println("Активная модель эмбеддингов переключена на " + model + ": документов " + processed
+                    + ", фрагментов " + chunksProcessed + " за " + (System.currentTimeMillis() - startedAt) + " мс");
+        } catch (Exception e) {
+            error = e.getMessage();
+            state = State.FAILED;
+            System.err.println("Ошибка переиндексирования на модель " + model + ": " + e.getMessage());
+        } finally {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Один проход курсором по документам, для которых еще нет вектора новой модели.
+     * Повторный запуск после отмены или сбоя продолжает с того же места
+     */
+    private void stagePass(String model) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement count = conn.prepareStatement("""
+                    SELECT COUNT(*) FROM documents d
+                    WHERE NOT EXISTS (SELECT 1 FROM model_embeddings m
+                                      WHERE m.model = ? AND m.document_id = d.id AND m.chunk_index = -1)
+                    """)) {
+                count.setString(1, model);
+                try (ResultSet rs = count.executeQuery()) {
+                    rs.next();
+                    total = processed + rs.getLong(1);
+                }
+            }
+            // курсор PostgreSQL работает только внутри транзакции и при заданном fetchSize
+            try (PreparedStatement ps = conn.prepareStatement("""
+                    SELECT d.id, d.content FROM documents d
+                    WHERE NOT EXISTS (SELECT 1 FROM model_embeddings m
+                                      WHERE m.model = ? AND m.document_id = d.id AND m.chunk_index = -1)
+                    ORDER BY d.id
+                    """)) {
+                ps.setFetchSize(batchSize * 4);
+                ps.setString(1, model);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<Long> ids = new ArrayList<>(batchSize);
+                    List<String> contents = new ArrayList<>(batchSize);
+                    while (rs.next() && !cancelRequested) {
+                        ids.add(rs.getLong(1));
+                        contents.add(rs.getString(2));
+                        if (ids.size() >= batchSize) {
+                            stageBatch(model, ids, contents);
+                            ids.clear();
+                            contents.clear();
+                        }
+                    }
+                    if (!ids.isEmpty() && !cancelRequested) {
+                        stageBatch(model, ids, contents);
+                    }
+                }
+            }
+            conn.commit();
+        }
+    }
+
+    /**
+     * Эмбеддинги пакета документов и их фрагментов моделью model. Ошибка пакета не останавливает проход:
+     * документы остаются без вектора и повторяются на следующем проходе
+     */
+    private void stageBatch(String model, List<Long> ids, List<String> contents) {
+        long start = System.currentTimeMillis();
+        int texts = 0;
+        try {
+            List<List<Double>> embeddings = embeddingService.getEmbeddingsBatch(model, contents);
+            texts += contents.size();
+            List<Object[]> rows = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                List<Double> embedding = embeddings.get(i);
+                float[] unit = VectorMath.normalize(VectorMath.toFloatArray(embedding));
+                rows.add(new Object[]{model, ids.get(i), -1, new JSONArray(embedding).toString(), norm(embedding),
+                        VectorMath.toArrayLiteral(unit), encode(unit)});
+            }
+
+            List<Object[]> chunks = jdbcTemplate.query(con -> {
+                PreparedStatement ps = con.prepareStatement(
+                        "SELECT document_id, chunk_index, content FROM chunks WHERE document_id = ANY(?) ORDER BY document_id, chunk_index");
+                ps.setArray(1, con.createArrayOf("bigint", ids.toArray()));
+                return ps;
+            }, (rs, rowNum) -> new Object[]{rs.getLong(1), rs.getInt(2), rs.getString(3)});
+            if (!chunks.isEmpty()) {
+                List<String> chunkTexts = new ArrayList<>(chunks.size());
+                for (Object[] chunk : chunks) {
+                    chunkTexts.add((String) chunk[2]);
+                }
+                List<List<Double>> chunkEmbeddings = embeddingService.getEmbeddingsBatch(model, chunkTexts);
+                texts += chunkTexts.size();
+                for (int i = 0; i < chunks.size(); i++) {
+                    float[] unit = VectorMath.normalize(VectorMath.toFloatArray(chunkEmbeddings.get(i)));
+                    rows.add(new Object[]{model, chunks.get(i)[0], chunks.get(i)[1], null, null,
+                            VectorMath.toArrayLiteral(unit), null});
+                }
+            }
+
+            // документ, удаленный во время прохода, пропускается условием EXISTS вместо ошибки внешнего ключа
+            jdbcTemplate.batchUpdate("""
+                    INSERT INTO model_embeddings (model, document_id, chunk_index, embedding, embedding_norm, embedding_unit, embedding_q)
+                    SELECT ?, ?, ?, CAST(? AS jsonb), ?, CAST(? AS real[]), ?
+                    WHERE EXISTS (SELECT 1 FROM documents WHERE id = ?)
+                    ON CONFLICT (model, document_id, chunk_index) DO NOTHING
+                    """, rows.stream().map(row -> new Object[]{row[0], row[1], row[2], row[3], row[4], row[5], row[6], row[1]}).toList());
+            processed += ids.size();
+            chunksProcessed += chunks.size();
+        } catch (Exception e) {
+            failed += ids.size();
+            System.err.println("Ошибка переиндексирования документов " + ids.get(0) + ".." + ids.get(ids.size() - 1)
+                    + ": " + e.getMessage());
+        }
+        throttle(texts, start);
+    }
+
+    /**
+     * Не больше max-texts-per-second текстов в секунду, чтобы фоновая задача не отнимала Ollama у пользователей
+     */
+    private void throttle(int texts, long start) {
+        if (maxTextsPerSecond <= 0 || texts == 0) {
+            return;
+        }
+        long wait = (long) (texts * 1000 / maxTextsPerSecond) - (System.currentTimeMillis() - start);
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelRequested = true;
+            }
+        }
+    }
+
+    private static double norm(List<Double> embedding) {
+        return Math.sqrt(embedding.stream()
+                .mapToDouble(d -> d * d)
+                .sum());
+    }
+
+    private byte[] encode(float[] unit) {
+        return EmbeddingCodec.isEnabled(vectorCodec) ? EmbeddingCodec.encode(unit, vectorCodec) : null;
+    }
+
+    /**
+     * Атомарное переключение. Блокировка documents останавливает вставку и удаление на время переноса;
+     * если за время прохода появились документы или фрагменты без вектора новой модели, переключение
+     * откладывается до следующего прохода. Активная модель запросов меняется до фиксации, пока блокировка
+     * еще держится, а индексы в памяти до этого выключаются: после фиксации нет момента, когда запрос
+     * считается старой моделью по новым векторам, а вставка, ждавшая блокировку, видит новую модель
+     * (DocumentService пересчитывает ее вектор)
+     */
+    private boolean trySwitch(String model) throws SQLException {
+        String previous = embeddingService.getEmbeddingName();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LOCK TABLE documents IN SHARE ROW EXCLUSIVE MODE");
+                }
+                long missing = countMissing(conn, model, """
+                        SELECT COUNT(*) FROM documents d
+                        WHERE NOT EXISTS (SELECT 1 FROM model_embeddings m
+                                          WHERE m.model = ? AND m.document_id = d.id AND m.chunk_index = -1)
+                        """);
+                missing += countMissing(conn, model, """
+                        SELECT COUNT(*) FROM chunks c
+                        WHERE NOT EXISTS (SELECT 1 FROM model_embeddings m
+                                          WHERE m.model = ? AND m.document_id = c.document_id AND m.chunk_index = c.chunk_index)
+                        """);
+                if (missing > 0) {
+                    conn.rollback();
+                    System.out.println("Переключение на модель " + model + " отложено: без вектора " + missing + " строк");
+                    return false;
+                }
+                try (Statement stmt = conn.createStatement()) {
+                    // центроиды IVF обучены на векторах старой модели
+                    stmt.execute("DELETE FROM ivf_centroids");
+                }
+                execute(conn, """
+                        UPDATE embeddings e
+                        SET embedding = m.embedding, embedding_norm = m.embedding_norm, embedding_unit = m.embedding_unit,
+                            embedding_q = m.embedding_q, ivf_list = NULL, model = m.model
+                        FROM model_embeddings m
+                        WHERE m.model = ? AND m.chunk_index = -1 AND m.document_id = e.document_id
+                        """, model);
+                execute(conn, """
+                        UPDATE chunks c SET embedding_unit = m.embedding_unit
+                        FROM model_embeddings m
+                        WHERE m.model = ? AND m.document_id = c.document_id AND m.chunk_index = c.chunk_index
+                        """, model);
+                execute(conn, "UPDATE embedding_namespace SET active_model = ?, switched_at = CURRENT_TIMESTAMP WHERE id = 1", model);
+                execute(conn, "DELETE FROM model_embeddings WHERE model = ?", model);
+                vectorIndexService.suspend();
+                ivfIndexService.suspend();
+                embeddingService.setEmbeddingName(model);
+                try {
+                    conn.commit();
+                } catch (SQLException e) {
+                    embeddingService.setEmbeddingName(previous);
+                    restoreIndexes();
+                    throw e;
+                }
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static long countMissing(Connection conn, String model, String sql) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, model);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private static void execute(Connection conn, String sql, String model) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, model);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Модель запросов уже переключена в trySwitch, индексы в памяти строятся заново по новым векторам
+     */
+    private void afterSwitch(String model) {
+        ollamaService.setEmbeddingName(model);
+        responseCache.clear();
+        restoreIndexes();
+    }
+
+    private void restoreIndexes() {
+        vectorIndexService.rebuild();
+        ivfIndexService.onModelSwitched();
+    }
+}
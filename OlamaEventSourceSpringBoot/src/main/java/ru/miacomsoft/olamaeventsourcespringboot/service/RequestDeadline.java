@@ -0,0 +1,106 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Крайний срок обработки запроса, общий для всех этапов (эмбеддинг, поиск, генерация) в текущем потоке.
+ * Транспорт Ollama ограничивает им время ожидания ответа, при передаче работы в другой поток срок
+ * переносится через wrap. Без установленного срока ограничений нет.
+ */
+public final class RequestDeadline {
+
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    public static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Exceeded(String stage) {
+            super("Превышено время обработки запроса (" + stage + ")");
+        }
+    }
+
+    private RequestDeadline() {
+    }
+
+    /**
+     * Срок в мс от System.currentTimeMillis для текущего потока; 0 - снять срок
+     */
+    public static void set(long deadlineAt) {
+        if (deadlineAt > 0) {
+            DEADLINE.set(deadlineAt);
+        } else {
+            DEADLINE.remove();
+        }
+    }
+
+    public static long get() {
+        Long deadlineAt = DEADLINE.get();
+        return deadlineAt != null ? deadlineAt : 0;
+    }
+
+    public static void clear() {
+        DEADLINE.remove();
+    }
+
+    /**
+     * Оставшееся время в мс (не меньше 0), Long.MAX_VALUE без срока
+     */
+    public static long remainingMs() {
+        Long deadlineAt = DEADLINE.get();
+        return deadlineAt == null ? Long.MAX_VALUE : Math.max(0, deadlineAt - System.currentTimeMillis());
+    }
+
+    public static void check(String stage) {
+        if (remainingMs() == 0) {
+            throw new Exceeded(stage);
+        }
+    }
+
+    /**
+     * Ожидание результата не дольше оставшегося срока
+     */
+    public static <T> T await(CompletableFuture<T> future, String stage) throws ExecutionException, InterruptedException {
+        long remaining = remainingMs();
+        if (remaining == Long.MAX_VALUE) {
+            return future.get();
+        }
+        try {
+            return future.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new Exceeded(stage);
+        }
+    }
+
+    /**
+     * Задача для другого потока с тем же сроком, что у текущего
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        long deadlineAt = get();
+        return () -> {
+            long previous = get();
+            set(deadlineAt);
+            try {
+                return task.call();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+
+    public static Runnable wrap(Runnable task) {
+        long deadlineAt = get();
+        return () -> {
+            long previous = get();
+            set(deadlineAt);
+            try {
+                task.run();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+}
@@ -0,0 +1,202 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Дублирующие (hedged) запросы для коротких вызовов Ollama: если выбранный сервер не ответил за задержку,
+ * равную percentile-му перцентилю последних времен ответа (в пределах min/max-delay-ms), тот же запрос
+ * уходит на второй сервер пула. Используется первый успешный ответ, второй запрос отменяется.
+ * Дублирование ограничено бюджетом: каждый запрос добавляет budget-percent/100 жетона (не больше burst),
+ * дубль тратит один жетон - дополнительная нагрузка не превышает budget-percent от числа запросов.
+ * Только для запросов без потока ответа (эмбеддинги, генерация со stream=false).
+ */
+public final class RequestHedger {
+
+    private static final int WINDOW = 512;
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Последние времена ответа одного вида запросов (путь + модель), кольцевой буфер
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[WINDOW];
+        private int count;
+        private int next;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+        }
+
+        synchronized long percentile(double percentile, long fallback) {
+            if (count < MIN_SAMPLES) {
+                return fallback;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+    private final OllamaEndpointPool pool;
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final double budgetRatio;
+    private final double burst;
+
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private double tokens;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetDenied = new AtomicLong();
+
+    public RequestHedger(OllamaEndpointPool pool, boolean enabled, double percentile, long minDelayMs, long maxDelayMs,
+                         double budgetPercent, int burst) {
+        this.pool = pool;
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayMs = Math.max(0, minDelayMs);
+        this.maxDelayMs = Math.max(this.minDelayMs, maxDelayMs);
+        this.budgetRatio = Math.max(0, budgetPercent) / 100.0;
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * Настройки rag.ollama.hedge.* для консольного клиента
+     */
+    public static RequestHedger fromProperties(Properties properties, OllamaEndpointPool pool) {
+        return new RequestHedger(pool,
+                Boolean.parseBoolean(properties.getProperty("rag.ollama.hedge.enabled", "false").trim()),
+                Double.parseDouble(properties.getProperty("rag.ollama.hedge.percentile", "95").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.hedge.min-delay-ms", "20").trim()),
+                Long.parseLong(properties.getProperty("rag.ollama.hedge.max-delay-ms", "2000").trim()),
+                Double.parseDouble(properties.getProperty("rag.ollama.hedge.budget-percent", "5").trim()),
+                Integer.parseInt(properties.getProperty("rag.ollama.hedge.burst", "10").trim()));
+    }
+
+    /**
+     * POST с дублированием на второй сервер; без второго допущенного сервера или при выключенном
+     * дублировании - обычный запрос через пул
+     */
+    public String post(String model, String path, String body) throws IOException {
+        if (!enabled || pool.getEndpoints().size() < 2) {
+            return pool.post(model, path, body);
+        }
+        requests.incrementAndGet();
+        deposit();
+        LatencyWindow window = latencies.computeIfAbsent(path + '\0' + model, k -> new LatencyWindow());
+        long delay = Math.max(minDelayMs, Math.min(maxDelayMs, window.percentile(percentile, maxDelayMs)));
+        delay = Math.min(delay, RequestDeadline.remainingMs());
+
+        CompletionService<String> completion = new ExecutorCompletionService<>(pool.getExecutor());
+        OllamaEndpointPool.Endpoint primary = pool.choose(model);
+        Future<String> first = completion.submit(timed(window, primary, model, path, body));
+        Future<String> second = null;
+        try {
+            Future<String> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done != null) {
+                return result(done);
+            }
+            OllamaEndpointPool.Endpoint backup = pool.choose(model, primary);
+            if (backup != null) {
+                if (withdraw()) {
+                    hedged.incrementAndGet();
+                    second = completion.submit(timed(window, backup, model, path, body));
+                } else {
+                    budgetDenied.incrementAndGet();
+                }
+            }
+            int pending = second != null ? 2 : 1;
+            IOException lastError = null;
+            while (pending-- > 0) {
+                long remaining = RequestDeadline.remainingMs();
+                done = remaining == Long.MAX_VALUE ? completion.take() : completion.poll(remaining, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    throw new RequestDeadline.Exceeded("ожидание Ollama");
+                }
+                try {
+                    String response = result(done);
+                    if (done == second) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return response;
+                } catch (IOException e) {
+                    // ошибка одного из запросов - ждем второй
+                    lastError = e;
+                }
+            }
+            throw lastError;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Запрос к Ollama прерван", e);
+        } finally {
+            // проигравший запрос прерывается: поток ответа закрывается, соединение возвращается в пул
+            first.cancel(true);
+            if (second != null) {
+                second.cancel(true);
+            }
+        }
+    }
+
+    private Callable<String> timed(LatencyWindow window, OllamaEndpointPool.Endpoint endpoint,
+                                   String model, String path, String body) {
+        // запрос выполняется в пуле с тем же сроком, что у вызывающего потока
+        return RequestDeadline.wrap(() -> {
+            long started = System.nanoTime();
+            String response = pool.send(endpoint, model, "POST", path, body);
+            window.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            return response;
+        });
+    }
+
+    private static String result(Future<String> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw cause instanceof RuntimeException runtime ? runtime : new RuntimeException(cause);
+        }
+    }
+
+    private synchronized void deposit() {
+        tokens = Math.min(burst, tokens + budgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", enabled);
+        stats.put("requests", requests.get());
+        stats.put("hedged", hedged.get());
+        stats.put("hedge_wins", hedgeWins.get());
+        stats.put("budget_denied", budgetDenied.get());
+        JSONObject delays = new JSONObject();
+        latencies.forEach((key, window) -> delays.put(key.replace('\0', ' '),
+                window.percentile(percentile, maxDelayMs)));
+        stats.put("p" + (int) percentile + "_ms", delays);
+        return stats;
+    }
+}
@@ -0,0 +1,205 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Семантический кэш ответов RAG. Запись - (эмбеддинг вопроса, отсортированные ID документов контекста,
+ * модель, режим chat/generate, область, ответ). Ответ переиспользуется, если новый вопрос похож на сохраненный не меньше
+ * rag.response-cache.similarity и поиск вернул тот же набор документов: новый релевантный документ меняет набор,
+ * поэтому устаревший ответ не попадет к пользователю. Область - хэш clientId и истории диалога: ответ,
+ * построенный в разговоре одного клиента, другому клиенту или в другом разговоре не выдается.
+ * Записи сгруппированы по ключу (модель, режим, область, документы), в группе не больше max-entries-per-key,
+ * поэтому поиск просматривает только одну небольшую группу. Записи с удаленным или измененным документом удаляются.
+ */
+@Service
+public class ResponseCache {
+
+    @Value("${rag.response-cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rag.response-cache.similarity:0.95}")
+    private double similarityThreshold;
+
+    @Value("${rag.response-cache.ttl-seconds:3600}")
+    private long ttlSeconds;
+
+    @Value("${rag.response-cache.max-entries:1000}")
+    private int maxEntries;
+
+    @Value("${rag.response-cache.max-entries-per-key:16}")
+    private int maxEntriesPerKey;
+
+    // группы записей в порядке последнего обращения: при переполнении удаляется самая давняя запись
+    private final LinkedHashMap<String, ArrayDeque<Entry>> groups = new LinkedHashMap<>(16, 0.75f, true);
+    private int size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static final class Entry {
+        private final float[] question;
+        private final long[] documentIds;
+        private final String model;
+        private final boolean chat;
+        private final String answer;
+        private final long createdAt;
+
+        private Entry(float[] question, long[] documentIds, String model, boolean chat, String answer) {
+            this.question = question;
+            this.documentIds = documentIds;
+            this.model = model;
+            this.chat = chat;
+            this.answer = answer;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public String getAnswer() {
+            return answer;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Ключ поиска: нормализованный эмбеддинг вопроса, тот же, что использовал поиск контекста
+     */
+    public float[] questionVector(List<Double> questionEmbedding) {
+        return VectorMath.normalize(VectorMath.toFloatArray(questionEmbedding));
+    }
+
+    /**
+     * Область кэша: SHA-256 от clientId и сообщений истории (кроме последнего - текущего вопроса).
+     * history == null - запрос без истории (generate)
+     */
+    public static String scope(String clientId, JSONArray history, int historyLength) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(clientId).getBytes(StandardCharsets.UTF_8));
+            if (history != null) {
+                for (int i = 0; i < historyLength; i++) {
+                    digest.update((byte) 0);
+                    digest.update(history.get(i).toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Самый похожий неустаревший ответ для того же набора документов, модели и области, иначе null
+     */
+    public synchronized Entry lookup(float[] question, List<Long> documentIds, String model, boolean chat, String scope) {
+        if (!enabled) {
+            return null;
+        }
+        ArrayDeque<Entry> group = groups.get(key(model, chat, scope, sortedIds(documentIds)));
+        Entry best = null;
+        if (group != null) {
+            long expiredBefore = System.currentTimeMillis() - ttlSeconds * 1000;
+            int before = group.size();
+            group.removeIf(entry -> entry.createdAt < expiredBefore);
+            size -= before - group.size();
+            best = mostSimilar(group, question);
+        }
+        if (best == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return best;
+    }
+
+    private Entry mostSimilar(ArrayDeque<Entry> group, float[] question) {
+        Entry best = null;
+        double bestSimilarity = similarityThreshold;
+        for (Entry entry : group) {
+            if (entry.question.length != question.length) {
+                continue;
+            }
+            double similarity = VectorMath.dot(entry.question, question);
+            if (similarity >= bestSimilarity) {
+                bestSimilarity = similarity;
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    public synchronized void put(float[] question, List<Long> documentIds, String model, boolean chat, String scope,
+                                 String answer) {
+        if (!enabled || answer == null || answer.isBlank()) {
+            return;
+        }
+        long[] ids = sortedIds(documentIds);
+        ArrayDeque<Entry> group = groups.computeIfAbsent(key(model, chat, scope, ids), k -> new ArrayDeque<>());
+        if (group.size() >= Math.max(1, maxEntriesPerKey)) {
+            group.pollFirst();
+            size--;
+        }
+        group.addLast(new Entry(question, ids, model, chat, answer));
+        size++;
+        while (size > maxEntries) {
+            Iterator<ArrayDeque<Entry>> eldest = groups.values().iterator();
+            ArrayDeque<Entry> oldest = eldest.next();
+            oldest.pollFirst();
+            size--;
+            if (oldest.isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Документ удален или изменен: ответы, построенные на нем, больше не действительны
+     */
+    public synchronized void onDocumentChanged(long documentId) {
+        Iterator<ArrayDeque<Entry>> iterator = groups.values().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<Entry> group = iterator.next();
+            Entry first = group.peekFirst();
+            // у всех записей группы один набор документов
+            if (first != null && Arrays.binarySearch(first.documentIds, documentId) >= 0) {
+                size -= group.size();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Векторы вопросов посчитаны прежней моделью эмбеддингов и с новыми не сравнимы
+     */
+    public synchronized void clear() {
+        groups.clear();
+        size = 0;
+    }
+
+    private static String key(String model, boolean chat, String scope, long[] ids) {
+        return model + '\0' + chat + '\0' + scope + '\0' + Arrays.toString(ids);
+    }
+
+    public synchronized JSONObject getStatistics() {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("entries", size);
+        stats.put("keys", groups.size());
+        return stats;
+    }
+
+    private static long[] sortedIds(List<Long> documentIds) {
+        return documentIds.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+}
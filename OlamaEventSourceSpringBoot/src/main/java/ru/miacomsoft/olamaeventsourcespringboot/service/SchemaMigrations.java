@@ -0,0 +1,777 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.sql.*;
+import java.util.Properties;
+
+/**
+ * DDL и миграции хранения векторов, общие для DatabaseInitializer и консольного клиента (PostgresDatabase).
+ * Без зависимостей от Spring: методы принимают открытое соединение и настройки.
+ */
+public final class SchemaMigrations {
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * Колонка embedding_unit REAL[] с L2-нормализованным эмбеддингом и SQL ядро сходства dot_product.
+     * Нормализованные векторы пишутся при вставке, существующие строки заполняются пакетами при старте.
+     */
+    public static void ensureUnitVectorStorage(Connection conn, Properties props) {
+        int batchSize = Integer.parseInt(props.getProperty("rag.vector.unit.backfill-batch", "1000").trim());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE embeddings ADD COLUMN IF NOT EXISTS embedding_unit REAL[]");
+
+            // Скалярное произведение на чистом SQL: без построчного приведения JSON и без пересчета норм
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION dot_product(vec1 REAL[], vec2 REAL[])
+                RETURNS DOUBLE PRECISION AS $$
+                    SELECT SUM(a::DOUBLE PRECISION * b)
+                    FROM unnest(vec1, vec2) AS t(a, b)
+                $$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
+                """);
+
+            // Нормализация JSONB эмбеддинга в REAL[] (для заполнения колонки и для запросов с JSONB параметром)
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION jsonb_to_unit(vec JSONB)
+                RETURNS REAL[] AS $$
+                    SELECT ARRAY_AGG(COALESCE(t.v::DOUBLE PRECISION / NULLIF(n.norm, 0), 0)::REAL ORDER BY t.i)
+                    FROM jsonb_array_elements_text(vec) WITH ORDINALITY AS t(v, i),
+                         (SELECT SQRT(SUM(x.v::DOUBLE PRECISION * x.v::DOUBLE PRECISION)) AS norm
+                          FROM jsonb_array_elements_text(vec) AS x(v)) n
+                $$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
+                """);
+
+            // OFFSET 0 не дает планировщику развернуть подзапрос, поэтому сходство вычисляется один раз на строку
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION find_similar_documents(
+                    query_embedding JSONB,
+                    similarity_threshold DOUBLE PRECISION DEFAULT 0.8,
+                    top_k INTEGER DEFAULT 5
+                )
+                RETURNS TABLE(
+                    document_id BIGINT,
+                    content TEXT,
+                    embedding JSONB,
+                    similarity_percent DOUBLE PRECISION
+                ) AS $$
+                DECLARE
+                    query_unit REAL[] := jsonb_to_unit(query_embedding);
+                BEGIN
+                    RETURN QUERY
+                    SELECT
+                        d.id,
+                        d.content,
+                        s.embedding,
+                        s.similarity * 100 as similarity_percent
+                    FROM (
+                        SELECT e.document_id, e.embedding, dot_product(e.embedding_unit, query_unit) AS similarity
+                        FROM embeddings e
+                        OFFSET 0
+                    ) s
+                    JOIN documents d ON d.id = s.document_id
+                    WHERE s.similarity >= similarity_threshold
+                    ORDER BY s.similarity DESC
+                    LIMIT top_k;
+                END;
+                $$ LANGUAGE plpgsql;
+                """);
+            System.out.println("Колонка embedding_unit и функции dot_product, jsonb_to_unit созданы или обновлены");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки embedding_unit: " + e.getMessage());
+            return;
+        }
+
+        migrateInBatches(conn, """
+                UPDATE embeddings SET embedding_unit = jsonb_to_unit(embedding)
+                WHERE id IN (
+                    SELECT id FROM embeddings
+                    WHERE embedding_unit IS NULL AND id > ?
+                    ORDER BY id
+                    LIMIT ?
+                )
+                RETURNING id
+                """, batchSize, "Заполнение embedding_unit");
+    }
+
+    /**
+     * Колонка embedding_q BYTEA с квантованным эмбеддингом (формат EmbeddingCodec) и функция quantized_dot,
+     * считающая сходство прямо по байтам. При включенном rag.vector.codec JSONB и REAL[] вытесняются в TOAST
+     * (toast_tuple_target), в основной странице таблицы остается только компактный код, поэтому поиск
+     * по embedding_q читает на порядок меньше данных. Существующие строки кодируются пакетами.
+     */
+    public static void ensureQuantizedStorage(Connection conn, Properties props) {
+        String codec = props.getProperty("rag.vector.codec", "none").trim();
+        int batchSize = Integer.parseInt(props.getProperty("rag.vector.codec.backfill-batch", "1000").trim());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE embeddings ADD COLUMN IF NOT EXISTS embedding_q BYTEA");
+
+            // float32 little-endian из 4 байт начиная с pos
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION bytea_float4(b BYTEA, pos INTEGER)
+                RETURNS DOUBLE PRECISION AS $$
+                    SELECT CASE WHEN y.e = 0 THEN y.m * power(2::DOUBLE PRECISION, -149)
+                                ELSE (1 + y.m / 8388608.0::DOUBLE PRECISION) * power(2::DOUBLE PRECISION, y.e - 127)
+                           END * (1 - 2 * y.s)
+                    FROM (
+                        SELECT (x.bits >> 31) & 1 AS s, (x.bits >> 23) & 255 AS e, x.bits & 8388607 AS m
+                        FROM (
+                            SELECT get_byte(b, pos)::BIGINT
+                                 | (get_byte(b, pos + 1)::BIGINT << 8)
+                                 | (get_byte(b, pos + 2)::BIGINT << 16)
+                                 | (get_byte(b, pos + 3)::BIGINT << 24) AS bits
+                        ) x
+                    ) y
+                $$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
+                """);
+
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION half_to_float8(h INTEGER)
+                RETURNS DOUBLE PRECISION AS $$
+                    SELECT CASE WHEN ((h >> 10) & 31) = 0 THEN (h & 1023) * power(2::DOUBLE PRECISION, -24)
+                                ELSE (1 + (h & 1023) / 1024.0::DOUBLE PRECISION) * power(2::DOUBLE PRECISION, ((h >> 10) & 31) - 15)
+                           END * CASE WHEN (h & 32768) <> 0 THEN -1 ELSE 1 END
+                $$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
+                """);
+
+            // Сходство по квантованному вектору: для int8 scale * sum(q * b) + offset * sum(q), для float16 - sum(q * h)
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION quantized_dot(code BYTEA, query REAL[])
+                RETURNS DOUBLE PRECISION AS $$
+                    SELECT CASE get_byte(code, 0)
+                        WHEN 1 THEN (
+                            SELECT bytea_float4(code, 1) * SUM(t.q::DOUBLE PRECISION * get_byte(code, 8 + t.i::INTEGER))
+                                 + bytea_float4(code, 5) * SUM(t.q::DOUBLE PRECISION)
+                            FROM unnest(query) WITH ORDINALITY AS t(q, i)
+                            WHERE t.i <= length(code) - 9)
+                        WHEN 2 THEN (
+                            SELECT SUM(t.q::DOUBLE PRECISION * half_to_float8(
+                                       get_byte(code, 2 * t.i::INTEGER - 1) | (get_byte(code, 2 * t.i::INTEGER) << 8)))
+                            FROM unnest(query) WITH ORDINALITY AS t(q, i)
+                            WHERE t.i <= (length(code) - 1) / 2)
+                    END
+                $$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
+                """);
+
+            if (EmbeddingCodec.isEnabled(codec)) {
+                stmt.execute("ALTER TABLE embeddings ALTER COLUMN embedding_q SET STORAGE PLAIN");
+                stmt.execute("ALTER TABLE embeddings ALTER COLUMN embedding_unit SET STORAGE EXTERNAL");
+                stmt.execute("ALTER TABLE embeddings SET (toast_tuple_target = 256)");
+            }
+            System.out.println("Колонка embedding_q и функция quantized_dot созданы или обновлены (кодек: " + codec + ")");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки embedding_q: " + e.getMessage());
+            return;
+        }
+        if (EmbeddingCodec.isEnabled(codec)) {
+            backfillQuantized(conn, codec, batchSize);
+        }
+    }
+
+    /**
+     * Кодирует embedding_unit существующих строк в embedding_q. Кодирование на стороне Java,
+     * поэтому вместо migrateInBatches - чтение пакета и пакетный UPDATE.
+     */
+    private static void backfillQuantized(Connection conn, String codec, int batchSize) {
+        long lastId = 0;
+        long migrated = 0;
+        try (PreparedStatement select = conn.prepareStatement(
+                "SELECT id, embedding_unit FROM embeddings " +
+                        "WHERE embedding_q IS NULL AND embedding_unit IS NOT NULL AND id > ? ORDER BY id LIMIT ?");
+             PreparedStatement update = conn.prepareStatement("UPDATE embeddings SET embedding_q = ? WHERE id = ?")) {
+            while (true) {
+                select.setLong(1, lastId);
+                select.setInt(2, batchSize);
+                int batchCount = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastId = rs.getLong(1);
+                        Object[] values = (Object[]) rs.getArray(2).getArray();
+                        float[] unit = new float[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            unit[i] = ((Number) values[i]).floatValue();
+                        }
+                        update.setBytes(1, EmbeddingCodec.encode(unit, codec));
+                        update.setLong(2, lastId);
+                        update.addBatch();
+                        batchCount++;
+                    }
+                }
+                if (batchCount == 0) {
+                    break;
+                }
+                update.executeBatch();
+                migrated += batchCount;
+                System.out.println("Заполнение embedding_q: обработано " + migrated + " строк");
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка пакетной миграции (Заполнение embedding_q): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Время изменения вектора embeddings.updated_at: триггер ставит его при вставке и при изменении
+     * embedding, embedding_unit или embedding_q. По нему хранилище mmap находит векторы, измененные с прошлой сверки
+     */
+    public static void ensureEmbeddingUpdatedAt(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE embeddings ADD COLUMN IF NOT EXISTS updated_at TIMESTAMPTZ");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_embeddings_updated_at ON embeddings(updated_at)");
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION embeddings_touch_updated_at()
+                RETURNS TRIGGER AS $$
+                BEGIN
+                    NEW.updated_at := clock_timestamp();
+                    RETURN NEW;
+                END;
+                $$ LANGUAGE plpgsql;
+                """);
+            stmt.execute("DROP TRIGGER IF EXISTS trg_embeddings_updated_at ON embeddings");
+            stmt.execute("""
+                CREATE TRIGGER trg_embeddings_updated_at
+                BEFORE INSERT OR UPDATE OF embedding, embedding_unit, embedding_q ON embeddings
+                FOR EACH ROW EXECUTE FUNCTION embeddings_touch_updated_at()
+                """);
+            System.out.println("Колонка embeddings.updated_at и триггер обновления созданы");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки embeddings.updated_at: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Хранение IVF индекса: центроиды k-means в ivf_centroids и номер списка embeddings.ivf_list.
+     * При rag.vector.ivf.enabled триггер назначает список строкам, которые пришли без него (PostgresDatabase,
+     * загрузка DDL Oracle), поэтому вставка добавляет строку ровно в один список без перестроения индекса.
+     * Без IVF триггер удаляется: вставка не платит за поиск ближайшего центроида.
+     */
+    public static void ensureIvfStorage(Connection conn, Properties props) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS ivf_centroids (
+                    list_id INTEGER PRIMARY KEY,
+                    centroid REAL[] NOT NULL,
+                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                )
+                """);
+            stmt.execute("ALTER TABLE embeddings ADD COLUMN IF NOT EXISTS ivf_list INTEGER");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_embeddings_ivf_list ON embeddings(ivf_list)");
+            stmt.execute("DROP TRIGGER IF EXISTS trg_embeddings_assign_ivf_list ON embeddings");
+            if (!isIvfEnabled(props)) {
+                System.out.println("Таблица ivf_centroids и колонка ivf_list созданы, IVF выключен - триггер не установлен");
+                return;
+            }
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION embeddings_assign_ivf_list()
+                RETURNS TRIGGER AS $$
+                BEGIN
+                    IF NEW.embedding_unit IS NOT NULL AND (NEW.ivf_list IS NULL OR
+                        (TG_OP = 'UPDATE' AND NEW.embedding_unit IS DISTINCT FROM OLD.embedding_unit
+                         AND NEW.ivf_list IS NOT DISTINCT FROM OLD.ivf_list)) THEN
+                        SELECT c.list_id INTO NEW.ivf_list
+                        FROM ivf_centroids c
+                        ORDER BY dot_product(NEW.embedding_unit, c.centroid) DESC NULLS LAST
+                        LIMIT 1;
+                    END IF;
+                    RETURN NEW;
+                END;
+                $$ LANGUAGE plpgsql;
+                """);
+            stmt.execute("""
+                CREATE TRIGGER trg_embeddings_assign_ivf_list
+                BEFORE INSERT OR UPDATE OF embedding_unit ON embeddings
+                FOR EACH ROW EXECUTE FUNCTION embeddings_assign_ivf_list()
+                """);
+            System.out.println("Таблица ivf_centroids, колонка ivf_list и триггер назначения списка созданы");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании хранения IVF индекса: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Полнотекстовый поиск: колонка documents.content_tsv с конфигурацией simple (без стемминга,
+     * имена таблиц и пакетов остаются как есть) и GIN индекс по ней.
+     * Символы _ $ # заменяются на дефис: парсер сохраняет составное слово целиком и его части,
+     * поэтому находится и точное имя EMP_DEPT_V, и отдельное слово DEPT.
+     * Колонку заполняет триггер, старые строки - пакетами: добавление пустой колонки не перезаписывает таблицу
+     * и не держит ACCESS EXCLUSIVE блокировку, как GENERATED ... STORED.
+     */
+    public static void ensureLexicalSearch(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE documents ADD COLUMN IF NOT EXISTS content_tsv tsvector");
+            // колонка, созданная как GENERATED ... STORED, становится обычной без перезаписи таблицы (PostgreSQL 13+)
+            boolean generated;
+            try (ResultSet rs = stmt.executeQuery("""
+                    SELECT attgenerated = 's' FROM pg_attribute
+                    WHERE attrelid = 'documents'::regclass AND attname = 'content_tsv'
+                    """)) {
+                generated = rs.next() && rs.getBoolean(1);
+            }
+            if (generated) {
+                stmt.execute("ALTER TABLE documents ALTER COLUMN content_tsv DROP EXPRESSION");
+            }
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION documents_content_tsv()
+                RETURNS TRIGGER AS $$
+                BEGIN
+                    NEW.content_tsv := to_tsvector('simple'::regconfig, translate(NEW.content, '_$#', '---'));
+                    RETURN NEW;
+                END;
+                $$ LANGUAGE plpgsql;
+                """);
+            stmt.execute("DROP TRIGGER IF EXISTS trg_documents_content_tsv ON documents");
+            stmt.execute("""
+                CREATE TRIGGER trg_documents_content_tsv
+                BEFORE INSERT OR UPDATE OF content ON documents
+                FOR EACH ROW EXECUTE FUNCTION documents_content_tsv()
+                """);
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки content_tsv: " + e.getMessage());
+            return;
+        }
+        migrateInBatches(conn, """
+                UPDATE documents SET content_tsv = to_tsvector('simple'::regconfig, translate(content, '_$#', '---'))
+                WHERE id IN (SELECT id FROM documents WHERE content_tsv IS NULL AND id > ? ORDER BY id LIMIT ?)
+                RETURNING id
+                """, 1000, "Заполнение content_tsv");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_documents_content_tsv ON documents USING GIN (content_tsv)");
+            System.out.println("Колонка content_tsv и GIN индекс полнотекстового поиска созданы");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании полнотекстового индекса: " + e.getMessage());
+        }
+    }
+
+    /**
+     * SHA-256 содержимого документа (documents.content_sha256) с уникальным индексом: проверка точного дубликата -
+     * поиск по индексу вместо сравнения TEXT по всей таблице, вставка - INSERT ... ON CONFLICT DO NOTHING.
+     * Если одинаковые документы загружены раньше, запуск прерывается с их числом и примерами id: удаляются они
+     * только при rag.dedup.remove-existing-duplicates=true. Без индекса запуск тоже прерывается.
+     */
+    public static void ensureContentHash(Connection conn, Properties props) {
+        boolean removeDuplicates = Boolean.parseBoolean(
+                props.getProperty("rag.dedup.remove-existing-duplicates", "false").trim());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE documents ADD COLUMN IF NOT EXISTS content_sha256 BYTEA");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки content_sha256: " + e.getMessage());
+            return;
+        }
+        migrateInBatches(conn, """
+                UPDATE documents SET content_sha256 = sha256(convert_to(content, 'UTF8'))
+                WHERE id IN (SELECT id FROM documents WHERE content_sha256 IS NULL AND id > ? ORDER BY id LIMIT ?)
+                RETURNING id
+                """, 1000, "Заполнение content_sha256");
+        try (Statement stmt = conn.createStatement()) {
+            if (removeDuplicates) {
+                // явно включено: остается документ с наименьшим id, эмбеддинги, фрагменты и корзины остальных
+                // удаляются каскадно
+                int removed = stmt.executeUpdate("""
+                    DELETE FROM documents d USING documents k
+                    WHERE d.content_sha256 = k.content_sha256 AND d.id > k.id
+                    """);
+                if (removed > 0) {
+                    System.out.println("Удалено точных дубликатов документов: " + removed);
+                }
+            } else {
+                checkNoDuplicates(stmt);
+            }
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_documents_content_sha256 ON documents(content_sha256)");
+            stmt.execute("DROP INDEX IF EXISTS idx_documents_content_sha256_lookup");
+            System.out.println("Колонка content_sha256 и уникальный индекс созданы");
+        } catch (SQLException e) {
+            // без уникального индекса вставка ON CONFLICT DO NOTHING пропускает дубликаты - запуск прерывается
+            throw new IllegalStateException("Уникальный индекс content_sha256 не создан: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Точные дубликаты, загруженные до появления индекса, не удаляются молча: у них могут быть разные метаданные
+     */
+    private static void checkNoDuplicates(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("""
+                SELECT count(*), (array_agg(d.id ORDER BY d.id))[1:10]
+                FROM documents d
+                WHERE EXISTS (SELECT 1 FROM documents k WHERE k.content_sha256 = d.content_sha256 AND k.id < d.id)
+                """)) {
+            rs.next();
+            long duplicates = rs.getLong(1);
+            if (duplicates > 0) {
+                throw new IllegalStateException("Найдено " + duplicates + " документов, повторяющих содержимое "
+                        + "документа с меньшим id (например, id " + rs.getString(2) + "). Удалите их вручную "
+                        + "или запустите с rag.dedup.remove-existing-duplicates=true");
+            }
+        }
+    }
+
+    /**
+     * Оценка числа токенов документа (ContextAssembler.estimateTokens) для сборки контекста по бюджету.
+     * Считается при загрузке документа, для старых документов - пакетами при старте
+     */
+    public static void ensureTokenCounts(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE documents ADD COLUMN IF NOT EXISTS token_count INTEGER");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки token_count: " + e.getMessage());
+            return;
+        }
+        long lastId = 0;
+        long migrated = 0;
+        try (PreparedStatement select = conn.prepareStatement(
+                "SELECT id, content FROM documents WHERE token_count IS NULL AND id > ? ORDER BY id LIMIT ?");
+             PreparedStatement update = conn.prepareStatement("UPDATE documents SET token_count = ? WHERE id = ?")) {
+            while (true) {
+                select.setLong(1, lastId);
+                select.setInt(2, 500);
+                int batchCount = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastId = rs.getLong(1);
+                        update.setInt(1, ContextAssembler.estimateTokens(rs.getString(2)));
+                        update.setLong(2, lastId);
+                        update.addBatch();
+                        batchCount++;
+                    }
+                }
+                if (batchCount == 0) {
+                    break;
+                }
+                update.executeBatch();
+                migrated += batchCount;
+                System.out.println("Заполнение token_count: обработано " + migrated + " документов");
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка пакетной миграции (Заполнение token_count): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Фрагменты больших документов (DocumentChunker) с нормализованным эмбеддингом на каждый фрагмент.
+     * Строки удаляются каскадно вместе с документом
+     */
+    public static void ensureChunkStorage(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS chunks (
+                    id BIGSERIAL PRIMARY KEY,
+                    document_id BIGINT NOT NULL REFERENCES documents(id) ON DELETE CASCADE,
+                    chunk_index INTEGER NOT NULL,
+                    content TEXT NOT NULL,
+                    start_offset INTEGER NOT NULL,
+                    token_count INTEGER NOT NULL,
+                    embedding_unit REAL[] NOT NULL,
+                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    UNIQUE (document_id, chunk_index)
+                )
+                """);
+            System.out.println("Таблица фрагментов документов chunks создана");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании таблицы chunks: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Пространства имен эмбеддингов: embeddings.model - модель, которой посчитан вектор, model_embeddings - векторы
+     * другой модели, которые фоновое переиндексирование (ReembeddingService) пишет рядом со старыми
+     * (chunk_index = -1 - документ целиком), embedding_namespace - активная модель
+     */
+    public static void ensureEmbeddingNamespaces(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE embeddings ADD COLUMN IF NOT EXISTS model TEXT");
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS model_embeddings (
+                    model TEXT NOT NULL,
+                    document_id BIGINT NOT NULL REFERENCES documents(id) ON DELETE CASCADE,
+                    chunk_index INTEGER NOT NULL,
+                    embedding JSONB,
+                    embedding_norm DOUBLE PRECISION,
+                    embedding_unit REAL[] NOT NULL,
+                    embedding_q BYTEA,
+                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    PRIMARY KEY (model, document_id, chunk_index)
+                )
+                """);
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS embedding_namespace (
+                    id SMALLINT PRIMARY KEY DEFAULT 1 CHECK (id = 1),
+                    active_model TEXT NOT NULL,
+                    switched_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                )
+                """);
+            System.out.println("Таблицы пространств имен эмбеддингов созданы");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании таблиц пространств имен эмбеддингов: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Активная модель эмбеддингов. При первом запуске активной становится defaultModel, и ею помечаются
+     * уже существующие векторы без модели
+     */
+    public static String activateEmbeddingNamespace(Connection conn, String defaultModel) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO embedding_namespace (id, active_model) VALUES (1, ?) ON CONFLICT (id) DO NOTHING")) {
+            insert.setString(1, defaultModel);
+            insert.executeUpdate();
+        }
+        String active;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT active_model FROM embedding_namespace WHERE id = 1")) {
+            rs.next();
+            active = rs.getString(1);
+        }
+        try (PreparedStatement backfill = conn.prepareStatement("UPDATE embeddings SET model = ? WHERE model IS NULL")) {
+            backfill.setString(1, active);
+            int updated = backfill.executeUpdate();
+            if (updated > 0) {
+                System.out.println("Эмбеддингам без модели назначена модель " + active + ": " + updated);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Общий кэш эмбеддингов (EmbeddingCache): UNLOGGED - без записи в WAL, после сбоя сервера таблица
+     * очищается, что для кэша допустимо
+     */
+    public static void ensureEmbeddingCache(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("""
+                CREATE UNLOGGED TABLE IF NOT EXISTS embedding_cache (
+                    model TEXT NOT NULL,
+                    text_sha256 BYTEA NOT NULL,
+                    embedding REAL[] NOT NULL,
+                    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    PRIMARY KEY (model, text_sha256)
+                )
+                """);
+            System.out.println("Таблица кэша эмбеддингов embedding_cache создана");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании таблицы embedding_cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * MinHash сигнатура документа (documents.minhash, формат MinHashLsh.toBytes), параметры, с которыми она
+     * посчитана (documents.minhash_params), и LSH корзины document_lsh_bands. Проверка дубликата при вставке -
+     * поиск по первичному ключу корзин вместо полного сканирования эмбеддингов.
+     * Возвращает false, если хранение не создано: тогда сигнатуры не пишутся.
+     */
+    public static boolean ensureMinHashStorage(Connection conn) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE documents ADD COLUMN IF NOT EXISTS minhash BYTEA");
+            stmt.execute("ALTER TABLE documents ADD COLUMN IF NOT EXISTS minhash_params TEXT");
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS document_lsh_bands (
+                    band_key BIGINT NOT NULL,
+                    document_id BIGINT NOT NULL REFERENCES documents(id) ON DELETE CASCADE,
+                    PRIMARY KEY (band_key, document_id)
+                )
+                """);
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_document_lsh_bands_document_id ON document_lsh_bands(document_id)");
+            System.out.println("Колонка minhash и таблица LSH корзин document_lsh_bands созданы");
+            return true;
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании хранения MinHash: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Пересчет сигнатур и корзин документов без сигнатуры или с сигнатурой других параметров (bands, rows,
+     * shingle-size), пакетами по batchSize. Долгая операция: вызывается в фоновом потоке, не при старте
+     */
+    public static void backfillMinHash(Connection conn, MinHashLsh lsh, int batchSize) {
+        long lastId = 0;
+        long migrated = 0;
+        String params = lsh.getParams();
+        try (PreparedStatement select = conn.prepareStatement(
+                "SELECT id, content FROM documents " +
+                        "WHERE (minhash IS NULL OR minhash_params IS DISTINCT FROM ?) AND id > ? ORDER BY id LIMIT ?");
+             PreparedStatement update = conn.prepareStatement(
+                     "UPDATE documents SET minhash = ?, minhash_params = ? WHERE id = ?");
+             PreparedStatement deleteBands = conn.prepareStatement("DELETE FROM document_lsh_bands WHERE document_id = ?");
+             PreparedStatement insertBand = conn.prepareStatement(
+                     "INSERT INTO document_lsh_bands (band_key, document_id) VALUES (?, ?) ON CONFLICT DO NOTHING")) {
+            while (true) {
+                select.setString(1, params);
+                select.setLong(2, lastId);
+                select.setInt(3, batchSize);
+                int batchCount = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastId = rs.getLong(1);
+                        int[] signature = lsh.signature(rs.getString(2));
+                        update.setBytes(1, MinHashLsh.toBytes(signature));
+                        update.setString(2, params);
+                        update.setLong(3, lastId);
+                        update.addBatch();
+                        deleteBands.setLong(1, lastId);
+                        deleteBands.addBatch();
+                        for (long key : lsh.bandKeys(signature)) {
+                            insertBand.setLong(1, key);
+                            insertBand.setLong(2, lastId);
+                            insertBand.addBatch();
+                        }
+                        batchCount++;
+                    }
+                }
+                if (batchCount == 0) {
+                    break;
+                }
+                update.executeBatch();
+                deleteBands.executeBatch();
+                insertBand.executeBatch();
+                migrated += batchCount;
+                System.out.println("Заполнение minhash: обработано " + migrated + " документов");
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка пакетной миграции (Заполнение minhash): " + e.getMessage());
+        }
+    }
+
+    public static boolean isIvfEnabled(Properties props) {
+        return Boolean.parseBoolean(props.getProperty("rag.vector.ivf.enabled", "false").trim());
+    }
+
+    public static boolean isPgvectorStorage(Properties props) {
+        return "pgvector".equalsIgnoreCase(props.getProperty("rag.vector.storage", "jsonb").trim());
+    }
+
+    /**
+     * Режим хранения pgvector: колонка embedding_vec vector(n), заполняемая триггером из JSONB,
+     * пакетная миграция существующих строк, индекс HNSW или IVFFlat и find_similar_documents через оператор <=>.
+     * Используется и при старте Spring приложения, и в PostgresDatabase.
+     */
+    public static void ensurePgvectorStorage(Connection conn, Properties props) {
+        int dimension = Integer.parseInt(props.getProperty("rag.vector.pgvector.dimension", "384").trim());
+        int batchSize = Integer.parseInt(props.getProperty("rag.vector.pgvector.migration-batch", "1000").trim());
+        String indexType = props.getProperty("rag.vector.pgvector.index", "hnsw").trim().toLowerCase();
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE EXTENSION IF NOT EXISTS vector");
+            stmt.execute("ALTER TABLE embeddings ADD COLUMN IF NOT EXISTS embedding_vec vector(" + dimension + ")");
+
+            // Триггер поддерживает embedding_vec для всех путей записи (JPA, PostgresDatabase, ручной SQL)
+            // Вектор другой размерности (смена модели эмбеддингов) не ломает вставку, а оставляет embedding_vec пустым
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION embeddings_sync_vector()
+                RETURNS TRIGGER AS $$
+                BEGIN
+                    IF jsonb_array_length(NEW.embedding) = %d THEN
+                        NEW.embedding_vec := (NEW.embedding::text)::vector;
+                    ELSE
+                        NEW.embedding_vec := NULL;
+                    END IF;
+                    RETURN NEW;
+                END;
+                $$ LANGUAGE plpgsql;
+                """.formatted(dimension));
+            stmt.execute("DROP TRIGGER IF EXISTS trg_embeddings_sync_vector ON embeddings");
+            stmt.execute("""
+                CREATE TRIGGER trg_embeddings_sync_vector
+                BEFORE INSERT OR UPDATE OF embedding ON embeddings
+                FOR EACH ROW EXECUTE FUNCTION embeddings_sync_vector()
+                """);
+            System.out.println("Колонка embedding_vec vector(" + dimension + ") и триггер синхронизации созданы");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании колонки pgvector: " + e.getMessage());
+            return;
+        }
+
+        // Строки с неподходящей размерностью пропускаются и остаются с пустым embedding_vec
+        migrateInBatches(conn, """
+                UPDATE embeddings SET embedding_vec = (embedding::text)::vector
+                WHERE id IN (
+                    SELECT id FROM embeddings
+                    WHERE embedding_vec IS NULL AND id > ? AND jsonb_array_length(embedding) = %d
+                    ORDER BY id
+                    LIMIT ?
+                )
+                RETURNING id
+                """.formatted(dimension), batchSize, "Миграция JSONB -> vector");
+
+        try (Statement stmt = conn.createStatement()) {
+            if ("ivfflat".equals(indexType)) {
+                int lists = Integer.parseInt(props.getProperty("rag.vector.pgvector.lists", "100").trim());
+                stmt.execute("DROP INDEX IF EXISTS idx_embeddings_embedding_vec_hnsw");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_embeddings_embedding_vec_ivfflat ON embeddings " +
+                        "USING ivfflat (embedding_vec vector_cosine_ops) WITH (lists = " + lists + ")");
+            } else {
+                int m = Integer.parseInt(props.getProperty("rag.vector.pgvector.hnsw.m", "16").trim());
+                int efConstruction = Integer.parseInt(props.getProperty("rag.vector.pgvector.hnsw.ef-construction", "64").trim());
+                stmt.execute("DROP INDEX IF EXISTS idx_embeddings_embedding_vec_ivfflat");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_embeddings_embedding_vec_hnsw ON embeddings " +
+                        "USING hnsw (embedding_vec vector_cosine_ops) WITH (m = " + m + ", ef_construction = " + efConstruction + ")");
+            }
+            System.out.println("Индекс pgvector (" + indexType + ") создан или уже существует");
+
+            // Поиск через индексируемый оператор: сначала top_k по расстоянию, затем отсечение по порогу
+            stmt.execute("""
+                CREATE OR REPLACE FUNCTION find_similar_documents(
+                    query_embedding JSONB,
+                    similarity_threshold DOUBLE PRECISION DEFAULT 0.8,
+                    top_k INTEGER DEFAULT 5
+                )
+                RETURNS TABLE(
+                    document_id BIGINT,
+                    content TEXT,
+                    embedding JSONB,
+                    similarity_percent DOUBLE PRECISION
+                ) AS $$
+                DECLARE
+                    query_vec vector := (query_embedding::text)::vector;
+                BEGIN
+                    RETURN QUERY
+                    SELECT
+                        d.id,
+                        d.content,
+                        e.embedding,
+                        s.similarity * 100 as similarity_percent
+                    FROM (
+                        SELECT ev.id, 1 - (ev.embedding_vec <=> query_vec) AS similarity
+                        FROM embeddings ev
+                        ORDER BY ev.embedding_vec <=> query_vec
+                        LIMIT top_k
+                    ) s
+                    JOIN embeddings e ON e.id = s.id
+                    JOIN documents d ON d.id = e.document_id
+                    WHERE s.similarity >= similarity_threshold
+                    ORDER BY s.similarity DESC;
+                END;
+                $$ LANGUAGE plpgsql;
+                """);
+            System.out.println("Функция find_similar_documents переключена на оператор pgvector <=>");
+        } catch (SQLException e) {
+            System.err.println("Ошибка при создании индекса pgvector: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Выполняет UPDATE ... RETURNING id пакетами по id, чтобы не держать длинную транзакцию на большой таблице.
+     * SQL должен принимать два параметра: нижнюю границу id (не включительно) и размер пакета.
+     */
+    static long migrateInBatches(Connection conn, String sql, int batchSize, String label) {
+        long lastId = 0;
+        long migrated = 0;
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            while (true) {
+                pstmt.setLong(1, lastId);
+                pstmt.setInt(2, batchSize);
+                int batchCount = 0;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        lastId = Math.max(lastId, rs.getLong(1));
+                        batchCount++;
+                    }
+                }
+                if (batchCount == 0) {
+                    break;
+                }
+                migrated += batchCount;
+                System.out.println(label + ": обработано " + migrated + " строк");
+            }
+        } catch (SQLException e) {
+            System.err.println("Ошибка пакетной миграции (" + label + "): " + e.getMessage());
+        }
+        return migrated;
+    }
+}
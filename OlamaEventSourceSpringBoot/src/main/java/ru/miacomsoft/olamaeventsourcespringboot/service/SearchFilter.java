@@ -0,0 +1,83 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+
+import java.time.LocalDateTime;
+
+/**
+ * Условие на метаданные документа для поиска: clientId и source сравниваются с полями documents.metadata
+ * (оператор @> по GIN индексу), createdFrom/createdTo ограничивают documents.created_at (включительно/исключительно).
+ * Пустые поля не участвуют в условии.
+ */
+public class SearchFilter {
+
+    private String clientId;
+    private String source;
+    private LocalDateTime createdFrom;
+    private LocalDateTime createdTo;
+
+    public SearchFilter() {}
+
+    public SearchFilter(String clientId, String source, LocalDateTime createdFrom, LocalDateTime createdTo) {
+        this.clientId = clientId;
+        this.source = source;
+        this.createdFrom = createdFrom;
+        this.createdTo = createdTo;
+    }
+
+    /**
+     * Разбирает объект {"clientId": ..., "source": ..., "createdFrom": "2024-01-01T00:00:00", "createdTo": ...}
+     */
+    public static SearchFilter fromJson(JSONObject json) {
+        if (json == null) {
+            return new SearchFilter();
+        }
+        return new SearchFilter(
+                emptyToNull(json.optString("clientId", null)),
+                emptyToNull(json.optString("source", null)),
+                parseDateTime(json.optString("createdFrom", null)),
+                parseDateTime(json.optString("createdTo", null)));
+    }
+
+    public boolean isEmpty() {
+        return clientId == null && source == null && createdFrom == null && createdTo == null;
+    }
+
+    /**
+     * JSON для условия metadata @> ?::jsonb, "{}" если по метаданным не фильтруем
+     */
+    public String toMetadataJson() {
+        JSONObject json = new JSONObject();
+        if (clientId != null) {
+            json.put("clientId", clientId);
+        }
+        if (source != null) {
+            json.put("source", source);
+        }
+        return json.toString();
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    private static LocalDateTime parseDateTime(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        // допускается и просто дата: 2024-01-01
+        return value.length() == 10 ? LocalDateTime.parse(value + "T00:00:00") : LocalDateTime.parse(value);
+    }
+
+    public String getClientId() { return clientId; }
+    public void setClientId(String clientId) { this.clientId = clientId; }
+
+    public String getSource() { return source; }
+    public void setSource(String source) { this.source = source; }
+
+    public LocalDateTime getCreatedFrom() { return createdFrom; }
+    public void setCreatedFrom(LocalDateTime createdFrom) { this.createdFrom = createdFrom; }
+
+    public LocalDateTime getCreatedTo() { return createdTo; }
+    public void setCreatedTo(LocalDateTime createdTo) { this.createdTo = createdTo; }
+}
@@ -0,0 +1,50 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SIMD ядро скалярного произведения. Загружается только через VectorKernel.Loader.
+ */
+final class SimdVectorKernel implements VectorKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float dot(float[] matrix, int offset, float[] query, int length) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector row = FloatVector.fromArray(SPECIES, matrix, offset + i);
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            acc = row.fma(q, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += matrix[offset + i] * query[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(ByteBuffer buffer, int byteOffset, float[] query, int length) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector row = FloatVector.fromByteBuffer(SPECIES, buffer, byteOffset + (i << 2), ByteOrder.LITTLE_ENDIAN);
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            acc = row.fma(q, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += buffer.getFloat(byteOffset + (i << 2)) * query[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,96 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ограниченная min-куча на примитивных массивах для отбора topK результатов без упаковки в объекты.
+ * В вершине лежит худший из отобранных результатов.
+ */
+final class TopKHeap {
+    private final long[] ids;
+    private final float[] scores;
+    private int size;
+
+    TopKHeap(int capacity) {
+        this.ids = new long[Math.max(1, capacity)];
+        this.scores = new float[Math.max(1, capacity)];
+    }
+
+    boolean isFull() {
+        return size == ids.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Минимальное сходство, которое нужно превзойти, чтобы попасть в кучу
+     */
+    float minScore() {
+        return isFull() ? scores[0] : Float.NEGATIVE_INFINITY;
+    }
+
+    void offer(long id, float score) {
+        if (size < ids.length) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (score > scores[0]) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+    }
+
+    List<VectorSearchHit> toSortedHits() {
+        List<VectorSearchHit> hits = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            hits.add(new VectorSearchHit(ids[i], scores[i]));
+        }
+        hits.sort((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+        return hits;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[index] >= scores[parent]) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int left = index * 2 + 1;
+            if (left >= size) {
+                break;
+            }
+            int smallest = left + 1 < size && scores[left + 1] < scores[left] ? left + 1 : left;
+            if (scores[index] <= scores[smallest]) {
+                break;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Векторный индекс в памяти JVM. Ключ - ID документа, сходство - косинусное.
+ */
+public interface VectorIndex {
+
+    void add(long documentId, float[] vector);
+
+    boolean remove(long documentId);
+
+    /**
+     * Возвращает до topK документов со сходством не ниже threshold, отсортированных по убыванию сходства
+     */
+    default List<VectorSearchHit> search(float[] query, int topK, double threshold) {
+        return search(query, topK, threshold, null);
+    }
+
+    /**
+     * То же с предфильтром по ID документа (null - без фильтра). Документы, не прошедшие фильтр,
+     * пропускаются до вычисления сходства.
+     */
+    List<VectorSearchHit> search(float[] query, int topK, double threshold, LongPredicate filter);
+
+    int size();
+}
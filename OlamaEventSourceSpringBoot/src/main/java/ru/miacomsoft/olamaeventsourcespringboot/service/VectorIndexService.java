@@ -0,0 +1,555 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.miacomsoft.olamaeventsourcespringboot.model.Document;
+import ru.miacomsoft.olamaeventsourcespringboot.repository.DocumentRepository;
+import ru.miacomsoft.olamaeventsourcespringboot.repository.EmbeddingRepository;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+
+/**
+ * Держит в памяти JVM векторный индекс эмбеддингов, чтобы RAG-поиск не сканировал всю таблицу embeddings.
+ * Индекс строится из таблицы при старте и обновляется при добавлении/удалении документов.
+ * Тип индекса: hnsw - приближенный поиск, exact - точный полный перебор (SIMD + ForkJoinPool),
+ * mmap - точный перебор по сегментам на диске, отображенным в память (при старте догружаются только новые строки),
+ * binary - отбор кандидатов по знаковым битовым кодам и пересчет точного сходства в базе данных.
+ * При включенном rag.chunking.enabled рядом строится индекс фрагментов (таблица chunks, ключ - chunks.id):
+ * exact для типа exact, иначе hnsw - у mmap и binary хранилище и пересчет привязаны к таблице embeddings.
+ */
+@Service
+public class VectorIndexService {
+
+    @Value("${rag.vector.index.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rag.vector.index.type:hnsw}")
+    private String indexType;
+
+    @Value("${rag.vector.hnsw.m:16}")
+    private int m;
+
+    @Value("${rag.vector.hnsw.ef-construction:200}")
+    private int efConstruction;
+
+    @Value("${rag.vector.hnsw.ef-search:64}")
+    private int efSearch;
+
+    @Value("${rag.vector.hnsw.compact-ratio:0.2}")
+    private double hnswCompactRatio;
+
+    @Value("${rag.vector.hnsw.compact-interval-seconds:300}")
+    private long hnswCompactIntervalSeconds;
+
+    @Value("${rag.vector.exact.parallelism:0}")
+    private int exactParallelism;
+
+    @Value("${rag.vector.exact.reorganize-growth:0.2}")
+    private double exactReorganizeGrowth;
+
+    @Value("${rag.vector.exact.reorganize-sample:20000}")
+    private int exactReorganizeSample;
+
+    @Value("${rag.vector.exact.reorganize-interval-seconds:600}")
+    private int exactReorganizeIntervalSeconds;
+
+    @Value("${rag.vector.binary.oversampling:8}")
+    private int binaryOversampling;
+
+    @Value("${rag.vector.mmap.dir:data/vectors}")
+    private String mmapDir;
+
+    @Value("${rag.vector.mmap.segment-capacity:65536}")
+    private int mmapSegmentCapacity;
+
+    @Value("${rag.vector.mmap.merge-threshold:0.3}")
+    private double mmapMergeThreshold;
+
+    @Value("${rag.vector.mmap.merge-interval-seconds:300}")
+    private int mmapMergeIntervalSeconds;
+
+    @Value("${rag.chunking.enabled:false}")
+    private boolean chunkingEnabled;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DocumentRepository documentRepository;
+
+    @Autowired
+    private EmbeddingRepository embeddingRepository;
+
+    private volatile VectorIndex index;
+    private volatile VectorIndex chunkIndex;
+    // ID фрагментов документа в chunkIndex: при удалении документа фрагменты удаляются из индекса
+    private final Map<Long, long[]> chunkIds = new ConcurrentHashMap<>();
+    private volatile boolean ready = false;
+    private final Set<Long> deletedDuringBuild = Collections.synchronizedSet(new HashSet<>());
+    private ScheduledExecutorService maintenanceScheduler;
+    private ScheduledExecutorService compactionScheduler;
+    // пул параллельного перебора exact и mmap при rag.vector.exact.parallelism > 0, закрывается в close()
+    private ForkJoinPool scanPool;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            index = createIndex();
+            chunkIndex = chunkingEnabled ? createChunkIndex() : null;
+        } catch (IOException e) {
+            System.err.println("Ошибка открытия векторного хранилища " + mmapDir + ": " + e.getMessage());
+            return;
+        }
+        if (index instanceof HnswIndex || chunkIndex instanceof HnswIndex) {
+            compactionScheduler = newMaintenanceScheduler("hnsw-compaction");
+            compactionScheduler.scheduleWithFixedDelay(() -> {
+                compactIfNeeded(index, "документов");
+                compactIfNeeded(chunkIndex, "фрагментов");
+            }, hnswCompactIntervalSeconds, hnswCompactIntervalSeconds, TimeUnit.SECONDS);
+        }
+        Thread builder = new Thread(this::build, "vector-index-builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    private VectorIndex createIndex() throws IOException {
+        if ("exact".equalsIgnoreCase(indexType)) {
+            ExactVectorIndex exact = new ExactVectorIndex(scanPool());
+            maintenanceScheduler = newMaintenanceScheduler("vector-index-reorganize");
+            maintenanceScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    if (ready && exact.getUnorganizedRatio() >= exactReorganizeGrowth) {
+                        exact.reorganize(exactReorganizeSample, 10);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Ошибка упорядочивания точного векторного индекса: " + e.getMessage());
+                }
+            }, 10, exactReorganizeIntervalSeconds, TimeUnit.SECONDS);
+            return exact;
+        }
+        if ("binary".equalsIgnoreCase(indexType)) {
+            return new BinaryQuantizedIndex();
+        }
+        if ("mmap".equalsIgnoreCase(indexType)) {
+            MappedVectorStore store = new MappedVectorStore(Paths.get(mmapDir), mmapSegmentCapacity, scanPool());
+            maintenanceScheduler = newMaintenanceScheduler("vector-segment-merge");
+            maintenanceScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    store.merge(mmapMergeThreshold);
+                } catch (Exception e) {
+                    System.err.println("Ошибка слияния сегментов векторного хранилища: " + e.getMessage());
+                }
+            }, mmapMergeIntervalSeconds, mmapMergeIntervalSeconds, TimeUnit.SECONDS);
+            return store;
+        }
+        return new HnswIndex(m, efConstruction, efSearch);
+    }
+
+    private VectorIndex createChunkIndex() {
+        if ("exact".equalsIgnoreCase(indexType)) {
+            return new ExactVectorIndex(scanPool());
+        }
+        return new HnswIndex(m, efConstruction, efSearch);
+    }
+
+    /**
+     * Один пул на индекс документов и индекс фрагментов; без настройки parallelism - общий пул
+     */
+    private synchronized ForkJoinPool scanPool() {
+        if (exactParallelism <= 0) {
+            return ForkJoinPool.commonPool();
+        }
+        if (scanPool == null) {
+            scanPool = new ForkJoinPool(exactParallelism);
+        }
+        return scanPool;
+    }
+
+    /**
+     * Перестроение графа HNSW, когда доля удаленных узлов достигла compact-ratio: удаленные узлы
+     * занимают память и замедляют обход, хотя в выдачу не попадают
+     */
+    private void compactIfNeeded(VectorIndex target, String name) {
+        if (!ready || !(target instanceof HnswIndex hnsw) || hnsw.getDeletedRatio() < hnswCompactRatio) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            int removed = hnsw.compact();
+            System.out.println("Граф HNSW " + name + " перестроен: убрано " + removed + " удаленных узлов за "
+                    + (System.currentTimeMillis() - start) + " мс");
+        } catch (Exception e) {
+            System.err.println("Ошибка перестроения графа HNSW " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static ScheduledExecutorService newMaintenanceScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void build() {
+        long start = System.currentTimeMillis();
+        AtomicInteger count = new AtomicInteger();
+        try {
+            if (index instanceof MappedVectorStore store) {
+                syncMappedStore(store, count);
+            } else {
+                loadAll(count);
+            }
+            if (chunkIndex != null) {
+                loadChunks(count);
+            }
+            synchronized (deletedDuringBuild) {
+                for (Long documentId : deletedDuringBuild) {
+                    index.remove(documentId);
+                    removeChunks(documentId);
+                }
+                deletedDuringBuild.clear();
+            }
+            ready = true;
+            System.out.println("Векторный индекс (" + indexType + ") построен: " + index.size() + " векторов, загружено из базы "
+                    + count.get() + " за " + (System.currentTimeMillis() - start) + " мс");
+        } catch (Exception e) {
+            System.err.println("Ошибка построения векторного индекса, поиск остается в базе данных: " + e.getMessage());
+        }
+    }
+
+    private void loadAll(AtomicInteger count) {
+        jdbcTemplate.query("SELECT document_id, " + VECTOR_COLUMNS + " FROM embeddings", rs -> {
+                long documentId = rs.getLong(1);
+                if (deletedDuringBuild.contains(documentId)) {
+                    return;
+                }
+                index.add(documentId, readVector(rs));
+                count.incrementAndGet();
+            });
+    }
+
+    private void loadChunks(AtomicInteger count) {
+        Map<Long, List<Long>> byDocument = new HashMap<>();
+        jdbcTemplate.query("SELECT id, document_id, embedding_unit FROM chunks", rs -> {
+            long documentId = rs.getLong(2);
+            if (deletedDuringBuild.contains(documentId)) {
+                return;
+            }
+            long chunkId = rs.getLong(1);
+            chunkIndex.add(chunkId, toFloatArray(rs.getArray(3)));
+            byDocument.computeIfAbsent(documentId, k -> new ArrayList<>()).add(chunkId);
+            count.incrementAndGet();
+        });
+        byDocument.forEach((documentId, ids) ->
+                chunkIds.put(documentId, ids.stream().mapToLong(Long::longValue).toArray()));
+    }
+
+    /**
+     * Сверяет сегменты на диске с таблицей embeddings: лишние строки удаляются, из базы читаются векторы
+     * документов, которых нет в хранилище, и строки, измененные (embeddings.updated_at) после прошлой сверки,
+     * например переиндексированием или другим узлом. Без отметки прошлой сверки хранилище пересоздается.
+     * Отметка сдвигается на SYNC_MARGIN_MS назад: транзакция, начатая до сверки, может зафиксироваться после нее
+     */
+    private void syncMappedStore(MappedVectorStore store, AtomicInteger count) {
+        Long syncStartedAt = jdbcTemplate.queryForObject(
+                "SELECT (extract(epoch FROM clock_timestamp()) * 1000)::BIGINT", Long.class);
+        List<Integer> dimensions = jdbcTemplate.queryForList(
+                "SELECT jsonb_array_length(embedding) FROM embeddings LIMIT 1", Integer.class);
+        long syncedAt = store.getSyncedAt();
+        if (store.getDimension() > 0 && !dimensions.isEmpty() && dimensions.get(0) != store.getDimension()) {
+            System.out.println("Размерность эмбеддингов изменилась, векторное хранилище " + mmapDir + " пересоздается");
+            store.clear();
+        } else if (store.size() > 0 && syncedAt < 0) {
+            System.out.println("Нет отметки сверки векторного хранилища " + mmapDir + ", хранилище пересоздается");
+            store.clear();
+        }
+        Set<Long> databaseIds = new HashSet<>(jdbcTemplate.queryForList("SELECT document_id FROM embeddings", Long.class));
+        Set<Long> storedIds = store.documentIds();
+        for (Long documentId : storedIds) {
+            if (!databaseIds.contains(documentId)) {
+                store.remove(documentId);
+            }
+        }
+        databaseIds.removeAll(storedIds);
+        if (syncedAt >= 0 && !storedIds.isEmpty()) {
+            List<Long> changed = jdbcTemplate.queryForList(
+                    "SELECT document_id FROM embeddings WHERE updated_at >= to_timestamp(? / 1000.0)",
+                    Long.class, syncedAt - SYNC_MARGIN_MS);
+            for (Long documentId : changed) {
+                if (storedIds.contains(documentId)) {
+                    databaseIds.add(documentId);
+                }
+            }
+        }
+        List<Long> missing = new ArrayList<>(databaseIds);
+        for (int from = 0; from < missing.size(); from += 1000) {
+            Object[] chunk = missing.subList(from, Math.min(from + 1000, missing.size())).toArray();
+            jdbcTemplate.query(con -> {
+                PreparedStatement ps = con.prepareStatement(
+                        "SELECT document_id, " + VECTOR_COLUMNS + " FROM embeddings WHERE document_id = ANY(?)");
+                ps.setArray(1, con.createArrayOf("bigint", chunk));
+                return ps;
+            }, rs -> {
+                long documentId = rs.getLong(1);
+                if (deletedDuringBuild.contains(documentId)) {
+                    return;
+                }
+                store.addDeferred(documentId, readVector(rs));
+                count.incrementAndGet();
+            });
+        }
+        store.flush();
+        if (syncStartedAt != null) {
+            store.setSyncedAt(syncStartedAt);
+        }
+    }
+
+    // запас на транзакции, которые начались до сверки хранилища mmap, а зафиксировались после нее
+    private static final long SYNC_MARGIN_MS = 5 * 60 * 1000;
+
+    // JSONB читается (и достается из TOAST) только для строк без embedding_unit и embedding_q
+    static final String VECTOR_COLUMNS = "embedding_unit, embedding_q, "
+            + "CASE WHEN embedding_unit IS NULL AND embedding_q IS NULL THEN embedding::text END";
+
+    /**
+     * Читает нормализованный вектор из embedding_unit, затем из квантованного embedding_q, в последнюю очередь из JSONB
+     */
+    static float[] readVector(ResultSet rs) throws SQLException {
+        Array unit = rs.getArray(2);
+        if (unit != null) {
+            return toFloatArray(unit);
+        }
+        byte[] code = rs.getBytes(3);
+        if (code != null) {
+            return EmbeddingCodec.decode(code);
+        }
+        return VectorMath.parseEmbedding(rs.getString(4));
+    }
+
+    private static float[] toFloatArray(Array array) throws SQLException {
+        Object[] values = (Object[]) array.getArray();
+        float[] vector = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            vector[i] = ((Number) values[i]).floatValue();
+        }
+        return vector;
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * Индекс фрагментов построен: поиск по chunks идет в памяти, а не полным просмотром таблицы
+     */
+    public boolean isChunkIndexReady() {
+        return isReady() && chunkIndex != null;
+    }
+
+    /**
+     * Добавляет вектор документа в индекс после фиксации транзакции
+     */
+    public void onDocumentAdded(long documentId, List<Double> embedding) {
+        // индекс на момент регистрации: rebuild может обнулить поле до фиксации транзакции
+        VectorIndex target = index;
+        if (!enabled || target == null) {
+            return;
+        }
+        float[] vector = VectorMath.toFloatArray(embedding);
+        afterCommit(() -> target.add(documentId, vector));
+    }
+
+    public void onDocumentDeleted(long documentId) {
+        VectorIndex target = index;
+        if (!enabled || target == null) {
+            return;
+        }
+        afterCommit(() -> {
+            if (!ready) {
+                deletedDuringBuild.add(documentId);
+            }
+            target.remove(documentId);
+            removeChunks(documentId);
+        });
+    }
+
+    /**
+     * Добавляет фрагменты документа (chunks.id и нормализованные векторы) в индекс фрагментов после фиксации транзакции
+     */
+    public void onChunksAdded(long documentId, long[] ids, List<float[]> vectors) {
+        VectorIndex target = chunkIndex;
+        if (!enabled || target == null) {
+            return;
+        }
+        afterCommit(() -> {
+            for (int i = 0; i < ids.length; i++) {
+                target.add(ids[i], vectors.get(i));
+            }
+            chunkIds.put(documentId, ids);
+        });
+    }
+
+    private void removeChunks(long documentId) {
+        long[] ids = chunkIds.remove(documentId);
+        VectorIndex target = chunkIndex;
+        if (ids != null && target != null) {
+            for (long id : ids) {
+                target.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Ближайшие фрагменты: попадания с ключом chunks.id
+     */
+    public List<VectorSearchHit> findSimilarChunks(List<Double> queryEmbedding, int topK, double threshold) {
+        return chunkIndex.search(VectorMath.toFloatArray(queryEmbedding), topK, threshold);
+    }
+
+    /**
+     * Поиск похожих документов. Возвращает строки в том же формате, что и EmbeddingRepository.findSimilarDocuments:
+     * Object[]{id, content, metadata, similarity}
+     */
+    public List<Object[]> findSimilarDocuments(List<Double> queryEmbedding, int topK, double threshold) {
+        return findSimilarDocuments(queryEmbedding, topK, threshold, null);
+    }
+
+    /**
+     * Поиск только среди документов, ID которых принимает filter (например, битовое множество из SearchFilter)
+     */
+    public List<Object[]> findSimilarDocuments(List<Double> queryEmbedding, int topK, double threshold, LongPredicate filter) {
+        if (index instanceof BinaryQuantizedIndex) {
+            return findSimilarDocumentsReranked(queryEmbedding, topK, threshold, filter);
+        }
+        List<VectorSearchHit> hits = index.search(VectorMath.toFloatArray(queryEmbedding), topK, threshold, filter);
+        return toDocumentRows(hits);
+    }
+
+    /**
+     * Двухэтапный поиск: topK * oversampling кандидатов по расстоянию Хэмминга,
+     * затем точное косинусное сходство по embedding_unit только для них
+     */
+    private List<Object[]> findSimilarDocumentsReranked(List<Double> queryEmbedding, int topK, double threshold,
+                                                        LongPredicate filter) {
+        int candidates = topK * Math.max(1, binaryOversampling);
+        List<VectorSearchHit> hits = index.search(VectorMath.toFloatArray(queryEmbedding), candidates, -1.0, filter);
+        if (hits.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (VectorSearchHit hit : hits) {
+            ids.add(hit.getDocumentId());
+        }
+        return embeddingRepository.rescoreCandidates(VectorMath.toUnitArrayLiteral(queryEmbedding), ids, topK, threshold);
+    }
+
+    List<Object[]> toDocumentRows(List<VectorSearchHit> hits) {
+        if (hits.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (VectorSearchHit hit : hits) {
+            ids.add(hit.getDocumentId());
+        }
+        Map<Long, Document> documents = new HashMap<>();
+        for (Document document : documentRepository.findAllById(ids)) {
+            documents.put(document.getId(), document);
+        }
+
+        List<Object[]> results = new ArrayList<>(hits.size());
+        for (VectorSearchHit hit : hits) {
+            Document document = documents.get(hit.getDocumentId());
+            if (document == null) {
+                continue; // документ удален, а индекс еще не обновлен
+            }
+            results.add(new Object[]{document.getId(), document.getContent(), document.getMetadata(), hit.getSimilarity()});
+        }
+        return results;
+    }
+
+    public int size() {
+        return index != null ? index.size() : 0;
+    }
+
+    /**
+     * Поиск идет мимо индекса в памяти до rebuild: вызывается перед фиксацией смены модели эмбеддингов
+     */
+    public void suspend() {
+        ready = false;
+    }
+
+    /**
+     * Строит индекс заново после смены модели эмбеддингов. До окончания построения поиск идет в базе данных,
+     * сегменты mmap хранилища удаляются - векторы старой модели той же размерности не отличить от новых
+     */
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        ready = false;
+        if (index instanceof MappedVectorStore store) {
+            store.clear();
+        }
+        close();
+        index = null;
+        chunkIndex = null;
+        chunkIds.clear();
+        buildOnStartup();
+    }
+
+    @PreDestroy
+    public void close() {
+        if (maintenanceScheduler != null) {
+            maintenanceScheduler.shutdownNow();
+        }
+        if (compactionScheduler != null) {
+            compactionScheduler.shutdownNow();
+        }
+        if (index instanceof MappedVectorStore store) {
+            store.close();
+        }
+        synchronized (this) {
+            if (scanPool != null) {
+                scanPool.shutdownNow();
+                scanPool = null;
+            }
+        }
+    }
+
+    static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ядро скалярного произведения строки матрицы и вектора запроса.
+ * Реализация на jdk.incubator.vector подключается, если модуль доступен в JVM (--add-modules jdk.incubator.vector),
+ * иначе используется скалярный цикл.
+ */
+public interface VectorKernel {
+
+    float dot(float[] matrix, int offset, float[] query, int length);
+
+    /**
+     * То же для строки вне кучи (отображенный в память файл), смещение в байтах, порядок байт little-endian
+     */
+    float dot(ByteBuffer buffer, int byteOffset, float[] query, int length);
+
+    VectorKernel INSTANCE = Loader.load();
+
+    final class Loader {
+        private Loader() {
+        }
+
+        private static VectorKernel load() {
+            try {
+                VectorKernel simd = (VectorKernel) Class.forName(
+                        "ru.miacomsoft.olamaeventsourcespringboot.service.SimdVectorKernel")
+                        .getDeclaredConstructor().newInstance();
+                simd.dot(new float[]{1f}, 0, new float[]{1f}, 1);
+                System.out.println("Векторное ядро: SIMD (jdk.incubator.vector)");
+                return simd;
+            } catch (Throwable e) {
+                System.out.println("Векторное ядро: скалярное (модуль jdk.incubator.vector недоступен)");
+                return new Scalar();
+            }
+        }
+    }
+
+    final class Scalar implements VectorKernel {
+        @Override
+        public float dot(float[] matrix, int offset, float[] query, int length) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < length; i += 4) {
+                s0 += matrix[offset + i] * query[i];
+                s1 += matrix[offset + i + 1] * query[i + 1];
+                s2 += matrix[offset + i + 2] * query[i + 2];
+                s3 += matrix[offset + i + 3] * query[i + 3];
+            }
+            for (; i < length; i++) {
+                s0 += matrix[offset + i] * query[i];
+            }
+            return s0 + s1 + s2 + s3;
+        }
+
+        @Override
+        public float dot(ByteBuffer buffer, int byteOffset, float[] query, int length) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < length; i += 4) {
+                int p = byteOffset + (i << 2);
+                s0 += buffer.getFloat(p) * query[i];
+                s1 += buffer.getFloat(p + 4) * query[i + 1];
+                s2 += buffer.getFloat(p + 8) * query[i + 2];
+                s3 += buffer.getFloat(p + 12) * query[i + 3];
+            }
+            for (; i < length; i++) {
+                s0 += buffer.getFloat(byteOffset + (i << 2)) * query[i];
+            }
+            return s0 + s1 + s2 + s3;
+        }
+    }
+}
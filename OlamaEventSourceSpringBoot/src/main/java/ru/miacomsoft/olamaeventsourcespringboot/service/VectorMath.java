@@ -0,0 +1,90 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONArray;
+
+import java.util.List;
+
+/**
+ * Общие операции над векторами эмбеддингов: преобразование форматов, нормализация, скалярное произведение
+ */
+public final class VectorMath {
+
+    private VectorMath() {
+    }
+
+    public static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector) {
+            sum += v * v;
+        }
+        float[] result = new float[vector.length];
+        if (sum == 0) {
+            return result;
+        }
+        float inv = (float) (1.0 / Math.sqrt(sum));
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = vector[i] * inv;
+        }
+        return result;
+    }
+
+    public static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    public static float[] parseEmbedding(String json) {
+        JSONArray array = new JSONArray(json);
+        float[] vector = new float[array.length()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) array.getDouble(i);
+        }
+        return vector;
+    }
+
+    public static float[] toFloatArray(List<Double> embedding) {
+        float[] vector = new float[embedding.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = embedding.get(i).floatValue();
+        }
+        return vector;
+    }
+
+    public static float[] toFloatArray(JSONArray embedding) {
+        float[] vector = new float[embedding.length()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) embedding.getDouble(i);
+        }
+        return vector;
+    }
+
+    /**
+     * Нормализованный вектор в виде литерала массива PostgreSQL: {0.1,0.2,...}
+     */
+    public static String toUnitArrayLiteral(List<Double> embedding) {
+        return toArrayLiteral(normalize(toFloatArray(embedding)));
+    }
+
+    public static String toArrayLiteral(float[] vector) {
+        StringBuilder sb = new StringBuilder(vector.length * 12);
+        sb.append('{');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(vector[i]);
+        }
+        return sb.append('}').toString();
+    }
+
+    public static Float[] box(float[] vector) {
+        Float[] boxed = new Float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            boxed[i] = vector[i];
+        }
+        return boxed;
+    }
+}
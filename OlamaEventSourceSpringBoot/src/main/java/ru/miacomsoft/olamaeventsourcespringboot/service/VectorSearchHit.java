@@ -0,0 +1,18 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+/**
+ * Результат поиска во внутреннем векторном индексе: ID документа и косинусное сходство
+ */
+public class VectorSearchHit {
+    private final long documentId;
+    private final double similarity;
+
+    public VectorSearchHit(long documentId, double similarity) {
+        this.documentId = documentId;
+        this.similarity = similarity;
+    }
+
+    public long getDocumentId() { return documentId; }
+
+    public double getSimilarity() { return similarity; }
+}
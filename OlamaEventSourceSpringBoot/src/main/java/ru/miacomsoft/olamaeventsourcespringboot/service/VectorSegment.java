@@ -0,0 +1,227 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Файл сегмента векторного хранилища, отображенный в память.
+ * Заголовок: magic, версия, размерность, емкость, число строк. Далее строки фиксированной длины:
+ * ID документа (int64) и нормализованный вектор (float32), все little-endian.
+ * Строки только дописываются, удаление отмечается в журнале *.del (номера строк int32).
+ */
+final class VectorSegment {
+
+    static final String EXTENSION = ".vec";
+    static final String DELETES_EXTENSION = ".del";
+
+    private static final int MAGIC = 0x56454353; // "VECS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 16;
+
+    private final int number;
+    private final Path file;
+    private final Path deletesFile;
+    private final FileChannel channel;
+    private final FileChannel deletesChannel;
+    private final MappedByteBuffer buffer;
+    private final int dimension;
+    private final int capacity;
+    private final int rowSize;
+    private final BitSet deleted = new BitSet();
+    private volatile int count;
+    private int deletedCount;
+
+    private VectorSegment(int number, Path file, FileChannel channel, MappedByteBuffer buffer,
+                          int dimension, int capacity, int count) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.deletesFile = file.resolveSibling(fileName(number, DELETES_EXTENSION));
+        this.channel = channel;
+        this.buffer = buffer;
+        this.dimension = dimension;
+        this.capacity = capacity;
+        this.rowSize = 8 + dimension * 4;
+        this.count = count;
+        this.deletesChannel = FileChannel.open(deletesFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readDeletes();
+        deletesChannel.position(deletesChannel.size());
+    }
+
+    static String fileName(int number, String extension) {
+        return String.format("segment-%06d%s", number, extension);
+    }
+
+    static VectorSegment create(Path directory, int number, int dimension, int capacity) throws IOException {
+        Path file = directory.resolve(fileName(number, EXTENSION));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = HEADER_SIZE + (long) capacity * (8 + dimension * 4);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, dimension);
+        buffer.putInt(12, capacity);
+        buffer.putInt(COUNT_OFFSET, 0);
+        return new VectorSegment(number, file, channel, buffer, dimension, capacity, 0);
+    }
+
+    static VectorSegment open(Path file, int number) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("Файл " + file + " не является сегментом векторного хранилища");
+        }
+        int dimension = buffer.getInt(8);
+        int capacity = buffer.getInt(12);
+        int count = Math.min(buffer.getInt(COUNT_OFFSET), capacity);
+        return new VectorSegment(number, file, channel, buffer, dimension, capacity, count);
+    }
+
+    private void readDeletes() throws IOException {
+        long size = deletesChannel.size() / 4 * 4; // недописанную последнюю запись игнорируем
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer rows = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        deletesChannel.read(rows, 0);
+        rows.flip();
+        while (rows.remaining() >= 4) {
+            int row = rows.getInt();
+            if (row >= 0 && row < count && !deleted.get(row)) {
+                deleted.set(row);
+                deletedCount++;
+            }
+        }
+    }
+
+    /**
+     * Дописывает строку. Счетчик строк в заголовке обновляется после записи данных, поэтому оборванная
+     * запись при падении процесса просто не будет видна. durable - строка и затем счетчик сбрасываются
+     * на диск до возврата (иначе вызывающий делает force после пакета строк)
+     */
+    int append(long documentId, float[] unitVector, boolean durable) {
+        int row = count;
+        int offset = rowOffset(row);
+        buffer.putLong(offset, documentId);
+        for (int i = 0; i < dimension; i++) {
+            buffer.putFloat(offset + 8 + i * 4, unitVector[i]);
+        }
+        if (durable) {
+            buffer.force(offset, rowSize);
+        }
+        buffer.putInt(COUNT_OFFSET, row + 1);
+        if (durable) {
+            buffer.force(COUNT_OFFSET, 4);
+        }
+        count = row + 1;
+        return row;
+    }
+
+    /**
+     * Копирует строку другого сегмента без декодирования float
+     */
+    int appendRaw(VectorSegment source, int sourceRow) {
+        int row = count;
+        ByteBuffer from = source.buffer.duplicate();
+        from.position(source.rowOffset(sourceRow)).limit(source.rowOffset(sourceRow) + rowSize);
+        ByteBuffer to = buffer.duplicate();
+        to.position(rowOffset(row));
+        to.put(from);
+        buffer.putInt(COUNT_OFFSET, row + 1);
+        count = row + 1;
+        return row;
+    }
+
+    void delete(int row, boolean durable) throws IOException {
+        if (deleted.get(row)) {
+            return;
+        }
+        deleted.set(row);
+        deletedCount++;
+        ByteBuffer entry = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(row);
+        entry.flip();
+        while (entry.hasRemaining()) {
+            deletesChannel.write(entry);
+        }
+        if (durable) {
+            deletesChannel.force(false);
+        }
+    }
+
+    boolean isDeleted(int row) {
+        return deleted.get(row);
+    }
+
+    long documentId(int row) {
+        return buffer.getLong(rowOffset(row));
+    }
+
+    /**
+     * Скалярное произведение строки и запроса прямо из отображенной памяти, без копирования в кучу
+     */
+    float dot(VectorKernel kernel, int row, float[] query) {
+        return kernel.dot(buffer, rowOffset(row) + 8, query, dimension);
+    }
+
+    private int rowOffset(int row) {
+        return HEADER_SIZE + row * rowSize;
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    boolean isFull() {
+        return count >= capacity;
+    }
+
+    int getLiveCount() {
+        return count - deletedCount;
+    }
+
+    double getDeletedRatio() {
+        return count == 0 ? 0 : (double) deletedCount / count;
+    }
+
+    void force() throws IOException {
+        buffer.force();
+        deletesChannel.force(false);
+    }
+
+    void close() throws IOException {
+        force();
+        deletesChannel.close();
+        channel.close();
+    }
+
+    void closeAndDelete() throws IOException {
+        deletesChannel.close();
+        channel.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(deletesFile);
+    }
+}
@@ -1,10 +1,10 @@
 package ru.miacomsoft.oracle_bd.rag;
 
+import ru.miacomsoft.olamaeventsourcespringboot.service.ContextAssembler;
+import ru.miacomsoft.olamaeventsourcespringboot.service.DocumentChunker;
 import ru.miacomsoft.oracle_bd.rag.utils.SpeakToText;
 
 import java.io.IOException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,6 +17,10 @@ public class LmStudioRagClient {
     private final PostgresDatabase database;
     private final OllamaClient ollamaClient;
     private final Properties properties;
+    private final ContextAssembler contextAssembler;
+    private final DocumentChunker chunker;
+    private final boolean chunkingEnabled;
+    private final int ingestBatch; // документов на один запрос /api/embed при загрузке
     private List<OllamaClient.ChatMessage> chatHistory = new ArrayList<>();
     private String currentChatId;
     private boolean streamResponse = false;
@@ -26,13 +30,13 @@ public class LmStudioRagClient {
     private String chatPrompt = "Ты - помощник, который отвечает на вопросы. Отвечай всегда на русском языке. Если в базе знаний есть информация по вопросу, используй её. Если информации нет, скажи об этом.";
     //             Если в контексте нет информации для ответа, скажи "В предоставленных материалах нет информации для ответа на этот вопрос".
     private String promptGenerate = """
-            Используй следующий контекст для ответа на вопрос. Если ответ не найден в контексте, тогда искать ответ в модели и пометить "Ответ из модели:". 
-            
+            Используй следующий контекст для ответа на вопрос. Если ответ не найден в контексте, тогда искать ответ в модели и пометить "Ответ из модели:".
+
             Контекст:
             {context}
-            
+
             Вопрос: {query}
-            
+
             Ответ:""";
 
     // Добавляем поле для отслеживания активных запросов
@@ -40,8 +44,18 @@ public class LmStudioRagClient {
 
     public LmStudioRagClient(Properties properties) throws SQLException {
         this.properties = properties;
+        this.contextAssembler = ContextAssembler.fromProperties(properties);
+        this.chunker = DocumentChunker.fromProperties(properties);
+        this.chunkingEnabled = Boolean.parseBoolean(properties.getProperty("rag.chunking.enabled", "false").trim());
+        this.ingestBatch = Math.max(1, Integer.parseInt(properties.getProperty("rag.embedding.batch.max-texts", "64").trim()));
         this.database = new PostgresDatabase(properties);
         this.ollamaClient = new OllamaClient(properties);
+        if (!database.getEmbeddingModel().equals(ollamaClient.getEmbeddingModel())) {
+            // запрос, посчитанный другой моделью, несравним с сохраненными векторами
+            System.err.println("Векторы в базе посчитаны моделью " + database.getEmbeddingModel()
+                    + ", а не " + ollamaClient.getEmbeddingModel() + " из настроек: используется " + database.getEmbeddingModel());
+            ollamaClient.setEmbeddingModel(database.getEmbeddingModel());
+        }
         this.streamResponse = Boolean.parseBoolean(properties.getProperty("ollama.stream", "false"));
         this.currentChatId = properties.getProperty("ollama.chatId", "");
         startNewChat();
@@ -63,42 +77,66 @@ public class LmStudioRagClient {
     }
 
     public void initializeDocuments(List<String> documents,boolean isSkypeDouble) throws IOException, SQLException {
-        for (String doc : documents) {
-            // 1. Проверка на полный дубликат
-            if (isExactDuplicate(doc)) {
-                System.out.println("⚠️  Пропускаем полный дубликат документа: " + getDocumentPreview(doc));
-                continue;
-            }
-
-            // 2. Получение эмбеддинга для документа
-            List<Double> embedding = ollamaClient.getEmbedding(doc);
-            double maxSimilarity = -1;
-            if (!isSkypeDouble) {
-                // 3. Проверка на семантический дубликат с использованием новой функции
-                maxSimilarity = database.getMaxSimilarityPercent(embedding);
-                if (maxSimilarity >= 99.0) { // 99% сходство
-                    System.out.println("⚠️  Пропускаем семантический дубликат (" + String.format("%.2f", maxSimilarity) + "% сходство): " + getDocumentPreview(doc));
+        // Эмбеддинги считаются пакетами через /api/embed: на ingestBatch документов - один запрос вместо ingestBatch
+        for (int from = 0; from < documents.size(); from += ingestBatch) {
+            List<String> batch = new ArrayList<>();
+            for (String doc : documents.subList(from, Math.min(from + ingestBatch, documents.size()))) {
+                // 1. Проверка на полный дубликат
+                if (isExactDuplicate(doc)) {
+                    System.out.println("⚠️  Пропускаем полный дубликат документа: " + getDocumentPreview(doc));
                     continue;
                 }
+                batch.add(doc);
+            }
+            if (batch.isEmpty()) {
+                continue;
             }
 
-            // 4. Сохранение документа, если он уникальный
-            database.storeDocumentWithEmbedding(doc, embedding);
-            System.out.println("✅ Сохранен уникальный документ: " + getDocumentPreview(doc) + " (макс. сходство: " + String.format("%.2f", maxSimilarity) + "%)");
+            // 2. Получение эмбеддингов для документов пакета
+            List<List<Double>> embeddings = ollamaClient.getEmbeddingsBatch(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                storeDocument(batch.get(i), embeddings.get(i), isSkypeDouble);
+            }
         }
     }
 
-    private boolean isExactDuplicate(String content) throws SQLException {
-        // Проверяем существование точного дубликата в базе данных
-        String sql = "SELECT COUNT(*) FROM documents WHERE content = ?";
-        try (PreparedStatement pstmt = database.getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, content);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
+    private void storeDocument(String doc, List<Double> embedding, boolean isSkypeDouble) throws SQLException {
+        double maxSimilarity = -1;
+        if (!isSkypeDouble) {
+            // 3. Проверка на семантический дубликат: при rag.dedup.mode=minhash сходство считается
+            // только для документов из общих LSH корзин, иначе по всей базе
+            List<Long> candidates = database.findNearDuplicateCandidates(doc);
+            maxSimilarity = candidates == null
+                    ? database.getMaxSimilarityPercent(embedding)
+                    : database.getMaxSimilarityPercent(embedding, candidates);
+            if (maxSimilarity >= 99.0) { // 99% сходство
+                System.out.println("⚠️  Пропускаем семантический дубликат (" + String.format("%.2f", maxSimilarity) + "% сходство): " + getDocumentPreview(doc));
+                return;
+            }
+        }
+
+        // 4. Сохранение документа, если он уникальный
+        long documentId = database.storeDocumentWithEmbedding(doc, embedding);
+        if (documentId < 0) {
+            System.out.println("⚠️  Пропускаем полный дубликат документа: " + getDocumentPreview(doc));
+            return;
+        }
+        // 5. Большой документ дополнительно режется на фрагменты со своими эмбеддингами
+        if (chunkingEnabled && chunker.shouldChunk(ContextAssembler.estimateTokens(doc))) {
+            List<DocumentChunker.Chunk> chunks = chunker.split(doc);
+            List<String> chunkTexts = new ArrayList<>(chunks.size());
+            for (DocumentChunker.Chunk chunk : chunks) {
+                chunkTexts.add(chunk.getContent());
             }
+            database.storeChunks(documentId, chunks, ollamaClient.getEmbeddingsBatch(chunkTexts));
+            System.out.println("   Документ разбит на " + chunks.size() + " фрагментов");
         }
-        return false;
+        System.out.println("✅ Сохранен уникальный документ: " + getDocumentPreview(doc) + " (макс. сходство: " + String.format("%.2f", maxSimilarity) + "%)");
+    }
+
+    private boolean isExactDuplicate(String content) throws SQLException {
+        // Проверяем существование точного дубликата: фильтр Блума, затем индекс content_sha256
+        return database.containsContent(content);
     }
 
     public void setGeneratePrompt(String generatePrompt) {
@@ -155,7 +193,9 @@ public class LmStudioRagClient {
                 return "[CANCELLED]";
             }
 
-            List<PostgresDatabase.Document> similarDocs = database.findSimilarDocuments(questionEmbedding, 2);
+            List<? extends PostgresDatabase.Document> similarDocs = chunkingEnabled
+                    ? database.findSimilarChunks(questionEmbedding, 2)
+                    : database.findSimilarDocuments(questionEmbedding, 2);
 
             if (similarDocs.isEmpty()) {
                 String response = "Извините, я не нашел информации по вашему вопросу в моей базе знаний.";
@@ -169,7 +209,7 @@ public class LmStudioRagClient {
                 return "[CANCELLED]";
             }
 
-            String context = buildContext(similarDocs);
+            String context = buildContext(question, similarDocs);
             String answer = callOllamaApi(question, context, streamConsumer, audioConsumer, isCancelled);
 
             // Проверка отмены
@@ -202,7 +242,9 @@ public class LmStudioRagClient {
                 return "[CANCELLED]";
             }
 
-            List<PostgresDatabase.Document> similarDocs = database.findSimilarDocuments(questionEmbedding, 2);
+            List<? extends PostgresDatabase.Document> similarDocs = chunkingEnabled
+                    ? database.findSimilarChunks(questionEmbedding, 2)
+                    : database.findSimilarDocuments(questionEmbedding, 2);
 
             // Проверка отмены
             if (isCancelled.get()) {
@@ -224,9 +266,9 @@ public class LmStudioRagClient {
             StringBuilder fullResponse = new StringBuilder();
             Iterator<String> responseStream;
             if (streamConsumer != null) {
-                responseStream = ollamaClient.generateResponseStream(question, buildContext(similarDocs), promptGenerate, true);
+                responseStream = ollamaClient.generateResponseStream(question, buildContext(question, similarDocs), promptGenerate, true);
             } else {
-                responseStream = ollamaClient.generateResponseStream(question, buildContext(similarDocs), promptGenerate, false);
+                responseStream = ollamaClient.generateResponseStream(question, buildContext(question, similarDocs), promptGenerate, false);
             }
 
             SpeakToText speakToText = new SpeakToText(); // Создаем локальный экземпляр
@@ -280,12 +322,18 @@ public class LmStudioRagClient {
         database.addChatMessage(currentChatId, role, content);
     }
 
-    private String buildContext(List<PostgresDatabase.Document> documents) {
-        StringBuilder context = new StringBuilder();
+    /**
+     * Контекст в пределах rag.context.max-tokens: большой документ попадает в промпт фрагментами, наиболее
+     * близкими к вопросу
+     */
+    private String buildContext(String question, List<? extends PostgresDatabase.Document> documents) {
+        List<Object[]> rows = new ArrayList<>(documents.size());
         for (PostgresDatabase.Document doc : documents) {
-            context.append(doc.content).append("\n");
+            double similarity = doc instanceof PostgresDatabase.SimilarDocument similar ? similar.similarityPercent : 0;
+            rows.add(new Object[]{doc.id, doc.content, null, similarity});
         }
-        return context.toString();
+        String context = contextAssembler.assemble("", rows, null, question, "сходство");
+        return context != null ? context : "";
     }
 
     private String callOllamaApi(String question, String context, Consumer<String> streamConsumer, Consumer<String> audioConsumer, AtomicBoolean isCancelled) throws IOException {
@@ -343,6 +391,7 @@ public class LmStudioRagClient {
         System.out.println("Введите 'quit' для выхода");
         System.out.println("Введите 'clr' для очистки истории");
         System.out.println("Введите 'doc: ваш текст' для добавления документа");
+        System.out.println("Введите 'doc_delete:ID' для удаления документа");
         System.out.println("Введите 'models' для просмотра моделей");
         System.out.println("Введите 'model:ИМЯ_МОДЕЛИ' для выбора моделей диалога");
         System.out.println("Введите 'model_emb:ИМЯ_МОДЕЛИ' для выбора моделей создания embeddings");
@@ -379,7 +428,7 @@ public class LmStudioRagClient {
                         Map<String, Object> model = models.get(i);
                         String name = (String) model.get("name");
                         long sizeBytes = (Long) model.get("size");
-                        String sizeFormatted = ollamaClient.formatFileSize(sizeBytes);
+                        String sizeFormatted = OllamaClient.formatFileSize(sizeBytes);
 
                         String marker = name.equals(currentModel) ? " *" : "";
                         System.out.printf("%d. %s%s (%s)%n", i + 1, name, marker, sizeFormatted);
@@ -433,6 +482,18 @@ public class LmStudioRagClient {
                         initializeDocuments(documents,false);
                     }
                     continue;
+                } else if (userInput.startsWith("doc_delete:")) {
+                    try {
+                        long documentId = Long.parseLong(userInput.substring("doc_delete:".length()).trim());
+                        System.out.println(database.deleteDocument(documentId)
+                                ? "Документ " + documentId + " удален"
+                                : "Документ " + documentId + " не найден");
+                    } catch (NumberFormatException e) {
+                        System.out.println("Введите корректный ID документа");
+                    } catch (SQLException e) {
+                        System.out.println("Ошибка удаления документа: " + e.getMessage());
+                    }
+                    continue;
                 } else if (userInput.startsWith("pull:")) {
                     String modelName = userInput.substring("pull:".length()).trim();
                     if (!modelName.isEmpty()) {
@@ -497,10 +558,6 @@ public class LmStudioRagClient {
         System.out.println("До свидания!");
     }
 
-    public void setConnectTimeout(int timeout, TimeUnit unit) {
-        ollamaClient.setConnectTimeout(timeout, unit);
-    }
-
     public void setReadTimeout(int timeout, TimeUnit unit) {
         ollamaClient.setReadTimeout(timeout, unit);
     }
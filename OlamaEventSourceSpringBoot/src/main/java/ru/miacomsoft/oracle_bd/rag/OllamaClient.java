@@ -2,25 +2,27 @@ package ru.miacomsoft.oracle_bd.rag;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import ru.miacomsoft.olamaeventsourcespringboot.service.OllamaEndpointPool;
+import ru.miacomsoft.olamaeventsourcespringboot.service.RequestHedger;
 import ru.miacomsoft.oracle_bd.rag.utils.EmbeddingsText;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 public class OllamaClient {
-    private final String ollamaUrl;
+    private final OllamaEndpointPool endpointPool;
+    private final RequestHedger hedger;
     private final EmbeddingsText embeddingsText;
     private final Properties properties;
-    private int connectTimeout = 30000;
     private int readTimeout = 30000;
 
     // Добавляем поле для отслеживания отмены
@@ -28,10 +30,11 @@ public class OllamaClient {
 
     public OllamaClient(Properties properties) {
         this.properties = properties;
-        this.ollamaUrl = String.format("http://%s:%s",
+        this.endpointPool = OllamaEndpointPool.fromProperties(properties, String.format("http://%s:%s",
                 properties.getProperty("ollama.host", "localhost"),
-                properties.getProperty("ollama.port", "11434"));
-        this.embeddingsText = new EmbeddingsText(properties);
+                properties.getProperty("ollama.port", "11434")));
+        this.hedger = RequestHedger.fromProperties(properties, endpointPool);
+        this.embeddingsText = new EmbeddingsText(properties, endpointPool, hedger);
     }
 
     // Методы для управления отменой
@@ -51,6 +54,10 @@ public class OllamaClient {
         return embeddingsText.getEmbeddings(text);
     }
 
+    public List<List<Double>> getEmbeddingsBatch(List<String> texts) {
+        return embeddingsText.getEmbeddingsBatch(texts);
+    }
+
     public String generateResponse(String model, List<ChatMessage> messages,
                                    boolean stream, Consumer<String> streamConsumer) throws IOException {
         return generateResponse(model, messages, 0.7, stream, streamConsumer);
@@ -58,13 +65,7 @@ public class OllamaClient {
 
     public String generateResponse(String model, List<ChatMessage> messages, double temperature,
                                    boolean stream, Consumer<String> streamConsumer) throws IOException {
-        String apiUrl = ollamaUrl + "/api/chat";
-
-        // Проверяем доступность Ollama
-        if (!isOllamaAvailable()) {
-            throw new IOException("Ollama сервер недоступен по адресу: " + ollamaUrl);
-        }
-
+        // Отдельная проверка /api/tags не нужна: пул сам исключает недоступные серверы
         JSONObject requestBody = new JSONObject();
         requestBody.put("model", model);
         requestBody.put("temperature", temperature);
@@ -79,46 +80,24 @@ public class OllamaClient {
 
         requestBody.put("messages", messagesArray);
 
-        HttpURLConnection connection = createConnection(apiUrl);
-        connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = requestBody.toString().getBytes("utf-8");
-            os.write(input, 0, input.length);
-        }
-
         if (stream || streamConsumer != null) {
-            return handleStreamResponse(connection, streamConsumer);
+            InputStream response = endpointPool.open(model, "POST", "/api/chat", requestBody.toString(), readTimeout);
+            return handleStreamResponse(response, streamConsumer);
         } else {
-            return handleJsonResponse(connection);
-        }
-    }
-
-    private boolean isOllamaAvailable() {
-        try {
-            URL url = new URL(ollamaUrl + "/api/tags");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(5000);
-            connection.setReadTimeout(5000);
-            int responseCode = connection.getResponseCode();
-            return responseCode == 200;
-        } catch (IOException e) {
-            System.err.println("Ollama сервер недоступен: " + e.getMessage());
-            return false;
+            // ответ целиком: запрос можно продублировать на второй сервер
+            String response = hedger.post(model, "/api/chat", requestBody.toString());
+            return handleJsonResponse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
         }
     }
 
-    private String handleStreamResponse(HttpURLConnection connection, Consumer<String> streamConsumer) throws IOException {
+    private String handleStreamResponse(InputStream response, Consumer<String> streamConsumer) throws IOException {
         StringBuilder fullResponse = new StringBuilder();
         try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(connection.getInputStream(), "utf-8"))) {
+                new InputStreamReader(response, StandardCharsets.UTF_8))) {
             String responseLine;
             while ((responseLine = br.readLine()) != null) {
-                // Проверяем отмену
+                // Проверяем отмену: закрытие потока прерывает запрос
                 if (isCancelled()) {
-                    connection.disconnect();
                     return "[CANCELLED]";
                 }
 
@@ -141,15 +120,14 @@ public class OllamaClient {
         return fullResponse.toString();
     }
 
-    private String handleJsonResponse(HttpURLConnection connection) throws IOException {
+    private String handleJsonResponse(InputStream input) throws IOException {
         try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(connection.getInputStream(), "utf-8"))) {
+                new InputStreamReader(input, StandardCharsets.UTF_8))) {
             StringBuilder response = new StringBuilder();
             String responseLine;
             while ((responseLine = br.readLine()) != null) {
                 // Проверяем отмену
                 if (isCancelled()) {
-                    connection.disconnect();
                     return "[CANCELLED]";
                 }
 
@@ -161,39 +139,17 @@ public class OllamaClient {
         }
     }
 
-    private HttpURLConnection createConnection(String url) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Accept", "application/json");
-        connection.setConnectTimeout(connectTimeout);
-        connection.setReadTimeout(readTimeout);
-        return connection;
-    }
-
-
     public void pullModel(String modelName, Consumer<String> progressConsumer) throws IOException {
-        String apiUrl = ollamaUrl + "/api/pull";
-
         JSONObject requestBody = new JSONObject();
         requestBody.put("name", modelName);
         requestBody.put("stream", true); // Включаем streaming для получения прогресса
 
-        HttpURLConnection connection = createConnection(apiUrl);
-        connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = requestBody.toString().getBytes("utf-8");
-            os.write(input, 0, input.length);
-        }
-
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(connection.getInputStream(), "utf-8"))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                endpointPool.open(modelName, "POST", "/api/pull", requestBody.toString(), readTimeout), StandardCharsets.UTF_8))) {
             String responseLine;
             while ((responseLine = br.readLine()) != null) {
                 // Проверяем отмену
                 if (isCancelled()) {
-                    connection.disconnect();
                     return;
                 }
 
@@ -217,39 +173,25 @@ public class OllamaClient {
     }
 
     public void deleteModel(String modelName) throws IOException {
-        String apiUrl = ollamaUrl + "/api/delete";
-
         JSONObject requestBody = new JSONObject();
         requestBody.put("name", modelName);
 
-        HttpURLConnection connection = createConnection(apiUrl);
-        connection.setRequestMethod("DELETE");
-        connection.setDoOutput(true);
-
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = requestBody.toString().getBytes("utf-8");
-            os.write(input, 0, input.length);
-        }
-
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new IOException("Ошибка удаления модели: HTTP " + responseCode);
+        String response;
+        try {
+            response = endpointPool.send(modelName, "DELETE", "/api/delete", requestBody.toString());
+        } catch (IOException e) {
+            throw new IOException("Ошибка удаления модели: " + e.getMessage(), e);
         }
 
-        // Читаем ответ для проверки
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-            String response = br.lines().collect(Collectors.joining());
-            JSONObject responseJson = new JSONObject(response);
-            if (!responseJson.optBoolean("success", false)) {
-                throw new IOException("Не удалось удалить модель: " + response);
-            }
+        // Читаем ответ для проверки (Ollama может вернуть пустое тело при успехе)
+        if (!response.isBlank() && !new JSONObject(response).optBoolean("success", true)) {
+            throw new IOException("Не удалось удалить модель: " + response);
         }
     }
 
-    public void setConnectTimeout(int timeout, TimeUnit unit) {
-        this.connectTimeout = (int) unit.toMillis(timeout);
-    }
+    /**
+     * Таймаут ожидания ответа; таймаут соединения общий для транспорта (rag.ollama.transport.connect-timeout-ms)
+     */
 
     public void setReadTimeout(int timeout, TimeUnit unit) {
         this.readTimeout = (int) unit.toMillis(timeout);
@@ -276,27 +218,23 @@ public class OllamaClient {
     public List<Map<String, Object>> getAvailableModelsWithDetails() {
         List<Map<String, Object>> models = new ArrayList<>();
         try {
-            URL url = new URL(String.format("%s/api/tags", ollamaUrl));
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(3000);
-
-            if (conn.getResponseCode() == 200) {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream(), "utf-8"))) {
-                    String response = br.lines().collect(Collectors.joining());
-                    JSONObject jsonResponse = new JSONObject(response);
-                    JSONArray modelsArray = jsonResponse.getJSONArray("models");
-
-                    for (int i = 0; i < modelsArray.length(); i++) {
-                        JSONObject model = modelsArray.getJSONObject(i);
-                        Map<String, Object> modelInfo = new HashMap<>();
-                        modelInfo.put("name", model.getString("name"));
-                        modelInfo.put("size", model.optLong("size", 0));
-                        modelInfo.put("modified", model.optString("modified_at", ""));
-                        models.add(modelInfo);
-                    }
+            // модели со всех серверов пула, каждая один раз
+            Set<String> seen = new HashSet<>();
+            JSONArray modelsArray = new JSONArray();
+            for (String response : endpointPool.getFromAll("/api/tags")) {
+                new JSONObject(response).getJSONArray("models").forEach(modelsArray::put);
+            }
+
+            for (int i = 0; i < modelsArray.length(); i++) {
+                JSONObject model = modelsArray.getJSONObject(i);
+                if (!seen.add(model.getString("name"))) {
+                    continue;
                 }
+                Map<String, Object> modelInfo = new HashMap<>();
+                modelInfo.put("name", model.getString("name"));
+                modelInfo.put("size", model.optLong("size", 0));
+                modelInfo.put("modified", model.optString("modified_at", ""));
+                models.add(modelInfo);
             }
         } catch (Exception e) {
             System.err.println("Ошибка получения списка моделей: " + e.getMessage());
@@ -320,19 +258,11 @@ public class OllamaClient {
 
         String finalPrompt = prompt;
         return new Iterator<String>() {
-            private HttpURLConnection conn;
             private BufferedReader reader;
             private String nextToken;
 
             {
                 try {
-                    URL url = new URL(String.format("%s/api/generate", ollamaUrl));
-                    conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "application/json");
-                    conn.setDoOutput(true);
-                    conn.setDoInput(true);
-
                     JSONObject payload = new JSONObject();
                     payload.put("model",  getDefaultModel());
                     payload.put("prompt", finalPrompt);
@@ -343,11 +273,11 @@ public class OllamaClient {
                     options.put("top_p", 0.9);
                     payload.put("options", options);
 
-                    try (OutputStream os = conn.getOutputStream()) {
-                        byte[] input = payload.toString().getBytes("utf-8");
-                        os.write(input, 0, input.length);
-                    }
-                    reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+                    String model = payload.getString("model");
+                    reader = isStream
+                            ? new BufferedReader(new InputStreamReader(
+                                    endpointPool.open(model, "POST", "/api/generate", payload.toString(), readTimeout), StandardCharsets.UTF_8))
+                            : new BufferedReader(new StringReader(hedger.post(model, "/api/generate", payload.toString())));
                     nextToken = readNextToken();
                 } catch (Exception e) {
                     System.err.println("Ошибка инициализации stream: " + e.getMessage());
@@ -360,7 +290,7 @@ public class OllamaClient {
                     while ((line = reader.readLine()) != null) {
                         // Проверяем отмену
                         if (isCancelled()) {
-                            conn.disconnect();
+                            reader.close();
                             return "[CANCELLED]";
                         }
 
@@ -399,7 +329,6 @@ public class OllamaClient {
             public void close() {
                 try {
                     if (reader != null) reader.close();
-                    if (conn != null) conn.disconnect();
                 } catch (IOException e) {
                     System.err.println("Ошибка закрытия stream: " + e.getMessage());
                 }
@@ -1,16 +1,34 @@
 package ru.miacomsoft.oracle_bd.rag;
 
 import org.json.JSONArray;
+import ru.miacomsoft.olamaeventsourcespringboot.service.BloomFilter;
+import ru.miacomsoft.olamaeventsourcespringboot.service.ContextAssembler;
+import ru.miacomsoft.olamaeventsourcespringboot.service.SchemaMigrations;
+import ru.miacomsoft.olamaeventsourcespringboot.service.DocumentChunker;
+import ru.miacomsoft.olamaeventsourcespringboot.service.EmbeddingCodec;
+import ru.miacomsoft.olamaeventsourcespringboot.service.ExactVectorIndex;
+import ru.miacomsoft.olamaeventsourcespringboot.service.MinHashLsh;
+import ru.miacomsoft.olamaeventsourcespringboot.service.VectorMath;
+import ru.miacomsoft.olamaeventsourcespringboot.service.VectorSearchHit;
 import ru.miacomsoft.oracle_bd.rag.utils.ConfigLoader;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 public class PostgresDatabase {
     private final Connection dbConnection;
     private final Properties properties;
+    private ExactVectorIndex memoryIndex; // точный поиск в памяти, если rag.vector.index.type=exact
+    private ExactVectorIndex chunkIndex; // то же для фрагментов (ключ - chunks.id), если включено разбиение
+    private MinHashLsh minHash; // проверка дубликатов по LSH корзинам, если rag.dedup.mode=minhash
+    private BloomFilter contentFilter; // хеши content_sha256 всех документов, null до загрузки
+    private String embeddingModel; // активная модель эмбеддингов из embedding_namespace
 
     public PostgresDatabase(Properties properties) throws SQLException {
         ConfigLoader configLoader = new ConfigLoader();
@@ -27,6 +45,123 @@ public class PostgresDatabase {
         createTablesIfNotExists();
         createIndexes();
         createFunctions();
+        SchemaMigrations.ensureUnitVectorStorage(dbConnection, this.properties);
+        SchemaMigrations.ensureQuantizedStorage(dbConnection, this.properties);
+        SchemaMigrations.ensureIvfStorage(dbConnection, this.properties);
+        SchemaMigrations.ensureEmbeddingUpdatedAt(dbConnection);
+        SchemaMigrations.ensureLexicalSearch(dbConnection);
+        SchemaMigrations.ensureContentHash(dbConnection, this.properties);
+        SchemaMigrations.ensureTokenCounts(dbConnection);
+        SchemaMigrations.ensureChunkStorage(dbConnection);
+        boolean minHashStorage = SchemaMigrations.ensureMinHashStorage(dbConnection);
+        SchemaMigrations.ensureEmbeddingNamespaces(dbConnection);
+        this.embeddingModel = SchemaMigrations.activateEmbeddingNamespace(dbConnection,
+                this.properties.getProperty("ollama.embeddingModel", "all-minilm:22m"));
+        loadContentFilter();
+        if (minHashStorage && "minhash".equalsIgnoreCase(this.properties.getProperty("rag.dedup.mode", "vector").trim())) {
+            minHash = MinHashLsh.fromProperties(this.properties);
+            backfillMinHash(dbUrl);
+        }
+        if (isPgvectorStorage()) {
+            SchemaMigrations.ensurePgvectorStorage(dbConnection, this.properties);
+        }
+        if (Boolean.parseBoolean(this.properties.getProperty("rag.vector.index.enabled", "false"))
+                && "exact".equalsIgnoreCase(this.properties.getProperty("rag.vector.index.type", "hnsw"))) {
+            loadMemoryIndex();
+        }
+    }
+
+    /**
+     * Пересчет сигнатур MinHash в фоне на отдельном соединении: консоль не ждет обработки всей базы
+     */
+    private void backfillMinHash(String dbUrl) {
+        MinHashLsh lsh = minHash;
+        int batchSize = Integer.parseInt(properties.getProperty("rag.dedup.minhash.backfill-batch", "500").trim());
+        Thread backfill = new Thread(() -> {
+            try (Connection conn = DriverManager.getConnection(dbUrl,
+                    properties.getProperty("spring.datasource.username", "postgres"),
+                    properties.getProperty("spring.datasource.password", ""))) {
+                SchemaMigrations.backfillMinHash(conn, lsh, batchSize);
+            } catch (SQLException e) {
+                System.err.println("Ошибка фонового заполнения minhash: " + e.getMessage());
+            }
+        }, "minhash-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+
+    /**
+     * Модель, которой посчитаны сохраненные векторы. Смена модели - через переиндексирование в Spring приложении
+     */
+    public String getEmbeddingModel() {
+        return embeddingModel;
+    }
+
+    /**
+     * Загружает нормализованные векторы в ExactVectorIndex, дальше поиск похожих документов идет в памяти
+     */
+    private void loadMemoryIndex() throws SQLException {
+        long start = System.currentTimeMillis();
+        ExactVectorIndex index = new ExactVectorIndex();
+        try (Statement stmt = dbConnection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT document_id, embedding_q, " +
+                     "CASE WHEN embedding_q IS NULL THEN embedding_unit END, " +
+                     "CASE WHEN embedding_q IS NULL AND embedding_unit IS NULL THEN embedding::text END FROM embeddings")) {
+            while (rs.next()) {
+                byte[] code = rs.getBytes(2);
+                Array unit = rs.getArray(3);
+                float[] vector;
+                if (code != null) {
+                    vector = EmbeddingCodec.decode(code);
+                } else if (unit != null) {
+                    vector = toFloatArray(unit);
+                } else {
+                    vector = VectorMath.parseEmbedding(rs.getString(4));
+                }
+                index.add(rs.getLong(1), vector);
+            }
+        }
+        memoryIndex = index;
+        if (Boolean.parseBoolean(properties.getProperty("rag.chunking.enabled", "false").trim())) {
+            ExactVectorIndex chunks = new ExactVectorIndex();
+            try (Statement stmt = dbConnection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT id, embedding_unit FROM chunks")) {
+                while (rs.next()) {
+                    chunks.add(rs.getLong(1), toFloatArray(rs.getArray(2)));
+                }
+            }
+            chunkIndex = chunks;
+        }
+        System.out.println("Векторный индекс в памяти загружен: " + index.size() + " векторов"
+                + (chunkIndex != null ? ", фрагментов " + chunkIndex.size() : "") + " за "
+                + (System.currentTimeMillis() - start) + " мс");
+    }
+
+    private static float[] toFloatArray(Array array) throws SQLException {
+        Object[] values = (Object[]) array.getArray();
+        float[] vector = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            vector[i] = ((Number) values[i]).floatValue();
+        }
+        return vector;
+    }
+
+    private boolean isPgvectorStorage() {
+        return SchemaMigrations.isPgvectorStorage(properties);
+    }
+
+    private String getVectorCodec() {
+        return properties.getProperty("rag.vector.codec", "none").trim();
+    }
+
+    /**
+     * SQL выражение сходства с нормализованным запросом (параметр ?::real[]): по квантованному коду или по REAL[]
+     */
+    private String similarityExpression(String alias) {
+        if (EmbeddingCodec.isEnabled(getVectorCodec())) {
+            return "quantized_dot(" + alias + "embedding_q, ?::real[])";
+        }
+        return "dot_product(" + alias + "embedding_unit, ?::real[])";
     }
 
     public void ensureDatabaseExists( ConfigLoader configLoader) {
@@ -137,11 +272,11 @@ public class PostgresDatabase {
                             norm1 := norm1 + val1 * val1;
                             norm2 := norm2 + val2 * val2;
                         END LOOP;
-                    
+
                         IF norm1 = 0 OR norm2 = 0 THEN
                             RETURN 0;
                         END IF;
-                    
+
                         RETURN dot_product / (SQRT(norm1) * SQRT(norm2));
                     END;
                     $$ LANGUAGE plpgsql;
@@ -165,7 +300,7 @@ public class PostgresDatabase {
                     ) AS $$
                     BEGIN
                         RETURN QUERY
-                        SELECT 
+                        SELECT
                             d.id,
                             d.content,
                             e.embedding,
@@ -184,38 +319,313 @@ public class PostgresDatabase {
         }
     }
 
+    /**
+     * Фильтр Блума по content_sha256: для нового содержимого проверка точного дубликата обходится без запроса
+     */
+    private void loadContentFilter() {
+        try (Statement stmt = dbConnection.createStatement()) {
+            long documents = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM documents")) {
+                if (rs.next()) {
+                    documents = rs.getLong(1);
+                }
+            }
+            long expected = Long.parseLong(properties.getProperty("rag.dedup.bloom.expected-documents", "100000").trim());
+            double fpp = Double.parseDouble(properties.getProperty("rag.dedup.bloom.fpp", "0.01").trim());
+            BloomFilter filter = new BloomFilter(Math.max(expected, documents * 2), fpp);
+            try (ResultSet rs = stmt.executeQuery("SELECT content_sha256 FROM documents WHERE content_sha256 IS NOT NULL")) {
+                while (rs.next()) {
+                    filter.put(rs.getBytes(1));
+                }
+            }
+            contentFilter = filter;
+        } catch (SQLException e) {
+            System.err.println("Ошибка загрузки фильтра Блума, дубликаты проверяются по индексу: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Есть ли в базе документ с точно таким же содержимым (по content_sha256)
+     */
+    public boolean containsContent(String content) throws SQLException {
+        byte[] hash = BloomFilter.sha256(content);
+        if (contentFilter != null && !contentFilter.mightContain(hash)) {
+            return false;
+        }
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(
+                "SELECT EXISTS (SELECT 1 FROM documents WHERE content_sha256 = ?)")) {
+            pstmt.setBytes(1, hash);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    /**
+     * Сохраняет документ; -1, если документ с таким же содержимым уже есть (уникальный индекс content_sha256)
+     */
     public long storeDocument(String content) throws SQLException {
-        String sql = "INSERT INTO documents (content) VALUES (?) RETURNING id";
+        int[] signature = minHash != null ? minHash.signature(content) : null;
+        byte[] hash = BloomFilter.sha256(content);
+        // колонки minhash пишутся только при включенном MinHash: без него их может не быть в базе
+        String sql = signature != null
+                ? "INSERT INTO documents (content, content_sha256, token_count, minhash, minhash_params) " +
+                "VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING RETURNING id"
+                : "INSERT INTO documents (content, content_sha256, token_count) VALUES (?, ?, ?) " +
+                "ON CONFLICT DO NOTHING RETURNING id";
+        long documentId;
         try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
             pstmt.setString(1, content);
+            pstmt.setBytes(2, hash);
+            pstmt.setInt(3, ContextAssembler.estimateTokens(content));
+            if (signature != null) {
+                pstmt.setBytes(4, MinHashLsh.toBytes(signature));
+                pstmt.setString(5, minHash.getParams());
+            }
             ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getLong(1);
+            if (contentFilter != null) {
+                contentFilter.put(hash);
+            }
+            if (!rs.next()) {
+                return -1;
+            }
+            documentId = rs.getLong(1);
+        }
+        if (signature != null) {
+            try (PreparedStatement pstmt = dbConnection.prepareStatement(
+                    "INSERT INTO document_lsh_bands (band_key, document_id) VALUES (?, ?) ON CONFLICT DO NOTHING")) {
+                for (long key : minHash.bandKeys(signature)) {
+                    pstmt.setLong(1, key);
+                    pstmt.setLong(2, documentId);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+        }
+        return documentId;
+    }
+
+    /**
+     * Документы, попавшие хотя бы в одну LSH корзину с текстом, - кандидаты в почти-дубликаты.
+     * null, если проверка по MinHash выключена и нужно сравнивать со всей базой
+     */
+    public List<Long> findNearDuplicateCandidates(String content) throws SQLException {
+        if (minHash == null) {
+            return null;
+        }
+        long[] keys = minHash.bandKeys(minHash.signature(content));
+        Long[] boxed = new Long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            boxed[i] = keys[i];
+        }
+        List<Long> candidates = new ArrayList<>();
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(
+                "SELECT DISTINCT document_id FROM document_lsh_bands WHERE band_key = ANY(?)")) {
+            pstmt.setArray(1, dbConnection.createArrayOf("bigint", boxed));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                candidates.add(rs.getLong(1));
             }
-            throw new SQLException("Failed to insert document");
         }
+        return candidates;
     }
 
     public void storeEmbedding(long documentId, List<Double> embedding) throws SQLException {
         double norm = calculateNorm(embedding);
         JSONArray embeddingJson = new JSONArray(embedding);
 
-        String sql = "INSERT INTO embeddings (document_id, embedding, embedding_norm) " +
-                "VALUES (?, ?::jsonb, ?) " +
+        float[] unit = VectorMath.normalize(VectorMath.toFloatArray(embedding));
+
+        String codec = getVectorCodec();
+        byte[] quantized = EmbeddingCodec.isEnabled(codec) ? EmbeddingCodec.encode(unit, codec) : null;
+
+        String sql = "INSERT INTO embeddings (document_id, embedding, embedding_norm, embedding_unit, embedding_q, model) " +
+                "VALUES (?, ?::jsonb, ?, ?, ?, ?) " +
                 "ON CONFLICT (document_id) DO UPDATE SET " +
-                "embedding = EXCLUDED.embedding, embedding_norm = EXCLUDED.embedding_norm";
+                "embedding = EXCLUDED.embedding, embedding_norm = EXCLUDED.embedding_norm, " +
+                "embedding_unit = EXCLUDED.embedding_unit, embedding_q = EXCLUDED.embedding_q, model = EXCLUDED.model";
 
         try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
             pstmt.setLong(1, documentId);
             pstmt.setString(2, embeddingJson.toString());
             pstmt.setDouble(3, norm);
+            pstmt.setArray(4, dbConnection.createArrayOf("float4", VectorMath.box(unit)));
+            pstmt.setBytes(5, quantized);
+            pstmt.setString(6, embeddingModel);
             pstmt.executeUpdate();
         }
+        if (memoryIndex != null) {
+            memoryIndex.add(documentId, unit);
+        }
     }
 
-    public void storeDocumentWithEmbedding(String content, List<Double> embedding) throws SQLException {
+    /**
+     * ID сохраненного документа или -1, если документ оказался точным дубликатом и не сохранен
+     */
+    public long storeDocumentWithEmbedding(String content, List<Double> embedding) throws SQLException {
         long documentId = storeDocument(content);
+        if (documentId < 0) {
+            return -1;
+        }
         storeEmbedding(documentId, embedding);
+        return documentId;
+    }
+
+    /**
+     * Фрагменты большого документа (DocumentChunker) с нормализованными эмбеддингами
+     */
+    public void storeChunks(long documentId, List<DocumentChunker.Chunk> chunks, List<List<Double>> embeddings) throws SQLException {
+        String sql = """
+                INSERT INTO chunks (document_id, chunk_index, content, start_offset, token_count, embedding_unit)
+                VALUES (?, ?, ?, ?, ?, ?::real[])
+                ON CONFLICT (document_id, chunk_index) DO NOTHING
+                """;
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            for (int i = 0; i < chunks.size(); i++) {
+                DocumentChunker.Chunk chunk = chunks.get(i);
+                pstmt.setLong(1, documentId);
+                pstmt.setInt(2, chunk.getIndex());
+                pstmt.setString(3, chunk.getContent());
+                pstmt.setInt(4, chunk.getStartOffset());
+                pstmt.setInt(5, chunk.getTokenCount());
+                pstmt.setString(6, VectorMath.toUnitArrayLiteral(embeddings.get(i)));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+        if (chunkIndex != null) {
+            try (PreparedStatement pstmt = dbConnection.prepareStatement(
+                    "SELECT id, chunk_index FROM chunks WHERE document_id = ?")) {
+                pstmt.setLong(1, documentId);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    int index = rs.getInt(2);
+                    if (index < embeddings.size()) {
+                        chunkIndex.add(rs.getLong(1), VectorMath.normalize(VectorMath.toFloatArray(embeddings.get(index))));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Удаляет документ; эмбеддинг и фрагменты удаляются каскадно, из индексов в памяти - здесь же
+     */
+    public boolean deleteDocument(long documentId) throws SQLException {
+        List<Long> chunkIds = new ArrayList<>();
+        if (chunkIndex != null) {
+            try (PreparedStatement pstmt = dbConnection.prepareStatement("SELECT id FROM chunks WHERE document_id = ?")) {
+                pstmt.setLong(1, documentId);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    chunkIds.add(rs.getLong(1));
+                }
+            }
+        }
+        boolean deleted;
+        try (PreparedStatement pstmt = dbConnection.prepareStatement("DELETE FROM documents WHERE id = ?")) {
+            pstmt.setLong(1, documentId);
+            deleted = pstmt.executeUpdate() > 0;
+        }
+        if (memoryIndex != null) {
+            memoryIndex.remove(documentId);
+        }
+        for (Long chunkId : chunkIds) {
+            chunkIndex.remove(chunkId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Поиск с точностью до фрагмента: фрагменты из chunks (через индекс в памяти, если он загружен)
+     * и целые документы, которые не разбивались.
+     * Результат - SimilarDocument с ID документа и текстом фрагмента или документа
+     */
+    public List<SimilarDocument> findSimilarChunks(List<Double> queryEmbedding, int topK) throws SQLException {
+        List<SimilarDocument> merged = chunkIndex != null
+                ? findSimilarChunksInMemory(queryEmbedding, topK)
+                : findSimilarChunksInDatabase(queryEmbedding, topK);
+
+        // с запасом: часть документов может оказаться разбитой на фрагменты
+        List<Document> documents = findSimilarDocuments(queryEmbedding, topK * 2);
+        Long[] ids = new Long[documents.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = documents.get(i).id;
+        }
+        Set<Long> chunked = new HashSet<>();
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(
+                "SELECT DISTINCT document_id FROM chunks WHERE document_id = ANY(?)")) {
+            pstmt.setArray(1, dbConnection.createArrayOf("bigint", ids));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                chunked.add(rs.getLong(1));
+            }
+        }
+        float[] query = VectorMath.normalize(VectorMath.toFloatArray(queryEmbedding));
+        for (Document doc : documents) {
+            if (chunked.contains(doc.id) || doc.embedding == null) {
+                continue;
+            }
+            float[] unit = VectorMath.normalize(VectorMath.toFloatArray(doc.embedding));
+            merged.add(new SimilarDocument(doc.id, doc.content, doc.embedding, VectorMath.dot(query, unit) * 100));
+        }
+        merged.sort((a, b) -> Double.compare(b.similarityPercent, a.similarityPercent));
+        return merged.size() > topK ? new ArrayList<>(merged.subList(0, topK)) : merged;
+    }
+
+    private List<SimilarDocument> findSimilarChunksInMemory(List<Double> queryEmbedding, int topK) throws SQLException {
+        List<VectorSearchHit> hits = chunkIndex.search(VectorMath.toFloatArray(queryEmbedding), topK, -1.0);
+        List<SimilarDocument> results = new ArrayList<>(hits.size());
+        if (hits.isEmpty()) {
+            return results;
+        }
+        Long[] ids = new Long[hits.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = hits.get(i).getDocumentId();
+        }
+        Map<Long, Object[]> rows = new HashMap<>();
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(
+                "SELECT id, document_id, content FROM chunks WHERE id = ANY(?)")) {
+            pstmt.setArray(1, dbConnection.createArrayOf("bigint", ids));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                rows.put(rs.getLong(1), new Object[]{rs.getLong(2), rs.getString(3)});
+            }
+        }
+        for (VectorSearchHit hit : hits) {
+            Object[] row = rows.get(hit.getDocumentId());
+            if (row != null) {
+                results.add(new SimilarDocument((Long) row[0], (String) row[1], null, hit.getSimilarity() * 100));
+            } else {
+                // фрагмента уже нет в базе
+                chunkIndex.remove(hit.getDocumentId());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Без индекса в памяти фрагменты просматриваются в базе, как и документы без индекса
+     */
+    private List<SimilarDocument> findSimilarChunksInDatabase(List<Double> queryEmbedding, int topK) throws SQLException {
+        List<SimilarDocument> results = new ArrayList<>();
+        try (PreparedStatement pstmt = dbConnection.prepareStatement("""
+                SELECT s.document_id, s.content, s.similarity
+                FROM (
+                    SELECT c.document_id, c.content, dot_product(c.embedding_unit, ?::real[]) AS similarity
+                    FROM chunks c
+                    OFFSET 0
+                ) s
+                ORDER BY s.similarity DESC
+                LIMIT ?
+                """)) {
+            pstmt.setString(1, VectorMath.toUnitArrayLiteral(queryEmbedding));
+            pstmt.setInt(2, topK);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                results.add(new SimilarDocument(rs.getLong(1), rs.getString(2), null, rs.getDouble(3) * 100));
+            }
+        }
+        return results;
     }
 
     private double calculateNorm(List<Double> embedding) {
@@ -227,19 +637,54 @@ public class PostgresDatabase {
     }
 
     public List<Document> findSimilarDocuments(List<Double> queryEmbedding, int topK) throws SQLException {
+        if (memoryIndex != null) {
+            List<VectorSearchHit> hits = memoryIndex.search(VectorMath.toFloatArray(queryEmbedding), topK, -1.0);
+            List<Long> ids = new ArrayList<>(hits.size());
+            for (VectorSearchHit hit : hits) {
+                ids.add(hit.getDocumentId());
+            }
+            List<Document> documents = getDocumentsByIds(ids);
+            if (documents.size() < ids.size()) {
+                // документ удален другим клиентом или сервисом - убираем его и из индекса в памяти
+                Set<Long> found = new HashSet<>();
+                for (Document document : documents) {
+                    found.add(document.id);
+                }
+                for (Long id : ids) {
+                    if (!found.contains(id)) {
+                        memoryIndex.remove(id);
+                    }
+                }
+            }
+            return documents;
+        }
+        if (isIvfEnabled()) {
+            return findSimilarDocumentsIvf(queryEmbedding, topK);
+        }
         JSONArray queryEmbeddingJson = new JSONArray(queryEmbedding);
+        String queryParam = VectorMath.toUnitArrayLiteral(queryEmbedding);
 
         String sql = """
-                    SELECT d.id, d.content, e.embedding, 
-                           cosine_similarity(e.embedding, ?::jsonb) AS cosine_similarity
+                    SELECT d.id, d.content, e.embedding,
+                           %s AS cosine_similarity
                     FROM documents d
                     JOIN embeddings e ON d.id = e.document_id
-                    ORDER BY cosine_similarity DESC LIMIT ?
+                    ORDER BY cosine_similarity DESC NULLS LAST LIMIT ?
+                """.formatted(similarityExpression("e."));
+        if (isPgvectorStorage()) {
+            queryParam = queryEmbeddingJson.toString();
+            // Сортировка по оператору <=> использует индекс HNSW/IVFFlat
+            sql = """
+                    SELECT d.id, d.content, e.embedding
+                    FROM embeddings e
+                    JOIN documents d ON d.id = e.document_id
+                    ORDER BY e.embedding_vec <=> ?::vector LIMIT ?
                 """;
+        }
 
         List<Document> results = new ArrayList<>();
         try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
-            pstmt.setString(1, queryEmbeddingJson.toString());
+            pstmt.setString(1, queryParam);
             pstmt.setInt(2, topK);
 
             ResultSet rs = pstmt.executeQuery();
@@ -260,6 +705,88 @@ public class PostgresDatabase {
         return results;
     }
 
+    private boolean isIvfEnabled() {
+        return SchemaMigrations.isIvfEnabled(properties);
+    }
+
+    /**
+     * Поиск по IVF спискам, которые строит и перестраивает IvfIndexService: nprobe ближайших центроидов
+     * выбираются в том же запросе. Пока центроидов нет, сканируются все строки (ivf_list IS NULL).
+     */
+    private List<Document> findSimilarDocumentsIvf(List<Double> queryEmbedding, int topK) throws SQLException {
+        String queryUnit = VectorMath.toUnitArrayLiteral(queryEmbedding);
+        int nprobe = Integer.parseInt(properties.getProperty("rag.vector.ivf.nprobe", "8").trim());
+        String sql = """
+                    WITH probes AS (
+                        SELECT list_id FROM ivf_centroids
+                        ORDER BY dot_product(centroid, ?::real[]) DESC
+                        LIMIT ?
+                    )
+                    SELECT d.id, d.content, e.embedding,
+                           %s AS cosine_similarity
+                    FROM documents d
+                    JOIN embeddings e ON d.id = e.document_id
+                    WHERE e.ivf_list IN (SELECT list_id FROM probes)
+                       OR e.ivf_list IS NULL
+                       OR NOT EXISTS (SELECT 1 FROM ivf_centroids)
+                    ORDER BY cosine_similarity DESC NULLS LAST LIMIT ?
+                """.formatted(similarityExpression("e."));
+
+        List<Document> results = new ArrayList<>();
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            pstmt.setString(1, queryUnit);
+            pstmt.setInt(2, nprobe);
+            pstmt.setString(3, queryUnit);
+            pstmt.setInt(4, topK);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                JSONArray embArray = new JSONArray(rs.getString("embedding"));
+                List<Double> embedding = new ArrayList<>();
+                for (int i = 0; i < embArray.length(); i++) {
+                    embedding.add(embArray.getDouble(i));
+                }
+                results.add(new Document(rs.getLong("id"), rs.getString("content"), embedding));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Возвращает документы с эмбеддингами в порядке переданных ID
+     */
+    public List<Document> getDocumentsByIds(List<Long> ids) throws SQLException {
+        List<Document> results = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return results;
+        }
+        String sql = """
+                    SELECT d.id, d.content, e.embedding
+                    FROM documents d
+                    JOIN embeddings e ON d.id = e.document_id
+                    WHERE d.id = ANY(?)
+                """;
+        Map<Long, Document> byId = new HashMap<>();
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            pstmt.setArray(1, dbConnection.createArrayOf("bigint", ids.toArray()));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                JSONArray embArray = new JSONArray(rs.getString("embedding"));
+                List<Double> embedding = new ArrayList<>();
+                for (int i = 0; i < embArray.length(); i++) {
+                    embedding.add(embArray.getDouble(i));
+                }
+                byId.put(rs.getLong("id"), new Document(rs.getLong("id"), rs.getString("content"), embedding));
+            }
+        }
+        for (Long id : ids) {
+            Document document = byId.get(id);
+            if (document != null) {
+                results.add(document);
+            }
+        }
+        return results;
+    }
+
     // Новая функция для поиска похожих документов с возвратом процента сходства
     public List<SimilarDocument> findSimilarDocumentsWithSimilarity(List<Double> queryEmbedding, double similarityThreshold, int topK) throws SQLException {
         JSONArray queryEmbeddingJson = new JSONArray(queryEmbedding);
@@ -299,12 +826,22 @@ public class PostgresDatabase {
         JSONArray embeddingJson = new JSONArray(embedding);
 
         String sql = """
-                    SELECT COUNT(*) 
+                    SELECT COUNT(*)
                     FROM find_similar_documents(?::jsonb, ?, 1)
                 """;
+        String queryParam = embeddingJson.toString();
+        if (!isPgvectorStorage()) {
+            // EXISTS останавливает сканирование на первой строке выше порога, сортировка не нужна
+            sql = """
+                    SELECT CASE WHEN EXISTS (
+                        SELECT 1 FROM embeddings WHERE %s >= ?
+                    ) THEN 1 ELSE 0 END
+                """.formatted(similarityExpression(""));
+            queryParam = VectorMath.toUnitArrayLiteral(embedding);
+        }
 
         try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
-            pstmt.setString(1, embeddingJson.toString());
+            pstmt.setString(1, queryParam);
             pstmt.setDouble(2, similarityThreshold);
 
             ResultSet rs = pstmt.executeQuery();
@@ -315,6 +852,29 @@ public class PostgresDatabase {
         return false;
     }
 
+    /**
+     * Максимальный процент сходства только среди кандидатов (например, из LSH корзин)
+     */
+    public double getMaxSimilarityPercent(List<Double> embedding, List<Long> candidateIds) throws SQLException {
+        if (candidateIds.isEmpty()) {
+            return 0.0;
+        }
+        String sql = """
+                    SELECT COALESCE(GREATEST(MAX(%s), 0), 0) * 100
+                    FROM embeddings
+                    WHERE document_id = ANY(?)
+                """.formatted(similarityExpression(""));
+        try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            pstmt.setString(1, VectorMath.toUnitArrayLiteral(embedding));
+            pstmt.setArray(2, dbConnection.createArrayOf("bigint", candidateIds.toArray()));
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getDouble(1);
+            }
+        }
+        return 0.0;
+    }
+
     // Функция для получения максимального процента сходства
     public double getMaxSimilarityPercent(List<Double> embedding) throws SQLException {
         JSONArray embeddingJson = new JSONArray(embedding);
@@ -323,9 +883,18 @@ public class PostgresDatabase {
                     SELECT COALESCE(MAX(similarity_percent), 0)
                     FROM find_similar_documents(?::jsonb, 0.01, 1)
                 """;
+        String queryParam = embeddingJson.toString();
+        if (!isPgvectorStorage()) {
+            // Одно вычисление сходства на строку и агрегат MAX вместо сортировки
+            sql = """
+                    SELECT COALESCE(GREATEST(MAX(%s), 0), 0) * 100
+                    FROM embeddings
+                """.formatted(similarityExpression(""));
+            queryParam = VectorMath.toUnitArrayLiteral(embedding);
+        }
 
         try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
-            pstmt.setString(1, embeddingJson.toString());
+            pstmt.setString(1, queryParam);
 
             ResultSet rs = pstmt.executeQuery();
             if (rs.next()) {
@@ -1,67 +1,66 @@
 package ru.miacomsoft.oracle_bd.rag.utils;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import ru.miacomsoft.olamaeventsourcespringboot.service.EmbedBatches;
+import ru.miacomsoft.olamaeventsourcespringboot.service.OllamaEndpointPool;
+import ru.miacomsoft.olamaeventsourcespringboot.service.RequestHedger;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.stream.Collectors;
 
 public class EmbeddingsText {
-    private final String ollamaHost;
-    private final int ollamaPort;
+    private final OllamaEndpointPool endpointPool;
+    private final RequestHedger hedger;
     private String embeddingModel;
+    private final int batchMaxTexts;
+    private final long batchMaxBytes;
 
     public EmbeddingsText(Properties properties) {
-        this.ollamaHost = properties.getProperty("ollama.host", "localhost");
-        this.ollamaPort = Integer.parseInt(properties.getProperty("ollama.port", "11434"));
+        this(properties, OllamaEndpointPool.fromProperties(properties, String.format("http://%s:%s",
+                properties.getProperty("ollama.host", "localhost"), properties.getProperty("ollama.port", "11434"))));
+    }
+
+    private EmbeddingsText(Properties properties, OllamaEndpointPool endpointPool) {
+        this(properties, endpointPool, RequestHedger.fromProperties(properties, endpointPool));
+    }
+
+    /**
+     * Эмбеддинги через общий пул серверов клиента (OllamaClient)
+     */
+    public EmbeddingsText(Properties properties, OllamaEndpointPool endpointPool, RequestHedger hedger) {
+        this.endpointPool = endpointPool;
+        this.hedger = hedger;
         this.embeddingModel = properties.getProperty("ollama.embeddingModel", "all-minilm:22m");
+        this.batchMaxTexts = Integer.parseInt(properties.getProperty("rag.embedding.batch.max-texts", "64").trim());
+        this.batchMaxBytes = Long.parseLong(properties.getProperty("rag.embedding.batch.max-bytes", "1048576").trim());
     }
 
     public List<Double> getEmbeddings(String text) {
         try {
-            URL url = new URL(String.format("http://%s:%d/api/embeddings", ollamaHost, ollamaPort));
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-
-            JSONObject payload = new JSONObject();
-            payload.put("model", getEmbeddingModel());
-            payload.put("prompt", text);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = payload.toString().getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
+            // одиночный запрос дублируется на второй сервер, если первый задерживает ответ
+            return sendEmbedRequest(List.of(text), true).get(0);
+        } catch (Exception e) {
+            throw new RuntimeException("Не удалось получить эмбеддинги для текста: " + text.substring(0, Math.min(50, text.length())), e);
+        }
+    }
 
-            if (conn.getResponseCode() == 200) {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream(), "utf-8"))) {
-                    String response = br.lines().collect(Collectors.joining());
-                    JSONObject jsonResponse = new JSONObject(response);
-                    JSONArray embeddingArray = jsonResponse.getJSONArray("embedding");
+    /**
+     * Эмбеддинги списка текстов через /api/embed (массив input). Тексты делятся на пакеты не больше
+     * rag.embedding.batch.max-texts штук и rag.embedding.batch.max-bytes байт, порядок результатов сохраняется
+     */
+    public List<List<Double>> getEmbeddingsBatch(List<String> texts) {
+        return EmbedBatches.request(texts, batchMaxTexts, batchMaxBytes, batch -> sendEmbedRequest(batch, false));
+    }
 
-                    List<Double> embeddings = new ArrayList<>();
-                    for (int i = 0; i < embeddingArray.length(); i++) {
-                        embeddings.add(embeddingArray.getDouble(i));
-                    }
-                    return embeddings;
-                }
-            } else {
-                throw new RuntimeException("HTTP Error: " + conn.getResponseCode() + " - " + conn.getResponseMessage());
-            }
+    private List<List<Double>> sendEmbedRequest(List<String> texts, boolean hedge) {
+        try {
+            String model = getEmbeddingModel();
+            String body = EmbedBatches.body(model, texts);
+            String response = hedge ? hedger.post(model, "/api/embed", body) : endpointPool.post(model, "/api/embed", body);
+            return EmbedBatches.parse(response, texts.size());
         } catch (Exception e) {
             System.err.println("Ошибка получения эмбеддингов: " + e.getMessage());
-            throw new RuntimeException("Не удалось получить эмбеддинги для текста: " + text.substring(0, Math.min(50, text.length())), e);
+            throw new RuntimeException("Не удалось получить эмбеддинги для " + texts.size() + " текстов", e);
         }
     }
 
@@ -0,0 +1,97 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Бинарно квантованный индекс: точное совпадение кодов, удаление с переносом последней строки,
+ * фильтр и отбор кандидатов по сравнению с полным перебором
+ */
+class BinaryQuantizedIndexTest {
+
+    private static final int DIMENSION = 96;
+
+    @Test
+    void identicalVectorIsFoundWithFullSimilarity() {
+        Random random = new Random(6);
+        BinaryQuantizedIndex index = new BinaryQuantizedIndex();
+        float[][] vectors = new float[50][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = TestVectors.randomUnit(random, DIMENSION);
+            index.add(i, vectors[i]);
+        }
+
+        List<VectorSearchHit> hits = index.search(vectors[17], 3, -1, null);
+
+        assertEquals(3, hits.size());
+        assertEquals(17L, hits.get(0).getDocumentId());
+        assertEquals(1.0, hits.get(0).getSimilarity(), 1e-9);
+        assertTrue(hits.get(0).getSimilarity() >= hits.get(1).getSimilarity());
+        // противоположный вектор отличается всеми битами
+        float[] opposite = new float[DIMENSION];
+        for (int d = 0; d < DIMENSION; d++) {
+            opposite[d] = -vectors[17][d];
+        }
+        assertTrue(index.search(opposite, 1, 0.5, id -> id == 17).isEmpty());
+    }
+
+    @Test
+    void removeMovesLastRowAndReplaceKeepsSize() {
+        Random random = new Random(7);
+        BinaryQuantizedIndex index = new BinaryQuantizedIndex();
+        float[] a = TestVectors.randomUnit(random, DIMENSION);
+        float[] b = TestVectors.randomUnit(random, DIMENSION);
+        float[] c = TestVectors.randomUnit(random, DIMENSION);
+        index.add(1, a);
+        index.add(2, b);
+        index.add(3, c);
+
+        assertTrue(index.remove(1));
+        assertFalse(index.remove(1));
+        assertEquals(2, index.size());
+        // строка документа 3 перенесена на место удаленной и по-прежнему находится
+        assertEquals(3L, index.search(c, 1, -1, null).get(0).getDocumentId());
+        assertEquals(2L, index.search(b, 1, -1, null).get(0).getDocumentId());
+
+        index.add(2, a);
+        assertEquals(2, index.size());
+        assertEquals(2L, index.search(a, 1, -1, null).get(0).getDocumentId());
+        assertThrows(IllegalArgumentException.class, () -> index.add(4, new float[DIMENSION + 1]));
+        assertThrows(IllegalArgumentException.class, () -> index.search(new float[8], 1, -1, null));
+    }
+
+    @Test
+    void candidatesCoverExactNeighboursAndRespectFilter() {
+        Random random = new Random(8);
+        float[][] vectors = TestVectors.clustered(random, 3000, DIMENSION, 30, 0.6f);
+        BinaryQuantizedIndex index = new BinaryQuantizedIndex();
+        for (int i = 0; i < vectors.length; i++) {
+            index.add(i, vectors[i]);
+        }
+        Set<Long> even = new HashSet<>();
+        for (long id = 0; id < vectors.length; id += 2) {
+            even.add(id);
+        }
+
+        int queries = 50;
+        double recall = 0;
+        for (int q = 0; q < queries; q++) {
+            float[] query = TestVectors.perturb(random, vectors[random.nextInt(vectors.length)], 0.3f);
+            // отобранные кандидаты пересчитываются по полным векторам, поэтому берется запас 10x
+            List<VectorSearchHit> candidates = index.search(query, 100, -1, even::contains);
+            for (VectorSearchHit hit : candidates) {
+                assertTrue(even.contains(hit.getDocumentId()));
+            }
+            recall += TestVectors.recall(TestVectors.bruteForceIds(vectors, query, 10, even), candidates);
+        }
+        recall /= queries;
+        System.out.println("Бинарный индекс: recall@10 среди 100 кандидатов = " + recall);
+        assertTrue(recall >= 0.9, "recall " + recall);
+    }
+}
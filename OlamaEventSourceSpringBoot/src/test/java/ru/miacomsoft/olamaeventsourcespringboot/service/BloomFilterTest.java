@@ -0,0 +1,46 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Фильтр Блума по SHA-256 содержимого: без ложных "нет", доля ложных "возможно" около заданной
+ */
+class BloomFilterTest {
+
+    @Test
+    void noFalseNegativesAndBoundedFalsePositives() {
+        int inserted = 20_000;
+        double rate = 0.01;
+        BloomFilter filter = new BloomFilter(inserted, rate);
+        for (int i = 0; i < inserted; i++) {
+            filter.put(BloomFilter.sha256("документ " + i));
+        }
+        for (int i = 0; i < inserted; i++) {
+            assertTrue(filter.mightContain(BloomFilter.sha256("документ " + i)));
+        }
+        int probes = 50_000;
+        int falsePositives = 0;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain(BloomFilter.sha256("другой документ " + i))) {
+                falsePositives++;
+            }
+        }
+        double observed = (double) falsePositives / probes;
+        System.out.printf("Bloom: ложных срабатываний %.4f при заданных %.4f, %d бит, %d хешей%n",
+                observed, rate, filter.getBitCount(), filter.getHashCount());
+        assertTrue(observed < rate * 2, "доля ложных срабатываний " + observed);
+    }
+
+    @Test
+    void sha256MatchesPostgresDigest() {
+        // SELECT encode(sha256(convert_to('abc', 'UTF8')), 'hex')
+        byte[] hash = BloomFilter.sha256("abc");
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hex.toString());
+    }
+}
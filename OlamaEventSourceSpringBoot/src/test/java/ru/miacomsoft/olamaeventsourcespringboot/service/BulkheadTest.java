@@ -0,0 +1,64 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ограничение одновременных запросов: ожидание места не дольше maxWaitMs и срока запроса
+ */
+class BulkheadTest {
+
+    @AfterEach
+    void clearDeadline() {
+        RequestDeadline.clear();
+    }
+
+    @Test
+    void rejectsWhenFullAndAdmitsAfterRelease() {
+        Bulkhead bulkhead = new Bulkhead("llm", 2, 20);
+        bulkhead.acquire();
+        bulkhead.acquire();
+        assertEquals(2, bulkhead.getStatistics().getInt("in_use"));
+        assertThrows(Bulkhead.Full.class, bulkhead::acquire);
+        assertEquals(1, bulkhead.getStatistics().getLong("rejected"));
+        bulkhead.release();
+        bulkhead.acquire();
+        bulkhead.release();
+        bulkhead.release();
+        assertEquals(0, bulkhead.getStatistics().getInt("in_use"));
+    }
+
+    @Test
+    void waiterGetsReleasedPermit() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("llm", 1, 5_000);
+        bulkhead.acquire();
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            bulkhead.acquire();
+            admitted.countDown();
+            bulkhead.release();
+        });
+        waiter.start();
+        Thread.sleep(50);
+        assertEquals(1, admitted.getCount());
+        bulkhead.release();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    void waitIsLimitedByDeadline() {
+        Bulkhead bulkhead = new Bulkhead("llm", 1, 10_000);
+        bulkhead.acquire();
+        RequestDeadline.set(System.currentTimeMillis() + 50);
+        long start = System.currentTimeMillis();
+        assertThrows(Bulkhead.Full.class, bulkhead::acquire);
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+        bulkhead.release();
+    }
+}
@@ -0,0 +1,67 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Размыкание по доле ошибок в окне, один пробный запрос после паузы, замыкание после успешной пробы
+ */
+class CircuitBreakerTest {
+
+    @Test
+    void opensAfterFailureRateAndClosesAfterTrial() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10, 4, 50, 100);
+        breaker.recordSuccess();
+        breaker.recordFailure("ошибка 1");
+        breaker.recordFailure("ошибка 2");
+        assertTrue(breaker.allow(), "меньше minCalls вызовов - цепь замкнута");
+        breaker.recordFailure("ошибка 3");
+
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allow());
+        assertTrue(breaker.retryAfterMs() > 0);
+        assertEquals("OPEN", breaker.getStatistics().getString("state"));
+        assertEquals(1, breaker.getStatistics().getLong("rejected"));
+        assertTrue(new CircuitBreaker.Open(breaker).getMessage().contains("test"));
+
+        Thread.sleep(120);
+        assertTrue(breaker.allow(), "пробный запрос после паузы");
+        assertFalse(breaker.allow(), "второй запрос во время пробы");
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allow());
+        assertEquals("CLOSED", breaker.getStatistics().getString("state"));
+        assertEquals(0, breaker.retryAfterMs());
+    }
+
+    @Test
+    void failedTrialReopens() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 2, 50, 100);
+        breaker.recordFailure("ошибка");
+        breaker.recordFailure("ошибка");
+        assertTrue(breaker.isOpen());
+        Thread.sleep(120);
+        assertTrue(breaker.allow());
+        breaker.recordFailure("проба не прошла");
+        assertTrue(breaker.isOpen());
+        assertEquals(2, breaker.getStatistics().getLong("opened"));
+        assertEquals("проба не прошла", breaker.getStatistics().getString("last_error"));
+    }
+
+    @Test
+    void oldOutcomesLeaveSlidingWindow() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 4, 75, 1000);
+        breaker.recordFailure("ошибка");
+        breaker.recordFailure("ошибка");
+        for (int i = 0; i < 4; i++) {
+            breaker.recordSuccess();
+        }
+        // ошибки вытеснены успехами: 2 из 4 - ниже порога 75%
+        breaker.recordFailure("ошибка");
+        breaker.recordFailure("ошибка");
+        assertFalse(breaker.isOpen());
+        breaker.recordFailure("ошибка");
+        assertTrue(breaker.isOpen());
+    }
+}
@@ -0,0 +1,86 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Сборка контекста: бюджет токенов не превышается, повторяющиеся строки не дублируются,
+ * из большого документа берутся фрагменты со словами запроса
+ */
+class ContextAssemblerTest {
+
+    private static final String HEADER = "Контекст:\n";
+
+    @Test
+    void budgetIsRespected() {
+        ContextAssembler assembler = new ContextAssembler(300, 64);
+        List<Object[]> documents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            documents.add(new Object[]{(long) i, paragraph("строка документа " + i, 20), null, 0.9 - i * 0.01});
+        }
+        String context = assembler.assemble(HEADER, documents, Map.of(), "документа", "Сходство");
+        assertNotNull(context);
+        assertTrue(ContextAssembler.estimateTokens(context) <= 300,
+                "контекст " + ContextAssembler.estimateTokens(context) + " токенов при бюджете 300");
+        assertTrue(context.startsWith(HEADER));
+        assertTrue(context.contains("Документ ID: 0"));
+    }
+
+    @Test
+    void largeDocumentIsCutToMatchingPassages() {
+        ContextAssembler assembler = new ContextAssembler(200, 32);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            content.append(i == 25 ? "процедура CALC_DOSE считает дозу препарата" : "общая строка номер " + i).append('\n');
+        }
+        List<Object[]> documents = List.<Object[]>of(new Object[]{7L, content.toString(), null, 0.8});
+        String context = assembler.assemble(HEADER, documents, null, "как работает calc_dose", "Сходство");
+        assertNotNull(context);
+        assertTrue(context.contains("CALC_DOSE"), "фрагмент со словом запроса должен попасть в контекст");
+        assertTrue(context.contains("..."), "пропущенные фрагменты отмечаются");
+        assertTrue(ContextAssembler.estimateTokens(context) <= 200);
+    }
+
+    @Test
+    void repeatedLinesAreNotDuplicated() {
+        ContextAssembler assembler = new ContextAssembler(2000, 128);
+        String shared = "одинаковое описание таблицы PATIENTS в двух документах";
+        List<Object[]> documents = List.of(
+                new Object[]{1L, shared + "\nпервый документ", null, 0.9},
+                new Object[]{2L, shared, null, 0.8},
+                new Object[]{3L, shared + "\nтретий документ", null, 0.7});
+        String context = assembler.assemble(HEADER, documents, null, "patients", "Сходство");
+        assertEquals(1, context.split(shared, -1).length - 1);
+        assertFalse(context.contains("Документ ID: 2"), "документ целиком из повторов пропускается");
+        assertTrue(context.contains("третий документ"));
+    }
+
+    @Test
+    void nothingFitsReturnsNull() {
+        ContextAssembler assembler = new ContextAssembler(5, 32);
+        assertNull(assembler.assemble(HEADER, List.<Object[]>of(new Object[]{1L, paragraph("текст", 10), null, 0.9}),
+                null, "текст", "Сходство"));
+        assertNull(new ContextAssembler(100, 32).assemble(HEADER, List.of(), null, "", "Сходство"));
+    }
+
+    @Test
+    void tokenEstimate() {
+        assertEquals(0, ContextAssembler.estimateTokens(null));
+        assertEquals(2, ContextAssembler.estimateTokens("abcdefgh"));
+        assertEquals(3, ContextAssembler.estimateTokens("кириллица"));
+        assertEquals(4, ContextAssembler.estimateTokens("a, b."));
+    }
+
+    private static String paragraph(String line, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(line).append(' ').append(i).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Разбиение документа на фрагменты: размер, перекрытие, границы объектов и смещения в исходном тексте
+ */
+class DocumentChunkerTest {
+
+    @Test
+    void chunksFitSizeOverlapAndPointIntoSource() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("v_total_").append(i).append(" := v_total_").append(i).append(" + amount * rate\n");
+        }
+        String content = text.toString();
+        DocumentChunker chunker = new DocumentChunker(64, 16, 128);
+
+        assertTrue(chunker.shouldChunk(ContextAssembler.estimateTokens(content)));
+        assertFalse(chunker.shouldChunk(100));
+
+        List<DocumentChunker.Chunk> chunks = chunker.split(content);
+        assertTrue(chunks.size() > 10);
+        for (int i = 0; i < chunks.size(); i++) {
+            DocumentChunker.Chunk chunk = chunks.get(i);
+            assertEquals(i, chunk.getIndex());
+            assertTrue(chunk.getTokenCount() <= 64, "фрагмент " + i + ": " + chunk.getTokenCount());
+            assertEquals(chunk.getContent(), content.substring(chunk.getStartOffset(),
+                    chunk.getStartOffset() + chunk.getContent().length()));
+            if (i > 0) {
+                DocumentChunker.Chunk previous = chunks.get(i - 1);
+                int previousEnd = previous.getStartOffset() + previous.getContent().length();
+                assertTrue(chunk.getStartOffset() > previous.getStartOffset());
+                assertTrue(chunk.getStartOffset() < previousEnd, "соседние фрагменты перекрываются");
+            }
+        }
+        DocumentChunker.Chunk last = chunks.get(chunks.size() - 1);
+        assertEquals(0, chunks.get(0).getStartOffset());
+        assertEquals(content.length(), last.getStartOffset() + last.getContent().length(), "текст покрыт до конца");
+    }
+
+    @Test
+    void objectStartIsPreferredBoundaryWithoutOverlap() {
+        // граница ищется во второй половине фрагмента, поэтому первый объект занимает больше половины
+        String first = procedure("calc_first", 5);
+        String second = procedure("calc_second", 12);
+        String content = first + "\n" + second;
+        DocumentChunker chunker = new DocumentChunker(96, 24, 96);
+
+        List<DocumentChunker.Chunk> chunks = chunker.split(content);
+
+        DocumentChunker.Chunk secondStart = null;
+        for (DocumentChunker.Chunk chunk : chunks) {
+            if (chunk.getContent().startsWith("CREATE OR REPLACE PROCEDURE calc_second")) {
+                secondStart = chunk;
+            }
+            assertFalse(chunk.getContent().contains("calc_first") && chunk.getContent().contains("calc_second"),
+                    "фрагмент не переходит через начало объекта");
+        }
+        assertNotNull(secondStart, "новый фрагмент начинается с объекта");
+        assertEquals(first.length() + 1, secondStart.getStartOffset());
+    }
+
+    @Test
+    void longMinifiedLineIsCutIntoPieces() {
+        String content = "x1 = 1;".repeat(400);
+        DocumentChunker chunker = new DocumentChunker(32, 0, 32);
+
+        List<DocumentChunker.Chunk> chunks = chunker.split(content);
+
+        assertTrue(chunks.size() > 1);
+        StringBuilder joined = new StringBuilder();
+        for (DocumentChunker.Chunk chunk : chunks) {
+            assertEquals(joined.length(), chunk.getStartOffset(), "без перекрытия фрагменты идут подряд");
+            joined.append(chunk.getContent().replace("\n", ""));
+        }
+        assertEquals(content, joined.toString());
+    }
+
+    @Test
+    void propertiesAreReadWithDefaults() {
+        Properties props = new Properties();
+        props.setProperty("rag.chunking.min-document-tokens", "1000");
+        DocumentChunker chunker = DocumentChunker.fromProperties(props);
+
+        assertFalse(chunker.shouldChunk(999));
+        assertTrue(chunker.shouldChunk(1000));
+        assertTrue(chunker.split("").isEmpty());
+    }
+
+    private static String procedure(String name, int statements) {
+        StringBuilder text = new StringBuilder("CREATE OR REPLACE PROCEDURE " + name + " IS\nBEGIN\n");
+        for (int i = 0; i < statements; i++) {
+            text.append("  v_sum := v_sum + p_amount_").append(i).append(";\n");
+        }
+        return text.append("END;\n/").toString();
+    }
+}
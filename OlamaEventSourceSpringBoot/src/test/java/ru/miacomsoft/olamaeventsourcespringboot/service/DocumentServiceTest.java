@@ -0,0 +1,52 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Слияние векторной и лексической выдачи (RRF) в DocumentService.reciprocalRankFusion
+ */
+class DocumentServiceTest {
+
+    @Test
+    void fusionOrdersByReciprocalRank() {
+        List<Object[]> vector = List.of(row(1, 0.95), row(2, 0.90), row(3, 0.80));
+        List<Object[]> lexical = List.of(row(2, 0.90), row(4, 0.50), row(3, 0.80));
+
+        List<Object[]> fused = DocumentService.reciprocalRankFusion(List.of(vector, lexical), 60, 10);
+
+        // 2: 1/62 + 1/61, 3: 1/63 + 1/63, 1: 1/61, 4: 1/62
+        assertEquals(List.of(2L, 3L, 1L, 4L), ids(fused));
+        // сходство строки сохраняется для порога и ответа
+        assertEquals(0.95, (Double) fused.get(2)[3], 1e-9);
+    }
+
+    @Test
+    void fusionRespectsTopKAndKeepsChunksApart() {
+        List<Object[]> vector = List.of(chunk(1, 0), chunk(1, 1), row(2, 0.7));
+        List<Object[]> lexical = List.of(chunk(1, 1), row(2, 0.7));
+
+        List<Object[]> fused = DocumentService.reciprocalRankFusion(List.of(vector, lexical), 60, 2);
+
+        assertEquals(2, fused.size());
+        assertEquals(1L, fused.get(0)[0]);
+        assertEquals(1, fused.get(0)[4], "фрагменты одного документа не складываются");
+        assertEquals(2L, fused.get(1)[0]);
+        assertTrue(DocumentService.reciprocalRankFusion(List.of(List.of(), List.of()), 60, 5).isEmpty());
+    }
+
+    private static Object[] row(long id, double similarity) {
+        return new Object[]{id, "документ " + id, null, similarity};
+    }
+
+    private static Object[] chunk(long id, int index) {
+        return new Object[]{id, "фрагмент " + index, null, 0.9, index};
+    }
+
+    private static List<Long> ids(List<Object[]> rows) {
+        return rows.stream().map(row -> (Long) row[0]).toList();
+    }
+}
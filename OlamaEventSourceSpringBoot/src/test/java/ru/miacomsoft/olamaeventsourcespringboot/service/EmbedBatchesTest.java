@@ -0,0 +1,65 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Пакеты /api/embed: лимиты по числу текстов и байтам, порядок результатов, тело запроса и разбор ответа
+ */
+class EmbedBatchesTest {
+
+    @Test
+    void textsAreSplitByCountAndBytesKeepingOrder() {
+        List<String> texts = List.of("a", "bb", "ccc", "dddd", "ee", "f", "gg");
+        List<List<String>> batches = new ArrayList<>();
+
+        List<List<Double>> result = EmbedBatches.request(texts, 3, 6, batch -> {
+            batches.add(List.copyOf(batch));
+            return lengths(batch);
+        });
+
+        // "ccc" + "dddd" больше 6 байт, "dddd" + "ee" = 6 помещается
+        assertEquals(List.of(List.of("a", "bb", "ccc"), List.of("dddd", "ee"), List.of("f", "gg")), batches);
+        assertEquals(lengths(texts), result);
+    }
+
+    @Test
+    void oversizedTextGoesAloneAndBytesAreUtf8() {
+        List<List<String>> batches = new ArrayList<>();
+        // кириллица - 2 байта на символ
+        List<String> texts = List.of("ab", "длинный текст", "cd", "ёж", "e");
+
+        EmbedBatches.request(texts, 10, 4, batch -> {
+            batches.add(List.copyOf(batch));
+            return lengths(batch);
+        });
+
+        assertEquals(List.of(List.of("ab"), List.of("длинный текст"), List.of("cd"), List.of("ёж"), List.of("e")),
+                batches);
+        assertTrue(EmbedBatches.request(List.of(), 10, 4, batch -> fail("пустой список не отправляется")).isEmpty());
+    }
+
+    @Test
+    void bodyAndParseFollowEmbedApi() {
+        JSONObject body = new JSONObject(EmbedBatches.body("nomic", List.of("x", "y")));
+        assertEquals("nomic", body.getString("model"));
+        assertEquals(List.of("x", "y"), body.getJSONArray("input").toList());
+
+        String response = "{\"model\":\"nomic\",\"embeddings\":[[0.6,0.8],[1,0]]}";
+        assertEquals(List.of(List.of(0.6, 0.8), List.of(1.0, 0.0)), EmbedBatches.parse(response, 2));
+        assertThrows(IllegalStateException.class, () -> EmbedBatches.parse(response, 3));
+    }
+
+    private static List<List<Double>> lengths(List<String> texts) {
+        List<List<Double>> result = new ArrayList<>();
+        for (String text : texts) {
+            result.add(List.of((double) text.length()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Объединение запросов эмбеддингов: пакеты по размеру и по таймеру, общий запрос для одинакового текста,
+ * ошибка пакета доходит до каждого ожидающего
+ */
+class EmbeddingCoalescerTest {
+
+    @Test
+    void fullBatchIsSentAtOnceAndResultsKeepOrder() throws Exception {
+        List<List<String>> batches = new ArrayList<>();
+        EmbeddingCoalescer coalescer = new EmbeddingCoalescer((model, texts) -> {
+            synchronized (batches) {
+                batches.add(List.copyOf(texts));
+            }
+            return lengths(texts);
+        }, 60_000, 4, 2);
+        try {
+            List<CompletableFuture<List<Double>>> futures = new ArrayList<>();
+            for (String text : List.of("a", "bb", "ccc", "dddd")) {
+                futures.add(coalescer.submit("m", text));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(List.of((double) i + 1), futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(List.of(List.of("a", "bb", "ccc", "dddd")), batches);
+            assertEquals(1, coalescer.getBatches());
+            assertEquals(4, coalescer.getBatchedTexts());
+        } finally {
+            coalescer.close();
+        }
+    }
+
+    @Test
+    void partialBatchIsSentByTimerAndDuplicatesShareRequest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        EmbeddingCoalescer coalescer = new EmbeddingCoalescer((model, texts) -> {
+            calls.incrementAndGet();
+            return lengths(texts);
+        }, 20, 32, 2);
+        try {
+            CompletableFuture<List<Double>> first = coalescer.submit("m", "abc");
+            CompletableFuture<List<Double>> same = coalescer.submit("m", "abc");
+            CompletableFuture<List<Double>> otherModel = coalescer.submit("other", "abc");
+            assertSame(first, same);
+            assertEquals(List.of(3.0), first.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of(3.0), otherModel.get(5, TimeUnit.SECONDS));
+            assertEquals(2, calls.get(), "модели отправляются разными пакетами");
+            assertEquals(3, coalescer.getRequests());
+            assertEquals(1, coalescer.getSharedRequests());
+        } finally {
+            coalescer.close();
+        }
+    }
+
+    @Test
+    void batchErrorCompletesEveryFuture() {
+        EmbeddingCoalescer failing = new EmbeddingCoalescer((model, texts) -> {
+            throw new IllegalStateException("Ollama недоступна");
+        }, 10, 8, 1);
+        EmbeddingCoalescer shortAnswer = new EmbeddingCoalescer((model, texts) -> lengths(texts.subList(1, texts.size())), 10, 2, 1);
+        try {
+            List<CompletableFuture<List<Double>>> futures = List.of(
+                    failing.submit("m", "x"), failing.submit("m", "y"),
+                    shortAnswer.submit("m", "x"), shortAnswer.submit("m", "y"));
+            for (CompletableFuture<List<Double>> future : futures) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(IllegalStateException.class, e.getCause());
+            }
+            // после ошибки тот же текст запрашивается заново, а не получает старый результат
+            assertNotSame(futures.get(0), failing.submit("m", "x"));
+        } finally {
+            failing.close();
+            shortAnswer.close();
+        }
+    }
+
+    @Test
+    void closedCoalescerFailsNewBatches() {
+        EmbeddingCoalescer coalescer = new EmbeddingCoalescer((model, texts) -> lengths(texts), 10, 1, 1);
+        coalescer.close();
+        CompletableFuture<List<Double>> future = coalescer.submit("m", "x");
+        assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+    }
+
+    private static List<List<Double>> lengths(List<String> texts) {
+        List<List<Double>> result = new ArrayList<>();
+        for (String text : texts) {
+            result.add(List.of((double) text.length()));
+        }
+        return result;
+    }
+}
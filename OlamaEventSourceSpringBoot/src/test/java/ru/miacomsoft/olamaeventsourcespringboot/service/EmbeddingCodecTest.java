@@ -0,0 +1,80 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Квантование embedding_q: распаковка в пределах шага квантования, dot без распаковки совпадает с dot после нее
+ */
+class EmbeddingCodecTest {
+
+    private static final int DIMENSION = 384;
+
+    @Test
+    void int8RoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            float[] vector = TestVectors.randomUnit(random, DIMENSION);
+            byte[] code = EmbeddingCodec.encodeInt8(vector);
+            assertEquals(EmbeddingCodec.FORMAT_INT8, code[0]);
+            assertEquals("int8", EmbeddingCodec.codecOf(code));
+            assertEquals(9 + DIMENSION, code.length);
+
+            float[] decoded = EmbeddingCodec.decode(code);
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (float v : vector) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            float halfStep = (max - min) / 255f / 2 + 1e-6f;
+            for (int d = 0; d < DIMENSION; d++) {
+                assertEquals(vector[d], decoded[d], halfStep);
+            }
+            assertEquals(1.0, VectorMath.dot(vector, decoded), 0.01);
+        }
+    }
+
+    @Test
+    void float16RoundTrip() {
+        Random random = new Random(7);
+        float[] vector = TestVectors.randomUnit(random, DIMENSION);
+        byte[] code = EmbeddingCodec.encode(vector, "float16");
+        assertEquals(EmbeddingCodec.FORMAT_FLOAT16, code[0]);
+        assertEquals("float16", EmbeddingCodec.codecOf(code));
+        assertEquals(1 + DIMENSION * 2, code.length);
+        float[] decoded = EmbeddingCodec.decode(code);
+        for (int d = 0; d < DIMENSION; d++) {
+            // 11 значащих бит: относительная ошибка не больше 2^-11
+            assertEquals(vector[d], decoded[d], Math.abs(vector[d]) / 2048 + 1e-7f);
+        }
+        for (float value : new float[]{0f, -0f, 1f, -2.5f, 65504f, 6.1035156e-5f}) {
+            assertEquals(value, EmbeddingCodec.fromHalf(EmbeddingCodec.toHalf(value)));
+        }
+    }
+
+    @Test
+    void dotOnCodeMatchesDecodedDot() {
+        Random random = new Random(11);
+        float[] query = TestVectors.randomUnit(random, DIMENSION);
+        for (String codec : new String[]{"int8", "float16"}) {
+            float[] vector = TestVectors.randomUnit(random, DIMENSION);
+            byte[] code = EmbeddingCodec.encode(vector, codec);
+            assertEquals(VectorMath.dot(EmbeddingCodec.decode(code), query), EmbeddingCodec.dot(code, query), 1e-4, codec);
+            assertEquals(VectorMath.dot(vector, query), EmbeddingCodec.dot(code, query), 0.01, codec);
+        }
+    }
+
+    @Test
+    void constantVectorAndUnknownFormat() {
+        float[] constant = new float[16];
+        java.util.Arrays.fill(constant, 0.25f);
+        assertArrayEquals(constant, EmbeddingCodec.decode(EmbeddingCodec.encodeInt8(constant)));
+        assertTrue(EmbeddingCodec.isEnabled(" INT8 "));
+        assertFalse(EmbeddingCodec.isEnabled("none"));
+        assertThrows(IllegalArgumentException.class, () -> EmbeddingCodec.decode(new byte[]{9, 0, 0}));
+    }
+}
@@ -0,0 +1,108 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Отсечение блоков в ExactVectorIndex: результаты совпадают с полным перебором, а проверка дубликата
+ * (top-1, порог 0.9) на кластеризованных данных просматривает малую часть строк. Времена поиска
+ * печатаются для сравнения с полным перебором, но не проверяются.
+ */
+class ExactVectorIndexTest {
+
+    private static final int ROWS = 20_000;
+    private static final int DIMENSION = 64;
+    private static final int CLUSTERS = 40;
+
+    private static float[][] vectors;
+    private static ExactVectorIndex index;
+
+    @BeforeAll
+    static void buildIndex() {
+        Random random = new Random(42);
+        float[][] centers = new float[CLUSTERS][];
+        for (int c = 0; c < CLUSTERS; c++) {
+            centers[c] = TestVectors.randomUnit(random, DIMENSION);
+        }
+        vectors = new float[ROWS][];
+        index = new ExactVectorIndex(new ForkJoinPool(2));
+        for (int row = 0; row < ROWS; row++) {
+            vectors[row] = TestVectors.perturb(random, centers[random.nextInt(CLUSTERS)], 0.3f);
+            index.add(row, vectors[row]);
+        }
+        index.reorganize(5000, 10);
+    }
+
+    @Test
+    void duplicateCheckMatchesBruteForceAndSkipsMostRows() {
+        Random random = new Random(7);
+        long visitedBefore = index.getVisitedRows();
+        long prunedNanos = 0;
+        long bruteNanos = 0;
+        int queries = 50;
+        for (int q = 0; q < queries; q++) {
+            float[] query = TestVectors.perturb(random, vectors[random.nextInt(ROWS)], 0.05f);
+
+            long start = System.nanoTime();
+            List<VectorSearchHit> hits = index.search(query, 1, 0.9, null);
+            prunedNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<VectorSearchHit> expected = bruteForce(query, 1, 0.9);
+            bruteNanos += System.nanoTime() - start;
+
+            assertSameHits(expected, hits);
+        }
+        double visitedRatio = (index.getVisitedRows() - visitedBefore) / (double) (queries * (long) ROWS);
+        System.out.printf("top-1 @0.9: просмотрено %.1f%% строк, индекс %.2f мс, полный перебор %.2f мс на запрос%n",
+                visitedRatio * 100, prunedNanos / 1e6 / queries, bruteNanos / 1e6 / queries);
+        assertTrue(visitedRatio < 0.5, "отсечение блоков просмотрело " + visitedRatio + " строк");
+    }
+
+    @Test
+    void lowThresholdTopKMatchesBruteForce() {
+        Random random = new Random(11);
+        for (int q = 0; q < 20; q++) {
+            float[] query = TestVectors.randomUnit(random, DIMENSION);
+            assertSameHits(bruteForce(query, 10, 0.0), index.search(query, 10, 0.0, null));
+        }
+    }
+
+    @Test
+    void filterIsApplied() {
+        float[] query = vectors[123];
+        List<VectorSearchHit> hits = index.search(query, 5, 0.0, id -> id % 2 == 1);
+        assertFalse(hits.isEmpty());
+        for (VectorSearchHit hit : hits) {
+            assertEquals(1, hit.getDocumentId() % 2);
+        }
+    }
+
+    private static void assertSameHits(List<VectorSearchHit> expected, List<VectorSearchHit> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            // при равном сходстве порядок может отличаться, поэтому сравниваются значения сходства
+            assertEquals(expected.get(i).getSimilarity(), actual.get(i).getSimilarity(), 1e-4);
+        }
+    }
+
+    private static List<VectorSearchHit> bruteForce(float[] query, int topK, double threshold) {
+        float[] unit = VectorMath.normalize(query);
+        List<VectorSearchHit> hits = new ArrayList<>();
+        for (int row = 0; row < ROWS; row++) {
+            double similarity = VectorMath.dot(vectors[row], unit);
+            if (similarity >= threshold) {
+                hits.add(new VectorSearchHit(row, similarity));
+            }
+        }
+        hits.sort((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+        return hits.size() > topK ? hits.subList(0, topK) : hits;
+    }
+}
@@ -0,0 +1,85 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HNSW: полнота top-10 относительно полного перебора, скрытие удаленных узлов и их уборка compact()
+ */
+class HnswIndexTest {
+
+    private static final int ROWS = 5_000;
+    private static final int DIMENSION = 32;
+    private static final int TOP_K = 10;
+
+    @Test
+    void recallAgainstBruteForce() {
+        Random random = new Random(42);
+        float[][] vectors = TestVectors.clustered(random, ROWS, DIMENSION, 50, 1.5f);
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        for (int row = 0; row < ROWS; row++) {
+            index.add(row, vectors[row]);
+        }
+        assertEquals(ROWS, index.size());
+
+        double recall = averageRecall(index, vectors, null, new Random(7));
+        System.out.printf("HNSW recall@%d: %.3f%n", TOP_K, recall);
+        assertTrue(recall >= 0.9, "полнота HNSW " + recall);
+    }
+
+    @Test
+    void removedNodesAreHiddenAndCompacted() {
+        Random random = new Random(3);
+        int rows = 2_000;
+        float[][] vectors = TestVectors.clustered(random, rows, DIMENSION, 20, 0.5f);
+        HnswIndex index = new HnswIndex(16, 100, 64);
+        for (int row = 0; row < rows; row++) {
+            index.add(row, vectors[row]);
+        }
+        Set<Long> live = new HashSet<>();
+        for (int row = 0; row < rows; row++) {
+            if (row % 3 == 0) {
+                assertTrue(index.remove(row));
+            } else {
+                live.add((long) row);
+            }
+        }
+        assertFalse(index.remove(0), "повторное удаление");
+        assertEquals(live.size(), index.size());
+        assertEquals(1.0 / 3, index.getDeletedRatio(), 0.01);
+        assertNoRemoved(index, vectors);
+
+        assertEquals(rows - live.size(), index.compact());
+        assertEquals(0.0, index.getDeletedRatio());
+        assertEquals(live.size(), index.size());
+        assertNoRemoved(index, vectors);
+
+        double recall = averageRecall(index, vectors, live, new Random(5));
+        assertTrue(recall >= 0.9, "полнота после compact " + recall);
+    }
+
+    private static void assertNoRemoved(HnswIndex index, float[][] vectors) {
+        for (int row = 0; row < 30; row++) {
+            for (VectorSearchHit hit : index.search(vectors[row * 3], TOP_K, -1.0)) {
+                assertNotEquals(0, hit.getDocumentId() % 3, "удаленный документ в выдаче");
+            }
+        }
+    }
+
+    private static double averageRecall(HnswIndex index, float[][] vectors, Set<Long> live, Random random) {
+        int queries = 50;
+        double total = 0;
+        for (int q = 0; q < queries; q++) {
+            float[] query = TestVectors.perturb(random, vectors[random.nextInt(vectors.length)], 0.3f);
+            List<VectorSearchHit> hits = index.search(query, TOP_K, -1.0);
+            total += TestVectors.recall(TestVectors.bruteForceIds(vectors, query, TOP_K, live), hits);
+        }
+        return total / queries;
+    }
+}
@@ -0,0 +1,77 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * IVF без базы: списки из KMeans, поиск в nprobe ближайших списках, как в IvfIndexService.findSimilarDocuments
+ */
+class IvfIndexServiceTest {
+
+    private static final int ROWS = 5_000;
+    private static final int DIMENSION = 32;
+    private static final int LISTS = 32;
+    private static final int TOP_K = 10;
+
+    @Test
+    void recallGrowsWithNprobe() {
+        Random random = new Random(42);
+        float[][] vectors = TestVectors.clustered(random, ROWS, DIMENSION, 50, 1.5f);
+        float[][] centroids = KMeans.train(Arrays.asList(vectors), LISTS, 10);
+        int[] assignment = new int[ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            assignment[row] = KMeans.nearest(centroids, vectors[row]);
+        }
+
+        double single = averageRecall(vectors, centroids, assignment, 1);
+        double probed = averageRecall(vectors, centroids, assignment, 8);
+        System.out.printf("IVF recall@%d: nprobe=1 %.3f, nprobe=8 %.3f%n", TOP_K, single, probed);
+        // k-means со случайной инициализацией: порог с запасом (обычно 0.90-0.92 на этих данных)
+        assertTrue(probed > single);
+        assertTrue(probed >= 0.8, "полнота IVF при nprobe=8 " + probed);
+        assertEquals(1.0, averageRecall(vectors, centroids, assignment, LISTS), 1e-9, "все списки - полный перебор");
+    }
+
+    @Test
+    void closestListsAreOrderedBySimilarity() {
+        Random random = new Random(1);
+        float[][] centroids = new float[8][];
+        for (int c = 0; c < centroids.length; c++) {
+            centroids[c] = TestVectors.randomUnit(random, DIMENSION);
+        }
+        float[] query = centroids[5];
+        List<Integer> lists = IvfIndexService.closestLists(centroids, query, 3);
+        assertEquals(3, lists.size());
+        assertEquals(5, lists.get(0));
+        for (int i = 1; i < lists.size(); i++) {
+            assertTrue(VectorMath.dot(centroids[lists.get(i - 1)], query) >= VectorMath.dot(centroids[lists.get(i)], query));
+        }
+        assertEquals(8, IvfIndexService.closestLists(centroids, query, 100).size());
+    }
+
+    private static double averageRecall(float[][] vectors, float[][] centroids, int[] assignment, int nprobe) {
+        Random random = new Random(7);
+        int queries = 50;
+        double total = 0;
+        for (int q = 0; q < queries; q++) {
+            float[] query = TestVectors.perturb(random, vectors[random.nextInt(vectors.length)], 0.3f);
+            List<Integer> lists = IvfIndexService.closestLists(centroids, query, nprobe);
+            List<VectorSearchHit> hits = new ArrayList<>();
+            for (int row = 0; row < vectors.length; row++) {
+                if (lists.contains(assignment[row])) {
+                    hits.add(new VectorSearchHit(row, VectorMath.dot(vectors[row], query)));
+                }
+            }
+            hits.sort((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+            total += TestVectors.recall(TestVectors.bruteForceIds(vectors, query, TOP_K, null),
+                    hits.subList(0, Math.min(TOP_K, hits.size())));
+        }
+        return total / queries;
+    }
+}
@@ -0,0 +1,156 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Хранилище сегментов в отображенных файлах: поиск, удаление, переоткрытие с диска и слияние сегментов
+ */
+class MappedVectorStoreTest {
+
+    private static final int DIMENSION = 16;
+    private static final int CAPACITY = 1024; // минимальная емкость сегмента
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void searchMatchesBruteForceAndSurvivesReopen() throws IOException {
+        Random random = new Random(42);
+        float[][] vectors = TestVectors.clustered(random, 3000, DIMENSION, 10, 1.0f);
+        Set<Long> live = new HashSet<>();
+        MappedVectorStore store = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        for (int row = 0; row < vectors.length; row++) {
+            store.addDeferred(row, vectors[row]);
+            live.add((long) row);
+        }
+        store.flush();
+        for (long id = 0; id < vectors.length; id += 7) {
+            assertTrue(store.remove(id));
+            live.remove(id);
+        }
+        assertFalse(store.remove(0));
+        assertEquals(live.size(), store.size());
+        assertSearchExact(store, vectors, live);
+        store.close();
+
+        MappedVectorStore reopened = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        assertEquals(live, reopened.documentIds());
+        assertEquals(DIMENSION, reopened.getDimension());
+        assertSearchExact(reopened, vectors, live);
+        reopened.close();
+    }
+
+    @Test
+    void replacedVectorKeepsOnlyLatestVersion() throws IOException {
+        Random random = new Random(3);
+        float[] first = TestVectors.randomUnit(random, DIMENSION);
+        float[] second = TestVectors.randomUnit(random, DIMENSION);
+        MappedVectorStore store = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        store.add(1, first);
+        store.add(1, second);
+        assertEquals(1, store.size());
+        List<VectorSearchHit> hits = store.search(second, 5, -1.0, null);
+        assertEquals(1, hits.size());
+        assertEquals(1.0, hits.get(0).getSimilarity(), 1e-5);
+        store.close();
+
+        MappedVectorStore reopened = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        assertEquals(1.0, reopened.search(second, 1, -1.0, null).get(0).getSimilarity(), 1e-5);
+        reopened.close();
+    }
+
+    @Test
+    void mergeTakesActiveSegmentAndLeavesRoomForAppends() throws IOException {
+        Random random = new Random(11);
+        float[][] vectors = TestVectors.clustered(random, CAPACITY * 2 + 100, DIMENSION, 10, 1.0f);
+        Set<Long> live = new HashSet<>();
+        MappedVectorStore store = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        for (int row = 0; row < vectors.length; row++) {
+            store.addDeferred(row, vectors[row]);
+            live.add((long) row);
+        }
+        store.flush();
+        assertEquals(3, segmentFiles());
+        // в заполненных сегментах удалено больше половины строк
+        for (long id = 0; id < CAPACITY * 2; id++) {
+            if (id % 3 != 0) {
+                store.remove(id);
+                live.remove(id);
+            }
+        }
+
+        assertEquals(3, store.merge(0.5));
+        assertEquals(1, segmentFiles(), "незаполненный последний сегмент вошел в слияние");
+        assertEquals(live, store.documentIds());
+        assertSearchExact(store, vectors, live);
+
+        // новые строки дописываются в слитый сегмент, а не в новый файл
+        store.add(100_000, vectors[0]);
+        assertEquals(1, segmentFiles());
+        assertEquals(0, store.merge(0.5), "без заполненных сегментов с удалениями сливать нечего");
+        store.close();
+
+        live.add(100_000L);
+        MappedVectorStore reopened = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        assertEquals(live, reopened.documentIds());
+        reopened.close();
+    }
+
+    @Test
+    void syncMarkerAndClear() throws IOException {
+        MappedVectorStore store = new MappedVectorStore(directory, CAPACITY, ForkJoinPool.commonPool());
+        assertEquals(-1, store.getSyncedAt());
+        store.setSyncedAt(123_456L);
+        assertEquals(123_456L, store.getSyncedAt());
+        store.add(1, TestVectors.randomUnit(new Random(1), DIMENSION));
+        assertThrows(IllegalArgumentException.class, () -> store.add(2, new float[DIMENSION + 1]));
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(-1, store.getSyncedAt());
+        assertEquals(0, segmentFiles());
+        store.add(2, TestVectors.randomUnit(new Random(2), DIMENSION + 4));
+        assertEquals(DIMENSION + 4, store.getDimension());
+        store.close();
+    }
+
+    private void assertSearchExact(MappedVectorStore store, float[][] vectors, Set<Long> live) {
+        Random random = new Random(5);
+        for (int q = 0; q < 10; q++) {
+            float[] query = TestVectors.randomUnit(random, DIMENSION);
+            List<VectorSearchHit> hits = store.search(query, 10, -1.0, null);
+            assertEquals(TestVectors.bruteForceIds(vectors, query, 10, live), ids(hits));
+        }
+    }
+
+    private static Set<Long> ids(List<VectorSearchHit> hits) {
+        Set<Long> ids = new HashSet<>();
+        for (VectorSearchHit hit : hits) {
+            ids.add(hit.getDocumentId());
+        }
+        return ids;
+    }
+
+    private int segmentFiles() throws IOException {
+        int files = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*" + VectorSegment.EXTENSION)) {
+            for (Path ignored : stream) {
+                files++;
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,78 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MinHash: оценка сходства близка к коэффициенту Жаккара шинглов, почти дубликаты попадают в общую корзину LSH
+ */
+class MinHashLshTest {
+
+    private static final String BASE = "Процедура GET_PATIENT_CARD возвращает карту пациента по идентификатору, "
+            + "проверяет права пользователя и пишет обращение в журнал аудита. При отсутствии карты "
+            + "возвращается пустой курсор, ошибки доступа передаются вызывающему коду.";
+
+    private final MinHashLsh lsh = new MinHashLsh(32, 4, 5);
+
+    @Test
+    void similarityEstimatesJaccard() {
+        String edited = BASE.replace("журнал аудита", "журнал событий");
+        double expected = jaccard(shingles(BASE), shingles(edited));
+        double estimated = MinHashLsh.similarity(lsh.signature(BASE), lsh.signature(edited));
+        assertEquals(expected, estimated, 0.12);
+        assertEquals(1.0, MinHashLsh.similarity(lsh.signature(BASE), lsh.signature("  " + BASE.toUpperCase() + "\n")));
+    }
+
+    @Test
+    void nearDuplicatesShareBucketUnrelatedDoNot() {
+        long[] base = lsh.bandKeys(lsh.signature(BASE));
+        long[] near = lsh.bandKeys(lsh.signature(BASE.replace("пустой курсор", "пустой набор")));
+        long[] unrelated = lsh.bandKeys(lsh.signature(
+                "Сервис отчетов строит ежемесячную сводку по отделениям и отправляет ее по почте руководителям."));
+        assertEquals(32, base.length);
+        assertTrue(sharedBands(base, near) > 0, "почти дубликат не попал ни в одну общую корзину");
+        assertEquals(0, sharedBands(base, unrelated));
+        assertTrue(MinHashLsh.similarity(lsh.signature(BASE), lsh.signature(
+                "Сервис отчетов строит ежемесячную сводку по отделениям.")) < 0.1);
+    }
+
+    @Test
+    void signatureBytesRoundTrip() {
+        int[] signature = lsh.signature(BASE);
+        assertEquals(lsh.getLength(), signature.length);
+        assertArrayEquals(signature, MinHashLsh.fromBytes(MinHashLsh.toBytes(signature)));
+        assertArrayEquals(signature, new MinHashLsh(32, 4, 5).signature(BASE), "сигнатура должна быть детерминированной");
+        assertEquals("bands=32,rows=4,shingle=5", lsh.getParams());
+    }
+
+    private static int sharedBands(long[] a, long[] b) {
+        int shared = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    private static Set<String> shingles(String text) {
+        String normalized = text.toLowerCase().replaceAll("\\s+", " ").trim();
+        Set<String> shingles = new HashSet<>();
+        for (int i = 0; i + 5 <= normalized.length(); i++) {
+            shingles.add(normalized.substring(i, i + 5));
+        }
+        return shingles;
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        Set<String> intersection = new HashSet<>(a);
+        intersection.retainAll(b);
+        return (double) intersection.size() / union.size();
+    }
+}
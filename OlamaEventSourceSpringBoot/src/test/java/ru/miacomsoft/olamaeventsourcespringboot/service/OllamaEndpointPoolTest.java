@@ -0,0 +1,108 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Выбор сервера в пуле Ollama: по списку моделей, без исключенного и недоступного сервера,
+ * по наименьшему числу незавершенных запросов
+ */
+class OllamaEndpointPoolTest {
+
+    // порт 1 закрыт: запрос сразу завершается ошибкой соединения
+    private static final String DOWN = "http://127.0.0.1:1";
+
+    @Test
+    void modelListDecidesServer() {
+        try (OllamaEndpointPool pool = pool("http://a:11434[m1|m2], http://b:11434[m3], http://c:11434")) {
+            for (int i = 0; i < 4; i++) {
+                assertEquals("http://a:11434", pool.choose("m1").getUrl());
+                assertEquals("http://b:11434", pool.choose("m3").getUrl());
+                assertEquals("http://c:11434", pool.choose("other").getUrl(), "сервер без списка принимает любые");
+                assertEquals("http://c:11434", pool.choose(null).getUrl());
+            }
+            OllamaEndpointPool.Endpoint a = pool.choose("m1");
+            assertEquals("http://c:11434", pool.choose("m1", a).getUrl(), "дубль уходит на другой сервер");
+        }
+    }
+
+    @Test
+    void unavailableServerIsSkipped() throws Exception {
+        try (OllamaEndpointPool pool = pool(DOWN + "[m1],http://c:11434")) {
+            OllamaEndpointPool.Endpoint down = pool.choose("m1");
+            assertEquals(DOWN, down.getUrl());
+            assertThrows(IOException.class, () -> pool.post("m1", "/api/embed", "{}"));
+
+            for (int i = 0; i < 4; i++) {
+                assertEquals("http://c:11434", pool.choose("m1").getUrl());
+            }
+            OllamaEndpointPool.Endpoint c = pool.choose("m1");
+            assertNull(pool.choose("m1", c), "других допущенных серверов нет");
+        }
+        try (OllamaEndpointPool pool = pool(DOWN)) {
+            assertThrows(IOException.class, () -> pool.get("/api/tags"));
+            assertEquals(DOWN, pool.choose("m1").getUrl(), "если допущенных нет, выбирается из всех");
+        }
+        assertThrows(IllegalArgumentException.class, () -> pool(" , "));
+    }
+
+    @Test
+    void leastOutstandingServerIsChosen() throws Exception {
+        HttpServer first = server();
+        HttpServer second = server();
+        try (OllamaEndpointPool pool = pool(url(first) + "," + url(second))) {
+            InputStream open = pool.open("m", "GET", "/", null, 5_000);
+            // поток не закрыт: запрос на первый выбранный сервер считается незавершенным
+            Set<String> chosen = new HashSet<>();
+            for (int i = 0; i < 4; i++) {
+                chosen.add(pool.choose("m").getUrl());
+            }
+            assertEquals(1, chosen.size());
+            JSONArray stats = pool.getStatistics().getJSONArray("endpoints");
+            assertEquals(1, stats.getJSONObject(0).getInt("outstanding") + stats.getJSONObject(1).getInt("outstanding"));
+
+            open.close();
+            for (int i = 0; i < 4; i++) {
+                chosen.add(pool.choose("m").getUrl());
+            }
+            assertEquals(2, chosen.size(), "после завершения запроса серверы чередуются");
+        } finally {
+            first.stop(0);
+            second.stop(0);
+        }
+    }
+
+    private static OllamaEndpointPool pool(String spec) {
+        return new OllamaEndpointPool(spec,
+                url -> new OllamaTransport(url, 4, 2, 1000, 5_000, false, false, 1, 60_000),
+                0, 1000, 2, 2, 0);
+    }
+
+    private static HttpServer server() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+}
@@ -0,0 +1,69 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Срок запроса потока: проверка, ожидание результата и перенос срока в задачи других потоков
+ */
+class RequestDeadlineTest {
+
+    @AfterEach
+    void clear() {
+        RequestDeadline.clear();
+    }
+
+    @Test
+    void noDeadlineMeansUnlimited() {
+        assertEquals(0, RequestDeadline.get());
+        assertEquals(Long.MAX_VALUE, RequestDeadline.remainingMs());
+        assertDoesNotThrow(() -> RequestDeadline.check("поиск"));
+    }
+
+    @Test
+    void expiredDeadlineFailsCheckAndAwait() {
+        RequestDeadline.set(System.currentTimeMillis() - 1);
+        assertEquals(0, RequestDeadline.remainingMs());
+        RequestDeadline.Exceeded e = assertThrows(RequestDeadline.Exceeded.class, () -> RequestDeadline.check("поиск"));
+        assertTrue(e.getMessage().contains("поиск"));
+
+        RequestDeadline.set(System.currentTimeMillis() + 50);
+        assertThrows(RequestDeadline.Exceeded.class,
+                () -> RequestDeadline.await(new CompletableFuture<String>(), "эмбеддинг"));
+        RequestDeadline.set(0);
+        assertEquals(0, RequestDeadline.get());
+    }
+
+    @Test
+    void awaitReturnsCompletedResult() throws Exception {
+        RequestDeadline.set(System.currentTimeMillis() + 5_000);
+        assertEquals("ok", RequestDeadline.await(CompletableFuture.completedFuture("ok"), "эмбеддинг"));
+    }
+
+    @Test
+    void wrapCarriesDeadlineAndRestoresPrevious() throws Exception {
+        long deadlineAt = System.currentTimeMillis() + 60_000;
+        RequestDeadline.set(deadlineAt);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(0L, executor.submit(RequestDeadline::get).get());
+            assertEquals(deadlineAt, executor.submit(RequestDeadline.wrap(RequestDeadline::get)).get());
+            long[] seen = new long[1];
+            executor.submit(RequestDeadline.wrap(() -> {
+                seen[0] = RequestDeadline.get();
+            })).get();
+            assertEquals(deadlineAt, seen[0]);
+            assertEquals(0L, executor.submit(RequestDeadline::get).get(), "срок не остается в потоке пула");
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
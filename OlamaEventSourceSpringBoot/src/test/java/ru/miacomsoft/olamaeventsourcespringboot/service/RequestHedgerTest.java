@@ -0,0 +1,101 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Дублирование запросов на локальных HTTP серверах вместо Ollama: медленный первый сервер не задерживает ответ
+ * дольше задержки дублирования, бюджет ограничивает число дублей
+ */
+class RequestHedgerTest {
+
+    private static final long SLOW_MS = 2_000;
+
+    private HttpServer slow;
+    private HttpServer fast;
+    private OllamaEndpointPool pool;
+
+    @BeforeEach
+    void startServers() throws Exception {
+        slow = server("slow", SLOW_MS);
+        fast = server("fast", 0);
+        pool = new OllamaEndpointPool(url(slow) + "," + url(fast),
+                url -> new OllamaTransport(url, 4, 2, 1000, 10_000, false, false, 3, 1000),
+                0, 1000, 2, 2, 0);
+    }
+
+    @AfterEach
+    void stopServers() {
+        pool.close();
+        slow.stop(0);
+        fast.stop(0);
+    }
+
+    @Test
+    void slowPrimaryIsHedged() throws Exception {
+        RequestHedger hedger = new RequestHedger(pool, true, 95, 50, 50, 100, 10);
+        for (int i = 0; i < 4; i++) {
+            long start = System.currentTimeMillis();
+            assertEquals("fast", hedger.post("m", "/api/embed", "{}"));
+            assertTrue(System.currentTimeMillis() - start < SLOW_MS / 2, "ответ ждал медленный сервер");
+        }
+        JSONObject stats = hedger.getStatistics();
+        assertEquals(4, stats.getLong("requests"));
+        // первый запрос уходит на медленный сервер (первый в списке), ответ дает дубль;
+        // дубль может уйти и с быстрого сервера, если холодный первый запрос к нему дольше задержки
+        assertTrue(stats.getLong("hedge_wins") >= 1);
+        assertTrue(stats.getLong("hedged") >= stats.getLong("hedge_wins"));
+    }
+
+    @Test
+    void exhaustedBudgetSendsNoHedge() throws Exception {
+        RequestHedger hedger = new RequestHedger(pool, true, 95, 50, 50, 0, 10);
+        for (int i = 0; i < 2; i++) {
+            hedger.post("m", "/api/embed", "{}");
+        }
+        JSONObject stats = hedger.getStatistics();
+        assertEquals(0, stats.getLong("hedged"));
+        assertTrue(stats.getLong("budget_denied") >= 1, "хотя бы один запрос ушел на медленный сервер");
+    }
+
+    @Test
+    void disabledHedgerUsesPool() throws Exception {
+        RequestHedger hedger = new RequestHedger(pool, false, 95, 50, 50, 100, 10);
+        String response = hedger.post("m", "/api/embed", "{}");
+        assertTrue(response.equals("fast") || response.equals("slow"));
+        assertEquals(0, hedger.getStatistics().getLong("requests"));
+    }
+
+    private static HttpServer server(String answer, long delayMs) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = answer.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+}
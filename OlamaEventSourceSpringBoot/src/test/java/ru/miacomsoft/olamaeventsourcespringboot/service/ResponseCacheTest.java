@@ -0,0 +1,102 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Семантический кэш ответов: порог сходства, ключ из документов/модели/области,
+ * вытеснение по размеру и сброс при изменении документа
+ */
+class ResponseCacheTest {
+
+    private static final String SCOPE = ResponseCache.scope("client", null, 0);
+
+    @Test
+    void similarQuestionWithSameDocumentsIsAnsweredFromCache() {
+        ResponseCache cache = cache(1000, 16);
+        float[] question = VectorMath.normalize(new float[]{1, 0, 0});
+        cache.put(question, List.of(3L, 1L), "m", true, SCOPE, "ответ");
+
+        float[] close = VectorMath.normalize(new float[]{1, 0.1f, 0});
+        ResponseCache.Entry entry = cache.lookup(close, List.of(1L, 3L), "m", true, SCOPE);
+        assertNotNull(entry, "порядок документов не важен");
+        assertEquals("ответ", entry.getAnswer());
+
+        assertNull(cache.lookup(VectorMath.normalize(new float[]{1, 1, 0}), List.of(1L, 3L), "m", true, SCOPE),
+                "вопрос ниже порога сходства");
+        assertNull(cache.lookup(question, List.of(1L, 3L, 4L), "m", true, SCOPE), "другой набор документов");
+        assertNull(cache.lookup(question, List.of(1L, 3L), "other", true, SCOPE), "другая модель");
+        assertNull(cache.lookup(question, List.of(1L, 3L), "m", false, SCOPE), "другой режим");
+        assertNull(cache.lookup(question, List.of(1L, 3L), "m", true, ResponseCache.scope("other", null, 0)),
+                "другой клиент");
+
+        JSONObject stats = cache.getStatistics();
+        assertEquals(1, stats.getLong("hits"));
+        assertEquals(5, stats.getLong("misses"));
+    }
+
+    @Test
+    void scopeDependsOnHistoryBeforeCurrentQuestion() {
+        JSONArray history = new JSONArray()
+                .put(new JSONObject().put("role", "user").put("content", "первый"))
+                .put(new JSONObject().put("role", "user").put("content", "текущий"));
+        JSONArray otherCurrent = new JSONArray()
+                .put(new JSONObject().put("role", "user").put("content", "первый"))
+                .put(new JSONObject().put("role", "user").put("content", "другой"));
+
+        assertEquals(ResponseCache.scope("c", history, 1), ResponseCache.scope("c", otherCurrent, 1));
+        assertNotEquals(ResponseCache.scope("c", history, 1), ResponseCache.scope("c", null, 0));
+        assertNotEquals(ResponseCache.scope("c", history, 1), ResponseCache.scope("d", history, 1));
+    }
+
+    @Test
+    void documentChangeAndLimitsEvictEntries() {
+        ResponseCache cache = cache(3, 2);
+        float[] question = VectorMath.normalize(new float[]{0, 1, 0});
+        cache.put(question, List.of(1L), "m", true, SCOPE, "a");
+        cache.put(question, List.of(1L), "m", true, SCOPE, "b");
+        cache.put(question, List.of(1L), "m", true, SCOPE, "c");
+        assertEquals(2, cache.getStatistics().getInt("entries"), "в группе не больше max-entries-per-key");
+
+        cache.put(question, List.of(2L), "m", true, SCOPE, "d");
+        cache.put(question, List.of(3L), "m", true, SCOPE, "e");
+        assertEquals(3, cache.getStatistics().getInt("entries"), "вытесняется самая давняя запись");
+        assertNotNull(cache.lookup(question, List.of(3L), "m", true, SCOPE));
+
+        cache.onDocumentChanged(2L);
+        assertNull(cache.lookup(question, List.of(2L), "m", true, SCOPE));
+        assertNotNull(cache.lookup(question, List.of(3L), "m", true, SCOPE));
+
+        cache.put(question, List.of(4L), "m", true, SCOPE, " ");
+        assertNull(cache.lookup(question, List.of(4L), "m", true, SCOPE), "пустой ответ не кэшируется");
+
+        cache.clear();
+        assertEquals(0, cache.getStatistics().getInt("entries"));
+    }
+
+    @Test
+    void disabledCacheNeitherStoresNorFinds() {
+        ResponseCache cache = cache(10, 2);
+        ReflectionTestUtils.setField(cache, "enabled", false);
+        float[] question = VectorMath.normalize(new float[]{1, 0});
+        cache.put(question, List.of(1L), "m", true, SCOPE, "a");
+        assertNull(cache.lookup(question, List.of(1L), "m", true, SCOPE));
+        assertEquals(0, cache.getStatistics().getInt("entries"));
+    }
+
+    private static ResponseCache cache(int maxEntries, int maxEntriesPerKey) {
+        ResponseCache cache = new ResponseCache();
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "similarityThreshold", 0.95);
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(cache, "maxEntries", maxEntries);
+        ReflectionTestUtils.setField(cache, "maxEntriesPerKey", maxEntriesPerKey);
+        return cache;
+    }
+}
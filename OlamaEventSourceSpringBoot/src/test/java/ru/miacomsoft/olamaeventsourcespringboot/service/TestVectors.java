@@ -0,0 +1,79 @@
+package ru.miacomsoft.olamaeventsourcespringboot.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Тестовые векторы: кластеризованные нормализованные данные и полный перебор как эталон
+ */
+final class TestVectors {
+
+    private TestVectors() {
+    }
+
+    static float[] randomUnit(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            vector[d] = (float) random.nextGaussian();
+        }
+        return VectorMath.normalize(vector);
+    }
+
+    static float[] perturb(Random random, float[] base, float noise) {
+        float[] vector = new float[base.length];
+        for (int d = 0; d < base.length; d++) {
+            vector[d] = base[d] + (float) random.nextGaussian() * noise / (float) Math.sqrt(base.length);
+        }
+        return VectorMath.normalize(vector);
+    }
+
+    /**
+     * rows векторов вокруг clusters случайных центров
+     */
+    static float[][] clustered(Random random, int rows, int dimension, int clusters, float noise) {
+        float[][] centers = new float[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            centers[c] = randomUnit(random, dimension);
+        }
+        float[][] vectors = new float[rows][];
+        for (int row = 0; row < rows; row++) {
+            vectors[row] = perturb(random, centers[random.nextInt(clusters)], noise);
+        }
+        return vectors;
+    }
+
+    /**
+     * Номера строк topK ближайших векторов полным перебором; live == null - все строки
+     */
+    static Set<Long> bruteForceIds(float[][] vectors, float[] query, int topK, Set<Long> live) {
+        float[] unit = VectorMath.normalize(query);
+        List<VectorSearchHit> hits = new ArrayList<>();
+        for (int row = 0; row < vectors.length; row++) {
+            if (live == null || live.contains((long) row)) {
+                hits.add(new VectorSearchHit(row, VectorMath.dot(vectors[row], unit)));
+            }
+        }
+        hits.sort((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+        Set<Long> ids = new HashSet<>();
+        for (VectorSearchHit hit : hits.subList(0, Math.min(topK, hits.size()))) {
+            ids.add(hit.getDocumentId());
+        }
+        return ids;
+    }
+
+    /**
+     * Доля эталонных результатов, найденных индексом
+     */
+    static double recall(Set<Long> expected, List<VectorSearchHit> hits) {
+        int found = 0;
+        for (VectorSearchHit hit : hits) {
+            if (expected.contains(hit.getDocumentId())) {
+                found++;
+            }
+        }
+        return expected.isEmpty() ? 1.0 : (double) found / expected.size();
+    }
+}